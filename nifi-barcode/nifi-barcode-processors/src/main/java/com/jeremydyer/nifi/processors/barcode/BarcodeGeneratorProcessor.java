@@ -0,0 +1,335 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi.processors.barcode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.Writer;
+import com.google.zxing.WriterException;
+import com.google.zxing.aztec.AztecWriter;
+import com.google.zxing.common.BitArray;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.datamatrix.DataMatrixWriter;
+import com.google.zxing.oned.CodaBarWriter;
+import com.google.zxing.oned.Code128Writer;
+import com.google.zxing.oned.Code39Writer;
+import com.google.zxing.oned.EAN13Writer;
+import com.google.zxing.oned.EAN8Writer;
+import com.google.zxing.oned.ITFWriter;
+import com.google.zxing.oned.UPCAWriter;
+import com.google.zxing.pdf417.PDF417Writer;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+@Tags({"barcode", "generator", "label", "qr"})
+@CapabilityDescription("Generates a barcode from the FlowFile's attributes and writes it as a black and white PNG. With more than" +
+        " one 'Labels Per Sheet' the barcodes of up to that many FlowFiles are laid out in a grid on a single PNG sheet, written to" +
+        " a new FlowFile, and the FlowFiles they were generated from are routed to 'original'.")
+@WritesAttributes(
+        {
+                @WritesAttribute(attribute="mime.type", description = "image/png"),
+                @WritesAttribute(attribute="barcode.format", description = "Format of the generated barcodes"),
+                @WritesAttribute(attribute="barcode.count", description = "Number of barcodes on the sheet"),
+        }
+)
+public class BarcodeGeneratorProcessor extends AbstractProcessor {
+
+    private static final Map<BarcodeFormat, Supplier<Writer>> WRITERS = new EnumMap<>(BarcodeFormat.class);
+
+    static {
+        WRITERS.put(BarcodeFormat.AZTEC, AztecWriter::new);
+        WRITERS.put(BarcodeFormat.CODABAR, CodaBarWriter::new);
+        WRITERS.put(BarcodeFormat.CODE_39, Code39Writer::new);
+        WRITERS.put(BarcodeFormat.CODE_128, Code128Writer::new);
+        WRITERS.put(BarcodeFormat.DATA_MATRIX, DataMatrixWriter::new);
+        WRITERS.put(BarcodeFormat.EAN_8, EAN8Writer::new);
+        WRITERS.put(BarcodeFormat.EAN_13, EAN13Writer::new);
+        WRITERS.put(BarcodeFormat.ITF, ITFWriter::new);
+        WRITERS.put(BarcodeFormat.PDF_417, PDF417Writer::new);
+        WRITERS.put(BarcodeFormat.QR_CODE, QRCodeWriter::new);
+        WRITERS.put(BarcodeFormat.UPC_A, UPCAWriter::new);
+    }
+
+    // Shared by every generator, an encoder only holds buffers
+    private static final ThreadLocal<BitMatrixPngEncoder> ENCODERS = ThreadLocal.withInitial(BitMatrixPngEncoder::new);
+
+    public static final PropertyDescriptor BARCODE_CONTENT = new PropertyDescriptor.Builder()
+            .name("Barcode Content")
+            .description("Text encoded in the barcode, usually built from the FlowFile's attributes.")
+            .required(true)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .defaultValue("${" + BarcodeScannerProcessor.BARCODE_ATTRIBUTE_NAME + "}")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BARCODE_FORMAT = new PropertyDescriptor.Builder()
+            .name("Barcode Format")
+            .description("Format of the generated barcode.")
+            .required(true)
+            .allowableValues(formatNames())
+            .defaultValue(BarcodeFormat.QR_CODE.toString())
+            .build();
+
+    public static final PropertyDescriptor WIDTH = new PropertyDescriptor.Builder()
+            .name("Width")
+            .description("Width, in pixels, of every barcode. Barcodes that need more pixels to be readable are made wider.")
+            .required(true)
+            .defaultValue("300")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor HEIGHT = new PropertyDescriptor.Builder()
+            .name("Height")
+            .description("Height, in pixels, of every barcode. Barcodes that need more pixels to be readable are made higher.")
+            .required(true)
+            .defaultValue("300")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MARGIN = new PropertyDescriptor.Builder()
+            .name("Margin")
+            .description("Width of the blank quiet zone around every barcode, in modules. Data Matrix and Aztec barcodes have" +
+                    " no quiet zone of their own. Each format's own default is used when this is not set.")
+            .required(false)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor LABELS_PER_SHEET = new PropertyDescriptor.Builder()
+            .name("Labels Per Sheet")
+            .description("Maximum number of barcodes laid out on one sheet. With 1 the content of every FlowFile is replaced" +
+                    " by its barcode, with more the barcodes of as many FlowFiles as are queued, up to this number, are written" +
+                    " to one new FlowFile, which saves the repositories a FlowFile per label.")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SHEET_COLUMNS = new PropertyDescriptor.Builder()
+            .name("Sheet Columns")
+            .description("Number of barcodes side by side on a sheet, the sheet has as many rows as it needs.")
+            .required(true)
+            .defaultValue("10")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("Generated barcodes and sheets of barcodes")
+            .build();
+
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("FlowFiles whose content can not be encoded in the barcode format")
+            .build();
+
+    public static final Relationship REL_ORIGINAL = new Relationship.Builder()
+            .name("original")
+            .description("FlowFiles whose barcodes were laid out on a sheet")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile BarcodeFormat format;
+    private volatile Map<EncodeHintType, Object> hints;
+    // ZXing writers are cheap but still allocate their encoders, so each thread keeps its own
+    private volatile ThreadLocal<Writer> writers;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(BARCODE_CONTENT);
+        descriptors.add(BARCODE_FORMAT);
+        descriptors.add(WIDTH);
+        descriptors.add(HEIGHT);
+        descriptors.add(MARGIN);
+        descriptors.add(LABELS_PER_SHEET);
+        descriptors.add(SHEET_COLUMNS);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_FAILURE);
+        relationships.add(REL_ORIGINAL);
+        this.relationships = Collections.unmodifiableSet(relationships);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        format = BarcodeFormat.valueOf(context.getProperty(BARCODE_FORMAT).getValue());
+        final Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+        hints.put(EncodeHintType.CHARACTER_SET, StandardCharsets.UTF_8.name());
+        if (context.getProperty(MARGIN).isSet()) {
+            hints.put(EncodeHintType.MARGIN, context.getProperty(MARGIN).asInteger());
+        }
+        this.hints = Collections.unmodifiableMap(hints);
+        writers = ThreadLocal.withInitial(WRITERS.get(format));
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final int labelsPerSheet = context.getProperty(LABELS_PER_SHEET).asInteger();
+        final int width = context.getProperty(WIDTH).asInteger();
+        final int height = context.getProperty(HEIGHT).asInteger();
+
+        if (labelsPerSheet == 1) {
+            FlowFile flowFile = session.get();
+            if ( flowFile == null ) {
+                return;
+            }
+            final BitMatrix label = encode(context, session, flowFile, width, height);
+            if (label == null) {
+                return;
+            }
+            flowFile = writePng(session, flowFile, label, 1);
+            session.transfer(flowFile, REL_SUCCESS);
+            return;
+        }
+
+        final List<FlowFile> flowFiles = session.get(labelsPerSheet);
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+        final List<FlowFile> labelled = new ArrayList<>(flowFiles.size());
+        final List<BitMatrix> labels = new ArrayList<>(flowFiles.size());
+        for (FlowFile flowFile : flowFiles) {
+            final BitMatrix label = encode(context, session, flowFile, width, height);
+            if (label != null) {
+                labelled.add(flowFile);
+                labels.add(label);
+            }
+        }
+        if (labels.isEmpty()) {
+            return;
+        }
+
+        final BitMatrix sheet = layOut(labels, context.getProperty(SHEET_COLUMNS).asInteger());
+        FlowFile sheetFlowFile = session.create(labelled);
+        sheetFlowFile = writePng(session, sheetFlowFile, sheet, labels.size());
+        session.transfer(sheetFlowFile, REL_SUCCESS);
+        session.transfer(labelled, REL_ORIGINAL);
+    }
+
+    /**
+     * @return the FlowFile's barcode, null if its content can not be encoded, in which case the FlowFile was routed to failure
+     */
+    private BitMatrix encode(final ProcessContext context, final ProcessSession session, final FlowFile flowFile,
+                             final int width, final int height) {
+        final String content = context.getProperty(BARCODE_CONTENT).evaluateAttributeExpressions(flowFile).getValue();
+        try {
+            if (StringUtils.isEmpty(content)) {
+                throw new IllegalArgumentException("Barcode content is empty");
+            }
+            return writers.get().encode(content, format, width, height, hints);
+        } catch (WriterException | IllegalArgumentException ex) {
+            getLogger().error("Unable to encode the barcode of {} as {} due to {}", new Object[]{flowFile, format, ex});
+            session.transfer(flowFile, REL_FAILURE);
+            return null;
+        }
+    }
+
+    private FlowFile writePng(final ProcessSession session, FlowFile flowFile, final BitMatrix matrix, final int count) {
+        flowFile = session.write(flowFile, new OutputStreamCallback() {
+            @Override
+            public void process(OutputStream outputStream) throws IOException {
+                ENCODERS.get().write(matrix, outputStream);
+            }
+        });
+        flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), "image/png");
+        flowFile = session.putAttribute(flowFile, BarcodeScannerProcessor.BARCODE_FORMAT_ATTRIBUTE_NAME, format.toString());
+        return session.putAttribute(flowFile, BarcodeScannerProcessor.BARCODE_COUNT_ATTRIBUTE_NAME, String.valueOf(count));
+    }
+
+    /**
+     * @return a sheet with the labels in rows from left to right, each in a cell as large as the largest label
+     */
+    private static BitMatrix layOut(final List<BitMatrix> labels, final int columns) {
+        int cellWidth = 0;
+        int cellHeight = 0;
+        for (BitMatrix label : labels) {
+            cellWidth = Math.max(cellWidth, label.getWidth());
+            cellHeight = Math.max(cellHeight, label.getHeight());
+        }
+        final int sheetColumns = Math.min(columns, labels.size());
+        final int sheetRows = (labels.size() + sheetColumns - 1) / sheetColumns;
+        final BitMatrix sheet = new BitMatrix(sheetColumns * cellWidth, sheetRows * cellHeight);
+
+        BitArray row = null;
+        for (int i = 0; i < labels.size(); i++) {
+            final BitMatrix label = labels.get(i);
+            final int left = (i % sheetColumns) * cellWidth;
+            final int top = (i / sheetColumns) * cellHeight;
+            for (int y = 0; y < label.getHeight(); y++) {
+                row = label.getRow(y, row);
+                for (int x = row.getNextSet(0); x < label.getWidth(); x = row.getNextSet(x + 1)) {
+                    sheet.set(left + x, top + y);
+                }
+            }
+        }
+        return sheet;
+    }
+
+    private static Set<String> formatNames() {
+        final Set<String> names = new LinkedHashSet<>();
+        for (BarcodeFormat format : WRITERS.keySet()) {
+            names.add(format.toString());
+        }
+        return names;
+    }
+}
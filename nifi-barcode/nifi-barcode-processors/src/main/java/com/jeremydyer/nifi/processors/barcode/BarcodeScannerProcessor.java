@@ -20,14 +20,20 @@ import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.imageio.ImageIO;
@@ -37,8 +43,14 @@ import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
@@ -46,41 +58,123 @@ import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.InputStreamCallback;
-import org.apache.nifi.processor.io.StreamCallback;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
+import com.google.zxing.BarcodeFormat;
 import com.google.zxing.BinaryBitmap;
 import com.google.zxing.DecodeHintType;
 import com.google.zxing.LuminanceSource;
 import com.google.zxing.MultiFormatReader;
+import com.google.zxing.NotFoundException;
 import com.google.zxing.Reader;
 import com.google.zxing.Result;
+import com.google.zxing.ResultPoint;
 import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
 import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.multi.GenericMultipleBarcodeReader;
 
 @Tags({"barcode, scanner"})
-@CapabilityDescription("Scans an image and searches for a barcode. The text of the found barcode is emitted by the processor.")
+@CapabilityDescription("Scans an image for barcodes. Every barcode found in the image is emitted as a JSON array of objects" +
+        " with the barcode's 'text', its 'format' and the 'points' locating it in the image, in pixels. Images without a" +
+        " barcode are routed to failure. Images are scanned in up to three steps, each only when the previous one found" +
+        " nothing: a quick scan of a downscaled copy of the image, a scan of overlapping tiles of the full image in parallel" +
+        " and, with 'Try Harder', a thorough scan of the full image. The number of scans and hits of each step are counted.")
 @WritesAttributes(
         {
-                @WritesAttribute(attribute="barcode", description = "Barcode number pulled from the image"),
+                @WritesAttribute(attribute="barcode", description = "Barcode number pulled from the image, the first one when" +
+                        " there are several and the destination is " + BarcodeScannerProcessor.DESTINATION_ATTRIBUTE),
+                @WritesAttribute(attribute="barcode.format", description = "Format of that barcode, when the destination is " +
+                        BarcodeScannerProcessor.DESTINATION_ATTRIBUTE),
+                @WritesAttribute(attribute="barcodes", description = "JSON array of every barcode found, when the destination is " +
+                        BarcodeScannerProcessor.DESTINATION_ATTRIBUTE),
+                @WritesAttribute(attribute="barcode.count", description = "Number of barcodes found in the image"),
         }
 )
 public class BarcodeScannerProcessor extends AbstractProcessor {
 
     public static final String BARCODE_ATTRIBUTE_NAME = "barcode";
+    public static final String BARCODE_FORMAT_ATTRIBUTE_NAME = "barcode.format";
+    public static final String BARCODES_ATTRIBUTE_NAME = "barcodes";
+    public static final String BARCODE_COUNT_ATTRIBUTE_NAME = "barcode.count";
 
     public static final String DESTINATION_ATTRIBUTE = "flowfile-attribute";
     public static final String DESTINATION_CONTENT = "flowfile-content";
 
     public static final PropertyDescriptor DESTINATION = new PropertyDescriptor.Builder()
             .name("Destination")
-            .description("Control if detected barcode value is written as a new flowfile attribute '" + BARCODE_ATTRIBUTE_NAME + "' " +
-                    "or written in the flowfile content. Writing to flowfile content will overwrite any " +
+            .description("Control if detected barcodes are written as new flowfile attributes, '" + BARCODE_ATTRIBUTE_NAME + "' " +
+                    "with the first barcode value and '" + BARCODES_ATTRIBUTE_NAME + "' with the JSON array of all of them, " +
+                    "or if the JSON array is written in the flowfile content. Writing to flowfile content will overwrite any " +
                     "existing flowfile content.")
             .required(true)
             .allowableValues(DESTINATION_ATTRIBUTE, DESTINATION_CONTENT)
             .defaultValue(DESTINATION_CONTENT)
             .build();
 
+    public static final PropertyDescriptor BARCODE_FORMATS = new PropertyDescriptor.Builder()
+            .name("Barcode Formats")
+            .description("Comma separated list of the barcode formats to look for, such as 'CODE_128,QR_CODE'. Every format" +
+                    " that is left out is a decoder that does not run on every image, so listing only the formats that are" +
+                    " expected makes scanning much faster. All formats are looked for when this is not set.")
+            .required(false)
+            .addValidator(new BarcodeFormatsValidator())
+            .build();
+
+    public static final PropertyDescriptor TRY_HARDER = new PropertyDescriptor.Builder()
+            .name("Try Harder")
+            .description("Whether images in which the quick scans found nothing are scanned once more at full resolution, spending" +
+                    " more time to find barcodes that are small, rotated or of poor quality.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .build();
+
+    public static final PropertyDescriptor DOWNSCALED_SIZE = new PropertyDescriptor.Builder()
+            .name("Downscaled Size")
+            .description("Size, in pixels, the longest side of larger images is shrunk to for the first, quick scan. Barcodes that" +
+                    " fill a good part of a photo are found at this size in a fraction of the time the full image takes.")
+            .required(true)
+            .defaultValue("1024")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TILE_SIZE = new PropertyDescriptor.Builder()
+            .name("Tile Size")
+            .description("Size, in pixels, of the square tiles images larger than it are cut into when the downscaled scan found" +
+                    " nothing. Tiles overlap by a quarter of their size, so barcodes smaller than that lie whole in at least one tile.")
+            .required(true)
+            .defaultValue("1024")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TILE_THREADS = new PropertyDescriptor.Builder()
+            .name("Tile Threads")
+            .description("Number of tiles scanned at the same time, shared by all concurrent tasks.")
+            .required(true)
+            .defaultValue("4")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    /**
+     * Validates that every name in the comma separated list is a barcode format ZXing knows.
+     */
+    public static class BarcodeFormatsValidator implements Validator {
+
+        @Override
+        public ValidationResult validate(final String subject, final String value, final ValidationContext context) {
+            String reason = null;
+            try {
+                parseFormats(value);
+            } catch (IllegalArgumentException iae) {
+                reason = "Barcode formats must be a comma separated list of " + StringUtils.join(BarcodeFormat.values(), ", ");
+            }
+            return new ValidationResult.Builder().subject(subject).input(value).explanation(reason).valid(reason == null).build();
+        }
+    }
+
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description("Successfully found barcode")
@@ -95,10 +189,28 @@ public class BarcodeScannerProcessor extends AbstractProcessor {
 
     private Set<Relationship> relationships;
 
+    // The quick scans never try harder, the full resolution scan does
+    private volatile Map<DecodeHintType, Object> quickHints;
+    private volatile Map<DecodeHintType, Object> thoroughHints;
+
+    // Readers keep the decoders for the configured formats, so they are only built once per thread
+    private volatile ThreadLocal<GenericMultipleBarcodeReader> quickReaders;
+    private volatile ThreadLocal<GenericMultipleBarcodeReader> thoroughReaders;
+
+    private volatile boolean tryHarder;
+    private volatile int downscaledSize;
+    private volatile int tileSize;
+    private volatile ExecutorService tileExecutor;
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
         descriptors.add(DESTINATION);
+        descriptors.add(BARCODE_FORMATS);
+        descriptors.add(TRY_HARDER);
+        descriptors.add(DOWNSCALED_SIZE);
+        descriptors.add(TILE_SIZE);
+        descriptors.add(TILE_THREADS);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -117,90 +229,265 @@ public class BarcodeScannerProcessor extends AbstractProcessor {
         return descriptors;
     }
 
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        final Map<DecodeHintType, Object> hints = new EnumMap<>(DecodeHintType.class);
+        if (context.getProperty(BARCODE_FORMATS).isSet()) {
+            hints.put(DecodeHintType.POSSIBLE_FORMATS, parseFormats(context.getProperty(BARCODE_FORMATS).getValue()));
+        }
+        quickHints = Collections.unmodifiableMap(new EnumMap<>(hints));
+        hints.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+        thoroughHints = Collections.unmodifiableMap(hints);
+        quickReaders = readers(quickHints);
+        thoroughReaders = readers(thoroughHints);
+
+        tryHarder = context.getProperty(TRY_HARDER).asBoolean();
+        downscaledSize = context.getProperty(DOWNSCALED_SIZE).asInteger();
+        tileSize = context.getProperty(TILE_SIZE).asInteger();
+        final String threadName = "BarcodeScannerProcessor-tile-" + getIdentifier();
+        tileExecutor = Executors.newFixedThreadPool(context.getProperty(TILE_THREADS).asInteger(), runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (tileExecutor != null) {
+            tileExecutor.shutdownNow();
+            tileExecutor = null;
+        }
+    }
+
+    private static ThreadLocal<GenericMultipleBarcodeReader> readers(final Map<DecodeHintType, Object> hints) {
+        return ThreadLocal.withInitial(() -> {
+            final MultiFormatReader reader = new MultiFormatReader();
+            reader.setHints(hints);
+            return new GenericMultipleBarcodeReader(new PreparedReader(reader));
+        });
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-        final FlowFile flowFile = session.get();
+        FlowFile flowFile = session.get();
         if ( flowFile == null ) {
             return;
         }
 
-        final AtomicBoolean errors = new AtomicBoolean(false);
+        final AtomicReference<Result[]> barcodes = new AtomicReference<>();
+        try {
+            session.read(flowFile, new InputStreamCallback() {
+                @Override
+                public void process(InputStream inputStream) throws IOException {
+                    final BufferedImage image = ImageIO.read(inputStream);
+                    if (image == null) {
+                        throw new IOException("Content is not an image in a format ImageIO can read");
+                    }
+                    barcodes.set(scan(image, session));
+                }
+            });
+        } catch (ProcessException ex) {
+            getLogger().error("Unable to scan {} for barcodes due to {}", new Object[]{flowFile, ex});
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        }
 
+        final Result[] results = barcodes.get();
+        flowFile = session.putAttribute(flowFile, BARCODE_COUNT_ATTRIBUTE_NAME, String.valueOf(results.length));
+        if (results.length == 0) {
+            getLogger().info("No barcode found in {}", new Object[]{flowFile});
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        }
+
+        final String json = toJson(results).toString();
         switch (context.getProperty(DESTINATION).getValue()) {
             case DESTINATION_ATTRIBUTE:
-                final AtomicReference<String> BC = new AtomicReference<>();
-                session.read(flowFile, new InputStreamCallback() {
+                flowFile = session.putAttribute(flowFile, BARCODE_ATTRIBUTE_NAME, results[0].getText());
+                flowFile = session.putAttribute(flowFile, BARCODE_FORMAT_ATTRIBUTE_NAME, results[0].getBarcodeFormat().toString());
+                flowFile = session.putAttribute(flowFile, BARCODES_ATTRIBUTE_NAME, json);
+                break;
+            case DESTINATION_CONTENT:
+                flowFile = session.write(flowFile, new OutputStreamCallback() {
                     @Override
-                    public void process(InputStream inputStream) throws IOException {
-
-                        Map hintMap = new HashMap();
-                        hintMap.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
-
-                        try {
-                            BufferedImage barCodeBufferedImage = ImageIO.read(inputStream);
-
-                            LuminanceSource source = new BufferedImageLuminanceSource(barCodeBufferedImage);
-                            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
-                            Reader reader = new MultiFormatReader();
-                            Result result = reader.decode(bitmap, hintMap);
-                            BC.set(result.getText());
-                        } catch (Exception ex) {
-                            ex.printStackTrace();
-                            //session.transfer(flowFile, REL_FAILURE);
-                            errors.set(true);
-                        }
+                    public void process(OutputStream outputStream) throws IOException {
+                        outputStream.write(json.getBytes(StandardCharsets.UTF_8));
                     }
                 });
+                flowFile = session.putAttribute(flowFile, CoreAttributes.MIME_TYPE.key(), "application/json");
+                break;
+        }
+        session.transfer(flowFile, REL_SUCCESS);
+    }
 
-                if (StringUtils.isNotEmpty(BC.get())) {
-                    FlowFile atFlowFile = session.putAttribute(flowFile, BARCODE_ATTRIBUTE_NAME, BC.get());
-                    if (!errors.get()) {
-                        session.transfer(atFlowFile, REL_SUCCESS);
-                    } else {
-                        session.transfer(atFlowFile, REL_FAILURE);
-                    }
-                } else {
-                    if (!errors.get()) {
-                        session.transfer(flowFile, REL_SUCCESS);
-                    } else {
-                        session.transfer(flowFile, REL_FAILURE);
-                    }
-                }
+    /**
+     * Scans the image in steps that each take longer than the previous one, and stops at the first step that finds a barcode.
+     *
+     * @return every barcode found by that step, empty if there is none
+     */
+    private Result[] scan(final BufferedImage image, final ProcessSession session) throws IOException {
+        final GrayImage gray = GrayImage.of(image);
+
+        final int factor = (int) Math.ceil(Math.max(gray.getWidth(), gray.getHeight()) / (double) downscaledSize);
+        final GrayImage downscaled = gray.downscale(factor);
+        session.adjustCounter("Downscaled Scans", 1, false);
+        Result[] results = decode(quickReaders.get(), downscaled.source(), quickHints);
+        if (results.length > 0) {
+            session.adjustCounter("Downscaled Hits", 1, false);
+            return transform(results, downscaled == gray ? 1 : factor, 0, 0);
+        }
+
+        if (gray.getWidth() > tileSize || gray.getHeight() > tileSize) {
+            session.adjustCounter("Tiled Scans", 1, false);
+            results = scanTiles(gray);
+            if (results.length > 0) {
+                session.adjustCounter("Tiled Hits", 1, false);
+                return results;
+            }
+        }
 
+        if (tryHarder) {
+            // Only a BufferedImage source can be rotated, which is how trying harder finds vertical barcodes
+            session.adjustCounter("Full Resolution Scans", 1, false);
+            results = decode(thoroughReaders.get(), new BufferedImageLuminanceSource(image), thoroughHints);
+            if (results.length > 0) {
+                session.adjustCounter("Full Resolution Hits", 1, false);
+            }
+        }
+        return results;
+    }
+
+    private Result[] scanTiles(final GrayImage gray) throws IOException {
+        final List<Future<Result[]>> tiles = new ArrayList<>();
+        final int step = tileSize - tileSize / 4;
+        for (int top = 0; ; top += step) {
+            for (int left = 0; ; left += step) {
+                final int x = left;
+                final int y = top;
+                final int width = Math.min(tileSize, gray.getWidth() - x);
+                final int height = Math.min(tileSize, gray.getHeight() - y);
+                tiles.add(tileExecutor.submit(() -> transform(decode(quickReaders.get(), gray.source(x, y, width, height), quickHints), 1, x, y)));
+                if (left + tileSize >= gray.getWidth()) {
+                    break;
+                }
+            }
+            if (top + tileSize >= gray.getHeight()) {
                 break;
-            case DESTINATION_CONTENT:
-                FlowFile conFlowFile = session.write(flowFile, new StreamCallback() {
-                    @Override
-                    public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
-
-                        Map hintMap = new HashMap();
-                        hintMap.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
-
-                        try {
-                            BufferedImage barCodeBufferedImage = ImageIO.read(inputStream);
-
-                            LuminanceSource source = new BufferedImageLuminanceSource(barCodeBufferedImage);
-                            BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
-                            Reader reader = new MultiFormatReader();
-                            Result result = reader.decode(bitmap, hintMap);
-                            getLogger().info("Barcode Format: " + result.getBarcodeFormat().toString());
-                            getLogger().info("Barcode Text is: ' " + result.getText() + "'");
-                            outputStream.write(result.getText().getBytes());
-                        } catch (Exception ex) {
-                            ex.printStackTrace();
-                            //session.transfer(flowFile, REL_FAILURE);
-                            errors.set(true);
-                        }
+            }
+        }
+
+        // A barcode in the overlap of tiles is found in each of them
+        final Map<String, Result> barcodes = new LinkedHashMap<>();
+        try {
+            for (Future<Result[]> tile : tiles) {
+                for (Result result : tile.get()) {
+                    barcodes.putIfAbsent(result.getBarcodeFormat() + ":" + result.getText(), result);
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning the tiles of the image", ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Unable to scan the tiles of the image", ee.getCause());
+        } finally {
+            for (Future<Result[]> tile : tiles) {
+                tile.cancel(false);
+            }
+        }
+        return barcodes.values().toArray(new Result[barcodes.size()]);
+    }
+
+    private static Result[] decode(final GenericMultipleBarcodeReader reader, final LuminanceSource source,
+                                   final Map<DecodeHintType, Object> hints) {
+        final BinaryBitmap bitmap = new BinaryBitmap(new HybridBinarizer(source));
+        try {
+            return reader.decodeMultiple(bitmap, hints);
+        } catch (NotFoundException nfe) {
+            return new Result[0];
+        }
+    }
+
+    /**
+     * @return the results with their points scaled and moved from a downscaled copy or a tile to the image
+     */
+    private static Result[] transform(final Result[] results, final int scale, final int left, final int top) {
+        if (scale == 1 && left == 0 && top == 0) {
+            return results;
+        }
+        final Result[] transformed = new Result[results.length];
+        for (int i = 0; i < results.length; i++) {
+            final Result result = results[i];
+            ResultPoint[] points = result.getResultPoints();
+            if (points != null) {
+                points = points.clone();
+                for (int p = 0; p < points.length; p++) {
+                    if (points[p] != null) {
+                        points[p] = new ResultPoint(points[p].getX() * scale + left, points[p].getY() * scale + top);
                     }
-                });
+                }
+            }
+            transformed[i] = new Result(result.getText(), result.getRawBytes(), points, result.getBarcodeFormat(), result.getTimestamp());
+            transformed[i].putAllMetadata(result.getResultMetadata());
+        }
+        return transformed;
+    }
 
-                if (!errors.get()) {
-                    session.transfer(conFlowFile, REL_SUCCESS);
-                } else {
-                    session.transfer(conFlowFile, REL_FAILURE);
+    private static JSONArray toJson(final Result[] results) {
+        final JSONArray barcodes = new JSONArray();
+        for (Result result : results) {
+            final JSONArray points = new JSONArray();
+            if (result.getResultPoints() != null) {
+                for (ResultPoint point : result.getResultPoints()) {
+                    if (point != null) {
+                        points.put(new JSONObject().put("x", point.getX()).put("y", point.getY()));
+                    }
                 }
+            }
+            barcodes.put(new JSONObject()
+                    .put("text", result.getText())
+                    .put("format", result.getBarcodeFormat().toString())
+                    .put("points", points));
+        }
+        return barcodes;
+    }
 
-                break;
+    private static Set<BarcodeFormat> parseFormats(final String commaDelimitedFormats) {
+        final Set<BarcodeFormat> formats = EnumSet.noneOf(BarcodeFormat.class);
+        for (String format : StringUtils.split(commaDelimitedFormats, ",")) {
+            formats.add(BarcodeFormat.valueOf(format.trim().toUpperCase()));
+        }
+        if (formats.isEmpty()) {
+            throw new IllegalArgumentException("No barcode formats in '" + commaDelimitedFormats + "'");
+        }
+        return formats;
+    }
+
+    /**
+     * Decodes with the hints the reader was set up with. MultiFormatReader otherwise rebuilds its decoders for every
+     * call, and GenericMultipleBarcodeReader calls it again for every part of the image it searches.
+     */
+    private static class PreparedReader implements Reader {
+
+        private final MultiFormatReader reader;
+
+        PreparedReader(MultiFormatReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public Result decode(BinaryBitmap image) throws NotFoundException {
+            return reader.decodeWithState(image);
+        }
+
+        @Override
+        public Result decode(BinaryBitmap image, Map<DecodeHintType, ?> hints) throws NotFoundException {
+            return reader.decodeWithState(image);
+        }
+
+        @Override
+        public void reset() {
+            reader.reset();
         }
     }
 }
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi.processors.barcode;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.google.zxing.common.BitMatrix;
+
+/**
+ * Writes a BitMatrix as a black and white PNG, one bit per pixel, straight from its bits. MatrixToImageWriter draws
+ * the matrix into a BufferedImage with an int per pixel and has ImageIO encode that, which costs far more than the
+ * barcode itself. An encoder keeps its buffers between images and is used by one thread at a time. Its deflater is
+ * created for each image and ended right after, since encoders live in thread locals that are never cleared and a
+ * deflater holds native memory until it is ended.
+ */
+final class BitMatrixPngEncoder {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] IHDR = "IHDR".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IDAT = "IDAT".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IEND = "IEND".getBytes(StandardCharsets.US_ASCII);
+
+    private final CRC32 crc = new CRC32();
+    private final byte[] compressed = new byte[64 * 1024];
+    private final byte[] header = new byte[13];
+    private final byte[] integer = new byte[4];
+    private byte[] row = new byte[0];
+
+    void write(BitMatrix matrix, OutputStream out) throws IOException {
+        final int width = matrix.getWidth();
+        final int height = matrix.getHeight();
+
+        out.write(SIGNATURE);
+        putInt(header, 0, width);
+        putInt(header, 4, height);
+        header[8] = 1;  // Bit depth
+        header[9] = 0;  // Grayscale
+        header[10] = 0; // Deflate
+        header[11] = 0; // No filtering
+        header[12] = 0; // Not interlaced
+        writeChunk(out, IHDR, header, header.length);
+
+        // Every row starts with its filter type, 0 for none, followed by the pixels from left to right and from the
+        // highest bit of each byte down. A 1 is white, where the matrix sets the bits of black modules.
+        final int rowLength = 1 + (width + 7) / 8;
+        if (row.length < rowLength) {
+            row = new byte[rowLength];
+        }
+        // Barcodes are long runs of the same bytes, the fastest level already shrinks them to a few percent
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            for (int y = 0; y < height; y++) {
+                Arrays.fill(row, 0, rowLength, (byte) 0);
+                for (int x = 0; x < width; x++) {
+                    if (!matrix.get(x, y)) {
+                        row[1 + (x >> 3)] |= 0x80 >>> (x & 7);
+                    }
+                }
+                deflater.setInput(row, 0, rowLength);
+                while (!deflater.needsInput()) {
+                    writeCompressed(out, deflater.deflate(compressed));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                writeCompressed(out, deflater.deflate(compressed));
+            }
+        } finally {
+            deflater.end();
+        }
+
+        writeChunk(out, IEND, compressed, 0);
+    }
+
+    private void writeCompressed(OutputStream out, int length) throws IOException {
+        if (length > 0) {
+            writeChunk(out, IDAT, compressed, length);
+        }
+    }
+
+    private void writeChunk(OutputStream out, byte[] type, byte[] data, int length) throws IOException {
+        putInt(integer, 0, length);
+        out.write(integer);
+        out.write(type);
+        out.write(data, 0, length);
+        crc.reset();
+        crc.update(type);
+        crc.update(data, 0, length);
+        putInt(integer, 0, (int) crc.getValue());
+        out.write(integer);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+}
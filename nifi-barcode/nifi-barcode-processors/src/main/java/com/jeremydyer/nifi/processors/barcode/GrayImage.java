@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi.processors.barcode;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.util.Arrays;
+
+import com.google.zxing.LuminanceSource;
+import com.google.zxing.PlanarYUVLuminanceSource;
+
+/**
+ * Luminance of an image, one byte per pixel, read straight from the bytes or ints of its raster for the image types
+ * ImageIO decodes to. ZXing's BufferedImageLuminanceSource draws every image into a new gray image instead, which for
+ * large photos takes about as long as looking for the barcodes. Luminance sources for the whole image or any part of
+ * it share the same bytes.
+ */
+final class GrayImage {
+
+    private final byte[] luminance;
+    private final int width;
+    private final int height;
+
+    private GrayImage(byte[] luminance, int width, int height) {
+        this.luminance = luminance;
+        this.width = width;
+        this.height = height;
+    }
+
+    static GrayImage of(BufferedImage image) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final byte[] luminance = new byte[width * height];
+        final Raster raster = image.getRaster();
+        final ColorModel colorModel = image.getColorModel();
+        final boolean untranslated = raster.getSampleModelTranslateX() == 0 && raster.getSampleModelTranslateY() == 0;
+
+        if (untranslated && raster.getDataBuffer() instanceof DataBufferByte && raster.getSampleModel() instanceof ComponentSampleModel
+                && colorModel instanceof ComponentColorModel && colorModel.getComponentSize(0) == 8) {
+            final ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+            final int colorSpace = colorModel.getColorSpace().getType();
+            if (colorSpace == ColorSpace.TYPE_GRAY && colorModel.getNumColorComponents() == 1) {
+                readGray((DataBufferByte) raster.getDataBuffer(), sampleModel, colorModel.hasAlpha(), luminance, width, height);
+                return new GrayImage(luminance, width, height);
+            }
+            if (colorModel.getColorSpace().isCS_sRGB()) {
+                readRgb((DataBufferByte) raster.getDataBuffer(), sampleModel, colorModel.hasAlpha(), luminance, width, height);
+                return new GrayImage(luminance, width, height);
+            }
+        }
+        if (untranslated && raster.getDataBuffer() instanceof DataBufferInt && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+                && colorModel instanceof DirectColorModel && colorModel.getColorSpace().isCS_sRGB()) {
+            readPacked((DataBufferInt) raster.getDataBuffer(), (SinglePixelPackedSampleModel) raster.getSampleModel(),
+                    (DirectColorModel) colorModel, luminance, width, height);
+            return new GrayImage(luminance, width, height);
+        }
+
+        // Palettes, 16 bit samples and other color spaces are left to Java2D, a row at a time
+        final int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                final int argb = row[x];
+                luminance[y * width + x] = (argb >>> 24) == 0
+                        ? (byte) 0xFF : luma((argb >> 16) & 0xFF, (argb >> 8) & 0xFF, argb & 0xFF);
+            }
+        }
+        return new GrayImage(luminance, width, height);
+    }
+
+    private static void readGray(DataBufferByte buffer, ComponentSampleModel sampleModel, boolean alpha, byte[] luminance,
+                                 int width, int height) {
+        final byte[] data = buffer.getData();
+        final int pixelStride = sampleModel.getPixelStride();
+        final int scanlineStride = sampleModel.getScanlineStride();
+        final int gray = buffer.getOffset() + sampleModel.getOffset(0, 0, 0);
+        final int transparency = alpha ? buffer.getOffset() + sampleModel.getOffset(0, 0, 1) : -1;
+        for (int y = 0; y < height; y++) {
+            int pixel = y * scanlineStride;
+            for (int x = 0; x < width; x++, pixel += pixelStride) {
+                luminance[y * width + x] = alpha && data[transparency + pixel] == 0 ? (byte) 0xFF : data[gray + pixel];
+            }
+        }
+    }
+
+    private static void readRgb(DataBufferByte buffer, ComponentSampleModel sampleModel, boolean alpha, byte[] luminance,
+                                int width, int height) {
+        final byte[] data = buffer.getData();
+        final int pixelStride = sampleModel.getPixelStride();
+        final int scanlineStride = sampleModel.getScanlineStride();
+        final int red = buffer.getOffset() + sampleModel.getOffset(0, 0, 0);
+        final int green = buffer.getOffset() + sampleModel.getOffset(0, 0, 1);
+        final int blue = buffer.getOffset() + sampleModel.getOffset(0, 0, 2);
+        final int transparency = alpha ? buffer.getOffset() + sampleModel.getOffset(0, 0, 3) : -1;
+        for (int y = 0; y < height; y++) {
+            int pixel = y * scanlineStride;
+            for (int x = 0; x < width; x++, pixel += pixelStride) {
+                luminance[y * width + x] = alpha && data[transparency + pixel] == 0
+                        ? (byte) 0xFF : luma(data[red + pixel] & 0xFF, data[green + pixel] & 0xFF, data[blue + pixel] & 0xFF);
+            }
+        }
+    }
+
+    private static void readPacked(DataBufferInt buffer, SinglePixelPackedSampleModel sampleModel, DirectColorModel colorModel,
+                                   byte[] luminance, int width, int height) {
+        final int[] data = buffer.getData();
+        final int offset = buffer.getOffset();
+        final int scanlineStride = sampleModel.getScanlineStride();
+        final int redMask = colorModel.getRedMask();
+        final int greenMask = colorModel.getGreenMask();
+        final int blueMask = colorModel.getBlueMask();
+        final int alphaMask = colorModel.hasAlpha() ? colorModel.getAlphaMask() : 0;
+        final int redShift = Integer.numberOfTrailingZeros(redMask);
+        final int greenShift = Integer.numberOfTrailingZeros(greenMask);
+        final int blueShift = Integer.numberOfTrailingZeros(blueMask);
+        for (int y = 0; y < height; y++) {
+            int pixel = offset + y * scanlineStride;
+            for (int x = 0; x < width; x++, pixel++) {
+                final int value = data[pixel];
+                luminance[y * width + x] = alphaMask != 0 && (value & alphaMask) == 0 ? (byte) 0xFF
+                        : luma((value & redMask) >>> redShift, (value & greenMask) >>> greenShift, (value & blueMask) >>> blueShift);
+            }
+        }
+    }
+
+    // The same weights as BufferedImageLuminanceSource, so barcodes are found the same way
+    private static byte luma(int red, int green, int blue) {
+        return (byte) ((306 * red + 601 * green + 117 * blue + 0x200) >> 10);
+    }
+
+    /**
+     * @return the image shrunk by the factor in both directions, every pixel the average of the ones it covers
+     */
+    GrayImage downscale(int factor) {
+        if (factor <= 1 || width < factor || height < factor) {
+            return this;
+        }
+        final int scaledWidth = width / factor;
+        final int scaledHeight = height / factor;
+        final int[] sums = new int[scaledWidth];
+        final byte[] scaled = new byte[scaledWidth * scaledHeight];
+        final int area = factor * factor;
+        for (int y = 0; y < scaledHeight; y++) {
+            Arrays.fill(sums, 0);
+            for (int dy = 0; dy < factor; dy++) {
+                final int row = (y * factor + dy) * width;
+                for (int x = 0; x < scaledWidth * factor; x++) {
+                    sums[x / factor] += luminance[row + x] & 0xFF;
+                }
+            }
+            for (int x = 0; x < scaledWidth; x++) {
+                scaled[y * scaledWidth + x] = (byte) ((sums[x] + area / 2) / area);
+            }
+        }
+        return new GrayImage(scaled, scaledWidth, scaledHeight);
+    }
+
+    LuminanceSource source() {
+        return source(0, 0, width, height);
+    }
+
+    /**
+     * @return the luminance of a part of the image, without copying it
+     */
+    LuminanceSource source(int left, int top, int partWidth, int partHeight) {
+        return new PlanarYUVLuminanceSource(luminance, width, height, left, top, partWidth, partHeight, false);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+}
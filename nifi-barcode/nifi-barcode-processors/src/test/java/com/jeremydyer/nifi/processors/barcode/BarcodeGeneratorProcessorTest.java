@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi.processors.barcode;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.Collections;
+
+import javax.imageio.ImageIO;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.MultiFormatReader;
+import com.google.zxing.Result;
+import com.google.zxing.client.j2se.BufferedImageLuminanceSource;
+import com.google.zxing.common.HybridBinarizer;
+
+
+public class BarcodeGeneratorProcessorTest {
+
+    private TestRunner testRunner;
+
+    @Before
+    public void init() {
+        testRunner = TestRunners.newTestRunner(BarcodeGeneratorProcessor.class);
+    }
+
+    @Test
+    public void testQrCode() throws Exception {
+        testRunner.enqueue("", Collections.singletonMap("barcode", "https://example.com/parcel/0042?ü"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(BarcodeGeneratorProcessor.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(BarcodeGeneratorProcessor.REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals("mime.type", "image/png");
+        final BufferedImage image = read(flowFile);
+        Assert.assertEquals(300, image.getWidth());
+        Assert.assertEquals(300, image.getHeight());
+        Assert.assertEquals("https://example.com/parcel/0042?ü", decode(image).getText());
+    }
+
+    @Test
+    public void testSheet() throws Exception {
+        testRunner.setProperty(BarcodeGeneratorProcessor.BARCODE_CONTENT, "PKG-${id}");
+        testRunner.setProperty(BarcodeGeneratorProcessor.BARCODE_FORMAT, "CODE_128");
+        testRunner.setProperty(BarcodeGeneratorProcessor.HEIGHT, "100");
+        testRunner.setProperty(BarcodeGeneratorProcessor.LABELS_PER_SHEET, "5");
+        testRunner.setProperty(BarcodeGeneratorProcessor.SHEET_COLUMNS, "2");
+        for (int i = 0; i < 5; i++) {
+            testRunner.enqueue("", Collections.singletonMap("id", String.valueOf(i)));
+        }
+        testRunner.run();
+
+        testRunner.assertTransferCount(BarcodeGeneratorProcessor.REL_SUCCESS, 1);
+        testRunner.assertTransferCount(BarcodeGeneratorProcessor.REL_ORIGINAL, 5);
+        final MockFlowFile sheet = testRunner.getFlowFilesForRelationship(BarcodeGeneratorProcessor.REL_SUCCESS).get(0);
+        sheet.assertAttributeEquals("barcode.count", "5");
+        final BufferedImage image = read(sheet);
+        Assert.assertEquals(600, image.getWidth());
+        Assert.assertEquals(300, image.getHeight());
+        // The last label is alone on the third row
+        Assert.assertEquals("PKG-4", decode(image.getSubimage(0, 200, 300, 100)).getText());
+    }
+
+    @Test
+    public void testInvalidContent() {
+        testRunner.setProperty(BarcodeGeneratorProcessor.BARCODE_FORMAT, "EAN_13");
+        testRunner.enqueue("", Collections.singletonMap("barcode", "not digits"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(BarcodeGeneratorProcessor.REL_FAILURE, 1);
+    }
+
+    private BufferedImage read(final MockFlowFile flowFile) throws Exception {
+        return ImageIO.read(new ByteArrayInputStream(testRunner.getContentAsByteArray(flowFile)));
+    }
+
+    private static Result decode(final BufferedImage image) throws Exception {
+        return new MultiFormatReader().decode(new BinaryBitmap(new HybridBinarizer(new BufferedImageLuminanceSource(image))));
+    }
+
+}
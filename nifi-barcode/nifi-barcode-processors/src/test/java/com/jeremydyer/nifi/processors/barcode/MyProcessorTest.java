@@ -16,11 +16,27 @@
  */
 package com.jeremydyer.nifi.processors.barcode;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import javax.imageio.ImageIO;
+
+import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.client.j2se.MatrixToImageWriter;
+import com.google.zxing.oned.Code128Writer;
+
 
 public class MyProcessorTest {
 
@@ -32,8 +48,105 @@ public class MyProcessorTest {
     }
 
     @Test
-    public void testProcessor() {
+    public void testProcessor() throws Exception {
+        testRunner.enqueue(new File("src/test/resources/0.jpg").toPath());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(BarcodeScannerProcessor.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(BarcodeScannerProcessor.REL_SUCCESS).get(0);
+        final JSONArray barcodes = new JSONArray(new String(testRunner.getContentAsByteArray(flowFile), "UTF-8"));
+        // With every format enabled ZXing may also misread parts of the photo, the label must be among the results
+        JSONObject label = null;
+        for (int i = 0; i < barcodes.length(); i++) {
+            if ("CODE_128".equals(barcodes.getJSONObject(i).getString("format"))) {
+                label = barcodes.getJSONObject(i);
+            }
+        }
+        Assert.assertNotNull(label);
+        Assert.assertEquals("0123", label.getString("text"));
+        Assert.assertEquals(2, label.getJSONArray("points").length());
+        flowFile.assertAttributeEquals(BarcodeScannerProcessor.BARCODE_COUNT_ATTRIBUTE_NAME, String.valueOf(barcodes.length()));
+    }
+
+    @Test
+    public void testDownscaledScan() throws Exception {
+        // A 12 megapixel photo of a label, large enough to be read from the downscaled copy
+        final BufferedImage photo = new BufferedImage(4000, 3000, BufferedImage.TYPE_3BYTE_BGR);
+        final Graphics2D graphics = photo.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, photo.getWidth(), photo.getHeight());
+        graphics.drawImage(MatrixToImageWriter.toBufferedImage(new Code128Writer().encode("PKG-0042", BarcodeFormat.CODE_128, 1600, 400)),
+                1200, 1000, null);
+        graphics.dispose();
+        final ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(photo, "png", png);
+
+        testRunner.setProperty(BarcodeScannerProcessor.DESTINATION, BarcodeScannerProcessor.DESTINATION_ATTRIBUTE);
+        testRunner.enqueue(png.toByteArray());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(BarcodeScannerProcessor.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(BarcodeScannerProcessor.REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals(BarcodeScannerProcessor.BARCODE_ATTRIBUTE_NAME, "PKG-0042");
+        Assert.assertEquals(Long.valueOf(1), testRunner.getCounterValue("Downscaled Hits"));
+        Assert.assertNull(testRunner.getCounterValue("Tiled Scans"));
+
+        // Points are in the pixels of the full image
+        final JSONObject barcode = new JSONArray(flowFile.getAttribute(BarcodeScannerProcessor.BARCODES_ATTRIBUTE_NAME)).getJSONObject(0);
+        final double x = barcode.getJSONArray("points").getJSONObject(0).getDouble("x");
+        Assert.assertTrue("x was " + x, x > 1200 && x < 2800);
+    }
+
+    @Test
+    public void testFullResolutionFallback() throws Exception {
+        // The label in the sample photo is vertical, only the full resolution scan rotates the image
+        testRunner.setProperty(BarcodeScannerProcessor.TILE_SIZE, "512");
+        testRunner.enqueue(new File("src/test/resources/0.jpg").toPath());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(BarcodeScannerProcessor.REL_SUCCESS, 1);
+        Assert.assertEquals(Long.valueOf(1), testRunner.getCounterValue("Tiled Scans"));
+        Assert.assertEquals(Long.valueOf(1), testRunner.getCounterValue("Full Resolution Hits"));
+    }
+
+    @Test
+    public void testAttributeDestination() throws Exception {
+        testRunner.setProperty(BarcodeScannerProcessor.DESTINATION, BarcodeScannerProcessor.DESTINATION_ATTRIBUTE);
+        testRunner.setProperty(BarcodeScannerProcessor.BARCODE_FORMATS, "code_128, QR_CODE");
+        testRunner.enqueue(new File("src/test/resources/0.jpg").toPath());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(BarcodeScannerProcessor.REL_SUCCESS, 1);
+        final MockFlowFile flowFile = testRunner.getFlowFilesForRelationship(BarcodeScannerProcessor.REL_SUCCESS).get(0);
+        flowFile.assertAttributeEquals(BarcodeScannerProcessor.BARCODE_ATTRIBUTE_NAME, "0123");
+        flowFile.assertAttributeEquals(BarcodeScannerProcessor.BARCODE_FORMAT_ATTRIBUTE_NAME, "CODE_128");
+        flowFile.assertAttributeEquals(BarcodeScannerProcessor.BARCODE_COUNT_ATTRIBUTE_NAME, "1");
+        flowFile.assertContentEquals(new File("src/test/resources/0.jpg"));
+    }
+
+    @Test
+    public void testOtherFormatsOnly() throws Exception {
+        testRunner.setProperty(BarcodeScannerProcessor.BARCODE_FORMATS, "QR_CODE");
+        testRunner.enqueue(new File("src/test/resources/0.jpg").toPath());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(BarcodeScannerProcessor.REL_FAILURE, 1);
+        testRunner.getFlowFilesForRelationship(BarcodeScannerProcessor.REL_FAILURE).get(0)
+                .assertAttributeEquals(BarcodeScannerProcessor.BARCODE_COUNT_ATTRIBUTE_NAME, "0");
+    }
+
+    @Test
+    public void testInvalidFormat() {
+        testRunner.setProperty(BarcodeScannerProcessor.BARCODE_FORMATS, "CODE_128,NOT_A_FORMAT");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testNotAnImage() {
+        testRunner.enqueue("not an image");
+        testRunner.run();
 
+        testRunner.assertAllFlowFilesTransferred(BarcodeScannerProcessor.REL_FAILURE, 1);
     }
 
 }
@@ -19,24 +19,26 @@ package com.jeremydyer.nifi.processors.google;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.security.GeneralSecurityException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-import org.apache.commons.io.IOUtils;
-import org.apache.nifi.annotation.behavior.ReadsAttribute;
-import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
@@ -44,36 +46,93 @@ import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
 
+import com.google.cloud.speech.v1.LongRunningRecognizeResponse;
 import com.google.cloud.speech.v1.RecognitionAudio;
 import com.google.cloud.speech.v1.RecognitionConfig;
-import com.google.cloud.speech.v1.RecognizeResponse;
 import com.google.cloud.speech.v1.SpeechClient;
 import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
 import com.google.cloud.speech.v1.SpeechRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
 import com.google.protobuf.ByteString;
+import com.jeremydyer.processors.speech.AudioNormalizer;
 
 @Tags({"Google", "Speech", "speech to text"})
-@CapabilityDescription("Provide a description")
+@CapabilityDescription("Transcribes audio with the Google Cloud Speech API. WAV audio of any rate and number of channels " +
+        "is converted to 16 kHz mono PCM first. In Streaming mode the audio is sent in short chunks over as many " +
+        "streams as its length requires, so audio of any length is recognized without holding it in memory. In Long " +
+        "Running mode the audio, or the Cloud Storage object it names, is recognized as a whole by a long running " +
+        "operation. In both modes the results are only written out, along with the original, once the whole audio " +
+        "has been recognized, so audio that fails part way through leaves no partial results behind.")
 @SeeAlso({GoogleVisionProcessor.class})
-@ReadsAttributes({@ReadsAttribute(attribute="", description="")})
-@WritesAttributes({@WritesAttribute(attribute="", description="")})
+@WritesAttributes({
+        @WritesAttribute(attribute="google.speech.confidence", description="Confidence of the transcript"),
+        @WritesAttribute(attribute="google.speech.serialized.size", description="Size of the alternative as returned by Google"),
+        @WritesAttribute(attribute="google.speech.words.count", description="Number of words with timing information"),
+        @WritesAttribute(attribute="google.speech.result.index", description="Position of the result in the audio, from 0")
+})
 public class GoogleSpeechProcessor
         extends AbstractProcessor {
 
-    public static final PropertyDescriptor MY_PROPERTY = new PropertyDescriptor
-            .Builder().name("My Property")
-            .description("Example Property")
+    public static final int SAMPLE_RATE = 16000;
+
+    public static final String MODE_STREAMING = "Streaming";
+    public static final String MODE_LONG_RUNNING = "Long Running";
+
+    // Google recommends 100 ms of audio per streaming request
+    private static final int CHUNK_BYTES = 2 * SAMPLE_RATE / 10;
+
+    public static final PropertyDescriptor LANGUAGE_CODE = new PropertyDescriptor
+            .Builder().name("Language Code")
+            .description("BCP-47 language code of the speech in the audio")
+            .required(true)
+            .defaultValue("en-US")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RECOGNITION_MODE = new PropertyDescriptor
+            .Builder().name("Recognition Mode")
+            .description("Streaming sends audio of any length as it is read. Long Running sends the whole audio in one " +
+                    "request, which must stay under the request size limit unless Audio URI is set. In both modes the " +
+                    "results are written out once the audio has been fully recognized.")
             .required(true)
+            .allowableValues(MODE_STREAMING, MODE_LONG_RUNNING)
+            .defaultValue(MODE_STREAMING)
+            .build();
+
+    public static final PropertyDescriptor MAX_STREAM_DURATION = new PropertyDescriptor
+            .Builder().name("Maximum Stream Duration")
+            .description("Audio longer than this is sent over several streams one after the other, each of them under " +
+                    "the limit the service puts on the length of a stream. Speech is cut where a stream ends.")
+            .required(true)
+            .defaultValue("55 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RESPONSE_TIMEOUT = new PropertyDescriptor
+            .Builder().name("Response Timeout")
+            .description("How long to wait for the service to finish a stream once all its audio has been sent, or to " +
+                    "complete a long running operation. The flowfile is routed to failure when the service takes longer.")
+            .required(true)
+            .defaultValue("5 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor AUDIO_URI = new PropertyDescriptor
+            .Builder().name("Audio URI")
+            .description("In Long Running mode, the gs:// URI of a Cloud Storage object with the audio to recognize " +
+                    "instead of the flowfile content. The object must be 16 bit PCM at " + SAMPLE_RATE + " Hz.")
+            .required(false)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
-            .description("Example relationship")
+            .description("A flowfile for every speech to text result, with its transcript as content")
             .build();
 
     public static final Relationship REL_ORIGINAL = new Relationship.Builder()
@@ -86,6 +145,11 @@ public class GoogleSpeechProcessor
             .description("No speech to text results were returned from the Google API")
             .build();
 
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("The audio could not be read or the Google API call failed")
+            .build();
+
     private List<PropertyDescriptor> descriptors;
     private Set<Relationship> relationships;
 
@@ -93,13 +157,18 @@ public class GoogleSpeechProcessor
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<>();
-        descriptors.add(MY_PROPERTY);
+        descriptors.add(LANGUAGE_CODE);
+        descriptors.add(RECOGNITION_MODE);
+        descriptors.add(MAX_STREAM_DURATION);
+        descriptors.add(RESPONSE_TIMEOUT);
+        descriptors.add(AUDIO_URI);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<>();
         relationships.add(REL_SUCCESS);
         relationships.add(REL_ORIGINAL);
         relationships.add(REL_NO_RESULTS);
+        relationships.add(REL_FAILURE);
         this.relationships = Collections.unmodifiableSet(relationships);
     }
 
@@ -113,18 +182,27 @@ public class GoogleSpeechProcessor
         return descriptors;
     }
 
-    private SpeechClient speechClient = null;
+    private volatile SpeechClient speechClient = null;
 
     @OnScheduled
-    public void onScheduled(final ProcessContext context) throws IOException, GeneralSecurityException {
+    public void onScheduled(final ProcessContext context) throws IOException {
+        speechClient = createSpeechClient(context);
+    }
 
-        try {
-            speechClient = SpeechClient.create();
-        } catch (Exception ex) {
-            System.out.println("Exception thrown here");
-            throw ex;
-        }
+    /**
+     * Creates the client used until the processor is stopped, with the application default credentials. Tests
+     * override it to talk to a local server.
+     */
+    protected SpeechClient createSpeechClient(final ProcessContext context) throws IOException {
+        return SpeechClient.create();
+    }
 
+    @OnStopped
+    public void onStopped() throws Exception {
+        if (speechClient != null) {
+            speechClient.close();
+            speechClient = null;
+        }
     }
 
     @Override
@@ -135,60 +213,179 @@ public class GoogleSpeechProcessor
             return;
         }
 
+        final RecognitionConfig config = RecognitionConfig.newBuilder()
+                .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
+                .setLanguageCode(context.getProperty(LANGUAGE_CODE).getValue())
+                .setSampleRateHertz(SAMPLE_RATE)
+                .build();
+
+        final long timeoutMillis = context.getProperty(RESPONSE_TIMEOUT).asTimePeriod(TimeUnit.MILLISECONDS);
+        final List<FlowFile> results = new ArrayList<>();
         try {
+            if (MODE_LONG_RUNNING.equals(context.getProperty(RECOGNITION_MODE).getValue())) {
+                recognizeLongRunning(context, session, flowFile, config, timeoutMillis, results);
+            } else {
+                final long maxStreamBytes = Math.max(CHUNK_BYTES,
+                        2 * SAMPLE_RATE * context.getProperty(MAX_STREAM_DURATION).asTimePeriod(TimeUnit.MILLISECONDS) / 1000);
+                recognizeStreaming(session, flowFile, config, maxStreamBytes, timeoutMillis, results);
+            }
+        } catch (Exception ex) {
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            getLogger().error("Unable to perform speech to text on {} due to {}", new Object[]{flowFile, ex});
+            session.remove(results);
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        }
+
+        if (results.isEmpty()) {
+            // No results were found ....
+            session.transfer(flowFile, REL_NO_RESULTS);
+        } else {
+            // Only transferred now that all the audio is recognized, so they can still be removed on failure
+            session.transfer(results, REL_SUCCESS);
+            session.transfer(flowFile, REL_ORIGINAL);
+        }
+    }
 
-            final AtomicReference<List<SpeechRecognitionResult>> speechResults = new AtomicReference<>();
-
-            session.read(flowFile, new InputStreamCallback() {
-                @Override
-                public void process(InputStream inputStream) throws IOException {
-                    byte[] data = IOUtils.toByteArray(inputStream);
-                    ByteString audioBytes = ByteString.copyFrom(data);
-
-                    // Configure request with local raw PCM audio
-                    RecognitionConfig config = RecognitionConfig.newBuilder()
-                            .setEncoding(RecognitionConfig.AudioEncoding.LINEAR16)
-                            .setLanguageCode("en-US")
-                            .setSampleRateHertz(16000)
-                            .build();
-                    RecognitionAudio audio = RecognitionAudio.newBuilder()
-                            .setContent(audioBytes)
-                            .build();
-
-                    // Use blocking call to get audio transcript
-                    RecognizeResponse response = speechClient.recognize(config, audio);
-                    speechResults.set(response.getResultsList());
+    /**
+     * Sends the audio in chunks, starting a new stream whenever the current one reaches its maximum length, and
+     * collects the final results of each stream. They are only written out once all of the audio has been recognized.
+     * Only the chunk being sent and the audio sent but not yet acknowledged by the stream are held in memory.
+     */
+    private void recognizeStreaming(final ProcessSession session, final FlowFile flowFile, final RecognitionConfig config,
+                                    final long maxStreamBytes, final long timeoutMillis, final List<FlowFile> results)
+            throws IOException, InterruptedException, TimeoutException {
+        final StreamingRecognitionConfig streamingConfig = StreamingRecognitionConfig.newBuilder()
+                .setConfig(config)
+                .setInterimResults(false)
+                .build();
+        final byte[] chunk = new byte[CHUNK_BYTES];
+        int streams = 0;
+
+        try (final InputStream in = session.read(flowFile)) {
+            final AudioNormalizer pcm = new AudioNormalizer(in, SAMPLE_RATE);
+            StreamingRecognition stream = null;
+            try {
+                int length;
+                while ((length = readChunk(pcm, chunk)) > 0) {
+                    if (stream == null) {
+                        stream = new StreamingRecognition(speechClient, streamingConfig);
+                        streams++;
+                    }
+                    stream.send(ByteString.copyFrom(chunk, 0, length));
+                    emitAvailable(session, flowFile, stream, results);
+
+                    if (stream.getAudioBytes() >= maxStreamBytes) {
+                        stream.finish();
+                        emitRemaining(session, flowFile, stream, timeoutMillis, results);
+                        stream = null;
+                    }
                 }
-            });
-
-            if (speechResults.get().size() > 0) {
-                for (final SpeechRecognitionResult result : speechResults.get()) {
-                    final SpeechRecognitionAlternative alternative = result.getAlternatives(0);
-                    FlowFile ff = session.write(session.create(), new OutputStreamCallback() {
-                        @Override
-                        public void process(OutputStream outputStream) throws IOException {
-                            outputStream.write(alternative.getTranscript().getBytes());
-                        }
-                    });
-
-                    // Updates the attributes based on the response from Google.
-                    session.putAttribute(ff, "google.speech.confidence", String.valueOf(alternative.getConfidence()));
-                    session.putAttribute(ff, "google.speech.serialized.size", String.valueOf(alternative.getSerializedSize()));
-                    session.putAttribute(ff, "google.speech.words.count", String.valueOf(alternative.getWordsCount()));
-
-                    session.transfer(ff, REL_SUCCESS);
-                    session.transfer(flowFile, REL_ORIGINAL);
+                if (stream != null) {
+                    stream.finish();
+                    emitRemaining(session, flowFile, stream, timeoutMillis, results);
+                    stream = null;
+                }
+            } finally {
+                if (stream != null) {
+                    stream.cancel();
                 }
-            } else {
-                // No results were found ....
-                session.transfer(flowFile, REL_NO_RESULTS);
             }
+            session.adjustCounter("Resampling Time (ms)", TimeUnit.NANOSECONDS.toMillis(pcm.getResamplingNanos()), false);
+        }
+        session.adjustCounter("Recognition Streams", streams, false);
+    }
 
-        } catch (Exception ex) {
-            ex.printStackTrace();
+    // Emits the results that have already arrived
+    private void emitAvailable(final ProcessSession session, final FlowFile flowFile, final StreamingRecognition stream,
+                               final List<FlowFile> results) throws IOException, InterruptedException {
+        StreamingRecognitionResult result;
+        while ((result = stream.next(0, TimeUnit.MILLISECONDS)) != null) {
+            emit(session, flowFile, result.getAlternatives(0), results);
         }
+    }
 
+    // Emits the results of a finished stream until the service completes it, for at most the timeout
+    private void emitRemaining(final ProcessSession session, final FlowFile flowFile, final StreamingRecognition stream,
+                               final long timeoutMillis, final List<FlowFile> results)
+            throws IOException, InterruptedException, TimeoutException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (!stream.isCompleted()) {
+            final long remaining = deadline - System.nanoTime();
+            final StreamingRecognitionResult result = remaining > 0 ? stream.next(remaining, TimeUnit.NANOSECONDS) : null;
+            if (result != null) {
+                emit(session, flowFile, result.getAlternatives(0), results);
+            } else if (!stream.isCompleted()) {
+                throw new TimeoutException("Streaming recognition did not complete within " + timeoutMillis + " ms");
+            }
+        }
+    }
 
+    /**
+     * Recognizes the audio with a long running operation. Content is converted and read straight into the request,
+     * an Audio URI is passed on for Google to read.
+     */
+    private void recognizeLongRunning(final ProcessContext context, final ProcessSession session, final FlowFile flowFile,
+                                      final RecognitionConfig config, final long timeoutMillis, final List<FlowFile> results)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        final String uri = context.getProperty(AUDIO_URI).evaluateAttributeExpressions(flowFile).getValue();
+        final RecognitionAudio.Builder audio = RecognitionAudio.newBuilder();
+        if (uri != null && !uri.isEmpty()) {
+            audio.setUri(uri);
+        } else {
+            try (final InputStream in = session.read(flowFile)) {
+                final AudioNormalizer pcm = new AudioNormalizer(in, SAMPLE_RATE);
+                audio.setContent(ByteString.readFrom(pcm));
+                session.adjustCounter("Resampling Time (ms)", TimeUnit.NANOSECONDS.toMillis(pcm.getResamplingNanos()), false);
+            }
+        }
+
+        final Future<LongRunningRecognizeResponse> operation = speechClient.longRunningRecognizeAsync(config, audio.build());
+        final LongRunningRecognizeResponse response;
+        try {
+            response = operation.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException te) {
+            // Stops polling the operation, Google finishes it regardless
+            operation.cancel(true);
+            throw te;
+        }
+        for (final SpeechRecognitionResult result : response.getResultsList()) {
+            if (result.getAlternativesCount() > 0) {
+                emit(session, flowFile, result.getAlternatives(0), results);
+            }
+        }
+    }
+
+    private void emit(final ProcessSession session, final FlowFile flowFile, final SpeechRecognitionAlternative alternative,
+                      final List<FlowFile> results) {
+        FlowFile ff = session.write(session.create(flowFile), new OutputStreamCallback() {
+            @Override
+            public void process(OutputStream outputStream) throws IOException {
+                outputStream.write(alternative.getTranscript().getBytes(StandardCharsets.UTF_8));
+            }
+        });
+
+        // Updates the attributes based on the response from Google.
+        ff = session.putAttribute(ff, "google.speech.confidence", String.valueOf(alternative.getConfidence()));
+        ff = session.putAttribute(ff, "google.speech.serialized.size", String.valueOf(alternative.getSerializedSize()));
+        ff = session.putAttribute(ff, "google.speech.words.count", String.valueOf(alternative.getWordsCount()));
+        ff = session.putAttribute(ff, "google.speech.result.index", String.valueOf(results.size()));
+
+        results.add(ff);
+    }
+
+    private static int readChunk(final InputStream in, final byte[] chunk) throws IOException {
+        int read = 0;
+        while (read < chunk.length) {
+            final int count = in.read(chunk, read, chunk.length - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        return read;
     }
 
 }
@@ -0,0 +1,137 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi.processors.google;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.google.api.gax.rpc.ApiStreamObserver;
+import com.google.cloud.speech.v1.SpeechClient;
+import com.google.cloud.speech.v1.StreamingRecognitionConfig;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.protobuf.ByteString;
+
+/**
+ * One streamingRecognize call. Audio is sent from the thread that reads it, while responses arrive on the gRPC
+ * threads and wait in a queue for that same thread to take them, since a ProcessSession can only be used by one.
+ */
+class StreamingRecognition implements ApiStreamObserver<StreamingRecognizeResponse> {
+
+    // Marks the end of the responses in the queue, compared by identity so no response from the service can be it
+    private static final StreamingRecognizeResponse COMPLETED = StreamingRecognizeResponse.newBuilder().build();
+
+    private final BlockingQueue<StreamingRecognizeResponse> responses = new LinkedBlockingQueue<>();
+    // Final results of responses already taken from the queue, only touched by the thread sending the audio
+    private final Queue<StreamingRecognitionResult> results = new ArrayDeque<>();
+    private final ApiStreamObserver<StreamingRecognizeRequest> requests;
+    private volatile Throwable error;
+    private boolean completed;
+    private long audioBytes;
+
+    StreamingRecognition(SpeechClient client, StreamingRecognitionConfig config) {
+        requests = client.streamingRecognizeCallable().bidiStreamingCall(this);
+        requests.onNext(StreamingRecognizeRequest.newBuilder().setStreamingConfig(config).build());
+    }
+
+    void send(ByteString audio) {
+        requests.onNext(StreamingRecognizeRequest.newBuilder().setAudioContent(audio).build());
+        audioBytes += audio.size();
+    }
+
+    /**
+     * @return bytes of audio sent so far
+     */
+    long getAudioBytes() {
+        return audioBytes;
+    }
+
+    /**
+     * Tells the service there is no more audio, its last results still have to be taken
+     */
+    void finish() {
+        requests.onCompleted();
+    }
+
+    /**
+     * Abandons the call, when the audio can not be read to its end or the service takes too long to complete it.
+     * Cancelling a call the service has already completed does nothing.
+     */
+    void cancel() {
+        requests.onError(new IOException("Recognition was abandoned"));
+    }
+
+    /**
+     * @param timeout
+     *  How long to wait for a result, 0 to only take one that has already arrived
+     *
+     * @return the next final result, null if none arrived in time or the call is completed
+     *
+     * @throws IOException if the call failed
+     */
+    StreamingRecognitionResult next(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        while (results.isEmpty() && !completed) {
+            final StreamingRecognizeResponse response = timeout == 0 ? responses.poll() : responses.poll(timeout, unit);
+            if (response == null) {
+                return null;
+            }
+            if (response == COMPLETED) {
+                completed = true;
+                if (error != null) {
+                    throw new IOException("Streaming recognition failed", error);
+                }
+            } else if (response.hasError() && response.getError().getCode() != 0) {
+                throw new IOException("Streaming recognition failed: " + response.getError().getMessage());
+            } else {
+                for (StreamingRecognitionResult result : response.getResultsList()) {
+                    if (result.getIsFinal() && result.getAlternativesCount() > 0) {
+                        results.add(result);
+                    }
+                }
+            }
+        }
+        return results.poll();
+    }
+
+    /**
+     * @return whether the service has sent all its results and they have all been taken
+     */
+    boolean isCompleted() {
+        return completed && results.isEmpty();
+    }
+
+    @Override
+    public void onNext(StreamingRecognizeResponse response) {
+        responses.add(response);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        error = t;
+        responses.add(COMPLETED);
+    }
+
+    @Override
+    public void onCompleted() {
+        responses.add(COMPLETED);
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi.processors.google;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.gax.core.NoCredentialsProvider;
+import com.google.api.gax.grpc.GrpcTransportChannel;
+import com.google.api.gax.rpc.FixedTransportChannelProvider;
+import com.google.cloud.speech.v1.LongRunningRecognizeRequest;
+import com.google.cloud.speech.v1.LongRunningRecognizeResponse;
+import com.google.cloud.speech.v1.SpeechClient;
+import com.google.cloud.speech.v1.SpeechRecognitionAlternative;
+import com.google.cloud.speech.v1.SpeechRecognitionResult;
+import com.google.cloud.speech.v1.SpeechSettings;
+import com.google.cloud.speech.v1.StreamingRecognitionResult;
+import com.google.cloud.speech.v1.StreamingRecognizeRequest;
+import com.google.cloud.speech.v1.StreamingRecognizeResponse;
+import com.google.longrunning.Operation;
+import com.google.protobuf.Any;
+
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCalls;
+import io.grpc.stub.StreamObserver;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class GoogleSpeechProcessorTest {
+
+    // A second and a half of 16 kHz mono PCM, without a WAV header
+    private static final byte[] AUDIO = new byte[2 * 24000];
+
+    private Server server;
+    private ManagedChannel channel;
+    private TestRunner testRunner;
+
+    // Streams the fake service has seen, and how it ends them
+    private final AtomicInteger streams = new AtomicInteger();
+    private volatile boolean failStreams;
+    private volatile boolean failStreamsAfterResult;
+    private volatile boolean hangStreams;
+
+    @Before
+    public void init() throws IOException {
+        final String name = UUID.randomUUID().toString();
+        server = InProcessServerBuilder.forName(name)
+                .addService(fakeSpeechService())
+                .directExecutor()
+                .build()
+                .start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+
+        testRunner = TestRunners.newTestRunner(new GoogleSpeechProcessor() {
+            @Override
+            protected SpeechClient createSpeechClient(ProcessContext context) throws IOException {
+                return SpeechClient.create(SpeechSettings.newBuilder()
+                        .setTransportChannelProvider(FixedTransportChannelProvider.create(GrpcTransportChannel.create(channel)))
+                        .setCredentialsProvider(NoCredentialsProvider.create())
+                        .build());
+            }
+        });
+    }
+
+    @After
+    public void shutdown() {
+        channel.shutdownNow();
+        server.shutdownNow();
+    }
+
+    @Test
+    public void testStreamsAreBounded() {
+        testRunner.setProperty(GoogleSpeechProcessor.MAX_STREAM_DURATION, "500 ms");
+        testRunner.enqueue(AUDIO);
+        testRunner.run();
+
+        // One stream, and so one result, for each half second of audio
+        assertEquals(3, streams.get());
+        testRunner.assertTransferCount(GoogleSpeechProcessor.REL_ORIGINAL, 1);
+        final List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(GoogleSpeechProcessor.REL_SUCCESS);
+        assertEquals(3, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            results.get(i).assertContentEquals("stream " + (i + 1) + " of 16000 bytes");
+            results.get(i).assertAttributeEquals("google.speech.result.index", String.valueOf(i));
+        }
+    }
+
+    @Test
+    public void testStreamFailure() {
+        failStreams = true;
+        testRunner.enqueue(AUDIO);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GoogleSpeechProcessor.REL_FAILURE, 1);
+    }
+
+    @Test
+    public void testStreamFailureAfterResults() {
+        // The first stream completes, the second fails after sending a result of its own
+        testRunner.setProperty(GoogleSpeechProcessor.MAX_STREAM_DURATION, "1 sec");
+        failStreamsAfterResult = true;
+        testRunner.enqueue(AUDIO);
+        testRunner.run();
+
+        assertEquals(2, streams.get());
+        testRunner.assertAllFlowFilesTransferred(GoogleSpeechProcessor.REL_FAILURE, 1);
+    }
+
+    @Test
+    public void testStreamTimeout() {
+        testRunner.setProperty(GoogleSpeechProcessor.RESPONSE_TIMEOUT, "200 ms");
+        hangStreams = true;
+        testRunner.enqueue(AUDIO);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GoogleSpeechProcessor.REL_FAILURE, 1);
+    }
+
+    @Test
+    public void testLongRunning() {
+        testRunner.setProperty(GoogleSpeechProcessor.RECOGNITION_MODE, GoogleSpeechProcessor.MODE_LONG_RUNNING);
+        testRunner.enqueue(AUDIO);
+        testRunner.run();
+
+        testRunner.assertTransferCount(GoogleSpeechProcessor.REL_ORIGINAL, 1);
+        final List<MockFlowFile> results = testRunner.getFlowFilesForRelationship(GoogleSpeechProcessor.REL_SUCCESS);
+        assertEquals(1, results.size());
+        results.get(0).assertContentEquals("content of " + AUDIO.length + " bytes");
+    }
+
+    @Test
+    public void testNoResults() {
+        testRunner.enqueue(new byte[0]);
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(GoogleSpeechProcessor.REL_NO_RESULTS, 1);
+    }
+
+    // Answers every stream with one final result once the client is done sending, unless told to fail or never
+    // answer, and every long running request with an operation that is already done
+    private ServerServiceDefinition fakeSpeechService() {
+        final MethodDescriptor<StreamingRecognizeRequest, StreamingRecognizeResponse> streaming =
+                MethodDescriptor.<StreamingRecognizeRequest, StreamingRecognizeResponse>newBuilder()
+                        .setType(MethodDescriptor.MethodType.BIDI_STREAMING)
+                        .setFullMethodName("google.cloud.speech.v1.Speech/StreamingRecognize")
+                        .setRequestMarshaller(ProtoUtils.marshaller(StreamingRecognizeRequest.getDefaultInstance()))
+                        .setResponseMarshaller(ProtoUtils.marshaller(StreamingRecognizeResponse.getDefaultInstance()))
+                        .build();
+        final MethodDescriptor<LongRunningRecognizeRequest, Operation> longRunning =
+                MethodDescriptor.<LongRunningRecognizeRequest, Operation>newBuilder()
+                        .setType(MethodDescriptor.MethodType.UNARY)
+                        .setFullMethodName("google.cloud.speech.v1.Speech/LongRunningRecognize")
+                        .setRequestMarshaller(ProtoUtils.marshaller(LongRunningRecognizeRequest.getDefaultInstance()))
+                        .setResponseMarshaller(ProtoUtils.marshaller(Operation.getDefaultInstance()))
+                        .build();
+
+        return ServerServiceDefinition.builder("google.cloud.speech.v1.Speech")
+                .addMethod(streaming, ServerCalls.asyncBidiStreamingCall(responses -> {
+                    final int stream = streams.incrementAndGet();
+                    return new StreamObserver<StreamingRecognizeRequest>() {
+                        private int bytes;
+
+                        @Override
+                        public void onNext(StreamingRecognizeRequest request) {
+                            bytes += request.getAudioContent().size();
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                        }
+
+                        @Override
+                        public void onCompleted() {
+                            if (hangStreams) {
+                                return;
+                            }
+                            if (failStreams) {
+                                responses.onError(Status.INVALID_ARGUMENT.withDescription("Bad audio").asRuntimeException());
+                                return;
+                            }
+                            responses.onNext(StreamingRecognizeResponse.newBuilder()
+                                    .addResults(StreamingRecognitionResult.newBuilder()
+                                            .setIsFinal(true)
+                                            .addAlternatives(alternative("stream " + stream + " of " + bytes + " bytes")))
+                                    .build());
+                            if (failStreamsAfterResult && stream > 1) {
+                                responses.onError(Status.INTERNAL.withDescription("Stream broke").asRuntimeException());
+                                return;
+                            }
+                            responses.onCompleted();
+                        }
+                    };
+                }))
+                .addMethod(longRunning, ServerCalls.asyncUnaryCall((request, responses) -> {
+                    final LongRunningRecognizeResponse response = LongRunningRecognizeResponse.newBuilder()
+                            .addResults(SpeechRecognitionResult.newBuilder()
+                                    .addAlternatives(alternative("content of " + request.getAudio().getContent().size() + " bytes")))
+                            .build();
+                    responses.onNext(Operation.newBuilder()
+                            .setName("operations/1")
+                            .setDone(true)
+                            .setResponse(Any.pack(response))
+                            .build());
+                    responses.onCompleted();
+                }))
+                .build();
+    }
+
+    private static SpeechRecognitionAlternative alternative(String transcript) {
+        return SpeechRecognitionAlternative.newBuilder()
+                .setTranscript(transcript)
+                .setConfidence(0.9f)
+                .build();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nifi.processors.ocr;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataFormatImpl;
+import javax.imageio.stream.ImageInputStream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import org.ghost4j.Ghostscript;
+import org.ghost4j.GhostscriptException;
+
+import net.sourceforge.tess4j.util.PdfUtilities;
+
+/**
+ * Pages of a document stored in a local file. Multi-page TIFFs, and any other format ImageIO reads, are decoded one
+ * page at a time straight from the file. PDF pages are rendered by Ghostscript one at a time as they are read, so
+ * neither the time nor the disk space to render the whole document is spent before the first page is recognized.
+ *
+ * Instances are not thread safe, pages must be read by one thread at a time.
+ */
+public class DocumentPages implements Closeable {
+
+    // Resolution tess4j has Ghostscript render PDF pages at
+    private static final float RENDERED_DPI = 300;
+
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final File pdf;
+    private final int pageCount;
+
+    private DocumentPages(ImageInputStream input, ImageReader reader, File pdf, int pageCount) {
+        this.input = input;
+        this.reader = reader;
+        this.pdf = pdf;
+        this.pageCount = pageCount;
+    }
+
+    /**
+     * @return pages of the document, null if it is neither a PDF nor in an image format ImageIO can read
+     *
+     * @throws IOException if the document can not be read
+     */
+    public static DocumentPages open(File document) throws IOException {
+        if (isPdf(document)) {
+            final int pageCount = PdfUtilities.getPdfPageCount(document);
+            if (pageCount <= 0) {
+                throw new IOException("Unable to count the pages of the PDF, make sure Ghostscript is installed");
+            }
+            return new DocumentPages(null, null, document, pageCount);
+        }
+
+        return open(ImageIO.createImageInputStream(document));
+    }
+
+    /**
+     * @return pages of the image in the stream, null if it is not in an image format ImageIO can read. PDFs can only
+     *  be opened from a file
+     *
+     * @throws IOException if the image can not be read
+     */
+    public static DocumentPages open(InputStream image) throws IOException {
+        return open(ImageIO.createImageInputStream(image));
+    }
+
+    private static DocumentPages open(ImageInputStream input) throws IOException {
+        final Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+        if (readers == null || !readers.hasNext()) {
+            if (input != null) {
+                input.close();
+            }
+            return null;
+        }
+        final ImageReader reader = readers.next();
+        try {
+            reader.setInput(input, false, true);
+            return new DocumentPages(input, reader, null, reader.getNumImages(true));
+        } catch (IOException | RuntimeException ex) {
+            reader.dispose();
+            input.close();
+            throw ex;
+        }
+    }
+
+    private static boolean isPdf(File document) throws IOException {
+        final byte[] magic = new byte[4];
+        try (InputStream in = new FileInputStream(document)) {
+            return in.read(magic) == magic.length && Arrays.equals(magic, new byte[] {'%', 'P', 'D', 'F'});
+        }
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * @param index
+     *  Zero based page number
+     */
+    public BufferedImage readPage(int index) throws IOException {
+        if (reader != null) {
+            return reader.read(index);
+        }
+        return renderPage(index);
+    }
+
+    // Renders a single page of the PDF with the settings tess4j renders whole documents with
+    private BufferedImage renderPage(int index) throws IOException {
+        final File rendered = Files.createTempFile("nifi-ocr-page", ".png").toFile();
+        try {
+            final String[] args = {
+                    "-gs", "-dNOPAUSE", "-dQUIET", "-dBATCH", "-dSAFER", "-sDEVICE=pnggray", "-r" + (int) RENDERED_DPI,
+                    "-dGraphicsAlphaBits=4", "-dTextAlphaBits=4", "-dFirstPage=" + (index + 1), "-dLastPage=" + (index + 1),
+                    "-sOutputFile=" + rendered.getPath(), pdf.getPath()};
+            // Ghostscript has a single instance per process, tess4j locks on it as well
+            final Ghostscript gs = Ghostscript.getInstance();
+            synchronized (gs) {
+                try {
+                    gs.initialize(args);
+                } catch (GhostscriptException | UnsatisfiedLinkError ex) {
+                    throw new IOException("Unable to render page " + (index + 1) + " of the PDF, make sure Ghostscript is installed", ex);
+                } finally {
+                    try {
+                        gs.exit();
+                    } catch (GhostscriptException ge) {
+                        // Nothing left to clean up
+                    }
+                }
+            }
+
+            final BufferedImage page = ImageIO.read(rendered);
+            if (page == null) {
+                throw new IOException("Unable to read rendered page " + (index + 1) + " of the PDF");
+            }
+            return page;
+        } finally {
+            rendered.delete();
+        }
+    }
+
+    /**
+     * @param index
+     *  Zero based page number
+     *
+     * @return resolution of the page in dots per inch, 0 if the page does not record it
+     */
+    public float getDpi(int index) throws IOException {
+        if (reader == null) {
+            return RENDERED_DPI;
+        }
+        final IIOMetadata metadata = reader.getImageMetadata(index);
+        if (metadata == null || !metadata.isStandardMetadataFormatSupported()) {
+            return 0;
+        }
+        // The standard format records the size of a pixel in millimeters
+        final Element root = (Element) metadata.getAsTree(IIOMetadataFormatImpl.standardMetadataFormatName);
+        final NodeList sizes = root.getElementsByTagName("HorizontalPixelSize");
+        if (sizes.getLength() == 0) {
+            return 0;
+        }
+        try {
+            final float millimeters = Float.parseFloat(((Element) sizes.item(0)).getAttribute("value"));
+            return millimeters > 0 ? 25.4f / millimeters : 0;
+        } catch (NumberFormatException nfe) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (reader != null) {
+            reader.dispose();
+            input.close();
+        }
+    }
+}
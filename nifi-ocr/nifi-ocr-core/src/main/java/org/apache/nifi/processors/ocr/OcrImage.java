@@ -0,0 +1,115 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nifi.processors.ocr;
+
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.nio.ByteBuffer;
+
+/**
+ * 8 bit grayscale image in the native memory layout Tesseract reads, one byte per pixel and no padding between rows.
+ * An image is converted once and can then be recognized by any number of engines at the same time, every region of
+ * a page shares the same pixels.
+ *
+ * An image that was cleaned up by {@link OcrPreprocessor} keeps the transform from the coordinates of the page it was
+ * made from to its own, so regions and results can be translated between the two.
+ */
+public class OcrImage {
+
+    private final ByteBuffer pixels;
+    private final int width;
+    private final int height;
+    private final AffineTransform transform;
+    private final AffineTransform inverseTransform;
+
+    private OcrImage(ByteBuffer pixels, int width, int height, AffineTransform transform) {
+        this.pixels = pixels;
+        this.width = width;
+        this.height = height;
+        this.transform = transform;
+        try {
+            this.inverseTransform = transform.createInverse();
+        } catch (NoninvertibleTransformException nte) {
+            throw new IllegalArgumentException("The transform from the page must be invertible", nte);
+        }
+    }
+
+    public static OcrImage of(BufferedImage image) {
+        BufferedImage gray = image;
+        if (image.getType() != BufferedImage.TYPE_BYTE_GRAY
+                || ((DataBufferByte) image.getRaster().getDataBuffer()).getData().length != image.getWidth() * image.getHeight()) {
+            gray = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+            final Graphics2D graphics = gray.createGraphics();
+            try {
+                graphics.drawImage(image, 0, 0, null);
+            } finally {
+                graphics.dispose();
+            }
+        }
+        return of(((DataBufferByte) gray.getRaster().getDataBuffer()).getData(), gray.getWidth(), gray.getHeight());
+    }
+
+    /**
+     * @param gray
+     *  Row major grayscale pixels, width * height bytes
+     */
+    public static OcrImage of(byte[] gray, int width, int height) {
+        return of(gray, width, height, new AffineTransform());
+    }
+
+    /**
+     * @param gray
+     *  Row major grayscale pixels, at least width * height bytes, which are copied
+     * @param transform
+     *  Transform from the coordinates of the page the pixels were made from to their own
+     */
+    public static OcrImage of(byte[] gray, int width, int height, AffineTransform transform) {
+        final ByteBuffer pixels = ByteBuffer.allocateDirect(width * height);
+        pixels.put(gray, 0, width * height).flip();
+        return new OcrImage(pixels, width, height, transform);
+    }
+
+    /**
+     * @return the pixels, which must not be modified
+     */
+    public ByteBuffer getPixels() {
+        return pixels;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public AffineTransform getTransform() {
+        return transform;
+    }
+
+    /**
+     * @return the transform from the coordinates of this image back to those of the page it was made from
+     */
+    public AffineTransform getInverseTransform() {
+        return inverseTransform;
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nifi.processors.ocr;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.nifi.logging.ComponentLog;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import net.sourceforge.tess4j.TesseractException;
+
+/**
+ * Recognizes the pages of documents and streams the results. Pages are decoded, and cleaned up when preprocessing is
+ * enabled, by the thread writing the results. Every page, or every region of it, is recognized in parallel on the
+ * pipeline's own threads with engines from a shared pool, and the results are written in page order as soon as they
+ * are available, so the text of a long document is never held in memory as a whole.
+ *
+ * With a first pass, every page is also scaled down once and its regions are recognized on the smaller copy first.
+ * That result is kept when Tesseract's mean word confidence reaches the threshold, which it does for most clean
+ * pages, and the full resolution page is only recognized when it does not.
+ *
+ * A pipeline is built when a processor is scheduled and closed when it is stopped.
+ */
+public class OcrPipeline implements Closeable {
+
+    /**
+     * Source of the pages of a document, read in order.
+     */
+    public interface PageReader {
+        OcrImage readPage(int index) throws IOException;
+    }
+
+    private final TesseractEnginePool.Lease engines;
+    private final BlockingQueue<OcrPreprocessor> preprocessors;
+    private final ComponentLog logger;
+    private final ExecutorService executor;
+    private final int pageWindow;
+    private final double firstPassScale;
+    private final int firstPassConfidence;
+
+    /**
+     * @param engines
+     *  Engines the pages are recognized with, released when the pipeline is closed
+     * @param threads
+     *  Number of pages or regions recognized at the same time
+     * @param preprocessors
+     *  One preprocessor for every thread that reads pages at the same time, null to recognize pages as they are
+     * @param threadName
+     *  Name of the recognition threads
+     */
+    public OcrPipeline(TesseractEnginePool.Lease engines, int threads, BlockingQueue<OcrPreprocessor> preprocessors,
+                       String threadName, ComponentLog logger) {
+        this(engines, threads, preprocessors, 0, 0, threadName, logger);
+    }
+
+    /**
+     * @param firstPassScale
+     *  Scale of the first pass copy of every page, 0 for no first pass
+     * @param firstPassConfidence
+     *  Mean word confidence, from 0 to 100, a first pass result must reach to be kept
+     */
+    public OcrPipeline(TesseractEnginePool.Lease engines, int threads, BlockingQueue<OcrPreprocessor> preprocessors,
+                       double firstPassScale, int firstPassConfidence, String threadName, ComponentLog logger) {
+        this.engines = engines;
+        this.firstPassScale = firstPassScale;
+        this.firstPassConfidence = firstPassConfidence;
+        this.preprocessors = preprocessors;
+        this.logger = logger;
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Pages decoded ahead of the one being written, which bounds how many page images are held in memory
+        this.pageWindow = 2 * threads;
+    }
+
+    /**
+     * @return the first page of the image in the stream ready to be recognized, null if it is not in a format ImageIO
+     *  can read
+     */
+    public OcrImage readFirstPage(InputStream image) throws IOException {
+        try (final DocumentPages pages = DocumentPages.open(image)) {
+            return pages == null ? null : preparePage(pages, 0);
+        }
+    }
+
+    /**
+     * Reads a page and converts it for Tesseract, cleaning it up on the way when preprocessing is enabled
+     */
+    public OcrImage preparePage(DocumentPages pages, int index) throws IOException {
+        final BufferedImage page = pages.readPage(index);
+        if (preprocessors == null) {
+            return OcrImage.of(page);
+        }
+        final OcrPreprocessor preprocessor;
+        try {
+            preprocessor = preprocessors.take();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to preprocess page " + (index + 1), ie);
+        }
+        try {
+            return preprocessor.process(page, pages.getDpi(index));
+        } finally {
+            preprocessors.offer(preprocessor);
+        }
+    }
+
+    /**
+     * Pages are read in order, at most the page window ahead of the oldest page still being recognized. Text is
+     * written region by region, with a form feed between pages the same way Tesseract separates the pages of a
+     * document. JSON is an array written a page at a time, each page an object whose 'regions' hold the text,
+     * confidence and bounds of every region together with its 'lines' and their 'words'.
+     *
+     * @param regions
+     *  Regions recognized on every page, in the coordinates of the original page, null to recognize whole pages
+     *
+     * @return how many regions were recognized in the first pass and how many at full resolution
+     */
+    public Passes writePages(int pageCount, PageReader reader, List<OcrRegion> regions, boolean json, OutputStream outputStream)
+            throws IOException {
+        final Passes passes = new Passes();
+        final Deque<List<Future<RecognizedText>>> inFlight = new ArrayDeque<>();
+        final List<List<OcrRegion>> pageRegions = new ArrayList<>();
+        int written = 0;
+        if (json) {
+            outputStream.write('[');
+        }
+        try {
+            for (int page = 0; page < pageCount; page++) {
+                final OcrImage image = reader.readPage(page);
+                final OcrImage small = firstPassScale > 0 ? OcrPreprocessor.downscale(image, firstPassScale) : null;
+                final List<OcrRegion> clipped = clip(regions, image, page);
+                final List<Future<RecognizedText>> results = new ArrayList<>(clipped.size());
+                for (final OcrRegion region : clipped) {
+                    results.add(executor.submit(() -> recognize(image, small, region, json, passes)));
+                }
+                inFlight.add(results);
+                pageRegions.add(clipped);
+                if (inFlight.size() >= pageWindow) {
+                    writePage(inFlight.poll(), pageRegions.get(written), written++, json, outputStream);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                writePage(inFlight.poll(), pageRegions.get(written), written++, json, outputStream);
+            }
+        } finally {
+            // Only left over when a page failed, the regions that were not started yet are not needed anymore
+            for (List<Future<RecognizedText>> results : inFlight) {
+                for (Future<RecognizedText> future : results) {
+                    future.cancel(false);
+                }
+            }
+        }
+        if (json) {
+            outputStream.write(']');
+        }
+        return passes;
+    }
+
+    private RecognizedText recognize(final OcrImage image, final OcrImage small, final OcrRegion region, final boolean layout,
+                                     final Passes passes) throws TesseractException, InterruptedException {
+        if (small != null) {
+            final OcrRegion smallRegion = scale(region, image, small);
+            if (region == null || smallRegion != null) {
+                final RecognizedText text = recognize(small, smallRegion, layout);
+                if (text.getConfidence() >= firstPassConfidence) {
+                    passes.firstPass.incrementAndGet();
+                    return text;
+                }
+            }
+        }
+        passes.fullResolution.incrementAndGet();
+        return recognize(image, region, layout);
+    }
+
+    // The region on the first pass copy of the page, null if it shrinks to nothing
+    private static OcrRegion scale(final OcrRegion region, final OcrImage image, final OcrImage small) {
+        if (region == null) {
+            return null;
+        }
+        final AffineTransform scale = AffineTransform.getScaleInstance(small.getWidth() / (double) image.getWidth(),
+                small.getHeight() / (double) image.getHeight());
+        final Rectangle bounds = scale.createTransformedShape(region.getBounds()).getBounds()
+                .intersection(new Rectangle(0, 0, small.getWidth(), small.getHeight()));
+        return bounds.isEmpty() ? null : new OcrRegion(region.getName(), bounds, region.getPageSegMode(), region.getWhitelist());
+    }
+
+    private RecognizedText recognize(final OcrImage image, final OcrRegion region, final boolean layout)
+            throws TesseractException, InterruptedException {
+        final RecognizedText text;
+        final TesseractEngine engine = engines.take();
+        try {
+            text = region == null
+                    ? engine.recognize(image, null, -1, null, layout)
+                    : engine.recognize(image, region.getBounds(), region.getPageSegMode(), region.getWhitelist(), layout);
+        } finally {
+            engines.give(engine);
+        }
+        // Bounds are reported in the coordinates of the original page, whatever preprocessing did to it
+        return text.transform(image.getInverseTransform());
+    }
+
+    // The regions that overlap the page, clipped to it, or a single null region standing for the whole page
+    private List<OcrRegion> clip(final List<OcrRegion> regions, final OcrImage image, final int page) {
+        if (regions == null) {
+            return Collections.singletonList(null);
+        }
+        final Rectangle bounds = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+        final List<OcrRegion> clipped = new ArrayList<>(regions.size());
+        for (OcrRegion region : regions) {
+            // Regions are given in the coordinates of the original page
+            final Rectangle mapped = image.getTransform().createTransformedShape(region.getBounds()).getBounds();
+            final Rectangle intersection = mapped.intersection(bounds);
+            if (intersection.isEmpty()) {
+                logger.warn("Region {} lies outside of the {}x{} page {} and will be skipped",
+                        new Object[]{region.getBounds(), image.getWidth(), image.getHeight(), page + 1});
+                continue;
+            }
+            clipped.add(new OcrRegion(region.getName(), intersection, region.getPageSegMode(), region.getWhitelist()));
+        }
+        return clipped;
+    }
+
+    private static void writePage(final List<Future<RecognizedText>> results, final List<OcrRegion> regions, final int index,
+                                  final boolean json, final OutputStream outputStream) throws IOException {
+        if (index > 0) {
+            outputStream.write(json ? ',' : '\f');
+        }
+        if (!json) {
+            for (Future<RecognizedText> result : results) {
+                outputStream.write(get(result, index).getText().getBytes(StandardCharsets.UTF_8));
+            }
+            return;
+        }
+
+        final JSONArray regionsJson = new JSONArray();
+        for (int i = 0; i < results.size(); i++) {
+            final JSONObject regionJson = get(results.get(i), index).toJson("lines", "words");
+            if (regions.get(i) != null && regions.get(i).getName() != null) {
+                regionJson.put("name", regions.get(i).getName());
+            }
+            regionsJson.put(regionJson);
+        }
+        final JSONObject pageJson = new JSONObject();
+        pageJson.put("page", index + 1);
+        pageJson.put("regions", regionsJson);
+        outputStream.write(pageJson.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static RecognizedText get(final Future<RecognizedText> result, final int index) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for page " + (index + 1), ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Unable to perform OCR on page " + (index + 1), ee.getCause());
+        }
+    }
+
+    /**
+     * Number of regions, or whole pages, whose first pass result was kept and number recognized at full resolution
+     */
+    public static class Passes {
+
+        private final AtomicInteger firstPass = new AtomicInteger();
+        private final AtomicInteger fullResolution = new AtomicInteger();
+
+        public int getFirstPass() {
+            return firstPass.get();
+        }
+
+        public int getFullResolution() {
+            return fullResolution.get();
+        }
+    }
+
+    /**
+     * Stops the recognition threads and releases the engines
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        try {
+            // Engines still in use by a page must not be closed under it
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        engines.close();
+    }
+}
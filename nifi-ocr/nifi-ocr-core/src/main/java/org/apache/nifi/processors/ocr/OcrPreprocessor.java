@@ -0,0 +1,397 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nifi.processors.ocr;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+/**
+ * Cleans up a page before Tesseract sees it. The page is converted to 8 bit gray, rescaled to the target resolution,
+ * binarized with a threshold adapted to the brightness around every pixel and rotated so its text lines are level.
+ * Phone captures of documents are usually far larger than Tesseract needs, unevenly lit and slightly rotated, all of
+ * which makes recognition both slower and less accurate.
+ *
+ * Every step works on byte arrays of gray pixels. The arrays are kept and reused for the next page, so instances are
+ * not thread safe and should be pooled.
+ */
+public class OcrPreprocessor {
+
+    // Widest skew corrected, phone captures are rarely rotated any further
+    private static final double MAX_SKEW_DEGREES = 10;
+    // Width the skew is estimated at, more pixels do not make the estimate any better
+    private static final int SKEW_SAMPLE_WIDTH = 1024;
+    // Bradley-Roth threshold, a pixel is dark when it is this much darker than the mean of its window
+    private static final int BINARIZE_PERCENT = 15;
+
+    private final boolean binarize;
+    private final boolean deskew;
+    private final int targetDpi;
+    private final int assumedDpi;
+
+    private byte[] source = new byte[0];
+    private byte[] target = new byte[0];
+    private byte[] scratch = new byte[0];
+    private int[] rgbRow = new int[0];
+    private int[] windowSums = new int[0];
+    private int[] darkX = new int[0];
+    private int[] darkY = new int[0];
+
+    /**
+     * @param targetDpi
+     *  Resolution pages are rescaled to, 0 to keep their size
+     * @param assumedDpi
+     *  Resolution of pages that do not record their own, 0 to not rescale those
+     */
+    public OcrPreprocessor(boolean binarize, boolean deskew, int targetDpi, int assumedDpi) {
+        this.binarize = binarize;
+        this.deskew = deskew;
+        this.targetDpi = targetDpi;
+        this.assumedDpi = assumedDpi;
+    }
+
+    /**
+     * @param dpi
+     *  Resolution the page records, 0 when it does not
+     *
+     * @return the cleaned up page, with the transform from the coordinates of the given page to its own
+     */
+    public OcrImage process(BufferedImage page, float dpi) {
+        int width = page.getWidth();
+        int height = page.getHeight();
+        toGray(page);
+        final AffineTransform transform = new AffineTransform();
+
+        final float sourceDpi = dpi > 0 ? dpi : assumedDpi;
+        if (targetDpi > 0 && sourceDpi > 0 && Math.abs(targetDpi - sourceDpi) > sourceDpi * 0.05f) {
+            final double scale = targetDpi / (double) sourceDpi;
+            final int scaledWidth = Math.max(1, (int) Math.round(width * scale));
+            final int scaledHeight = Math.max(1, (int) Math.round(height * scale));
+            rescale(width, height, scaledWidth, scaledHeight);
+            transform.preConcatenate(AffineTransform.getScaleInstance(scaledWidth / (double) width, scaledHeight / (double) height));
+            width = scaledWidth;
+            height = scaledHeight;
+        }
+
+        if (binarize) {
+            binarize(width, height);
+        }
+
+        if (deskew) {
+            final double angle = estimateSkew(width, height);
+            if (angle != 0) {
+                rotate(width, height, -angle);
+                transform.preConcatenate(AffineTransform.getRotateInstance(-angle, width / 2.0, height / 2.0));
+            }
+        }
+
+        return OcrImage.of(source, width, height, transform);
+    }
+
+    // Leaves the gray pixels in source
+    private void toGray(BufferedImage page) {
+        final int width = page.getWidth();
+        final int height = page.getHeight();
+        source = ensure(source, width * height);
+        if (page.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            final byte[] data = ((DataBufferByte) page.getRaster().getDataBuffer()).getData();
+            if (data.length == width * height) {
+                System.arraycopy(data, 0, source, 0, data.length);
+                return;
+            }
+        }
+        rgbRow = ensure(rgbRow, width);
+        for (int y = 0; y < height; y++) {
+            page.getRGB(0, y, width, 1, rgbRow, 0, width);
+            final int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                final int rgb = rgbRow[x];
+                // ITU-R BT.601 luma in fixed point
+                source[offset + x] = (byte) ((77 * ((rgb >> 16) & 0xff) + 150 * ((rgb >> 8) & 0xff) + 29 * (rgb & 0xff)) >> 8);
+            }
+        }
+    }
+
+    /**
+     * Separable resampling with a triangle filter as wide as a source pixel when enlarging and as a target pixel when
+     * shrinking, so shrinking averages every source pixel in and does not alias thin strokes away.
+     */
+    private void rescale(int width, int height, int scaledWidth, int scaledHeight) {
+        scratch = ensure(scratch, scaledWidth * height);
+        target = ensure(target, scaledWidth * scaledHeight);
+        resample(source, width, height, scratch, target, scaledWidth, scaledHeight);
+        swap();
+    }
+
+    /**
+     * @return a smaller copy of the image for a quick first pass, with the transform from the original page to it
+     */
+    public static OcrImage downscale(OcrImage image, double scale) {
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int scaledWidth = Math.max(1, (int) Math.round(width * scale));
+        final int scaledHeight = Math.max(1, (int) Math.round(height * scale));
+        final byte[] pixels = new byte[width * height];
+        image.getPixels().duplicate().get(pixels);
+        final byte[] scaled = new byte[scaledWidth * scaledHeight];
+        resample(pixels, width, height, new byte[scaledWidth * height], scaled, scaledWidth, scaledHeight);
+
+        final AffineTransform transform = new AffineTransform(image.getTransform());
+        transform.preConcatenate(AffineTransform.getScaleInstance(scaledWidth / (double) width, scaledHeight / (double) height));
+        return OcrImage.of(scaled, scaledWidth, scaledHeight, transform);
+    }
+
+    private static void resample(byte[] in, int width, int height, byte[] horizontalOut, byte[] out, int scaledWidth, int scaledHeight) {
+        final Filter horizontal = new Filter(width, scaledWidth);
+        for (int y = 0; y < height; y++) {
+            horizontal.apply(in, y * width, 1, horizontalOut, y * scaledWidth, 1);
+        }
+        final Filter vertical = new Filter(height, scaledHeight);
+        for (int x = 0; x < scaledWidth; x++) {
+            vertical.apply(horizontalOut, x, scaledWidth, out, x, scaledWidth);
+        }
+    }
+
+    private static class Filter {
+
+        private final int[] first;
+        private final int[] count;
+        private final float[] weights;
+        private final int taps;
+
+        Filter(int size, int scaledSize) {
+            final double scale = scaledSize / (double) size;
+            final double support = scale < 1 ? 1 / scale : 1;
+            taps = (int) Math.ceil(2 * support) + 1;
+            first = new int[scaledSize];
+            count = new int[scaledSize];
+            weights = new float[scaledSize * taps];
+            for (int i = 0; i < scaledSize; i++) {
+                final double center = (i + 0.5) / scale - 0.5;
+                final int start = Math.max(0, (int) Math.floor(center - support) + 1);
+                final int end = Math.min(size - 1, (int) Math.floor(center + support));
+                double total = 0;
+                for (int s = start; s <= end && s - start < taps; s++) {
+                    final double weight = Math.max(0, 1 - Math.abs(s - center) / support);
+                    weights[i * taps + s - start] = (float) weight;
+                    total += weight;
+                }
+                first[i] = start;
+                count[i] = Math.min(end - start + 1, taps);
+                if (total == 0) {
+                    // Past the edge, the nearest pixel stands in
+                    first[i] = Math.min(size - 1, Math.max(0, (int) Math.round(center)));
+                    count[i] = 1;
+                    weights[i * taps] = 1;
+                } else {
+                    for (int t = 0; t < count[i]; t++) {
+                        weights[i * taps + t] /= total;
+                    }
+                }
+            }
+        }
+
+        void apply(byte[] in, int inOffset, int inStride, byte[] out, int outOffset, int outStride) {
+            for (int i = 0; i < first.length; i++) {
+                float value = 0.5f;
+                int index = inOffset + first[i] * inStride;
+                for (int t = 0; t < count[i]; t++) {
+                    value += weights[i * taps + t] * (in[index] & 0xff);
+                    index += inStride;
+                }
+                out[outOffset + i * outStride] = (byte) Math.min(255, (int) value);
+            }
+        }
+    }
+
+    /**
+     * Bradley-Roth adaptive threshold over a window an eighth of the page wide. The window sums are kept per column
+     * and slid down the page a row at a time, which needs one int per column instead of a full integral image.
+     */
+    private void binarize(int width, int height) {
+        final int radius = Math.max(7, Math.max(width, height) / 16);
+        windowSums = ensure(windowSums, width);
+        target = ensure(target, width * height);
+        for (int x = 0; x < width; x++) {
+            windowSums[x] = 0;
+        }
+        for (int y = 0; y < Math.min(radius, height); y++) {
+            addRow(y * width, width, 1);
+        }
+
+        for (int y = 0; y < height; y++) {
+            if (y + radius < height) {
+                addRow((y + radius) * width, width, 1);
+            }
+            if (y - radius - 1 >= 0) {
+                addRow((y - radius - 1) * width, width, -1);
+            }
+            final int rows = Math.min(height - 1, y + radius) - Math.max(0, y - radius) + 1;
+
+            int sum = 0;
+            for (int x = 0; x < Math.min(radius, width); x++) {
+                sum += windowSums[x];
+            }
+            final int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                if (x + radius < width) {
+                    sum += windowSums[x + radius];
+                }
+                if (x - radius - 1 >= 0) {
+                    sum -= windowSums[x - radius - 1];
+                }
+                final int columns = Math.min(width - 1, x + radius) - Math.max(0, x - radius) + 1;
+                final long area = (long) rows * columns;
+                final boolean dark = (source[offset + x] & 0xff) * area * 100 <= (long) sum * (100 - BINARIZE_PERCENT);
+                target[offset + x] = dark ? 0 : (byte) 255;
+            }
+        }
+        swap();
+    }
+
+    private void addRow(int offset, int width, int sign) {
+        for (int x = 0; x < width; x++) {
+            windowSums[x] += sign * (source[offset + x] & 0xff);
+        }
+    }
+
+    /**
+     * Projection profile skew estimate. The dark pixels of a reduced copy are projected onto the rows of the page at
+     * every candidate angle, text lines make the profile spiky when the angle matches their slant. A coarse search is
+     * refined around its best angle.
+     *
+     * @return the angle of the text lines in radians, clockwise in image coordinates
+     */
+    private double estimateSkew(int width, int height) {
+        final int step = Math.max(1, (int) Math.ceil(width / (double) SKEW_SAMPLE_WIDTH));
+        int dark = 0;
+        for (int y = 0; y < height; y += step) {
+            for (int x = 0; x < width; x += step) {
+                if ((source[y * width + x] & 0xff) < 128) {
+                    if (dark == darkX.length) {
+                        darkX = grow(darkX);
+                        darkY = grow(darkY);
+                    }
+                    darkX[dark] = x / step;
+                    darkY[dark] = y / step;
+                    dark++;
+                }
+            }
+        }
+        // A blank or almost solid page has no lines to level
+        final int sampleWidth = (width + step - 1) / step;
+        final int sampleHeight = (height + step - 1) / step;
+        if (dark < 100 || dark > sampleWidth * sampleHeight / 2) {
+            return 0;
+        }
+
+        final int margin = (int) Math.ceil(sampleWidth * Math.tan(Math.toRadians(MAX_SKEW_DEGREES)));
+        windowSums = ensure(windowSums, sampleHeight + 2 * margin);
+
+        double best = 0;
+        double bestScore = profileScore(0, dark, sampleHeight + 2 * margin, margin);
+        for (double degrees = -MAX_SKEW_DEGREES; degrees <= MAX_SKEW_DEGREES; degrees += 0.5) {
+            final double score = profileScore(Math.toRadians(degrees), dark, sampleHeight + 2 * margin, margin);
+            if (score > bestScore) {
+                bestScore = score;
+                best = degrees;
+            }
+        }
+        final double coarse = best;
+        for (double degrees = coarse - 0.4; degrees <= coarse + 0.4; degrees += 0.1) {
+            final double score = profileScore(Math.toRadians(degrees), dark, sampleHeight + 2 * margin, margin);
+            if (score > bestScore) {
+                bestScore = score;
+                best = degrees;
+            }
+        }
+        return Math.abs(best) < 0.1 ? 0 : Math.toRadians(best);
+    }
+
+    // Sum of the squared differences between neighbouring rows of the profile
+    private double profileScore(double angle, int dark, int bins, int margin) {
+        final double tan = Math.tan(angle);
+        for (int i = 0; i < bins; i++) {
+            windowSums[i] = 0;
+        }
+        for (int i = 0; i < dark; i++) {
+            final int bin = (int) Math.round(darkY[i] - darkX[i] * tan) + margin;
+            if (bin >= 0 && bin < bins) {
+                windowSums[bin]++;
+            }
+        }
+        double score = 0;
+        for (int i = 1; i < bins; i++) {
+            final double difference = windowSums[i] - windowSums[i - 1];
+            score += difference * difference;
+        }
+        return score;
+    }
+
+    // Bilinear rotation about the center, keeping the page size and filling uncovered corners with white
+    private void rotate(int width, int height, double angle) {
+        target = ensure(target, width * height);
+        final double cos = Math.cos(angle);
+        final double sin = Math.sin(angle);
+        final double centerX = width / 2.0;
+        final double centerY = height / 2.0;
+        for (int y = 0; y < height; y++) {
+            final double dy = y + 0.5 - centerY;
+            for (int x = 0; x < width; x++) {
+                final double dx = x + 0.5 - centerX;
+                // Inverse rotation finds where the pixel comes from
+                final double sx = cos * dx + sin * dy + centerX - 0.5;
+                final double sy = -sin * dx + cos * dy + centerY - 0.5;
+                final int x0 = (int) Math.floor(sx);
+                final int y0 = (int) Math.floor(sy);
+                final double fx = sx - x0;
+                final double fy = sy - y0;
+                final double top = pixel(x0, y0, width, height) * (1 - fx) + pixel(x0 + 1, y0, width, height) * fx;
+                final double bottom = pixel(x0, y0 + 1, width, height) * (1 - fx) + pixel(x0 + 1, y0 + 1, width, height) * fx;
+                final int value = (int) (top * (1 - fy) + bottom * fy + 0.5);
+                // A binarized page stays black and white
+                target[y * width + x] = (byte) (binarize ? (value < 128 ? 0 : 255) : value);
+            }
+        }
+        swap();
+    }
+
+    private int pixel(int x, int y, int width, int height) {
+        return x < 0 || y < 0 || x >= width || y >= height ? 255 : source[y * width + x] & 0xff;
+    }
+
+    private void swap() {
+        final byte[] swapped = source;
+        source = target;
+        target = swapped;
+    }
+
+    private static byte[] ensure(byte[] buffer, int size) {
+        return buffer.length >= size ? buffer : new byte[size];
+    }
+
+    private static int[] ensure(int[] buffer, int size) {
+        return buffer.length >= size ? buffer : new int[size];
+    }
+
+    private static int[] grow(int[] buffer) {
+        final int[] grown = new int[Math.max(4096, buffer.length * 2)];
+        System.arraycopy(buffer, 0, grown, 0, buffer.length);
+        return grown;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nifi.processors.ocr;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Area of a page to recognize, with the page segmentation mode and character whitelist that suit what it holds, for
+ * example mode 7 and digits only for a meter display.
+ */
+public class OcrRegion {
+
+    private final String name;
+    private final Rectangle bounds;
+    private final int pageSegMode;
+    private final String whitelist;
+
+    /**
+     * @param name
+     *  Name the region's text is reported under, may be null
+     * @param pageSegMode
+     *  Tesseract page segmentation mode, negative for the configured one
+     * @param whitelist
+     *  Only characters that may be recognized, null for the configured ones
+     */
+    public OcrRegion(String name, Rectangle bounds, int pageSegMode, String whitelist) {
+        this.name = name;
+        this.bounds = bounds;
+        this.pageSegMode = pageSegMode;
+        this.whitelist = whitelist;
+    }
+
+    /**
+     * Parses a JSON array of objects with 'x', 'y', 'width' and 'height' keys and the optional 'name', 'psm' and
+     * 'whitelist' keys.
+     *
+     * @throws org.json.JSONException if the JSON is not such an array
+     */
+    public static List<OcrRegion> parse(String json) {
+        final JSONArray array = new JSONArray(json);
+        final List<OcrRegion> regions = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            final JSONObject region = array.getJSONObject(i);
+            final Rectangle bounds = new Rectangle(region.getInt("x"), region.getInt("y"), region.getInt("width"), region.getInt("height"));
+            regions.add(new OcrRegion(region.optString("name", null), bounds, region.optInt("psm", -1), region.optString("whitelist", null)));
+        }
+        return regions;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Rectangle getBounds() {
+        return bounds;
+    }
+
+    public int getPageSegMode() {
+        return pageSegMode;
+    }
+
+    public String getWhitelist() {
+        return whitelist;
+    }
+}
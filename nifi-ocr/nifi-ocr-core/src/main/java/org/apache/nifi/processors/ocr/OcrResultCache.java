@@ -0,0 +1,288 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nifi.processors.ocr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two level cache of OCR results keyed by document content and OCR settings. The first level is a least recently
+ * used map bounded by the bytes it holds and the optional second level is a directory with a file per result, which
+ * survives restarts and may be shared by processors on the same host. Results found on disk are copied into memory.
+ */
+public class OcrResultCache {
+
+    /**
+     * Largest result that is cached, larger ones are recognized every time
+     */
+    public static final int MAX_ENTRY_BYTES = 16 * 1024 * 1024;
+
+    private static final String EXTENSION = ".ocr";
+
+    private final long maxMemoryBytes;
+    private final LinkedHashMap<String, Result> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    private final File directory;
+    private final long maxDirectoryBytes;
+    private final AtomicLong directoryBytes = new AtomicLong();
+
+    /**
+     * @param maxMemoryBytes
+     *  Bytes of results held in memory, 0 disables the memory level
+     * @param directory
+     *  Directory of the disk level, null to disable it
+     * @param maxDirectoryBytes
+     *  Bytes of results kept in the directory, the least recently used are deleted beyond that
+     */
+    public OcrResultCache(long maxMemoryBytes, File directory, long maxDirectoryBytes) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = directory;
+        this.maxDirectoryBytes = maxDirectoryBytes;
+        if (directory != null) {
+            long size = 0;
+            for (File file : listResults()) {
+                size += file.length();
+            }
+            directoryBytes.set(size);
+        }
+    }
+
+    /**
+     * @return the cached result, null if there is none
+     *
+     * @throws IOException if the result file exists but can not be read
+     */
+    public Result get(String key) throws IOException {
+        synchronized (memory) {
+            final Result result = memory.get(key);
+            if (result != null) {
+                return result;
+            }
+        }
+        if (directory == null) {
+            return null;
+        }
+
+        final File file = new File(directory, key + EXTENSION);
+        final Result result;
+        try (FileInputStream fileIn = new FileInputStream(file); DataInputStream in = new DataInputStream(fileIn)) {
+            // Sized from the file that was opened rather than the path, which a put may have replaced since
+            final long length = fileIn.getChannel().size() - Integer.BYTES;
+            if (length < 0 || length > MAX_ENTRY_BYTES) {
+                // Not a result written by put, such as one cut short by a crash, it is recognized again and replaced
+                return null;
+            }
+            final int pageCount = in.readInt();
+            final byte[] content = new byte[(int) length];
+            in.readFully(content);
+            result = new Result(content, pageCount);
+        } catch (FileNotFoundException | EOFException e) {
+            return null;
+        }
+        // The file's age is what the least recently used results are found by
+        file.setLastModified(System.currentTimeMillis());
+        putInMemory(key, result);
+        return result;
+    }
+
+    /**
+     * Caches the result in memory and on disk.
+     *
+     * @throws IOException if the result can not be written to the directory, it is still cached in memory
+     */
+    public void put(String key, Result result) throws IOException {
+        putInMemory(key, result);
+        if (directory == null) {
+            return;
+        }
+
+        // Written under a name of its own first, so no one ever reads a partly written result
+        final File temporary = new File(directory, key + "." + UUID.randomUUID() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temporary))) {
+            out.writeInt(result.getPageCount());
+            out.write(result.getContent());
+        } catch (IOException ioe) {
+            temporary.delete();
+            throw ioe;
+        }
+        final File file = new File(directory, key + EXTENSION);
+        final long replaced = file.length();
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (directoryBytes.addAndGet(file.length() - replaced) > maxDirectoryBytes) {
+            trimDirectory();
+        }
+    }
+
+    private void putInMemory(String key, Result result) {
+        // A single result may take at most a quarter of the memory, so one large document does not flush the rest
+        if (maxMemoryBytes <= 0 || result.getContent().length > maxMemoryBytes / 4) {
+            return;
+        }
+        synchronized (memory) {
+            final Result replaced = memory.put(key, result);
+            memoryBytes += result.getContent().length - (replaced == null ? 0 : replaced.getContent().length);
+            final Iterator<Map.Entry<String, Result>> eldest = memory.entrySet().iterator();
+            while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+                memoryBytes -= eldest.next().getValue().getContent().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    // Deletes the least recently used results until the directory is a tenth below its limit
+    private synchronized void trimDirectory() {
+        final File[] files = listResults();
+        // Ages are read once, results read by other threads while sorting must not change the order under the sort
+        final Map<File, Long> ages = new HashMap<>();
+        long size = 0;
+        for (File file : files) {
+            ages.put(file, file.lastModified());
+            size += file.length();
+        }
+        Arrays.sort(files, Comparator.comparingLong(ages::get));
+        for (int i = 0; i < files.length && size > maxDirectoryBytes * 0.9; i++) {
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                size -= length;
+            }
+        }
+        directoryBytes.set(size);
+    }
+
+    private File[] listResults() {
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * Content written for a document, together with its number of pages
+     */
+    public static class Result {
+
+        private final byte[] content;
+        private final int pageCount;
+
+        public Result(byte[] content, int pageCount) {
+            this.content = content;
+            this.pageCount = pageCount;
+        }
+
+        public byte[] getContent() {
+            return content;
+        }
+
+        public int getPageCount() {
+            return pageCount;
+        }
+    }
+
+    /**
+     * Keeps a copy of what is written to a stream, as long as it is small enough to be cached.
+     */
+    public static class Capture extends FilterOutputStream {
+
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+        public Capture(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (copy != null) {
+                copy.write(b);
+                checkSize();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy != null) {
+                copy.write(b, off, len);
+                checkSize();
+            }
+        }
+
+        private void checkSize() {
+            if (copy.size() > MAX_ENTRY_BYTES) {
+                copy = null;
+            }
+        }
+
+        /**
+         * @return what was written, null if it is too large to be cached
+         */
+        public byte[] getContent() {
+            return copy == null ? null : copy.toByteArray();
+        }
+    }
+
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException nsae) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(nsae);
+        }
+    }
+
+    /**
+     * @return hex encoded SHA-256 of the parts, each followed by a separator
+     */
+    public static String sha256Hex(String... parts) {
+        final MessageDigest digest = sha256();
+        for (String part : parts) {
+            digest.update(String.valueOf(part).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return toHex(digest.digest());
+    }
+
+    public static String toHex(byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
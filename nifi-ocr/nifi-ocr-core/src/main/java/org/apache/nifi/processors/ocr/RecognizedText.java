@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nifi.processors.ocr;
+
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Text Tesseract recognized in an area of an image together with its confidence, from 0 to 100. A region holds its
+ * lines and every line holds its words, bounds are in pixels of the whole image.
+ */
+public class RecognizedText {
+
+    private final String text;
+    private final float confidence;
+    private final Rectangle bounds;
+    private final List<RecognizedText> children;
+
+    public RecognizedText(String text, float confidence, Rectangle bounds, List<RecognizedText> children) {
+        this.text = text;
+        this.confidence = confidence;
+        this.bounds = bounds;
+        this.children = children == null ? Collections.<RecognizedText>emptyList() : children;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public float getConfidence() {
+        return confidence;
+    }
+
+    public Rectangle getBounds() {
+        return bounds;
+    }
+
+    public List<RecognizedText> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return a copy with its bounds, and those of its children, transformed to other coordinates
+     */
+    public RecognizedText transform(AffineTransform transform) {
+        if (transform.isIdentity()) {
+            return this;
+        }
+        final List<RecognizedText> transformed = new ArrayList<>(children.size());
+        for (RecognizedText child : children) {
+            transformed.add(child.transform(transform));
+        }
+        return new RecognizedText(text, confidence, transform.createTransformedShape(bounds).getBounds(), transformed);
+    }
+
+    /**
+     * @param childrenKey
+     *  Key the children are written under, followed by the keys of their own children
+     */
+    public JSONObject toJson(String... childrenKey) {
+        final JSONObject json = new JSONObject();
+        json.put("text", text);
+        json.put("confidence", confidence);
+        json.put("x", bounds.x);
+        json.put("y", bounds.y);
+        json.put("width", bounds.width);
+        json.put("height", bounds.height);
+        if (childrenKey.length > 0) {
+            final String[] grandChildrenKey = new String[childrenKey.length - 1];
+            System.arraycopy(childrenKey, 1, grandChildrenKey, 0, grandChildrenKey.length);
+            final JSONArray array = new JSONArray();
+            for (RecognizedText child : children) {
+                array.put(child.toJson(grandChildrenKey));
+            }
+            json.put(childrenKey[0], array);
+        }
+        return json;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nifi.processors.ocr;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Languages installed in Tessdata directories. A directory is listed once and its languages are cached until the
+ * directory changes, which is what happens when a language file is added or removed. Validation and every processor
+ * configured with the same directory share the result.
+ */
+public final class TessdataLanguages {
+
+    public static final String EXTENSION = ".traineddata";
+
+    private static final ConcurrentMap<String, Scan> SCANS = new ConcurrentHashMap<>();
+
+    private TessdataLanguages() {
+    }
+
+    /**
+     * @return the names of the languages in the directory, sorted, empty if the directory does not exist or holds
+     *  no languages
+     */
+    public static SortedSet<String> of(String tessdataPath) {
+        final File directory = new File(tessdataPath);
+        final long lastModified = directory.lastModified();
+        final Scan cached = SCANS.get(tessdataPath);
+        if (cached != null && cached.lastModified == lastModified) {
+            return cached.languages;
+        }
+
+        final SortedSet<String> languages = new TreeSet<>();
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files != null) {
+            for (File file : files) {
+                languages.add(file.getName().substring(0, file.getName().length() - EXTENSION.length()));
+            }
+        }
+        final Scan scan = new Scan(lastModified, Collections.unmodifiableSortedSet(languages));
+        SCANS.put(tessdataPath, scan);
+        return scan.languages;
+    }
+
+    private static class Scan {
+
+        private final long lastModified;
+        private final SortedSet<String> languages;
+
+        Scan(long lastModified, SortedSet<String> languages) {
+            this.lastModified = lastModified;
+            this.languages = languages;
+        }
+    }
+}
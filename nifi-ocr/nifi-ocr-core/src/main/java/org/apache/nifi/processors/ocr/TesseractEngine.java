@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nifi.processors.ocr;
+
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.sun.jna.Pointer;
+
+import net.sourceforge.tess4j.ITessAPI.TessBaseAPI;
+import net.sourceforge.tess4j.ITessAPI.TessPageIterator;
+import net.sourceforge.tess4j.ITessAPI.TessPageIteratorLevel;
+import net.sourceforge.tess4j.ITessAPI.TessResultIterator;
+import net.sourceforge.tess4j.TessAPI;
+import net.sourceforge.tess4j.TesseractException;
+
+/**
+ * Native Tesseract instance that is initialized once, with its language, page segmentation mode and configuration
+ * values, and then reused for every image. Loading the language data is the costly part of setting Tesseract up,
+ * which tess4j's Tesseract class repeats for every image it is given.
+ *
+ * The page segmentation mode and character whitelist can be overridden for a single call, which is how regions of
+ * an image that each need their own settings share the engines.
+ *
+ * Instances are not thread safe, a thread must have exclusive use of an engine while recognizing an image.
+ */
+public class TesseractEngine implements Closeable {
+
+    /**
+     * Page segmentation modes as they are offered in processor properties, each starting with its number
+     */
+    public static final Set<String> PAGE_SEGMENTATION_MODES = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(
+            "0 = Orientation and script detection (OSD) only",
+            "1 = Automatic page segmentation with OSD",
+            "2 = Automatic page segmentation, but no OSD, or OCR",
+            "3 = Fully automatic page segmentation, but no OSD",
+            "4 = Assume a single column of text of variable sizes",
+            "5 = Assume a single uniform block of vertically aligned text",
+            "6 = Assume a single uniform block of text",
+            "7 = Treat the image as a single text line",
+            "8 = Treat the image as a single word",
+            "9 = Treat the image as a single word in a circle",
+            "10 = Treat the image as a single character")));
+
+    public static final String DEFAULT_PAGE_SEGMENTATION_MODE = "3 = Fully automatic page segmentation, but no OSD";
+
+    private static final String WHITELIST = "tessedit_char_whitelist";
+
+    private final TessAPI api = TessAPI.INSTANCE;
+
+    private final TessBaseAPI handle;
+    private final int pageSegMode;
+    private final String whitelist;
+
+    /**
+     * @param datapath
+     *  Tessdata directory holding the language files
+     * @param language
+     *  Language, or languages joined with '+', to recognize
+     * @param pageSegMode
+     *  Tesseract page segmentation mode
+     * @param variables
+     *  Tesseract configuration values
+     *
+     * @throws TesseractException if Tesseract can not be initialized, for example because the language is not installed
+     */
+    public TesseractEngine(String datapath, String language, int pageSegMode, Map<String, String> variables) throws TesseractException {
+        handle = api.TessBaseAPICreate();
+        if (api.TessBaseAPIInit3(handle, datapath, language) != 0) {
+            api.TessBaseAPIDelete(handle);
+            throw new TesseractException("Unable to initialize Tesseract with language '" + language + "' from " + datapath);
+        }
+        this.pageSegMode = pageSegMode;
+        this.whitelist = variables.containsKey(WHITELIST) ? variables.get(WHITELIST) : "";
+        api.TessBaseAPISetPageSegMode(handle, pageSegMode);
+        for (Map.Entry<String, String> variable : variables.entrySet()) {
+            api.TessBaseAPISetVariable(handle, variable.getKey(), variable.getValue());
+        }
+    }
+
+    /**
+     * @param mode
+     *  One of the {@link #PAGE_SEGMENTATION_MODES}
+     *
+     * @return the number of the mode
+     */
+    public static int pageSegModeOf(String mode) {
+        final int separator = mode.indexOf(' ');
+        return Integer.parseInt(separator < 0 ? mode : mode.substring(0, separator));
+    }
+
+    /**
+     * Recognizes the text in a region of the image.
+     *
+     * @param region
+     *  Area of the image to recognize, null for the whole image
+     * @param regionPageSegMode
+     *  Page segmentation mode for this call, negative for the engine's own
+     * @param regionWhitelist
+     *  Only characters Tesseract may recognize for this call, null for the engine's own
+     * @param layout
+     *  Whether the lines and words, with their bounds and confidences, are wanted as well as the text
+     *
+     * @throws TesseractException if Tesseract fails to recognize the image
+     */
+    public RecognizedText recognize(OcrImage image, Rectangle region, int regionPageSegMode, String regionWhitelist, boolean layout)
+            throws TesseractException {
+        final Rectangle bounds = region != null ? region : new Rectangle(0, 0, image.getWidth(), image.getHeight());
+        api.TessBaseAPISetImage(handle, image.getPixels(), image.getWidth(), image.getHeight(), 1, image.getWidth());
+        api.TessBaseAPISetRectangle(handle, bounds.x, bounds.y, bounds.width, bounds.height);
+        api.TessBaseAPISetPageSegMode(handle, regionPageSegMode < 0 ? pageSegMode : regionPageSegMode);
+        api.TessBaseAPISetVariable(handle, WHITELIST, regionWhitelist == null ? whitelist : regionWhitelist);
+        try {
+            if (api.TessBaseAPIRecognize(handle, null) != 0) {
+                throw new TesseractException("Tesseract was unable to recognize the image");
+            }
+            final String text = getText(api.TessBaseAPIGetUTF8Text(handle));
+            final List<RecognizedText> lines = layout ? getLines() : null;
+            return new RecognizedText(text, api.TessBaseAPIMeanTextConf(handle), bounds, lines);
+        } finally {
+            // Drops the image and results but keeps the language data loaded
+            api.TessBaseAPIClear(handle);
+            api.TessBaseAPISetPageSegMode(handle, pageSegMode);
+            api.TessBaseAPISetVariable(handle, WHITELIST, whitelist);
+        }
+    }
+
+    // Walks the recognized words, starting a new line whenever a word begins one
+    private List<RecognizedText> getLines() {
+        final List<RecognizedText> lines = new ArrayList<>();
+        final TessResultIterator iterator = api.TessBaseAPIGetIterator(handle);
+        if (iterator == null) {
+            return lines;
+        }
+        try {
+            final TessPageIterator pageIterator = api.TessResultIteratorGetPageIterator(iterator);
+            if (pageIterator == null) {
+                return lines;
+            }
+            api.TessPageIteratorBegin(pageIterator);
+            // A blank page has no words, there is no bounding box where the iterator begins then
+            if (api.TessPageIteratorBoundingBox(pageIterator, TessPageIteratorLevel.RIL_WORD,
+                    IntBuffer.allocate(1), IntBuffer.allocate(1), IntBuffer.allocate(1), IntBuffer.allocate(1)) == 0) {
+                return lines;
+            }
+            List<RecognizedText> words = null;
+            do {
+                if (words == null || api.TessPageIteratorIsAtBeginningOf(pageIterator, TessPageIteratorLevel.RIL_TEXTLINE) != 0) {
+                    words = new ArrayList<>();
+                    lines.add(getElement(iterator, pageIterator, TessPageIteratorLevel.RIL_TEXTLINE, words));
+                }
+                words.add(getElement(iterator, pageIterator, TessPageIteratorLevel.RIL_WORD, null));
+            } while (api.TessResultIteratorNext(iterator, TessPageIteratorLevel.RIL_WORD) != 0);
+        } finally {
+            api.TessResultIteratorDelete(iterator);
+        }
+        return lines;
+    }
+
+    private RecognizedText getElement(TessResultIterator iterator, TessPageIterator pageIterator, int level, List<RecognizedText> children) {
+        final IntBuffer left = IntBuffer.allocate(1);
+        final IntBuffer top = IntBuffer.allocate(1);
+        final IntBuffer right = IntBuffer.allocate(1);
+        final IntBuffer bottom = IntBuffer.allocate(1);
+        api.TessPageIteratorBoundingBox(pageIterator, level, left, top, right, bottom);
+        final Rectangle bounds = new Rectangle(left.get(0), top.get(0), right.get(0) - left.get(0), bottom.get(0) - top.get(0));
+        final String text = getText(api.TessResultIteratorGetUTF8Text(iterator, level)).trim();
+        return new RecognizedText(text, api.TessResultIteratorConfidence(iterator, level), bounds, children);
+    }
+
+    private String getText(Pointer text) {
+        if (text == null) {
+            return "";
+        }
+        try {
+            return text.getString(0, "UTF-8");
+        } finally {
+            api.TessDeleteText(text);
+        }
+    }
+
+    @Override
+    public void close() {
+        api.TessBaseAPIEnd(handle);
+        api.TessBaseAPIDelete(handle);
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.nifi.processors.ocr;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.sourceforge.tess4j.TesseractException;
+
+/**
+ * Engines shared by every processor configured with the same Tessdata directory, language, page segmentation mode
+ * and configuration values. Each engine holds its own copy of the language data, tens of megabytes for most
+ * languages, so processors that read the same kind of documents draw from one pool instead of each keeping their own.
+ *
+ * A pool has as many engines as its users asked for together, since each may use all of its engines at once. The
+ * engines of a user are closed when it releases the pool, right away when they are idle and otherwise as soon as
+ * they are given back.
+ */
+public final class TesseractEnginePool {
+
+    private static final Map<Key, TesseractEnginePool> POOLS = new HashMap<>();
+
+    private final Key key;
+    private final BlockingQueue<TesseractEngine> idle = new LinkedBlockingQueue<>();
+    // Engines open, idle or not, and engines the users asked for, both guarded by the pool
+    private int size;
+    private int target;
+    // Guarded by the POOLS lock
+    private int users;
+
+    private TesseractEnginePool(Key key) {
+        this.key = key;
+    }
+
+    /**
+     * @param engines
+     *  Number of engines the caller uses at the same time
+     *
+     * @throws TesseractException if Tesseract can not be initialized with the configuration
+     */
+    public static Lease acquire(String datapath, String language, int pageSegMode, Map<String, String> variables, int engines)
+            throws TesseractException {
+        final Key key = new Key(datapath, language, pageSegMode, variables);
+        synchronized (POOLS) {
+            TesseractEnginePool pool = POOLS.get(key);
+            final boolean created = pool == null;
+            if (created) {
+                pool = new TesseractEnginePool(key);
+            }
+            pool.grow(engines);
+            if (created) {
+                POOLS.put(key, pool);
+            }
+            pool.users++;
+            return pool.new Lease(engines);
+        }
+    }
+
+    // Only called while holding the POOLS lock. Engines are created outside the pool's lock so users can keep giving
+    // engines back meanwhile
+    private void grow(int engines) throws TesseractException {
+        synchronized (this) {
+            target += engines;
+        }
+        try {
+            while (true) {
+                synchronized (this) {
+                    if (size >= target) {
+                        return;
+                    }
+                    size++;
+                }
+                try {
+                    idle.add(new TesseractEngine(key.datapath, key.language, key.pageSegMode, key.variables));
+                } catch (TesseractException te) {
+                    synchronized (this) {
+                        size--;
+                    }
+                    throw te;
+                }
+            }
+        } catch (TesseractException te) {
+            shrink(engines);
+            throw te;
+        }
+    }
+
+    // Closes idle engines until the pool is back down to what its users asked for
+    private void shrink(int engines) {
+        synchronized (this) {
+            target -= engines;
+        }
+        while (true) {
+            final TesseractEngine engine;
+            synchronized (this) {
+                if (size <= target || (engine = idle.poll()) == null) {
+                    return;
+                }
+                size--;
+            }
+            engine.close();
+        }
+    }
+
+    private void release(int engines) {
+        synchronized (POOLS) {
+            shrink(engines);
+            if (--users == 0) {
+                POOLS.remove(key);
+            }
+        }
+    }
+
+    /**
+     * A user's hold on a pool. Engines are taken for a single image and given back as soon as it is recognized.
+     */
+    public class Lease implements Closeable {
+
+        private final int engines;
+        private boolean released;
+
+        private Lease(int engines) {
+            this.engines = engines;
+        }
+
+        /**
+         * Waits for an engine to be free
+         */
+        public TesseractEngine take() throws InterruptedException {
+            return idle.take();
+        }
+
+        public void give(TesseractEngine engine) {
+            // An engine that was in use when its user released the pool is closed as soon as it comes back
+            synchronized (TesseractEnginePool.this) {
+                if (size <= target) {
+                    idle.offer(engine);
+                    return;
+                }
+                size--;
+            }
+            engine.close();
+        }
+
+        /**
+         * Releases the engines this user asked for, the pool is gone once no one uses it anymore. Engines must not be
+         * taken afterwards.
+         */
+        @Override
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                release(engines);
+            }
+        }
+    }
+
+    private static class Key {
+
+        private final String datapath;
+        private final String language;
+        private final int pageSegMode;
+        private final Map<String, String> variables;
+
+        Key(String datapath, String language, int pageSegMode, Map<String, String> variables) {
+            this.datapath = datapath;
+            this.language = language;
+            this.pageSegMode = pageSegMode;
+            this.variables = Collections.unmodifiableMap(new TreeMap<>(variables));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return pageSegMode == other.pageSegMode && datapath.equals(other.datapath) && language.equals(other.language)
+                    && variables.equals(other.variables);
+        }
+
+        @Override
+        public int hashCode() {
+            return ((datapath.hashCode() * 31 + language.hashCode()) * 31 + pageSegMode) * 31 + variables.hashCode();
+        }
+    }
+}
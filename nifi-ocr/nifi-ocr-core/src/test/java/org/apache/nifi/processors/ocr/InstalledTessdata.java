@@ -0,0 +1,46 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ocr;
+
+import java.io.File;
+import java.util.Collections;
+
+import org.junit.Assume;
+
+import net.sourceforge.tess4j.TesseractException;
+
+/**
+ * Tessdata directory the tests that run Tesseract use, given with -Dtessdata.path. It must hold eng.traineddata and
+ * the Tesseract library must be installed, otherwise those tests are skipped.
+ */
+final class InstalledTessdata {
+
+    private InstalledTessdata() {
+    }
+
+    static String path() {
+        final String path = System.getProperty("tessdata.path");
+        Assume.assumeTrue("tessdata.path is not set to a Tessdata directory with eng.traineddata",
+                path != null && new File(path, "eng.traineddata").isFile());
+        try {
+            new TesseractEngine(path, "eng", 3, Collections.<String, String>emptyMap()).close();
+        } catch (LinkageError | TesseractException e) {
+            Assume.assumeNoException("Tesseract can not be loaded", e);
+        }
+        return path;
+    }
+}
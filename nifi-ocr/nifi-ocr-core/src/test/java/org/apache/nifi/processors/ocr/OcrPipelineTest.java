@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ocr;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.apache.nifi.util.MockComponentLog;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class OcrPipelineTest {
+
+    private static final List<String> WORDS = Arrays.asList("HELLO", "WORLD", "NIFI", "TESSERACT", "PIPELINE", "ORDER", "PAGES");
+
+    private String tessdata;
+    private OcrPipeline pipeline;
+
+    @Before
+    public void init() {
+        tessdata = InstalledTessdata.path();
+    }
+
+    @After
+    public void shutdown() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testPagesWrittenInOrder() throws Exception {
+        // More pages than the window of pages recognized at the same time
+        pipeline = pipeline(2, 0, 0);
+        final String text = write(WORDS.size(), null, false);
+
+        final String[] pages = text.split("\f", -1);
+        assertEquals(WORDS.size(), pages.length);
+        for (int i = 0; i < pages.length; i++) {
+            assertTrue(pages[i], pages[i].toUpperCase(Locale.ROOT).contains(WORDS.get(i)));
+        }
+    }
+
+    @Test
+    public void testRegionsAsJson() throws Exception {
+        pipeline = pipeline(2, 0, 0);
+        final List<OcrRegion> regions = OcrRegion.parse("[" +
+                "{\"name\": \"word\", \"x\": 0, \"y\": 0, \"width\": 800, \"height\": 200, \"psm\": 7}," +
+                "{\"name\": \"outside\", \"x\": 900, \"y\": 0, \"width\": 100, \"height\": 100}]");
+        final JSONArray pages = new JSONArray(write(2, regions, true));
+
+        assertEquals(2, pages.length());
+        for (int i = 0; i < pages.length(); i++) {
+            final JSONObject page = pages.getJSONObject(i);
+            assertEquals(i + 1, page.getInt("page"));
+            // The region outside of the page is skipped
+            final JSONArray pageRegions = page.getJSONArray("regions");
+            assertEquals(1, pageRegions.length());
+            final JSONObject region = pageRegions.getJSONObject(0);
+            assertEquals("word", region.getString("name"));
+            assertTrue(region.getString("text").toUpperCase(Locale.ROOT).contains(WORDS.get(i)));
+            assertTrue(region.getJSONArray("lines").length() > 0);
+        }
+    }
+
+    @Test
+    public void testFirstPass() throws Exception {
+        // Every first pass result is good enough
+        pipeline = pipeline(1, 0.5, 0);
+        OcrPipeline.Passes passes = pipeline.writePages(3, this::page, null, false, new ByteArrayOutputStream());
+        assertEquals(3, passes.getFirstPass());
+        assertEquals(0, passes.getFullResolution());
+        pipeline.close();
+
+        // No first pass result is good enough
+        pipeline = pipeline(1, 0.5, 101);
+        passes = pipeline.writePages(3, this::page, null, false, new ByteArrayOutputStream());
+        assertEquals(0, passes.getFirstPass());
+        assertEquals(3, passes.getFullResolution());
+    }
+
+    @Test(expected = IOException.class)
+    public void testUnreadablePage() throws Exception {
+        pipeline = pipeline(2, 0, 0);
+        pipeline.writePages(3, index -> {
+            if (index == 1) {
+                throw new IOException("Page can not be decoded");
+            }
+            return page(index);
+        }, null, false, new ByteArrayOutputStream());
+    }
+
+    private OcrPipeline pipeline(int threads, double firstPassScale, int firstPassConfidence) throws Exception {
+        final TesseractEnginePool.Lease engines = TesseractEnginePool.acquire(tessdata, "eng", 3,
+                Collections.<String, String>emptyMap(), threads);
+        return new OcrPipeline(engines, threads, null, firstPassScale, firstPassConfidence, "OCR test",
+                new MockComponentLog("pipeline", this));
+    }
+
+    private String write(int pageCount, List<OcrRegion> regions, boolean json) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        pipeline.writePages(pageCount, this::page, regions, json, out);
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    // A page with its word in large print
+    private OcrImage page(int index) {
+        final BufferedImage page = new BufferedImage(800, 600, BufferedImage.TYPE_BYTE_GRAY);
+        final Graphics2D graphics = page.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, 800, 600);
+        graphics.setColor(Color.BLACK);
+        graphics.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 72));
+        graphics.drawString(WORDS.get(index), 40, 130);
+        graphics.dispose();
+        return OcrImage.of(page);
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ocr;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class OcrPreprocessorTest {
+
+    @Test
+    public void testGray() {
+        final BufferedImage page = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+        page.setRGB(0, 0, 0xFF0000);
+        page.setRGB(1, 0, 0xFFFFFF);
+        final OcrImage image = new OcrPreprocessor(false, false, 0, 0).process(page, 0);
+        assertEquals(76, image.getPixels().get(0) & 0xff);
+        assertEquals(255, image.getPixels().get(1) & 0xff);
+        assertTrue(image.getTransform().isIdentity());
+    }
+
+    @Test
+    public void testRescale() {
+        final OcrPreprocessor preprocessor = new OcrPreprocessor(false, false, 300, 0);
+        final BufferedImage page = uniform(100, 50, 128);
+
+        OcrImage image = preprocessor.process(page, 150);
+        assertEquals(200, image.getWidth());
+        assertEquals(100, image.getHeight());
+        assertEquals(2, image.getTransform().getScaleX(), 0);
+        assertEquals(2, image.getTransform().getScaleY(), 0);
+        for (int i = 0; i < image.getWidth() * image.getHeight(); i++) {
+            assertEquals(128, image.getPixels().get(i) & 0xff);
+        }
+
+        // Close enough to the target, and of unknown resolution with none assumed, are left as they are
+        assertEquals(100, preprocessor.process(page, 290).getWidth());
+        assertEquals(100, preprocessor.process(page, 0).getWidth());
+
+        // Pages that do not record a resolution are taken to have the assumed one
+        image = new OcrPreprocessor(false, false, 300, 600).process(page, 0);
+        assertEquals(50, image.getWidth());
+        assertEquals(25, image.getHeight());
+    }
+
+    @Test
+    public void testBinarizeUnevenLighting() {
+        // The light falls off from right to left, so the strokes on the right are brighter than the paper on the left
+        final int width = 400;
+        final int height = 200;
+        final BufferedImage page = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        final boolean[] stroke = new boolean[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int paper = 90 + 160 * x / width;
+                stroke[y * width + x] = x % 40 >= 20 && x % 40 < 24 && y % 50 >= 10 && y % 50 < 40;
+                page.getRaster().setSample(x, y, 0, stroke[y * width + x] ? paper - 60 : paper);
+            }
+        }
+
+        final OcrImage image = new OcrPreprocessor(true, false, 0, 0).process(page, 0);
+        for (int i = 0; i < width * height; i++) {
+            assertEquals("pixel " + (i % width) + "," + (i / width), stroke[i] ? 0 : 255, image.getPixels().get(i) & 0xff);
+        }
+    }
+
+    @Test
+    public void testDeskew() {
+        final double skew = Math.toRadians(4);
+        final OcrImage image = new OcrPreprocessor(false, true, 0, 0).process(lines(skew), 0);
+
+        // Rotated back by the angle the lines were drawn at, about the middle of the page
+        final AffineTransform transform = image.getTransform();
+        assertEquals(-skew, Math.atan2(transform.getShearY(), transform.getScaleX()), Math.toRadians(0.2));
+
+        // The lines are level again, their left and right ends are at the same height
+        assertEquals(darkRow(image, 150), darkRow(image, 650), 3);
+    }
+
+    @Test
+    public void testLevelPageIsNotRotated() {
+        final OcrImage image = new OcrPreprocessor(true, true, 0, 0).process(lines(0), 0);
+        assertTrue(image.getTransform().isIdentity());
+    }
+
+    @Test
+    public void testBlankPageIsNotRotated() {
+        final OcrImage image = new OcrPreprocessor(true, true, 0, 0).process(uniform(800, 600, 255), 0);
+        assertTrue(image.getTransform().isIdentity());
+    }
+
+    @Test
+    public void testReusedForPagesOfAnySize() {
+        final OcrPreprocessor preprocessor = new OcrPreprocessor(false, false, 300, 0);
+        preprocessor.process(uniform(400, 400, 10), 150);
+        final OcrImage small = preprocessor.process(uniform(20, 10, 200), 150);
+        assertEquals(40, small.getWidth());
+        assertEquals(20, small.getHeight());
+        for (int i = 0; i < 40 * 20; i++) {
+            assertEquals(200, small.getPixels().get(i) & 0xff);
+        }
+    }
+
+    @Test
+    public void testDownscale() {
+        final OcrImage page = new OcrPreprocessor(false, false, 300, 0).process(uniform(100, 60, 77), 150);
+        final OcrImage small = OcrPreprocessor.downscale(page, 0.25);
+        assertEquals(50, small.getWidth());
+        assertEquals(30, small.getHeight());
+        for (int i = 0; i < 50 * 30; i++) {
+            assertEquals(77, small.getPixels().get(i) & 0xff);
+        }
+        // From the original page, through the preprocessed one, to the small copy
+        assertEquals(0.5, small.getTransform().getScaleX(), 1e-9);
+        assertEquals(0.5, small.getTransform().getScaleY(), 1e-9);
+    }
+
+    private static BufferedImage uniform(int width, int height, int gray) {
+        final BufferedImage page = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        final Graphics2D graphics = page.createGraphics();
+        graphics.setColor(new Color(gray, gray, gray));
+        graphics.fillRect(0, 0, width, height);
+        graphics.dispose();
+        return page;
+    }
+
+    // Lines of dashes standing in for text, drawn at the angle about the middle of the page
+    private static BufferedImage lines(double angle) {
+        final BufferedImage page = uniform(800, 600, 255);
+        final Graphics2D graphics = page.createGraphics();
+        graphics.rotate(angle, 400, 300);
+        graphics.setColor(Color.BLACK);
+        for (int y = 100; y < 500; y += 40) {
+            for (int x = 100; x < 700; x += 30) {
+                graphics.fillRect(x, y, 22, 12);
+            }
+        }
+        graphics.dispose();
+        return page;
+    }
+
+    // Mean row of the dark pixels in a column
+    private static double darkRow(OcrImage image, int x) {
+        long sum = 0;
+        int count = 0;
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int dx = 0; dx < 30; dx++) {
+                if ((image.getPixels().get(y * image.getWidth() + x + dx) & 0xff) < 128) {
+                    sum += y;
+                    count++;
+                }
+            }
+        }
+        return sum / (double) count;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ocr;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class OcrRegionTest {
+
+    @Test
+    public void testParse() {
+        final List<OcrRegion> regions = OcrRegion.parse("[" +
+                "{\"name\": \"meter\", \"x\": 10, \"y\": 20, \"width\": 300, \"height\": 40, \"psm\": 7, \"whitelist\": \"0123456789\"}," +
+                "{\"x\": 0, \"y\": 100, \"width\": 640, \"height\": 380}]");
+        assertEquals(2, regions.size());
+
+        final OcrRegion meter = regions.get(0);
+        assertEquals("meter", meter.getName());
+        assertEquals(new Rectangle(10, 20, 300, 40), meter.getBounds());
+        assertEquals(7, meter.getPageSegMode());
+        assertEquals("0123456789", meter.getWhitelist());
+
+        // Optional keys fall back to the configured page segmentation mode and whitelist
+        final OcrRegion body = regions.get(1);
+        assertNull(body.getName());
+        assertEquals(new Rectangle(0, 100, 640, 380), body.getBounds());
+        assertEquals(-1, body.getPageSegMode());
+        assertNull(body.getWhitelist());
+    }
+
+    @Test
+    public void testParseEmpty() {
+        assertTrue(OcrRegion.parse("[]").isEmpty());
+    }
+
+    @Test(expected = JSONException.class)
+    public void testParseMissingBounds() {
+        OcrRegion.parse("[{\"name\": \"meter\", \"x\": 10, \"y\": 20}]");
+    }
+
+    @Test(expected = JSONException.class)
+    public void testParseNotAnArray() {
+        OcrRegion.parse("{\"x\": 10, \"y\": 20, \"width\": 300, \"height\": 40}");
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ocr;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class OcrResultCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMemoryEvictsLeastRecentlyUsed() throws IOException {
+        final OcrResultCache cache = new OcrResultCache(100, null, 0);
+        for (String key : Arrays.asList("a", "b", "c", "d", "e")) {
+            cache.put(key, result(key, 20));
+        }
+        // Reading a makes b the least recently used
+        assertResult("a", 20, cache.get("a"));
+        cache.put("f", result("f", 20));
+
+        assertNull(cache.get("b"));
+        for (String key : Arrays.asList("a", "c", "d", "e", "f")) {
+            assertResult(key, 20, cache.get(key));
+        }
+    }
+
+    @Test
+    public void testLargeResultsStayOutOfMemory() throws IOException {
+        final OcrResultCache cache = new OcrResultCache(100, null, 0);
+        cache.put("small", result("small", 25));
+        cache.put("large", result("large", 26));
+        assertResult("small", 25, cache.get("small"));
+        assertNull(cache.get("large"));
+    }
+
+    @Test
+    public void testMemoryDisabled() throws IOException {
+        final OcrResultCache cache = new OcrResultCache(0, null, 0);
+        cache.put("a", result("a", 1));
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testDirectorySurvivesRestart() throws IOException {
+        final File directory = folder.newFolder();
+        new OcrResultCache(0, directory, 1024).put("a", new OcrResultCache.Result("some text".getBytes(StandardCharsets.UTF_8), 3));
+
+        final OcrResultCache cache = new OcrResultCache(1024, directory, 1024);
+        final OcrResultCache.Result result = cache.get("a");
+        assertEquals("some text", new String(result.getContent(), StandardCharsets.UTF_8));
+        assertEquals(3, result.getPageCount());
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void testWritesLeaveOnlyCompleteResults() throws IOException {
+        final File directory = folder.newFolder();
+        final OcrResultCache cache = new OcrResultCache(0, directory, 1024);
+        cache.put("a", result("first", 10));
+        cache.put("a", result("second", 10));
+
+        // Written under a temporary name and moved into place, so nothing else is left behind
+        assertArrayEquals(new String[] {"a.ocr"}, directory.list());
+        assertResult("second", 10, new OcrResultCache(0, directory, 1024).get("a"));
+    }
+
+    @Test
+    public void testDirectoryEvictsLeastRecentlyUsed() throws IOException {
+        final File directory = folder.newFolder();
+        // Every result takes 24 bytes on disk, its 20 bytes of content and the page count
+        final OcrResultCache cache = new OcrResultCache(0, directory, 100);
+        final long now = System.currentTimeMillis();
+        for (int i = 1; i <= 4; i++) {
+            cache.put("r" + i, result("r" + i, 20));
+            assertTrue(new File(directory, "r" + i + ".ocr").setLastModified(now - 100000 + i * 1000));
+        }
+        // Reading r1 makes r2 the least recently used
+        assertResult("r1", 20, cache.get("r1"));
+        cache.put("r5", result("r5", 20));
+
+        // Trimmed to a tenth below the limit
+        assertFalse(new File(directory, "r2.ocr").exists());
+        assertFalse(new File(directory, "r3.ocr").exists());
+        for (String key : Arrays.asList("r1", "r4", "r5")) {
+            assertTrue(new File(directory, key + ".ocr").exists());
+        }
+    }
+
+    @Test
+    public void testTruncatedResultIsAMiss() throws IOException {
+        final File directory = folder.newFolder();
+        Files.write(new File(directory, "short.ocr").toPath(), new byte[] {0, 0});
+        Files.write(new File(directory, "empty.ocr").toPath(), new byte[0]);
+
+        final OcrResultCache cache = new OcrResultCache(1024, directory, 1024);
+        assertNull(cache.get("short"));
+        assertNull(cache.get("empty"));
+
+        // Recognized again and replaced
+        cache.put("short", result("short", 10));
+        assertResult("short", 10, new OcrResultCache(0, directory, 1024).get("short"));
+    }
+
+    @Test
+    public void testCapture() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final OcrResultCache.Capture capture = new OcrResultCache.Capture(out);
+        capture.write('a');
+        capture.write("bc".getBytes(StandardCharsets.UTF_8));
+        assertArrayEquals("abc".getBytes(StandardCharsets.UTF_8), capture.getContent());
+        assertArrayEquals("abc".getBytes(StandardCharsets.UTF_8), out.toByteArray());
+
+        capture.write(new byte[OcrResultCache.MAX_ENTRY_BYTES]);
+        assertNull(capture.getContent());
+        assertEquals(3 + OcrResultCache.MAX_ENTRY_BYTES, out.size());
+    }
+
+    @Test
+    public void testKeysSeparateTheirParts() {
+        assertEquals(64, OcrResultCache.sha256Hex("a", "b").length());
+        assertEquals(OcrResultCache.sha256Hex("ab", "c"), OcrResultCache.sha256Hex("ab", "c"));
+        assertNotEquals(OcrResultCache.sha256Hex("ab", "c"), OcrResultCache.sha256Hex("a", "bc"));
+    }
+
+    // Content of the given length starting with the name, so results can be told apart
+    private static OcrResultCache.Result result(String name, int length) {
+        return new OcrResultCache.Result(Arrays.copyOf(name.getBytes(StandardCharsets.UTF_8), length), 1);
+    }
+
+    private static void assertResult(String name, int length, OcrResultCache.Result result) {
+        assertArrayEquals(result(name, length).getContent(), result.getContent());
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ocr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class TessdataLanguagesTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testListsInstalledLanguages() throws IOException {
+        final File tessdata = folder.newFolder();
+        assertTrue(new File(tessdata, "fra.traineddata").createNewFile());
+        assertTrue(new File(tessdata, "eng.traineddata").createNewFile());
+        assertTrue(new File(tessdata, "pdf.ttf").createNewFile());
+        assertTrue(new File(tessdata, "configs").mkdir());
+
+        assertEquals(Arrays.asList("eng", "fra"), Arrays.asList(TessdataLanguages.of(tessdata.getPath()).toArray()));
+    }
+
+    @Test
+    public void testRescannedWhenDirectoryChanges() throws IOException {
+        final File tessdata = folder.newFolder();
+        assertTrue(new File(tessdata, "eng.traineddata").createNewFile());
+        assertTrue(tessdata.setLastModified(1000000));
+        final Object first = TessdataLanguages.of(tessdata.getPath());
+        assertSame(first, TessdataLanguages.of(tessdata.getPath()));
+
+        // Adding a language changes the directory's modification time
+        assertTrue(new File(tessdata, "deu.traineddata").createNewFile());
+        assertTrue(tessdata.setLastModified(2000000));
+        assertEquals(Arrays.asList("deu", "eng"), Arrays.asList(TessdataLanguages.of(tessdata.getPath()).toArray()));
+    }
+
+    @Test
+    public void testMissingDirectory() {
+        assertEquals(Collections.emptySet(), TessdataLanguages.of(new File(folder.getRoot(), "missing").getPath()));
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ocr;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sourceforge.tess4j.TesseractException;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+
+
+public class TesseractEnginePoolTest {
+
+    private String tessdata;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<TesseractEnginePool.Lease> leases = new ArrayList<>();
+
+    @Before
+    public void init() {
+        tessdata = InstalledTessdata.path();
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+        for (TesseractEnginePool.Lease lease : leases) {
+            lease.close();
+        }
+    }
+
+    @Test
+    public void testLeasesAddUp() throws Exception {
+        final TesseractEnginePool.Lease first = acquire(3, 1);
+        final TesseractEnginePool.Lease second = acquire(3, 2);
+
+        // The engines of both users can be taken at once, through either lease
+        final List<TesseractEngine> taken = new ArrayList<>();
+        taken.add(take(first));
+        taken.add(take(first));
+        taken.add(take(second));
+
+        final Future<TesseractEngine> waiting = executor.submit(first::take);
+        assertBlocked(waiting);
+        second.give(taken.remove(0));
+        assertNotNull(waiting.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testReleaseShrinksPool() throws Exception {
+        final TesseractEnginePool.Lease first = acquire(3, 1);
+        final TesseractEnginePool.Lease second = acquire(3, 2);
+        final TesseractEngine inUse = take(second);
+
+        // The idle engines of the released user are closed right away, the one in use once it is given back
+        second.close();
+        first.give(inUse);
+        final TesseractEngine engine = take(first);
+        assertBlocked(executor.submit(first::take));
+        first.give(engine);
+    }
+
+    @Test
+    public void testConfigurationsDoNotShare() throws Exception {
+        final TesseractEnginePool.Lease auto = acquire(3, 1);
+        final TesseractEnginePool.Lease line = acquire(7, 1);
+        take(auto);
+        take(line);
+        assertBlocked(executor.submit(auto::take));
+        assertBlocked(executor.submit(line::take));
+    }
+
+    @Test
+    public void testFailedInitializationLeavesNoPool() throws Exception {
+        try {
+            TesseractEnginePool.acquire(tessdata, "not-a-language", 3, Collections.<String, String>emptyMap(), 1);
+            fail("An uninstalled language must not initialize");
+        } catch (TesseractException expected) {
+        }
+        take(acquire(3, 1));
+    }
+
+    private TesseractEnginePool.Lease acquire(int pageSegMode, int engines) throws TesseractException {
+        final TesseractEnginePool.Lease lease = TesseractEnginePool.acquire(tessdata, "eng", pageSegMode,
+                Collections.<String, String>emptyMap(), engines);
+        leases.add(lease);
+        return lease;
+    }
+
+    private TesseractEngine take(TesseractEnginePool.Lease lease) throws Exception {
+        return executor.submit(lease::take).get(10, TimeUnit.SECONDS);
+    }
+
+    private static void assertBlocked(Future<TesseractEngine> take) throws Exception {
+        try {
+            take.get(200, TimeUnit.MILLISECONDS);
+            fail("No engine should have been free");
+        } catch (TimeoutException expected) {
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ocr;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.sourceforge.tess4j.TesseractException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class TesseractEngineTest {
+
+    private TesseractEngine engine;
+
+    @Before
+    public void init() throws TesseractException {
+        engine = new TesseractEngine(InstalledTessdata.path(), "eng", 3, Collections.<String, String>emptyMap());
+    }
+
+    @After
+    public void shutdown() {
+        if (engine != null) {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testBlankPageHasNoLines() throws TesseractException {
+        final RecognizedText page = engine.recognize(OcrImage.of(image(null)), null, -1, null, true);
+        assertEquals("", page.getText().trim());
+        assertTrue(page.getChildren().isEmpty());
+    }
+
+    @Test
+    public void testLinesHoldTheirWords() throws TesseractException {
+        final RecognizedText page = engine.recognize(OcrImage.of(image("HELLO WORLD")), null, -1, null, true);
+        assertEquals(1, page.getChildren().size());
+        final RecognizedText line = page.getChildren().get(0);
+        assertEquals(2, line.getChildren().size());
+        assertEquals("HELLO", line.getChildren().get(0).getText());
+        assertEquals("WORLD", line.getChildren().get(1).getText());
+    }
+
+    // White image with the text in black, or blank when there is none
+    private static BufferedImage image(String text) {
+        final BufferedImage image = new BufferedImage(600, 120, BufferedImage.TYPE_BYTE_GRAY);
+        final Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        if (text != null) {
+            graphics.setColor(Color.BLACK);
+            graphics.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 48));
+            graphics.drawString(text, 20, 80);
+        }
+        graphics.dispose();
+        return image;
+    }
+}
@@ -17,12 +17,11 @@
 
 package org.apache.nifi.processors.ocr;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -30,34 +29,44 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
-
-import javax.imageio.ImageIO;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.ReadsAttribute;
+import org.apache.nifi.annotation.behavior.ReadsAttributes;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.ValidationContext;
 import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.Validator;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.apache.nifi.processor.io.StreamCallback;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.json.JSONException;
 
-import net.sourceforge.tess4j.ITesseract;
-import net.sourceforge.tess4j.Tesseract;
 import net.sourceforge.tess4j.TesseractException;
 
 @Tags({"ocr", "tesseract", "image", "text"})
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@ReadsAttributes({@ReadsAttribute(attribute="<Regions Attribute>", description="JSON array of objects with 'x', 'y', 'width' " +
+        "and 'height' keys, and optionally 'name', 'psm' and 'whitelist' keys, describing the regions that will be recognized")})
+@WritesAttribute(attribute = "ocr.page.count", description = "Number of pages that were read")
 @CapabilityDescription("Extracts text from images using Optical Character Recognition (OCR). The images are pulled from the incoming" +
         " Flowfile's content. Supported image types are TIFF, JPEG, GIF, PNG, BMP, and PDF. Any Flowfile that doesn't contain" +
         " a supported image type in its content body will be routed to the 'unsupported image format' relationship and no OCR will be performed." +
@@ -73,46 +82,18 @@ import net.sourceforge.tess4j.TesseractException;
         " TesseractOCRProcessor only supports installations of Tesseract version 3.0 and greater.")
 public class TesseractOCRProcessor extends AbstractProcessor {
 
-    public static Set<String> SUPPORTED_LANGUAGES;
-    private static final String TESS_LANG_EXTENSION = ".traineddata";
-    //private static List<AllowableValue> PAGE_SEGMENTATION_MODES;        //NOTE: changed from List<AllowableValue> to Set<Strin> to work with NiFi 0.6.1
-    private static Set<String> PAGE_SEGMENTATION_MODES;
-    private volatile ITesseract tesseract;
+    // Recognizes the pages with engines shared with every processor configured the same way
+    private volatile OcrPipeline pipeline;
+    private volatile boolean allPages;
+    private volatile boolean firstPass;
+    // Null when results are not cached, the key prefix stands for every setting that changes the result
+    private volatile OcrResultCache cache;
+    private volatile String cacheKeyPrefix;
+    // Built for the languages in the configured Tessdata directory whenever it changes
+    private volatile List<PropertyDescriptor> supportedDescriptors;
     private static final  List<PropertyDescriptor> descriptors;
     private static final Set<Relationship> relationships;
 
-    static {
-        SUPPORTED_LANGUAGES = new HashSet<>();
-        SUPPORTED_LANGUAGES.add("eng"); //Since this is the default value we need to ensure it is present in the allowableValues.
-
-        //NOTE: this works with the latest version of NiFi but changed to work with older NiFi 0.6.1
-//        PAGE_SEGMENTATION_MODES = new ArrayList<AllowableValue>();
-//        PAGE_SEGMENTATION_MODES.add(new AllowableValue("0","0 = Orientation and script detection (OSD) only"));
-//        PAGE_SEGMENTATION_MODES.add(new AllowableValue("1","1 = Automatic page segmentation with OSD"));
-//        PAGE_SEGMENTATION_MODES.add(new AllowableValue("2","2 = Automatic page segmentation, but no OSD, or OCR"));
-//        PAGE_SEGMENTATION_MODES.add(new AllowableValue("3","3 = Fully automatic page segmentation, but no OSD"));
-//        PAGE_SEGMENTATION_MODES.add(new AllowableValue("4","4 = Assume a single column of text of variable sizes"));
-//        PAGE_SEGMENTATION_MODES.add(new AllowableValue("5","5 = Assume a single uniform block of vertically aligned text"));
-//        PAGE_SEGMENTATION_MODES.add(new AllowableValue("6","6 = Assume a single uniform block of text"));
-//        PAGE_SEGMENTATION_MODES.add(new AllowableValue("7","7 = Treat the image as a single text line"));
-//        PAGE_SEGMENTATION_MODES.add(new AllowableValue("8","8 = Treat the image as a single word"));
-//        PAGE_SEGMENTATION_MODES.add(new AllowableValue("9","9 = Treat the image as a single word in a circle"));
-//        PAGE_SEGMENTATION_MODES.add(new AllowableValue("10","10 = Treat the image as a single character"));
-
-        PAGE_SEGMENTATION_MODES = new HashSet<>();
-        PAGE_SEGMENTATION_MODES.add("0 = Orientation and script detection (OSD) only");
-        PAGE_SEGMENTATION_MODES.add("1 = Automatic page segmentation with OSD");
-        PAGE_SEGMENTATION_MODES.add("2 = Automatic page segmentation, but no OSD, or OCR");
-        PAGE_SEGMENTATION_MODES.add("3 = Fully automatic page segmentation, but no OSD");
-        PAGE_SEGMENTATION_MODES.add("4 = Assume a single column of text of variable sizes");
-        PAGE_SEGMENTATION_MODES.add("5 = Assume a single uniform block of vertically aligned text");
-        PAGE_SEGMENTATION_MODES.add("6 = Assume a single uniform block of text");
-        PAGE_SEGMENTATION_MODES.add("7 = Treat the image as a single text line");
-        PAGE_SEGMENTATION_MODES.add("8 = Treat the image as a single word");
-        PAGE_SEGMENTATION_MODES.add("9 = Treat the image as a single word in a circle");
-        PAGE_SEGMENTATION_MODES.add("10 = Treat the image as a single character");
-    }
-
     public static final PropertyDescriptor TESS_DATA_PATH = new PropertyDescriptor
             .Builder().name("Tessdata Directory")
             .description("Directory on the local NiFi instance where the Tesseract languages and configurations are installed.")
@@ -137,14 +118,9 @@ public class TesseractOCRProcessor extends AbstractProcessor {
             }
 
             String reason = null;
-            try {
-                //There must be lanauges present to ensure the Tessdata directory is valid.
-                File[] languages = getTesseractLanguages(value);
-                if (languages == null || languages.length == 0) {
-                    reason =  "No valid languages found in directory. Languages end with '" + TESS_LANG_EXTENSION + "'";
-                }
-            } catch (final Exception e) {
-                reason = "Value is not a valid directory name";
+            //There must be lanauges present to ensure the Tessdata directory is valid.
+            if (TessdataLanguages.of(value).isEmpty()) {
+                reason =  "No valid languages found in directory. Languages end with '" + TessdataLanguages.EXTENSION + "'";
             }
 
             return new ValidationResult.Builder().subject(subject).input(value).explanation(reason).valid(reason == null).build();
@@ -155,19 +131,18 @@ public class TesseractOCRProcessor extends AbstractProcessor {
             .Builder().name("Tesseract Language")
             .description("Language that Tesseract will use to perform OCR on image coming in the incoming FlowFile's content")
             .required(true)
-            //.defaultValue(SUPPORTED_LANGUAGES.iterator().next())
             .defaultValue("eng")
-            .allowableValues(SUPPORTED_LANGUAGES)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
     public static final PropertyDescriptor TESSERACT_PAGE_SEG_MODE = new PropertyDescriptor
             .Builder().name("Tesseract Page Segmentation Mode")
-            .description("Set Tesseract to only run a subset of layout analysis and assume a certain form of image.")
+            .description("Set Tesseract to only run a subset of layout analysis and assume a certain form of image. Every pooled" +
+                    " engine is initialized with this mode, and it applies to every region of interest that does not set its own" +
+                    " 'psm'. Modes 0 and 2 only analyze the layout and recognize no text.")
             .required(true)
-            //.defaultValue(PAGE_SEGMENTATION_MODES.get(3).getValue()) //Removed to work with NiFi 0.6.1
-            .defaultValue("3 = Fully automatic page segmentation, but no OSD")
-            .allowableValues(PAGE_SEGMENTATION_MODES)
+            .defaultValue(TesseractEngine.DEFAULT_PAGE_SEGMENTATION_MODE)
+            .allowableValues(TesseractEngine.PAGE_SEGMENTATION_MODES)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
@@ -180,6 +155,131 @@ public class TesseractOCRProcessor extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final String FIRST_PAGE = "First Page";
+    public static final String ALL_PAGES = "All Pages";
+
+    public static final PropertyDescriptor PAGE_MODE = new PropertyDescriptor
+            .Builder().name("Page Mode")
+            .description("Pages of the incoming document that are read. With 'First Page' only the first page of a multi-page TIFF" +
+                    " is read and PDFs are not supported. With 'All Pages' every page of multi-page TIFFs and PDFs is read, the pages" +
+                    " are recognized in parallel and their text is written in page order, separated by form feeds, as soon as it is" +
+                    " available. PDFs require Ghostscript to be installed.")
+            .required(true)
+            .allowableValues(FIRST_PAGE, ALL_PAGES)
+            .defaultValue(FIRST_PAGE)
+            .build();
+
+    public static final PropertyDescriptor PAGE_THREADS = new PropertyDescriptor
+            .Builder().name("Page Threads")
+            .description("Number of pages, or regions of pages, recognized at the same time, shared by all concurrent tasks." +
+                    " Processors with the same Tessdata directory, language, page segmentation mode and configuration values share" +
+                    " their Tesseract instances, as many as the most threads any of them uses.")
+            .required(true)
+            .defaultValue("4")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor REGIONS_ATTRIBUTE = new PropertyDescriptor
+            .Builder().name("Regions Attribute")
+            .description("Name of the FlowFile attribute holding a JSON array of regions to recognize instead of the whole page. Each" +
+                    " element must be an object with 'x', 'y', 'width' and 'height' keys and may have a 'name', a 'psm' page segmentation" +
+                    " mode number and a 'whitelist' of the only characters to recognize, which otherwise default to the configured ones." +
+                    " The regions apply to every page, are clipped to the page bounds and are recognized in parallel from one decoded image.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final String OUTPUT_TEXT = "Text";
+    public static final String OUTPUT_JSON = "JSON";
+
+    public static final PropertyDescriptor OUTPUT_FORMAT = new PropertyDescriptor
+            .Builder().name("Output Format")
+            .description("Format of the recognized text. 'Text' writes the text of every region in order, with form feeds between pages." +
+                    " 'JSON' writes an array with an object per page whose 'regions' hold the text, confidence and bounds of every region" +
+                    " together with its 'lines' and their 'words', each with their own text, confidence and bounds in page pixels.")
+            .required(true)
+            .allowableValues(OUTPUT_TEXT, OUTPUT_JSON)
+            .defaultValue(OUTPUT_TEXT)
+            .build();
+
+    public static final PropertyDescriptor BINARIZE = new PropertyDescriptor
+            .Builder().name("Binarize")
+            .description("Whether pages are turned into black and white before they are recognized, with a threshold that adapts to" +
+                    " the brightness around every pixel. Evens out shadows and uneven lighting in photos of documents.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor DESKEW = new PropertyDescriptor
+            .Builder().name("Deskew")
+            .description("Whether pages are rotated so their lines of text are level before they are recognized. Skews of up to" +
+                    " 10 degrees are corrected. Region coordinates and the bounds in the JSON output remain those of the original page.")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor TARGET_DPI = new PropertyDescriptor
+            .Builder().name("Target DPI")
+            .description("Resolution, in dots per inch, pages are rescaled to before they are recognized. Tesseract works best at" +
+                    " around 300 DPI, larger pages only take longer. Pages are not rescaled when this is not set or when their" +
+                    " resolution is neither recorded in the image nor set in 'Assumed DPI'. PDF pages are rendered at 300 DPI.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor ASSUMED_DPI = new PropertyDescriptor
+            .Builder().name("Assumed DPI")
+            .description("Resolution, in dots per inch, of images that do not record their own, such as most photos.")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor FIRST_PASS_SCALE = new PropertyDescriptor
+            .Builder().name("First Pass Scale")
+            .description("Percentage of its size every page is scaled down to for a quick first pass. The first pass result of a page," +
+                    " or of a region, is kept when Tesseract's mean word confidence reaches 'First Pass Confidence', otherwise the page" +
+                    " is recognized again at full resolution. Clean pages are mostly recognized in the first pass alone. There is no" +
+                    " first pass when this is not set.")
+            .required(false)
+            .addValidator(StandardValidators.createLongValidator(1, 99, true))
+            .build();
+
+    public static final PropertyDescriptor FIRST_PASS_CONFIDENCE = new PropertyDescriptor
+            .Builder().name("First Pass Confidence")
+            .description("Mean word confidence, from 0 to 100, a first pass result must reach to be kept.")
+            .required(true)
+            .defaultValue("85")
+            .addValidator(StandardValidators.createLongValidator(0, 100, true))
+            .build();
+
+    public static final PropertyDescriptor RESULT_CACHE_SIZE = new PropertyDescriptor
+            .Builder().name("Result Cache Size")
+            .description("Memory used to cache OCR results, so documents that are seen again, such as retries, are not recognized" +
+                    " again. Results are keyed by the hash of the FlowFile content, its regions and every setting of this processor" +
+                    " that changes them. Results larger than a quarter of the cache are not held in memory. '0 B' disables the memory cache.")
+            .required(true)
+            .defaultValue("0 B")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RESULT_CACHE_DIRECTORY = new PropertyDescriptor
+            .Builder().name("Result Cache Directory")
+            .description("Directory on the local NiFi instance OCR results are also cached in, one file per result, which survives" +
+                    " restarts and may be shared by processors with the same settings. Results are not cached on disk when this is not set.")
+            .required(false)
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .build();
+
+    public static final PropertyDescriptor RESULT_CACHE_DIRECTORY_SIZE = new PropertyDescriptor
+            .Builder().name("Result Cache Directory Max Size")
+            .description("Size the 'Result Cache Directory' may grow to before the least recently used results are deleted.")
+            .required(true)
+            .defaultValue("1 GB")
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .build();
+
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description("successfully completed OCR on image")
@@ -206,6 +306,19 @@ public class TesseractOCRProcessor extends AbstractProcessor {
         _descriptors.add(TESSERACT_LANGUAGE);
         _descriptors.add(TESSERACT_PAGE_SEG_MODE);
         _descriptors.add(TESSERACT_CONFIGS);
+        _descriptors.add(PAGE_MODE);
+        _descriptors.add(PAGE_THREADS);
+        _descriptors.add(REGIONS_ATTRIBUTE);
+        _descriptors.add(OUTPUT_FORMAT);
+        _descriptors.add(BINARIZE);
+        _descriptors.add(DESKEW);
+        _descriptors.add(TARGET_DPI);
+        _descriptors.add(ASSUMED_DPI);
+        _descriptors.add(FIRST_PASS_SCALE);
+        _descriptors.add(FIRST_PASS_CONFIDENCE);
+        _descriptors.add(RESULT_CACHE_SIZE);
+        _descriptors.add(RESULT_CACHE_DIRECTORY);
+        _descriptors.add(RESULT_CACHE_DIRECTORY_SIZE);
         descriptors = Collections.unmodifiableList(_descriptors);
 
         final Set<Relationship> _relationships = new HashSet<>();
@@ -224,109 +337,309 @@ public class TesseractOCRProcessor extends AbstractProcessor {
 
     @Override
     public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        if (supportedDescriptors == null) {
+            supportedDescriptors = buildDescriptors(TESS_DATA_PATH.getDefaultValue());
+        }
+        return supportedDescriptors;
+    }
+
+    @Override
+    public void onPropertyModified(PropertyDescriptor descriptor, String oldValue, String newValue) {
+        super.onPropertyModified(descriptor, oldValue, newValue);
+
+        if (descriptor.equals(TESS_DATA_PATH)) {
+            getLogger().debug("Tesseract Install path was changed. Building list of supported languages");
+            supportedDescriptors = buildDescriptors(newValue == null ? TESS_DATA_PATH.getDefaultValue() : newValue);
+        }
+    }
+
+    // The language list only offers the languages installed in the Tessdata directory
+    private List<PropertyDescriptor> buildDescriptors(final String tessDataPath) {
+        final Set<String> languages = new TreeSet<>(TessdataLanguages.of(tessDataPath));
+        if (languages.isEmpty()) {
+            getLogger().debug("No languages found in user specified Tessdata directory: '" + tessDataPath + "'");
+        }
+        //Since this is the default value we need to ensure it is present in the allowableValues.
+        languages.add("eng");
 
         List<PropertyDescriptor> descriptorsNew = new ArrayList<>();
 
         descriptorsNew.add(TESS_DATA_PATH);
         descriptorsNew.add(TESSERACT_PAGE_SEG_MODE);
         descriptorsNew.add(TESSERACT_CONFIGS);
+        descriptorsNew.add(PAGE_MODE);
+        descriptorsNew.add(PAGE_THREADS);
+        descriptorsNew.add(REGIONS_ATTRIBUTE);
+        descriptorsNew.add(OUTPUT_FORMAT);
+        descriptorsNew.add(BINARIZE);
+        descriptorsNew.add(DESKEW);
+        descriptorsNew.add(TARGET_DPI);
+        descriptorsNew.add(ASSUMED_DPI);
+        descriptorsNew.add(FIRST_PASS_SCALE);
+        descriptorsNew.add(FIRST_PASS_CONFIDENCE);
+        descriptorsNew.add(RESULT_CACHE_SIZE);
+        descriptorsNew.add(RESULT_CACHE_DIRECTORY);
+        descriptorsNew.add(RESULT_CACHE_DIRECTORY_SIZE);
         descriptorsNew.add(new PropertyDescriptor.Builder()
                 .fromPropertyDescriptor(TESSERACT_LANGUAGE)
-                .allowableValues(SUPPORTED_LANGUAGES)
+                .allowableValues(languages)
                 .build());
 
-        return descriptorsNew;
+        return Collections.unmodifiableList(descriptorsNew);
     }
 
-    @Override
-    public void onPropertyModified(PropertyDescriptor descriptor, String oldValue, String newValue) {
-        super.onPropertyModified(descriptor, oldValue, newValue);
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        final String datapath = context.getProperty(TESS_DATA_PATH).evaluateAttributeExpressions().getValue();
+        final String language = context.getProperty(TESSERACT_LANGUAGE).getValue();
+        final Map<String, String> configs = buildTesseractConfigs(context.getProperty(TESSERACT_CONFIGS).getValue());
+        for (Map.Entry<String, String> entry : configs.entrySet()) {
+            getLogger().debug("Tesseract Config Key : '" + entry.getKey()
+                    + "' Tesseract Config Value : '" + entry.getValue() + "'");
+        }
 
-        if (descriptor.equals(TESS_DATA_PATH)) {
-            getLogger().debug("Tesseract Install path was changed. Building list of supported languages");
-            SUPPORTED_LANGUAGES.clear();
-            SUPPORTED_LANGUAGES.add("eng");
-            //File will always exist since the Validator will take care of that.
-            File[] files = getTesseractLanguages(newValue);
-
-            //Guard against creating an empty list of allowable values in case the user points to an invalid directory
-            if (files != null && files.length > 0) {
-                for (int i = 0; i < files.length; i++) {
-                    if (getLogger().isDebugEnabled()) {
-                        getLogger().debug("Found Tesseract supported language: " + files[i].getName());
-                    }
-                    SUPPORTED_LANGUAGES.add(StringUtils.split(files[i].getName(), ".")[0]);
-                }
-            } else {
-                getLogger().debug("No languages found in user specified Tessdata directory: '" + newValue + "'");
+        final int pageSegMode = TesseractEngine.pageSegModeOf(context.getProperty(TESSERACT_PAGE_SEG_MODE).getValue());
+        final int threads = context.getProperty(PAGE_THREADS).asInteger();
+        final TesseractEnginePool.Lease engines;
+        try {
+            engines = TesseractEnginePool.acquire(datapath, language, pageSegMode, configs, threads);
+        } catch (TesseractException te) {
+            throw new ProcessException(te.getMessage(), te);
+        }
+
+        final boolean binarize = context.getProperty(BINARIZE).asBoolean();
+        final boolean deskew = context.getProperty(DESKEW).asBoolean();
+        final int targetDpi = context.getProperty(TARGET_DPI).isSet() ? context.getProperty(TARGET_DPI).asInteger() : 0;
+        final int assumedDpi = context.getProperty(ASSUMED_DPI).isSet() ? context.getProperty(ASSUMED_DPI).asInteger() : 0;
+        BlockingQueue<OcrPreprocessor> preprocessors = null;
+        if (binarize || deskew || targetDpi > 0) {
+            // Pages are decoded and cleaned up on the onTrigger threads
+            preprocessors = new ArrayBlockingQueue<>(context.getMaxConcurrentTasks());
+            for (int i = 0; i < context.getMaxConcurrentTasks(); i++) {
+                preprocessors.add(new OcrPreprocessor(binarize, deskew, targetDpi, assumedDpi));
             }
+        }
 
+        firstPass = context.getProperty(FIRST_PASS_SCALE).isSet();
+        final double firstPassScale = firstPass ? context.getProperty(FIRST_PASS_SCALE).asInteger() / 100.0 : 0;
+        final int firstPassConfidence = context.getProperty(FIRST_PASS_CONFIDENCE).asInteger();
+
+        final long cacheSize = context.getProperty(RESULT_CACHE_SIZE).asDataSize(DataUnit.B).longValue();
+        final File cacheDirectory = context.getProperty(RESULT_CACHE_DIRECTORY).isSet()
+                ? new File(context.getProperty(RESULT_CACHE_DIRECTORY).getValue()) : null;
+        if (cacheSize > 0 || cacheDirectory != null) {
+            cache = new OcrResultCache(cacheSize, cacheDirectory,
+                    context.getProperty(RESULT_CACHE_DIRECTORY_SIZE).asDataSize(DataUnit.B).longValue());
+            cacheKeyPrefix = OcrResultCache.sha256Hex(datapath, language, String.valueOf(pageSegMode), new TreeMap<>(configs).toString(),
+                    context.getProperty(PAGE_MODE).getValue(), context.getProperty(REGIONS_ATTRIBUTE).getValue(),
+                    context.getProperty(OUTPUT_FORMAT).getValue(), String.valueOf(binarize), String.valueOf(deskew),
+                    String.valueOf(targetDpi), String.valueOf(assumedDpi), String.valueOf(firstPassScale),
+                    String.valueOf(firstPassConfidence));
+        } else {
+            cache = null;
         }
-    }
 
-    @OnScheduled
-    public void onScheduled(final ProcessContext context) {
-        //Setup the Tesseract instance once the processor is scheuled
-        tesseract = new Tesseract();
-        tesseract.setLanguage(context.getProperty(TESSERACT_LANGUAGE).getValue());
-        //tesseract.setPageSegMode((context.getProperty(TESSERACT_PAGE_SEG_MODE).asInteger()));
-        tesseract.setPageSegMode(3);
-        //tesseract.setPageSegMode(7); this works for the powermeter but not cat in the hat
+        allPages = ALL_PAGES.equals(context.getProperty(PAGE_MODE).getValue());
+        pipeline = new OcrPipeline(engines, threads, preprocessors, firstPassScale, firstPassConfidence,
+                "TesseractOCRProcessor-page-" + getIdentifier(), getLogger());
     }
 
-
+    @OnStopped
+    public void onStopped() {
+        if (pipeline != null) {
+            pipeline.close();
+            pipeline = null;
+        }
+        cache = null;
+    }
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-        final FlowFile flowFile = session.get();
+        FlowFile flowFile = session.get();
         if ( flowFile == null ) {
             return;
         }
 
         //Transfer the original
         session.transfer(session.clone(flowFile), REL_ORIGINAL);
-        final AtomicBoolean errors = new AtomicBoolean(false);
 
-        FlowFile ff = session.write(flowFile, new StreamCallback() {
-            @Override
-            public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
-                tesseract.setDatapath(context.getProperty(TESS_DATA_PATH).evaluateAttributeExpressions(flowFile).getValue());
-
-                //Builds the list of Tesseract configs.
-                Map<String, String> configs = buildTesseractConfigs(context.getProperty(TESSERACT_CONFIGS).getValue());
-                for (Map.Entry<String, String> entry : configs.entrySet()) {
-                    getLogger().debug("Tesseract Config Key : '" + entry.getKey()
-                            + "' Tesseract Config Value : '" + entry.getValue() + "'");
-                    tesseract.setTessVariable(entry.getKey(), entry.getValue());
+        final List<OcrRegion> regions;
+        try {
+            regions = getRegions(context, flowFile);
+        } catch (ProcessException | JSONException ex) {
+            getLogger().error("Unable to determine the regions to recognize in {} due to {}", new Object[]{flowFile, ex});
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+            return;
+        }
+        final boolean json = OUTPUT_JSON.equals(context.getProperty(OUTPUT_FORMAT).getValue());
+
+        String cacheKey = null;
+        if (cache != null) {
+            try {
+                cacheKey = cacheKey(context, session, flowFile);
+                final OcrResultCache.Result cached = cache.get(cacheKey);
+                if (cached != null) {
+                    session.adjustCounter("Cache Hits", 1, false);
+                    flowFile = session.write(flowFile, new OutputStreamCallback() {
+                        @Override
+                        public void process(OutputStream outputStream) throws IOException {
+                            outputStream.write(cached.getContent());
+                        }
+                    });
+                    flowFile = session.putAttribute(flowFile, "ocr.page.count", String.valueOf(cached.getPageCount()));
+                    session.transfer(flowFile, REL_SUCCESS);
+                    return;
                 }
+                session.adjustCounter("Cache Misses", 1, false);
+            } catch (IOException | ProcessException ex) {
+                // The document is still recognized, only without the cache
+                getLogger().warn("Unable to look up the OCR result of {} in the cache due to {}", new Object[]{flowFile, ex});
+            }
+        }
 
-                try {
-                    BufferedImage imBuff = ImageIO.read(inputStream);
-                    outputStream.write(tesseract.doOCR(imBuff).getBytes());
-                } catch (TesseractException te) {
-                    getLogger().error(te.getMessage());
-                    if (te.getCause().getMessage().equals("image == null!")) {
-                        session.transfer(flowFile, REL_UNSUPPORTED_IMAGE_FORMAT);
-                    } else {
-                        session.transfer(session.penalize(flowFile), REL_FAILURE);
-                    }
-                    errors.set(true);
+        if (allPages) {
+            recognizeAllPages(session, flowFile, regions, json, cacheKey);
+            return;
+        }
+
+        final AtomicReference<OcrImage> image = new AtomicReference<>();
+        try {
+            session.read(flowFile, new InputStreamCallback() {
+                @Override
+                public void process(InputStream inputStream) throws IOException {
+                    image.set(pipeline.readFirstPage(inputStream));
+                }
+            });
+        } catch (ProcessException ex) {
+            getLogger().error("Unable to read the image in {} due to {}", new Object[]{flowFile, ex});
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+            return;
+        }
+        if (image.get() == null) {
+            getLogger().error("Unsupported image format for {}", new Object[]{flowFile});
+            session.transfer(flowFile, REL_UNSUPPORTED_IMAGE_FORMAT);
+            return;
+        }
 
-                } catch (Exception ex) {
-                    getLogger().error(ex.getMessage());
-                    session.transfer(flowFile, REL_FAILURE);
-                    errors.set(true);
+        final AtomicReference<byte[]> result = new AtomicReference<>();
+        try {
+            flowFile = session.write(flowFile, new OutputStreamCallback() {
+                @Override
+                public void process(OutputStream outputStream) throws IOException {
+                    result.set(writePages(session, 1, index -> image.get(), regions, json, outputStream));
+                }
+            });
+        } catch (Exception ex) {
+            getLogger().error("Unable to perform OCR on {} due to {}", new Object[]{flowFile, ex});
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+            return;
+        }
+        flowFile = session.putAttribute(flowFile, "ocr.page.count", "1");
+        session.transfer(flowFile, REL_SUCCESS);
+        cacheResult(cacheKey, result.get(), 1, flowFile);
+    }
+
+    /**
+     * @return the key of the FlowFile's result, from the hash of its content, its regions and the processor's settings
+     */
+    private String cacheKey(final ProcessContext context, final ProcessSession session, final FlowFile flowFile) {
+        final MessageDigest digest = OcrResultCache.sha256();
+        session.read(flowFile, new InputStreamCallback() {
+            @Override
+            public void process(InputStream inputStream) throws IOException {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
                 }
             }
         });
+        final String regions = context.getProperty(REGIONS_ATTRIBUTE).isSet()
+                ? flowFile.getAttribute(context.getProperty(REGIONS_ATTRIBUTE).getValue()) : null;
+        return OcrResultCache.sha256Hex(cacheKeyPrefix, regions, OcrResultCache.toHex(digest.digest()));
+    }
+
+    /**
+     * Writes the pages and counts how many were settled by the first pass
+     *
+     * @return a copy of what was written when results are cached and it is small enough to be, otherwise null
+     */
+    private byte[] writePages(final ProcessSession session, final int pageCount, final OcrPipeline.PageReader reader,
+                              final List<OcrRegion> regions, final boolean json, final OutputStream outputStream) throws IOException {
+        final OcrResultCache.Capture capture = cache == null ? null : new OcrResultCache.Capture(outputStream);
+        final OcrPipeline.Passes passes = pipeline.writePages(pageCount, reader, regions, json, capture == null ? outputStream : capture);
+        if (firstPass) {
+            session.adjustCounter("First Pass Accepted", passes.getFirstPass(), false);
+            session.adjustCounter("Full Resolution Passes", passes.getFullResolution(), false);
+        }
+        return capture == null ? null : capture.getContent();
+    }
 
-        if (!errors.get()) {
-            session.transfer(ff, REL_SUCCESS);
+    private void cacheResult(final String cacheKey, final byte[] content, final int pageCount, final FlowFile flowFile) {
+        if (cacheKey == null || content == null) {
+            return;
         }
+        try {
+            cache.put(cacheKey, new OcrResultCache.Result(content, pageCount));
+        } catch (IOException ioe) {
+            getLogger().warn("Unable to cache the OCR result of {} due to {}", new Object[]{flowFile, ioe});
+        }
+    }
 
+    /**
+     * @return the regions in the FlowFile's regions attribute, null to recognize whole pages
+     */
+    private List<OcrRegion> getRegions(final ProcessContext context, final FlowFile flowFile) {
+        if (!context.getProperty(REGIONS_ATTRIBUTE).isSet()) {
+            return null;
+        }
+        final String attributeName = context.getProperty(REGIONS_ATTRIBUTE).getValue();
+        final String json = flowFile.getAttribute(attributeName);
+        if (json == null) {
+            throw new ProcessException("FlowFile does not have the regions attribute '" + attributeName + "'");
+        }
+        return OcrRegion.parse(json);
     }
 
+    /**
+     * Recognizes every page of the document, in parallel on the page threads.
+     */
+    private void recognizeAllPages(final ProcessSession session, FlowFile flowFile, final List<OcrRegion> regions, final boolean json,
+                                   final String cacheKey) {
+        File document = null;
+        try {
+            // Random access is needed to read the pages of a TIFF and Ghostscript only renders files
+            document = File.createTempFile("ocr-", ".document");
+            session.exportTo(flowFile, document.toPath(), false);
+
+            try (final DocumentPages pages = DocumentPages.open(document)) {
+                if (pages == null) {
+                    getLogger().error("Unsupported image format for {}", new Object[]{flowFile});
+                    session.transfer(flowFile, REL_UNSUPPORTED_IMAGE_FORMAT);
+                    return;
+                }
 
+                final AtomicReference<byte[]> result = new AtomicReference<>();
+                flowFile = session.write(flowFile, new OutputStreamCallback() {
+                    @Override
+                    public void process(OutputStream outputStream) throws IOException {
+                        result.set(writePages(session, pages.getPageCount(), index -> pipeline.preparePage(pages, index), regions,
+                                json, outputStream));
+                    }
+                });
+                flowFile = session.putAttribute(flowFile, "ocr.page.count", String.valueOf(pages.getPageCount()));
+                session.transfer(flowFile, REL_SUCCESS);
+                cacheResult(cacheKey, result.get(), pages.getPageCount(), flowFile);
+            }
+        } catch (Exception ex) {
+            getLogger().error("Unable to perform OCR on {} due to {}", new Object[]{flowFile, ex});
+            session.transfer(session.penalize(flowFile), REL_FAILURE);
+        } finally {
+            if (document != null && !document.delete()) {
+                document.deleteOnExit();
+            }
+        }
+    }
 
     /**
      * Build the key/value pairs of Tesseract configuration values that will be passed to Tesseract.
@@ -350,26 +663,4 @@ public class TesseractOCRProcessor extends AbstractProcessor {
         }
         return configs;
     }
-
-    /**
-     * Traverses the TessData directory and locates all of the installed languages so they may be
-     * presented to the user as a list of allowableValues.
-     *
-     * @param tessDataPath
-     *  PropertyDescriptor String value described the path of the TessData directory.
-     *
-     * @return
-     *  Array of File references to the Tesseract language files.
-     */
-    public static File[] getTesseractLanguages(String tessDataPath) {
-        //File will always exist since the Validator will take care of that.
-        File installFile = new File(tessDataPath);
-        File[] files = installFile.listFiles(new FileFilter() {
-            @Override
-            public boolean accept(File pathname) {
-                return pathname.getName().endsWith(TESS_LANG_EXTENSION);
-            }
-        });
-        return files;
-    }
 }
\ No newline at end of file
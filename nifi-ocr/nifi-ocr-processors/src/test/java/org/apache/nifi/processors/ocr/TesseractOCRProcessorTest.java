@@ -0,0 +1,173 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.nifi.processors.ocr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Locale;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.sourceforge.tess4j.TesseractException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class TesseractOCRProcessorTest {
+
+    private static final String QUICK_BROWN_FOX = "src/test/resources/images/QuickBrownFox.jpg";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestRunner testRunner;
+
+    @Before
+    public void init() {
+        testRunner = TestRunners.newTestRunner(TesseractOCRProcessor.class);
+    }
+
+    @Test
+    public void testTessdataDirectoryNeedsLanguages() throws IOException {
+        testRunner.setProperty(TesseractOCRProcessor.TESS_DATA_PATH, folder.newFolder().getAbsolutePath());
+        testRunner.assertNotValid();
+
+        testRunner.setProperty(TesseractOCRProcessor.TESS_DATA_PATH, new File("src/test/resources/tessdata").getAbsolutePath());
+        testRunner.setProperty(TesseractOCRProcessor.TESSERACT_LANGUAGE, "man");
+        testRunner.assertValid();
+    }
+
+    @Test
+    public void testLanguagesComeFromTessdataDirectory() {
+        testRunner.setProperty(TesseractOCRProcessor.TESS_DATA_PATH, new File("src/test/resources/tessdata").getAbsolutePath());
+        testRunner.setProperty(TesseractOCRProcessor.TESSERACT_LANGUAGE, "fra");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testPropertyValidation() {
+        testRunner.setProperty(TesseractOCRProcessor.TESS_DATA_PATH, new File("src/test/resources/tessdata").getAbsolutePath());
+        testRunner.setProperty(TesseractOCRProcessor.TESSERACT_LANGUAGE, "man");
+        testRunner.setProperty(TesseractOCRProcessor.TESSERACT_PAGE_SEG_MODE, "7 = Treat the image as a single text line");
+        testRunner.setProperty(TesseractOCRProcessor.PAGE_MODE, TesseractOCRProcessor.ALL_PAGES);
+        testRunner.setProperty(TesseractOCRProcessor.OUTPUT_FORMAT, TesseractOCRProcessor.OUTPUT_JSON);
+        testRunner.setProperty(TesseractOCRProcessor.BINARIZE, "true");
+        testRunner.setProperty(TesseractOCRProcessor.TARGET_DPI, "300");
+        testRunner.setProperty(TesseractOCRProcessor.RESULT_CACHE_SIZE, "10 MB");
+        testRunner.assertValid();
+
+        testRunner.setProperty(TesseractOCRProcessor.TESSERACT_PAGE_SEG_MODE, "13");
+        testRunner.assertNotValid();
+        testRunner.setProperty(TesseractOCRProcessor.TESSERACT_PAGE_SEG_MODE, TesseractEngine.DEFAULT_PAGE_SEGMENTATION_MODE);
+        testRunner.setProperty(TesseractOCRProcessor.PAGE_THREADS, "0");
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testRecognizeImage() throws IOException {
+        configure();
+        testRunner.enqueue(Paths.get(QUICK_BROWN_FOX));
+        testRunner.run();
+
+        testRunner.assertTransferCount(TesseractOCRProcessor.REL_ORIGINAL, 1);
+        testRunner.assertTransferCount(TesseractOCRProcessor.REL_SUCCESS, 1);
+        final MockFlowFile result = testRunner.getFlowFilesForRelationship(TesseractOCRProcessor.REL_SUCCESS).get(0);
+        result.assertAttributeEquals("ocr.page.count", "1");
+        final String text = new String(result.toByteArray(), StandardCharsets.UTF_8).toLowerCase(Locale.ROOT);
+        assertTrue(text, text.contains("quick") && text.contains("fox"));
+    }
+
+    @Test
+    public void testRegionsAsJson() throws IOException {
+        configure();
+        testRunner.setProperty(TesseractOCRProcessor.REGIONS_ATTRIBUTE, "regions");
+        testRunner.setProperty(TesseractOCRProcessor.OUTPUT_FORMAT, TesseractOCRProcessor.OUTPUT_JSON);
+        testRunner.enqueue(Paths.get(QUICK_BROWN_FOX), Collections.singletonMap("regions",
+                "[{\"name\": \"page\", \"x\": 0, \"y\": 0, \"width\": 100000, \"height\": 100000}]"));
+        testRunner.run();
+
+        testRunner.assertTransferCount(TesseractOCRProcessor.REL_SUCCESS, 1);
+        final JSONArray pages = new JSONArray(new String(
+                testRunner.getFlowFilesForRelationship(TesseractOCRProcessor.REL_SUCCESS).get(0).toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(1, pages.length());
+        final JSONObject region = pages.getJSONObject(0).getJSONArray("regions").getJSONObject(0);
+        assertEquals("page", region.getString("name"));
+        assertTrue(region.getJSONArray("lines").length() > 0);
+    }
+
+    @Test
+    public void testMissingRegionsAttribute() throws IOException {
+        configure();
+        testRunner.setProperty(TesseractOCRProcessor.REGIONS_ATTRIBUTE, "regions");
+        testRunner.enqueue(Paths.get(QUICK_BROWN_FOX));
+        testRunner.run();
+
+        testRunner.assertTransferCount(TesseractOCRProcessor.REL_ORIGINAL, 1);
+        testRunner.assertTransferCount(TesseractOCRProcessor.REL_FAILURE, 1);
+    }
+
+    @Test
+    public void testUnsupportedImageFormat() throws IOException {
+        configure();
+        testRunner.enqueue(Paths.get("src/test/resources/images/invalidInput.json"));
+        testRunner.run();
+
+        testRunner.assertTransferCount(TesseractOCRProcessor.REL_UNSUPPORTED_IMAGE_FORMAT, 1);
+    }
+
+    @Test
+    public void testResultCache() throws IOException {
+        configure();
+        testRunner.setProperty(TesseractOCRProcessor.RESULT_CACHE_SIZE, "10 MB");
+        testRunner.enqueue(Paths.get(QUICK_BROWN_FOX));
+        testRunner.enqueue(Paths.get(QUICK_BROWN_FOX));
+        testRunner.run(2);
+
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Cache Misses"));
+        assertEquals(Long.valueOf(1), testRunner.getCounterValue("Cache Hits"));
+        testRunner.assertTransferCount(TesseractOCRProcessor.REL_SUCCESS, 2);
+        final byte[] recognized = testRunner.getFlowFilesForRelationship(TesseractOCRProcessor.REL_SUCCESS).get(0).toByteArray();
+        testRunner.getFlowFilesForRelationship(TesseractOCRProcessor.REL_SUCCESS).get(1).assertContentEquals(recognized);
+    }
+
+    // Points the processor at the Tessdata directory given with -Dtessdata.path, skipping the test without one
+    private void configure() {
+        final String tessdata = System.getProperty("tessdata.path");
+        Assume.assumeTrue("tessdata.path is not set to a Tessdata directory with eng.traineddata",
+                tessdata != null && new File(tessdata, "eng.traineddata").isFile());
+        try {
+            new TesseractEngine(tessdata, "eng", 3, Collections.<String, String>emptyMap()).close();
+        } catch (LinkageError | TesseractException e) {
+            Assume.assumeNoException("Tesseract can not be loaded", e);
+        }
+        testRunner.setProperty(TesseractOCRProcessor.TESS_DATA_PATH, tessdata);
+        testRunner.setProperty(TesseractOCRProcessor.TESSERACT_LANGUAGE, "eng");
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.video.BackgroundSubtractorMOG2;
+import org.opencv.video.Video;
+
+/**
+ * Background model of a single video stream. Frames are shrunk to small grayscale thumbnails and compared against
+ * the model, the change score of a frame is the fraction of thumbnail pixels that are considered foreground.
+ *
+ * Two models are supported. The running average keeps an exponentially weighted average of past frames and treats
+ * pixels differing from it by more than the pixel threshold as foreground. MOG2 models every pixel as a mixture of
+ * gaussians, which copes better with repetitive background motion such as trees or water, at a higher cost.
+ *
+ * Instances hold native buffers and are not thread safe, callers must synchronize on the model while using it.
+ */
+public class BackgroundModel {
+
+    public enum Type {
+        RUNNING_AVERAGE,
+        MOG2
+    }
+
+    private final Type type;
+    private final int thumbnailWidth;
+    private final double pixelThreshold;
+    private final double learningRate;
+
+    private final Mat thumbnail = new Mat();
+    private final Mat accumulator = new Mat();
+    private final Mat background = new Mat();
+    private final Mat diff = new Mat();
+    private final Mat foreground = new Mat();
+    private BackgroundSubtractorMOG2 mog2;
+
+    private int sourceWidth = 0;
+    private long frames = 0;
+    private boolean released = false;
+
+    /**
+     * @param type
+     *  Background model to use
+     * @param thumbnailWidth
+     *  Width, in pixels, frames are shrunk to before being compared
+     * @param pixelThreshold
+     *  Minimum gray level difference, 0 to 255, for a pixel to be foreground with the running average model
+     * @param learningRate
+     *  Weight, 0 to 1, of each new frame in the background model
+     */
+    public BackgroundModel(Type type, int thumbnailWidth, double pixelThreshold, double learningRate) {
+        this.type = type;
+        this.thumbnailWidth = thumbnailWidth;
+        this.pixelThreshold = pixelThreshold;
+        this.learningRate = learningRate;
+        if (type == Type.MOG2) {
+            mog2 = Video.createBackgroundSubtractorMOG2(500, 16, false);
+        }
+    }
+
+    /**
+     * Frames of a stream rarely change size, so once the first frame has been seen the JPEG decoder can be asked to
+     * produce a reduced grayscale image directly, which skips most of the decoding work for large frames.
+     *
+     * @return flags to pass to {@link Imgcodecs#imdecode(Mat, int)} for the next frame of this stream
+     */
+    public int getDecodeFlags() {
+        final int reduction = sourceWidth / Math.max(1, thumbnailWidth);
+        if (reduction >= 8) {
+            return Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8;
+        } else if (reduction >= 4) {
+            return Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4;
+        } else if (reduction >= 2) {
+            return Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2;
+        }
+        return Imgcodecs.IMREAD_GRAYSCALE;
+    }
+
+    /**
+     * Scores the frame against the background and then updates the background with it.
+     *
+     * @param frame
+     *  Grayscale frame decoded with {@link #getDecodeFlags()}
+     * @param decodeFlags
+     *  Flags the frame was decoded with
+     *
+     * @return
+     *  Fraction of the frame, 0 to 1, that differs from the background. The first frame of a stream scores 1
+     */
+    public double apply(Mat frame, int decodeFlags) {
+        if (released) {
+            throw new IllegalStateException("Background model has been released");
+        }
+        sourceWidth = frame.cols() * getReduction(decodeFlags);
+
+        final int width = Math.min(thumbnailWidth, frame.cols());
+        final int height = Math.max(1, (int) Math.round(frame.rows() * (width / (double) frame.cols())));
+        Imgproc.resize(frame, thumbnail, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+        Imgproc.GaussianBlur(thumbnail, thumbnail, new Size(3, 3), 0);
+
+        final boolean sizeChanged = frames > 0 && (accumulator.cols() != width || accumulator.rows() != height);
+        if (type == Type.MOG2) {
+            if (sizeChanged) {
+                mog2 = Video.createBackgroundSubtractorMOG2(500, 16, false);
+                frames = 0;
+            }
+            mog2.apply(thumbnail, foreground, learningRate);
+            // MOG2 keeps its own state, the accumulator only remembers the thumbnail size
+            accumulator.create(height, width, CvType.CV_8UC1);
+        } else {
+            if (frames == 0 || sizeChanged) {
+                thumbnail.convertTo(accumulator, CvType.CV_32F);
+                frames = 1;
+                return 1.0;
+            }
+            accumulator.convertTo(background, CvType.CV_8U);
+            Core.absdiff(thumbnail, background, diff);
+            Imgproc.threshold(diff, foreground, pixelThreshold, 255, Imgproc.THRESH_BINARY);
+            Imgproc.accumulateWeighted(thumbnail, accumulator, learningRate);
+        }
+
+        return frames++ == 0 ? 1.0 : Core.countNonZero(foreground) / (double) (width * height);
+    }
+
+    /**
+     * Releases the native buffers held by this model. Any later call to {@link #apply(Mat, int)} fails.
+     */
+    public void release() {
+        released = true;
+        thumbnail.release();
+        accumulator.release();
+        background.release();
+        diff.release();
+        foreground.release();
+        mog2 = null;
+    }
+
+    public boolean isReleased() {
+        return released;
+    }
+
+    private static int getReduction(int decodeFlags) {
+        if (decodeFlags == Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8) {
+            return 8;
+        } else if (decodeFlags == Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4) {
+            return 4;
+        } else if (decodeFlags == Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2) {
+            return 2;
+        }
+        return 1;
+    }
+}
@@ -24,64 +24,120 @@ import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.opencv.core.*;
 import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Tags({"opencv", "crop", "image"})
-@CapabilityDescription("Crops an image to the desired dimensions")
-@ReadsAttributes({@ReadsAttribute(attribute="", description="")})
+@CapabilityDescription("Crops one or more regions out of an image. The regions are either read from a JSON array in the " +
+        "FlowFile attribute named by the 'Regions Attribute' property, such as the one written by FaceDetectionProcessor, or " +
+        "from the single rectangle described by the X Point, Y Point, Crop Width and Crop Height properties. The image is " +
+        "decoded once regardless of how many regions are cropped and the crops are encoded in parallel.")
+@ReadsAttributes({@ReadsAttribute(attribute="<Regions Attribute>", description="JSON array of objects with 'x', 'y', 'width' " +
+        "and 'height' keys describing the regions that will be cropped")})
 @WritesAttributes(
         {
-                @WritesAttribute(attribute="image.width", description = "Width of the original image"),
-                @WritesAttribute(attribute="image.height", description = "Height of the original image")
+                @WritesAttribute(attribute="image.width", description = "Width of the cropped image"),
+                @WritesAttribute(attribute="image.height", description = "Height of the cropped image"),
+                @WritesAttribute(attribute="crop.x", description = "X coordinate in the original image where the crop begins"),
+                @WritesAttribute(attribute="crop.y", description = "Y coordinate in the original image where the crop begins"),
+                @WritesAttribute(attribute="crop.index", description = "Zero based index of the region the crop was made from. " +
+                        "Regions outside of the image are skipped without renumbering the others"),
+                @WritesAttribute(attribute="crop.count", description = "Total number of crops made from the original image"),
+                @WritesAttribute(attribute="mime.type", description = "Mime type of the encoded crop")
         }
 )
 public class CropImageProcessor extends AbstractProcessor {
 
+    public static final String FORMAT_SOURCE = "source";
+    public static final String FORMAT_JPEG = "jpg";
+    public static final String FORMAT_PNG = "png";
+    public static final String FORMAT_BMP = "bmp";
+    public static final String FORMAT_TIFF = "tiff";
+
     public static final PropertyDescriptor X_POINT = new PropertyDescriptor
             .Builder().name("X Point")
-            .description("X coordinate location to begin the image cropping.")
-            .required(true)
+            .description("X coordinate location to begin the image cropping. Ignored when 'Regions Attribute' is set.")
+            .required(false)
             .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
             .expressionLanguageSupported(true)
             .build();
 
     public static final PropertyDescriptor Y_POINT = new PropertyDescriptor
             .Builder().name("Y Point")
-            .description("Y coordinate location to begin the image cropping.")
-            .required(true)
+            .description("Y coordinate location to begin the image cropping. Ignored when 'Regions Attribute' is set.")
+            .required(false)
             .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
             .expressionLanguageSupported(true)
             .build();
 
     public static final PropertyDescriptor CROP_WIDTH = new PropertyDescriptor
             .Builder().name("Crop Width")
-            .description("Number of pixels width to crop the image")
-            .required(true)
+            .description("Number of pixels width to crop the image. Ignored when 'Regions Attribute' is set.")
+            .required(false)
             .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
             .expressionLanguageSupported(true)
             .build();
 
     public static final PropertyDescriptor CROP_HEIGHT = new PropertyDescriptor
             .Builder().name("Crop Height")
-            .description("Number of pixels heigh to crop the image")
-            .required(true)
+            .description("Number of pixels heigh to crop the image. Ignored when 'Regions Attribute' is set.")
+            .required(false)
             .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
             .expressionLanguageSupported(true)
             .build();
 
+    public static final PropertyDescriptor REGIONS_ATTRIBUTE = new PropertyDescriptor
+            .Builder().name("Regions Attribute")
+            .description("Name of the FlowFile attribute holding a JSON array of regions to crop. Each element must be an object " +
+                    "with 'x', 'y', 'width' and 'height' keys. Regions extending past the image bounds are clipped to the image.")
+            .required(false)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor OUTPUT_FORMAT = new PropertyDescriptor
+            .Builder().name("Output Format")
+            .description("Image format the crops are encoded with. '" + FORMAT_SOURCE + "' keeps the format of the original " +
+                    "image and falls back to '" + FORMAT_JPEG + "' when the source format cannot be determined.")
+            .required(true)
+            .allowableValues(FORMAT_SOURCE, FORMAT_JPEG, FORMAT_PNG, FORMAT_BMP, FORMAT_TIFF)
+            .defaultValue(FORMAT_SOURCE)
+            .build();
+
+    public static final PropertyDescriptor ENCODING_THREADS = new PropertyDescriptor
+            .Builder().name("Encoding Threads")
+            .description("Number of threads used to encode the crops of a single image in parallel")
+            .required(true)
+            .defaultValue("4")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
     public static final Relationship REL_ORIGINAL = new Relationship.Builder()
             .name("original")
             .description("original input")
@@ -101,13 +157,18 @@ public class CropImageProcessor extends AbstractProcessor {
 
     private Set<Relationship> relationships;
 
+    private volatile ExecutorService encodingExecutor;
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(REGIONS_ATTRIBUTE);
         descriptors.add(X_POINT);
         descriptors.add(Y_POINT);
         descriptors.add(CROP_WIDTH);
         descriptors.add(CROP_HEIGHT);
+        descriptors.add(OUTPUT_FORMAT);
+        descriptors.add(ENCODING_THREADS);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -130,6 +191,38 @@ public class CropImageProcessor extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        if (!context.getProperty(REGIONS_ATTRIBUTE).isSet()) {
+            for (PropertyDescriptor pd : Arrays.asList(X_POINT, Y_POINT, CROP_WIDTH, CROP_HEIGHT)) {
+                if (!context.getProperty(pd).isSet()) {
+                    results.add(new ValidationResult.Builder().subject(pd.getName()).valid(false)
+                            .explanation("is required when '" + REGIONS_ATTRIBUTE.getName() + "' is not set").build());
+                }
+            }
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        encodingExecutor = Executors.newFixedThreadPool(context.getProperty(ENCODING_THREADS).asInteger());
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (encodingExecutor != null) {
+            encodingExecutor.shutdown();
+            try {
+                encodingExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            encodingExecutor = null;
+        }
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
         final FlowFile original = session.get();
@@ -137,50 +230,290 @@ public class CropImageProcessor extends AbstractProcessor {
             return;
         }
 
+        final List<Rect> regions;
+        try {
+            regions = getRegions(context, original);
+        } catch (Exception ex) {
+            getLogger().error("Unable to determine the regions to crop from {} due to {}", new Object[]{original, ex});
+            session.transfer(original, REL_FAILURE);
+            return;
+        }
+
+        final AtomicReference<Mat> imageReference = new AtomicReference<>();
+        final AtomicReference<String> sourceFormat = new AtomicReference<>();
         session.read(original, new InputStreamCallback() {
             @Override
             public void process(InputStream inputStream) throws IOException {
+                byte[] imgData = IOUtils.toByteArray(inputStream);
+                sourceFormat.set(detectFormat(imgData));
+                imageReference.set(Imgcodecs.imdecode(new MatOfByte(imgData), Imgcodecs.IMREAD_UNCHANGED));
+            }
+        });
+
+        Mat image = imageReference.get();
+        if (image == null || image.empty()) {
+            getLogger().error("Unable to decode image content of {}", new Object[]{original});
+            session.transfer(original, REL_FAILURE);
+            return;
+        }
+
+        String format = context.getProperty(OUTPUT_FORMAT).getValue();
+        if (FORMAT_SOURCE.equals(format)) {
+            format = sourceFormat.get() != null ? sourceFormat.get() : FORMAT_JPEG;
+        }
+
+        try {
+            image = toEncodable(image, format);
+            cropImage(session, original, image, regions, format);
+            session.transfer(original, REL_ORIGINAL);
+        } catch (Exception ex) {
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            getLogger().error("Failed to crop {} due to {}", new Object[]{original, ex});
+            session.transfer(original, REL_FAILURE);
+        } finally {
+            image.release();
+        }
+    }
+
+    final public void cropImage(final ProcessSession session, final FlowFile original, final Mat image,
+                                final List<Rect> regions, final String format) throws InterruptedException, ExecutionException {
 
+        final String extension = "." + format;
+        final Rect bounds = new Rect(0, 0, image.cols(), image.rows());
+
+        // Crops are ROI views into the decoded image so no pixels are copied until the crop is encoded
+        final List<Rect> crops = new ArrayList<>(regions.size());
+        final List<Integer> regionIndexes = new ArrayList<>(regions.size());
+        final List<Future<byte[]>> encoded = new ArrayList<>(regions.size());
+        final AtomicBoolean abandoned = new AtomicBoolean();
+        for (int i = 0; i < regions.size(); i++) {
+            final Rect region = regions.get(i);
+            final Rect crop = intersect(region, bounds);
+            if (crop == null) {
+                getLogger().warn("Region {} lies outside of the {}x{} image {} and will be skipped",
+                        new Object[]{region, image.cols(), image.rows(), original});
+                continue;
+            }
+            crops.add(crop);
+            regionIndexes.add(i);
+            encoded.add(encodingExecutor.submit(() -> abandoned.get() ? null : encode(image, crop, extension)));
+        }
+
+        // Wait for every crop before creating any FlowFiles so a failed encode leaves nothing behind in the session.
+        // All of the crops must finish, even after a failure or an interrupt, since they read from the image the caller
+        // releases. Crops that have not started yet are skipped once the others are abandoned.
+        final List<byte[]> images = new ArrayList<>(encoded.size());
+        ExecutionException failure = null;
+        boolean interrupted = false;
+        for (Future<byte[]> future : encoded) {
+            while (true) {
                 try {
-                    byte[] imgData = IOUtils.toByteArray(inputStream);
-                    Mat image = Imgcodecs.imdecode(new MatOfByte(imgData), Imgcodecs.CV_LOAD_IMAGE_COLOR);
-                    cropImage(session, context, original, image);
-                } catch (Exception ex) {
-                    getLogger().error(ex.getMessage());
-                    ex.printStackTrace();
+                    images.add(future.get());
+                    break;
+                } catch (ExecutionException ee) {
+                    if (failure == null) {
+                        failure = ee;
+                    }
+                    abandoned.set(true);
+                    break;
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                    abandoned.set(true);
                 }
             }
-        });
+        }
+        if (interrupted) {
+            throw new InterruptedException("Interrupted while encoding the crops of " + original);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        // Crops are only transferred once all of them were written so a failure can remove every one of them
+        final List<FlowFile> croppedImages = new ArrayList<>(crops.size());
+        try {
+            for (int i = 0; i < crops.size(); i++) {
+                final Rect crop = crops.get(i);
+                final byte[] bytes = images.get(i);
+
+                croppedImages.add(session.create(original));
+                FlowFile croppedImage = session.write(croppedImages.get(i), new OutputStreamCallback() {
+                    @Override
+                    public void process(OutputStream outputStream) throws IOException {
+                        outputStream.write(bytes);
+                    }
+                });
+                croppedImages.set(i, croppedImage);
 
-        session.transfer(original, REL_ORIGINAL);
+                Map<String, String> atts = new HashMap<>();
+                atts.put("image.width", String.valueOf(crop.width));
+                atts.put("image.height", String.valueOf(crop.height));
+                atts.put("crop.x", String.valueOf(crop.x));
+                atts.put("crop.y", String.valueOf(crop.y));
+                atts.put("crop.index", String.valueOf(regionIndexes.get(i)));
+                atts.put("crop.count", String.valueOf(crops.size()));
+                atts.put(CoreAttributes.MIME_TYPE.key(), getMimeType(format));
 
+                croppedImages.set(i, session.putAllAttributes(croppedImage, atts));
+            }
+        } catch (RuntimeException ex) {
+            session.remove(croppedImages);
+            throw ex;
+        }
+        session.transfer(croppedImages, REL_CROPPED_IMAGE);
     }
 
-    final public void cropImage(final ProcessSession session, ProcessContext context, FlowFile original, final Mat image) {
+    /**
+     * Converts the decoded image to 8-bit BGR when the output format cannot carry its depth or alpha channel, such as
+     * a 16-bit or transparent PNG cropped to JPEG. PNG and TIFF keep the image as it was decoded.
+     *
+     * @param image
+     *  Image decoded with IMREAD_UNCHANGED. It is released when a converted copy is returned
+     *
+     * @param format
+     *  One of the FORMAT_* constants the crops are encoded with
+     *
+     * @return
+     *  The image itself or its converted copy
+     */
+    static Mat toEncodable(Mat image, String format) {
+        if (FORMAT_PNG.equals(format) || FORMAT_TIFF.equals(format)) {
+            return image;
+        }
 
-        final int x = context.getProperty(X_POINT).evaluateAttributeExpressions(original).asInteger();
-        final int y = context.getProperty(Y_POINT).evaluateAttributeExpressions(original).asInteger();
-        final int width = context.getProperty(CROP_WIDTH).evaluateAttributeExpressions(original).asInteger();
-        final int height = context.getProperty(CROP_HEIGHT).evaluateAttributeExpressions(original).asInteger();
+        Mat result = image;
+        if (image.depth() != CvType.CV_8U) {
+            double scale = 1.0;
+            if (image.depth() == CvType.CV_16U) {
+                scale = 1.0 / 257;
+            } else if (image.depth() == CvType.CV_32F || image.depth() == CvType.CV_64F) {
+                scale = 255.0;
+            }
+            result = new Mat();
+            image.convertTo(result, CvType.CV_8U, scale);
+        }
+        if (result.channels() == 4) {
+            final Mat bgr = new Mat();
+            Imgproc.cvtColor(result, bgr, Imgproc.COLOR_BGRA2BGR);
+            if (result != image) {
+                result.release();
+            }
+            result = bgr;
+        }
+        if (result != image) {
+            image.release();
+        }
+        return result;
+    }
 
-        FlowFile croppedImage = session.write(session.create(original), new OutputStreamCallback() {
-            @Override
-            public void process(OutputStream outputStream) throws IOException {
-                Rect rectCrop = new Rect(x, y, width, height);
-                Mat croppedImage = new Mat(image, rectCrop);
+    private static byte[] encode(Mat image, Rect crop, String extension) {
+        Mat roi = image.submat(crop);
+        MatOfByte updatedImage = new MatOfByte();
+        try {
+            if (!Imgcodecs.imencode(extension, roi, updatedImage)) {
+                throw new ProcessException("OpenCV was unable to encode crop " + crop + " as " + extension);
+            }
+            return updatedImage.toArray();
+        } finally {
+            roi.release();
+            updatedImage.release();
+        }
+    }
 
-                MatOfByte updatedImage = new MatOfByte();
-                Imgcodecs.imencode(".jpg", croppedImage, updatedImage);
-                outputStream.write(updatedImage.toArray());
+    private List<Rect> getRegions(final ProcessContext context, final FlowFile original) {
+        final List<Rect> regions = new ArrayList<>();
+
+        if (context.getProperty(REGIONS_ATTRIBUTE).isSet()) {
+            final String attributeName = context.getProperty(REGIONS_ATTRIBUTE).getValue();
+            final String json = original.getAttribute(attributeName);
+            if (json == null) {
+                throw new ProcessException("FlowFile does not have the regions attribute '" + attributeName + "'");
             }
-        });
 
-        Map<String, String> atts = new HashMap<>();
-        atts.put("image.width", new Integer(width).toString());
-        atts.put("image.height", new Integer(height).toString());
+            regions.addAll(parseRegions(json));
+        } else {
+            final int x = context.getProperty(X_POINT).evaluateAttributeExpressions(original).asInteger();
+            final int y = context.getProperty(Y_POINT).evaluateAttributeExpressions(original).asInteger();
+            final int width = context.getProperty(CROP_WIDTH).evaluateAttributeExpressions(original).asInteger();
+            final int height = context.getProperty(CROP_HEIGHT).evaluateAttributeExpressions(original).asInteger();
+            regions.add(new Rect(x, y, width, height));
+        }
+
+        return regions;
+    }
+
+    /**
+     * Parses the regions attribute, a JSON array of objects with 'x', 'y', 'width' and 'height' keys.
+     *
+     * @param json
+     *  Value of the regions attribute
+     *
+     * @return
+     *  Regions in the order they appear in the array
+     */
+    static List<Rect> parseRegions(String json) {
+        final List<Rect> regions = new ArrayList<>();
+        JSONArray array = new JSONArray(json);
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject region = array.getJSONObject(i);
+            regions.add(new Rect(region.getInt("x"), region.getInt("y"), region.getInt("width"), region.getInt("height")));
+        }
+        return regions;
+    }
+
+    /**
+     * @return
+     *  Part of the region that lies within the bounds or null if they do not overlap
+     */
+    static Rect intersect(Rect region, Rect bounds) {
+        int x1 = Math.max(region.x, bounds.x);
+        int y1 = Math.max(region.y, bounds.y);
+        int x2 = Math.min(region.x + region.width, bounds.x + bounds.width);
+        int y2 = Math.min(region.y + region.height, bounds.y + bounds.height);
+        if (x2 <= x1 || y2 <= y1) {
+            return null;
+        }
+        return new Rect(x1, y1, x2 - x1, y2 - y1);
+    }
 
-        croppedImage = session.putAllAttributes(croppedImage, atts);
+    /**
+     * Determines the format of the encoded image from its leading magic bytes.
+     *
+     * @param data
+     *  Encoded image bytes
+     *
+     * @return
+     *  One of the FORMAT_* constants or null if the format was not recognized
+     */
+    static String detectFormat(byte[] data) {
+        if (data.length >= 8 && (data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G') {
+            return FORMAT_PNG;
+        }
+        if (data.length >= 3 && (data[0] & 0xFF) == 0xFF && (data[1] & 0xFF) == 0xD8 && (data[2] & 0xFF) == 0xFF) {
+            return FORMAT_JPEG;
+        }
+        if (data.length >= 2 && data[0] == 'B' && data[1] == 'M') {
+            return FORMAT_BMP;
+        }
+        if (data.length >= 4 && ((data[0] == 'I' && data[1] == 'I' && data[2] == 42 && data[3] == 0)
+                || (data[0] == 'M' && data[1] == 'M' && data[2] == 0 && data[3] == 42))) {
+            return FORMAT_TIFF;
+        }
+        return null;
+    }
 
-        session.transfer(croppedImage, REL_CROPPED_IMAGE);
+    private static String getMimeType(String format) {
+        switch (format) {
+            case FORMAT_PNG:
+                return "image/png";
+            case FORMAT_BMP:
+                return "image/bmp";
+            case FORMAT_TIFF:
+                return "image/tiff";
+            default:
+                return "image/jpeg";
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,560 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.OutputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+@Tags({"opencv", "video", "frame", "extract", "image"})
+@CapabilityDescription("Extracts frames from the video file in the incoming FlowFile's content, such as an MP4 or AVI file. " +
+        "Frames are sampled every 'Frame Stride' frames and, in scene change mode, a sampled frame is only emitted when it " +
+        "differs from the last emitted frame by more than the 'Scene Change Threshold'. Frames that are skipped are only " +
+        "grabbed from the stream and never converted to images. Decoding runs on a background thread while the frames " +
+        "already decoded are encoded and written, up to 'Frame Queue Size' decoded frames are held in memory at once. " +
+        "When 'Frames Per Batch' is set the frames are committed in batches as they are extracted, so a long video never " +
+        "holds all its frames in one session. " +
+        "This Processor REQUIRES the OpenCV native Java bindings, built with video support, be installed on the NiFi instance")
+@SeeAlso({FaceDetectionProcessor.class, ObjectDetectionProcessor.class})
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@WritesAttributes(
+        {
+                @WritesAttribute(attribute="video.frame.index", description = "Zero based index of the frame within the video"),
+                @WritesAttribute(attribute="video.frame.timestamp.millis", description = "Position of the frame within the video in milliseconds"),
+                @WritesAttribute(attribute="video.frame.scene.score", description = "Change score, between 0 and 1, of the frame against the " +
+                        "previously emitted frame. Only written in scene change mode"),
+                @WritesAttribute(attribute="image.width", description = "Width of the frame"),
+                @WritesAttribute(attribute="image.height", description = "Height of the frame"),
+                @WritesAttribute(attribute="fragment.identifier", description = "UUID of the video FlowFile the frame was extracted from"),
+                @WritesAttribute(attribute="fragment.index", description = "Zero based index of the frame among all frames extracted from the video"),
+                @WritesAttribute(attribute="fragment.count", description = "Number of frames extracted from the video. Written on every " +
+                        "frame when 'Frames Per Batch' is 0 and only on the last frame of the video otherwise"),
+                @WritesAttribute(attribute="mime.type", description = "Mime type of the encoded frame")
+        }
+)
+public class ExtractVideoFrames extends AbstractSessionFactoryProcessor {
+
+    public static final String SAMPLING_STRIDE = "stride";
+    public static final String SAMPLING_SCENE_CHANGE = "scene change";
+
+    public static final String FORMAT_JPEG = "jpg";
+    public static final String FORMAT_PNG = "png";
+
+    private static final int SCENE_THUMBNAIL_WIDTH = 160;
+
+    public static final PropertyDescriptor SAMPLING_MODE = new PropertyDescriptor
+            .Builder().name("Sampling Mode")
+            .description("'" + SAMPLING_STRIDE + "' emits every sampled frame. '" + SAMPLING_SCENE_CHANGE + "' only emits a sampled " +
+                    "frame when it differs from the previously emitted frame by at least the 'Scene Change Threshold'")
+            .required(true)
+            .allowableValues(SAMPLING_STRIDE, SAMPLING_SCENE_CHANGE)
+            .defaultValue(SAMPLING_STRIDE)
+            .build();
+
+    public static final PropertyDescriptor FRAME_STRIDE = new PropertyDescriptor
+            .Builder().name("Frame Stride")
+            .description("Only every Nth frame of the video is sampled. A value of 1 samples every frame, for a 30 fps video " +
+                    "a value of 30 samples one frame per second")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SCENE_CHANGE_THRESHOLD = new PropertyDescriptor
+            .Builder().name("Scene Change Threshold")
+            .description("Minimum change score, between 0 and 1, a sampled frame must have against the previously emitted frame " +
+                    "to be emitted when the sampling mode is '" + SAMPLING_SCENE_CHANGE + "'. The score is the mean absolute " +
+                    "difference of small grayscale thumbnails of the two frames")
+            .required(true)
+            .defaultValue("0.1")
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_FRAMES = new PropertyDescriptor
+            .Builder().name("Max Frames")
+            .description("Maximum number of frames extracted from a single video. 0 means no limit")
+            .required(true)
+            .defaultValue("0")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor FRAME_QUEUE_SIZE = new PropertyDescriptor
+            .Builder().name("Frame Queue Size")
+            .description("Maximum number of decoded frames waiting to be encoded. Bounds the memory used per video")
+            .required(true)
+            .defaultValue("16")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor FRAMES_PER_BATCH = new PropertyDescriptor
+            .Builder().name("Frames Per Batch")
+            .description("Number of extracted frames transferred and committed together while the video is still being decoded. " +
+                    "0 commits every frame at once when the whole video has been decoded. The original video is only routed once " +
+                    "every frame has been extracted, so a video that fails after a batch was committed still goes to 'failure' " +
+                    "while the frames already committed stay. Downstream can tell such a video apart since none of its frames has " +
+                    "'fragment.count'")
+            .required(true)
+            .defaultValue("0")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor IMAGE_FORMAT = new PropertyDescriptor
+            .Builder().name("Image Format")
+            .description("Format the extracted frames are encoded with")
+            .required(true)
+            .allowableValues(FORMAT_JPEG, FORMAT_PNG)
+            .defaultValue(FORMAT_JPEG)
+            .build();
+
+    public static final PropertyDescriptor JPEG_QUALITY = new PropertyDescriptor
+            .Builder().name("JPEG Quality")
+            .description("Quality, from 0 to 100, of the encoded frames when the image format is '" + FORMAT_JPEG + "'")
+            .required(true)
+            .defaultValue("90")
+            .addValidator(StandardValidators.createLongValidator(0, 100, true))
+            .build();
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("frames extracted from the video")
+            .build();
+
+    public static final Relationship REL_ORIGINAL = new Relationship.Builder()
+            .name("original")
+            .description("original video")
+            .build();
+
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("video could not be opened or decoded")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile ExecutorService decoderExecutor;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(SAMPLING_MODE);
+        descriptors.add(FRAME_STRIDE);
+        descriptors.add(SCENE_CHANGE_THRESHOLD);
+        descriptors.add(MAX_FRAMES);
+        descriptors.add(FRAME_QUEUE_SIZE);
+        descriptors.add(FRAMES_PER_BATCH);
+        descriptors.add(IMAGE_FORMAT);
+        descriptors.add(JPEG_QUALITY);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(REL_SUCCESS);
+        relationships.add(REL_ORIGINAL);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+
+        //Load the OpenCV Native Library
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        decoderExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "ExtractVideoFrames-decoder-" + getIdentifier());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (decoderExecutor != null) {
+            decoderExecutor.shutdownNow();
+            decoderExecutor = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSessionFactory sessionFactory) throws ProcessException {
+        // Batches of frames are committed in sessions of their own, the video stays in this one until it is routed
+        final ProcessSession session = sessionFactory.createSession();
+        try {
+            onTrigger(context, session, sessionFactory);
+            session.commit();
+        } catch (final Throwable t) {
+            session.rollback(true);
+            throw t;
+        }
+    }
+
+    private void onTrigger(final ProcessContext context, final ProcessSession session, final ProcessSessionFactory sessionFactory) {
+        final FlowFile original = session.get();
+        if ( original == null ) {
+            return;
+        }
+
+        final boolean sceneChange = SAMPLING_SCENE_CHANGE.equals(context.getProperty(SAMPLING_MODE).getValue());
+        final FrameSampler sampler = new FrameSampler(
+                context.getProperty(FRAME_STRIDE).asInteger(),
+                sceneChange ? context.getProperty(SCENE_CHANGE_THRESHOLD).asDouble() : -1,
+                context.getProperty(MAX_FRAMES).asInteger(),
+                context.getProperty(FRAME_QUEUE_SIZE).asInteger());
+
+        final int batchSize = context.getProperty(FRAMES_PER_BATCH).asInteger();
+        final boolean jpeg = FORMAT_JPEG.equals(context.getProperty(IMAGE_FORMAT).getValue());
+        final String extension = jpeg ? ".jpg" : ".png";
+        final MatOfInt encodeParams = jpeg
+                ? new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, context.getProperty(JPEG_QUALITY).asInteger())
+                : new MatOfInt();
+
+        // VideoCapture can only open files, not streams, so the video is staged on local disk while it is decoded
+        Path video = null;
+        final List<FlowFile> frames = new ArrayList<>();
+        int committed = 0;
+        try {
+            video = Files.createTempFile("nifi-video-" + original.getAttribute(CoreAttributes.UUID.key()), getVideoSuffix(original));
+            session.exportTo(original, video, false);
+
+            final Future<?> decoder = decoderExecutor.submit(sampler.decode(video.toString()));
+            final MatOfByte bytemat = new MatOfByte();
+            // Each frame is only written once the next one arrives, so the last frame of the video can be told apart
+            EncodedFrame pending = null;
+            int fragmentIndex = 0;
+            try {
+                VideoFrame frame;
+                while ((frame = sampler.take()) != null) {
+                    try {
+                        if (!Imgcodecs.imencode(extension, frame.image, bytemat, encodeParams)) {
+                            throw new ProcessException("Unable to encode frame " + frame.index);
+                        }
+                        if (pending != null) {
+                            writeFrame(session, original, pending, fragmentIndex++, jpeg, extension, sceneChange, frames);
+                        }
+                        pending = new EncodedFrame(frame, bytemat.toArray());
+                    } finally {
+                        frame.image.release();
+                    }
+
+                    if (batchSize > 0 && frames.size() >= batchSize) {
+                        committed += commitBatch(session, sessionFactory.createSession(), frames);
+                    }
+                }
+                decoder.get();
+            } finally {
+                sampler.cancel();
+                bytemat.release();
+            }
+
+            if (pending != null) {
+                writeFrame(session, original, pending, fragmentIndex++, jpeg, extension, sceneChange, frames);
+                final int last = frames.size() - 1;
+                frames.set(last, session.putAttribute(frames.get(last), "fragment.count", String.valueOf(fragmentIndex)));
+            }
+
+            final String count = String.valueOf(fragmentIndex);
+            for (FlowFile frame : frames) {
+                if (batchSize == 0) {
+                    frame = session.putAttribute(frame, "fragment.count", count);
+                }
+                session.transfer(frame, REL_SUCCESS);
+            }
+            session.adjustCounter("Frames Extracted", frames.size(), false);
+            session.transfer(original, REL_ORIGINAL);
+        } catch (Exception ex) {
+            session.remove(frames);
+            if (committed > 0) {
+                getLogger().error("Failed to extract frames from {} after {} of its frames were committed due to {}",
+                        new Object[]{original, committed, ex});
+            } else {
+                getLogger().error("Failed to extract frames from {} due to {}", new Object[]{original, ex});
+            }
+            session.transfer(original, REL_FAILURE);
+        } finally {
+            if (video != null) {
+                try {
+                    Files.deleteIfExists(video);
+                } catch (IOException ioe) {
+                    getLogger().warn("Unable to delete temporary video file {}", new Object[]{video});
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves the frames into a session of their own and commits them there, so they are sent on while the video is
+     * still being decoded.
+     *
+     * @return number of frames committed
+     */
+    private int commitBatch(final ProcessSession session, final ProcessSession batch, final List<FlowFile> frames) {
+        session.migrate(batch, frames);
+        try {
+            batch.transfer(frames, REL_SUCCESS);
+            batch.adjustCounter("Frames Extracted", frames.size(), false);
+            batch.commit();
+        } catch (final Throwable t) {
+            // The frames belong to the batch session now, rolling it back drops them
+            batch.rollback();
+            frames.clear();
+            throw t;
+        }
+        final int committed = frames.size();
+        frames.clear();
+        return committed;
+    }
+
+    /**
+     * Writes the frame to a child of the original and adds it to the frames, which always hold the latest version of
+     * every child so they can all be removed should the video fail.
+     */
+    private void writeFrame(final ProcessSession session, final FlowFile original, final EncodedFrame frame, final int fragmentIndex,
+                            final boolean jpeg, final String extension, final boolean sceneChange, final List<FlowFile> frames) {
+        frames.add(session.create(original));
+        final int position = frames.size() - 1;
+        FlowFile ff = session.write(frames.get(position), new OutputStreamCallback() {
+            @Override
+            public void process(OutputStream outputStream) throws IOException {
+                outputStream.write(frame.bytes);
+            }
+        });
+        frames.set(position, ff);
+
+        Map<String, String> atts = new HashMap<>();
+        atts.put("video.frame.index", String.valueOf(frame.index));
+        atts.put("video.frame.timestamp.millis", String.valueOf(Math.round(frame.timestampMillis)));
+        if (sceneChange) {
+            atts.put("video.frame.scene.score", String.valueOf(frame.sceneScore));
+        }
+        atts.put("image.width", String.valueOf(frame.width));
+        atts.put("image.height", String.valueOf(frame.height));
+        atts.put("fragment.identifier", original.getAttribute(CoreAttributes.UUID.key()));
+        atts.put("fragment.index", String.valueOf(fragmentIndex));
+        atts.put(CoreAttributes.MIME_TYPE.key(), jpeg ? "image/jpeg" : "image/png");
+        atts.put(CoreAttributes.FILENAME.key(), original.getAttribute(CoreAttributes.FILENAME.key()) + "." + frame.index + extension);
+        frames.set(position, session.putAllAttributes(ff, atts));
+    }
+
+    private static String getVideoSuffix(FlowFile flowFile) {
+        // Some OpenCV video backends pick the demuxer from the file extension
+        final String filename = flowFile.getAttribute(CoreAttributes.FILENAME.key());
+        if (filename != null) {
+            int dot = filename.lastIndexOf('.');
+            if (dot >= 0 && filename.length() - dot <= 6) {
+                return filename.substring(dot);
+            }
+        }
+        return ".video";
+    }
+
+    /**
+     * Decoded frame waiting to be encoded.
+     */
+    private static class VideoFrame {
+        private final Mat image;
+        private final long index;
+        private final double timestampMillis;
+        private final double sceneScore;
+
+        VideoFrame(Mat image, long index, double timestampMillis, double sceneScore) {
+            this.image = image;
+            this.index = index;
+            this.timestampMillis = timestampMillis;
+            this.sceneScore = sceneScore;
+        }
+    }
+
+    /**
+     * Encoded frame waiting to be written, the decoded image is already released.
+     */
+    private static class EncodedFrame {
+        private final byte[] bytes;
+        private final long index;
+        private final double timestampMillis;
+        private final double sceneScore;
+        private final int width;
+        private final int height;
+
+        EncodedFrame(VideoFrame frame, byte[] bytes) {
+            this.bytes = bytes;
+            this.index = frame.index;
+            this.timestampMillis = frame.timestampMillis;
+            this.sceneScore = frame.sceneScore;
+            this.width = frame.image.cols();
+            this.height = frame.image.rows();
+        }
+    }
+
+    /**
+     * Producer side of the decode/encode pipeline. The decode task reads and samples the video on a background thread
+     * and hands the sampled frames to the processor thread through a bounded queue.
+     */
+    private static class FrameSampler {
+        // Compared by identity, it has no image so no native memory is held for the life of the class
+        private static final VideoFrame END_OF_VIDEO = new VideoFrame(null, -1, 0, 0);
+
+        private final int stride;
+        private final double sceneChangeThreshold;
+        private final int maxFrames;
+        private final BlockingQueue<VideoFrame> queue;
+        private final AtomicBoolean cancelled = new AtomicBoolean(false);
+
+        FrameSampler(int stride, double sceneChangeThreshold, int maxFrames, int queueSize) {
+            this.stride = stride;
+            this.sceneChangeThreshold = sceneChangeThreshold;
+            this.maxFrames = maxFrames;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        Runnable decode(final String videoPath) {
+            return () -> {
+                final VideoCapture capture = new VideoCapture(videoPath);
+                final SceneChangeDetector sceneDetector = sceneChangeThreshold >= 0 ? new SceneChangeDetector(SCENE_THUMBNAIL_WIDTH) : null;
+                try {
+                    if (!capture.isOpened()) {
+                        throw new ProcessException("OpenCV was unable to open the video");
+                    }
+
+                    long index = 0;
+                    int emitted = 0;
+                    while (!cancelled.get() && (maxFrames == 0 || emitted < maxFrames) && capture.grab()) {
+                        if (index % stride == 0) {
+                            final Mat image = new Mat();
+                            if (!capture.retrieve(image) || image.empty()) {
+                                image.release();
+                                throw new ProcessException("Unable to decode frame " + index);
+                            }
+
+                            double score = 1.0;
+                            if (sceneDetector != null) {
+                                score = sceneDetector.score(image);
+                                if (score < sceneChangeThreshold) {
+                                    image.release();
+                                    index++;
+                                    continue;
+                                }
+                                sceneDetector.updateReference();
+                            }
+
+                            if (!put(new VideoFrame(image, index, capture.get(Videoio.CAP_PROP_POS_MSEC), score))) {
+                                image.release();
+                                break;
+                            }
+                            emitted++;
+                        }
+                        index++;
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    capture.release();
+                    if (sceneDetector != null) {
+                        sceneDetector.release();
+                    }
+                    try {
+                        put(END_OF_VIDEO);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+        }
+
+        private boolean put(VideoFrame frame) throws InterruptedException {
+            while (!cancelled.get()) {
+                if (queue.offer(frame, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the next sampled frame or null once the whole video has been decoded
+         */
+        VideoFrame take() throws InterruptedException {
+            VideoFrame frame = queue.take();
+            return frame == END_OF_VIDEO ? null : frame;
+        }
+
+        /**
+         * Stops the decode task and releases any frames that were decoded but never taken.
+         */
+        void cancel() {
+            cancelled.set(true);
+            VideoFrame frame;
+            while ((frame = queue.poll()) != null) {
+                if (frame != END_OF_VIDEO) {
+                    frame.image.release();
+                }
+            }
+        }
+    }
+}
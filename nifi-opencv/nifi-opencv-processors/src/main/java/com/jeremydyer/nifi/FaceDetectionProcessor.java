@@ -18,21 +18,31 @@ package com.jeremydyer.nifi;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
 
 import org.apache.commons.io.IOUtils;
-import org.apache.nifi.annotation.behavior.ReadsAttribute;
-import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
@@ -41,29 +51,40 @@ import org.apache.nifi.processor.ProcessorInitializationContext;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfByte;
+import org.opencv.core.Rect;
 import org.opencv.imgcodecs.Imgcodecs;
 
-@Tags({"opencv, object detection"})
-@CapabilityDescription("Detects objects from the input images based on the configured OpenCV CascadeClassifier loaded." +
+@Tags({"opencv", "face detection", "object detection"})
+@CapabilityDescription("Detects faces, and the eyes within those faces, from the input images using the configured OpenCV " +
+        "CascadeClassifiers. Face detection may be run against a downscaled copy of the image by setting the 'Detection Scale' " +
+        "property, the reported coordinates are always relative to the original image. A FlowFile containing the cropped face " +
+        "is emitted for each face detected and the original FlowFile receives a JSON array describing every detection. " +
         "This Processor REQUIRES the OpenCV native Java bindings be installed on the NiFi instance")
-@SeeAlso({})
-@ReadsAttributes({@ReadsAttribute(attribute="", description="")})
+@SeeAlso({ObjectDetectionProcessor.class, CropImageProcessor.class})
 @WritesAttributes(
         {
                 @WritesAttribute(attribute="object.detection.x", description = "X coordinate where the Object detection begins"),
                 @WritesAttribute(attribute="object.detection.y", description = "Y coordinate where the Object detection begins"),
                 @WritesAttribute(attribute="object.detection.width", description = "Width of the object detected"),
                 @WritesAttribute(attribute="object.detection.height", description = "height of the object detected"),
+                @WritesAttribute(attribute="face.eyes.count", description = "Number of eyes detected within the face"),
                 @WritesAttribute(attribute="image.width", description = "Width of the original image"),
-                @WritesAttribute(attribute="image.height", description = "Height of the original image")
+                @WritesAttribute(attribute="image.height", description = "Height of the original image"),
+                @WritesAttribute(attribute="face.detections", description = "JSON array of every face, and its eyes, detected in the " +
+                        "original image. Written to the original FlowFile")
         }
 )
 public class FaceDetectionProcessor extends AbstractProcessor {
 
+    public static final String FACE_DETECTIONS_ATTRIBUTE = "face.detections";
+
     public static final PropertyDescriptor FACE_CLASSIFIER = new PropertyDescriptor
             .Builder().name("Face classifier")
             .description("File path to the face classifier")
@@ -88,6 +109,33 @@ public class FaceDetectionProcessor extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor DETECT_EYES = new PropertyDescriptor
+            .Builder().name("Detect eyes")
+            .description("Whether eyes should be searched for within each detected face")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .addValidator(StandardValidators.BOOLEAN_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor DETECTION_SCALE = new PropertyDescriptor
+            .Builder().name("Detection Scale")
+            .description("Factor, greater than 0 and at most 1, the image is resized by before faces are searched for. " +
+                    "A value of 0.5 runs detection at half the width and height of the original image which is roughly " +
+                    "4x faster. Detected coordinates are always mapped back to the original image.")
+            .required(true)
+            .defaultValue("1.0")
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MIN_FACE_SIZE = new PropertyDescriptor
+            .Builder().name("Minimum Face Size")
+            .description("Smallest width and height, in pixels of the original image, of a face that will be detected")
+            .required(true)
+            .defaultValue("30")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
     public static final Relationship REL_ORIGINAL = new Relationship.Builder()
             .name("original")
             .description("original input")
@@ -112,12 +160,20 @@ public class FaceDetectionProcessor extends AbstractProcessor {
 
     private Set<Relationship> relationships;
 
+    // CascadeClassifiers are not thread safe so each concurrent task takes a detector of its own from the idle ones,
+    // or creates one when there are none. All of them are back in the queue once the processor has stopped.
+    private final BlockingQueue<FaceDetector> faceDetectors = new LinkedBlockingQueue<>();
+    private volatile Supplier<FaceDetector> faceDetectorFactory;
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
         descriptors.add(FACE_CLASSIFIER);
         descriptors.add(LEFT_EYE_CLASSIFIER);
         descriptors.add(RIGHT_EYE_CLASSIFIER);
+        descriptors.add(DETECT_EYES);
+        descriptors.add(DETECTION_SCALE);
+        descriptors.add(MIN_FACE_SIZE);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -141,6 +197,45 @@ public class FaceDetectionProcessor extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        final String scale = context.getProperty(DETECTION_SCALE).getValue();
+        try {
+            final double value = Double.parseDouble(scale);
+            if (value <= 0 || value > 1) {
+                results.add(new ValidationResult.Builder().subject(DETECTION_SCALE.getName()).input(scale)
+                        .explanation("must be greater than 0 and less than or equal to 1").valid(false).build());
+            }
+        } catch (NumberFormatException nfe) {
+            // Already reported by the property validator
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        final String faceClassifier = context.getProperty(FACE_CLASSIFIER).getValue();
+        final boolean detectEyes = context.getProperty(DETECT_EYES).asBoolean();
+        final String leftEyeClassifier = detectEyes ? context.getProperty(LEFT_EYE_CLASSIFIER).getValue() : null;
+        final String rightEyeClassifier = detectEyes ? context.getProperty(RIGHT_EYE_CLASSIFIER).getValue() : null;
+        final double detectionScale = context.getProperty(DETECTION_SCALE).asDouble();
+        final int minFaceSize = context.getProperty(MIN_FACE_SIZE).asInteger();
+
+        faceDetectorFactory = () ->
+                new FaceDetector(faceClassifier, leftEyeClassifier, rightEyeClassifier, detectionScale, minFaceSize);
+        // Load the cascades once up front so bad classifier paths fail scheduling rather than the first FlowFile
+        faceDetectors.add(faceDetectorFactory.get());
+    }
+
+    @OnStopped
+    public void onStopped() {
+        FaceDetector detector;
+        while ((detector = faceDetectors.poll()) != null) {
+            detector.release();
+        }
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
         final FlowFile original = session.get();
@@ -148,84 +243,119 @@ public class FaceDetectionProcessor extends AbstractProcessor {
             return;
         }
 
-        session.read(original, new InputStreamCallback() {
-            @Override
-            public void process(InputStream inputStream) throws IOException {
-
-                try {
+        final AtomicReference<Mat> imageReference = new AtomicReference<>();
+        try {
+            session.read(original, new InputStreamCallback() {
+                @Override
+                public void process(InputStream inputStream) throws IOException {
                     byte[] imgData = IOUtils.toByteArray(inputStream);
-                    Mat image = Imgcodecs.imdecode(new MatOfByte(imgData), Imgcodecs.CV_LOAD_IMAGE_COLOR);
-                    detectFaces(session, context, original, image);
-                } catch (Exception ex) {
-                    getLogger().error(ex.getMessage());
-                    ex.printStackTrace();
+                    imageReference.set(Imgcodecs.imdecode(new MatOfByte(imgData), Imgcodecs.CV_LOAD_IMAGE_COLOR));
                 }
-            }
-        });
+            });
+        } catch (ProcessException pe) {
+            getLogger().error("Unable to read image from {} due to {}", new Object[]{original, pe});
+            session.transfer(original, REL_FAILURE);
+            return;
+        }
+
+        final Mat image = imageReference.get();
+        if (image == null || image.empty()) {
+            getLogger().error("Unable to decode image content of {}", new Object[]{original});
+            session.transfer(original, REL_FAILURE);
+            return;
+        }
+
+        final List<FlowFile> detections = new ArrayList<>();
+        try {
+            final List<FaceDetector.Face> faces = detectFaces(session, original, image, detections);
+
+            // Only once every face has been written, so a failure part way through emits none of them
+            session.transfer(detections, REL_OBJECT_DETECTED);
+            FlowFile result = session.putAttribute(original, FACE_DETECTIONS_ATTRIBUTE, toJson(faces).toString());
+            session.transfer(result, faces.isEmpty() ? REL_NO_OBJECT_DETECTED : REL_ORIGINAL);
+        } catch (Exception ex) {
+            getLogger().error("Failed to detect faces in {} due to {}", new Object[]{original, ex});
+            session.remove(detections);
+            session.transfer(original, REL_FAILURE);
+        } finally {
+            image.release();
+        }
+    }
+
+    /**
+     * Creates a child of the original with the cropped image of every face detected, adding them to detections
+     * without transferring them.
+     */
+    final public List<FaceDetector.Face> detectFaces(final ProcessSession session, final FlowFile original, final Mat image,
+                                                     final List<FlowFile> detections) {
 
-        session.transfer(original, REL_ORIGINAL);
+        FaceDetector detector = faceDetectors.poll();
+        if (detector == null) {
+            detector = faceDetectorFactory.get();
+        }
+        final List<FaceDetector.Face> faces;
+        try {
+            faces = detector.detect(image);
+        } finally {
+            faceDetectors.offer(detector);
+        }
+
+        for (FaceDetector.Face face : faces) {
+            final Rect rect = face.getBounds();
+            // Tracked before it is written, so it is removed with the others if the write fails
+            FlowFile detection = session.create(original);
+            detections.add(detection);
+            detection = session.write(detection, new OutputStreamCallback() {
+                @Override
+                public void process(OutputStream outputStream) throws IOException {
+                    Mat croppedImage = image.submat(rect);
+                    try {
+                        MatOfByte updatedImage = new MatOfByte();
+                        Imgcodecs.imencode(".jpg", croppedImage, updatedImage);
+                        outputStream.write(updatedImage.toArray());
+                    } finally {
+                        croppedImage.release();
+                    }
+                }
+            });
+
+            Map<String, String> atts = new HashMap<>();
+            atts.put("object.detection.x", String.valueOf(rect.x));
+            atts.put("object.detection.y", String.valueOf(rect.y));
+            atts.put("object.detection.width", String.valueOf(rect.width));
+            atts.put("object.detection.height", String.valueOf(rect.height));
+            atts.put("face.eyes.count", String.valueOf(face.getEyeCount()));
+            atts.put("image.width", String.valueOf(image.cols()));
+            atts.put("image.height", String.valueOf(image.rows()));
 
+            detections.set(detections.size() - 1, session.putAllAttributes(detection, atts));
+        }
+
+        return faces;
     }
 
-    final public void detectFaces(final ProcessSession session, ProcessContext context, FlowFile original, final Mat image) {
-
-//        CascadeClassifier faceDetector = new CascadeClassifier(context.getProperty(FACE_CLASSIFIER).getValue());
-//        CascadeClassifier leftEyeDetector = new CascadeClassifier(context.getProperty(LEFT_EYE_CLASSIFIER).getValue());
-//        CascadeClassifier rightEyeDetector = new CascadeClassifier(context.getProperty(RIGHT_EYE_CLASSIFIER).getValue());
-//
-//        MatOfRect objectDetections = new MatOfRect();
-//        faceDetector.detectMultiScale(image, objectDetections);
-//
-//        for (int i = 0; i < objectDetections.toArray().length; i++) {
-//
-//        }
-//
-//
-//        final AtomicReference<Mat> croppedImageReference = new AtomicReference<>();
-//
-//        final Rect rect = objectDetections.toArray()[i];
-//        FlowFile detection = session.write(session.create(original), new OutputStreamCallback() {
-//            @Override
-//            public void process(OutputStream outputStream) throws IOException {
-//
-//                Mat croppedImage = null;
-//
-//                //Should the image be cropped? If so there is no need to draw bounds because that would be the same as the cropping
-//                if (dd.getBoolean("crop")) {
-//                    Rect rectCrop = new Rect(rect.x, rect.y, rect.width, rect.height);
-//                    croppedImage = new Mat(image, rectCrop);
-//                    MatOfByte updatedImage = new MatOfByte();
-//                    Imgcodecs.imencode(".jpg", croppedImage, updatedImage);
-//                    croppedImageReference.set(croppedImage);
-//                    outputStream.write(updatedImage.toArray());
-//                } else {
-//                    //Should the image have a border drawn around it?
-//                    if (dd.getBoolean("drawBounds")) {
-//                        Mat imageWithBorder = image.clone();
-//                        Imgproc.rectangle(imageWithBorder, new Point(rect.x, rect.y), new Point(rect.x + rect.width, rect.y + rect.height), new Scalar(255, 255, 255));
-//                        MatOfByte updatedImage = new MatOfByte();
-//                        Imgcodecs.imencode(".jpg", imageWithBorder, updatedImage);
-//                        outputStream.write(updatedImage.toArray());
-//                    } else {
-//                        MatOfByte updatedImage = new MatOfByte();
-//                        Imgcodecs.imencode(".jpg", image, updatedImage);
-//                        outputStream.write(updatedImage.toArray());
-//                    }
-//                }
-//
-//            }
-//        });
-//
-//        Map<String, String> atts = new HashMap<>();
-//        atts.put("object.detection.x", new Long(rect.x).toString());
-//        atts.put("object.detection.y", new Long(rect.y).toString());
-//        atts.put("object.detection.width", new Long(rect.width).toString());
-//        atts.put("object.detection.height", new Long(rect.height).toString());
-//        atts.put("image.width", new Double(image.size().width).toString());
-//        atts.put("image.height", new Double(image.size().height).toString());
-//
-//        detection = session.putAllAttributes(detection, atts);
-//        session.transfer(detection, REL_OBJECT_DETECTED);
+    private static JSONArray toJson(List<FaceDetector.Face> faces) {
+        JSONArray detections = new JSONArray();
+        for (FaceDetector.Face face : faces) {
+            JSONObject detection = toJson(face.getBounds());
+            detection.put("name", "face");
+            if (face.getLeftEye() != null) {
+                detection.put("leftEye", toJson(face.getLeftEye()));
+            }
+            if (face.getRightEye() != null) {
+                detection.put("rightEye", toJson(face.getRightEye()));
+            }
+            detections.put(detection);
+        }
+        return detections;
+    }
 
+    private static JSONObject toJson(Rect rect) {
+        JSONObject json = new JSONObject();
+        json.put("x", rect.x);
+        json.put("y", rect.y);
+        json.put("width", rect.width);
+        json.put("height", rect.height);
+        return json;
     }
 }
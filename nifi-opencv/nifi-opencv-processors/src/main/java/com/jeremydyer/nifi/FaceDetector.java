@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+/**
+ * Multi-scale face and eye detection engine. The cascades and the working buffers are loaded once and reused for
+ * every image, so an instance must only ever be used by a single thread at a time.
+ *
+ * Faces are searched for on a downscaled copy of the grayscale image (the detection scale) and the resulting
+ * rectangles are mapped back to the coordinates of the original image. Eyes are then only searched for inside
+ * the upper half of each detected face at full resolution instead of across the whole frame.
+ */
+public class FaceDetector {
+
+    private static final double CASCADE_SCALE_FACTOR = 1.1;
+    private static final int CASCADE_MIN_NEIGHBORS = 3;
+
+    private final CascadeClassifier faceClassifier;
+    private final CascadeClassifier leftEyeClassifier;
+    private final CascadeClassifier rightEyeClassifier;
+
+    private final double detectionScale;
+    private final int minFaceSize;
+
+    // Buffers reused between detect() calls
+    private final Mat gray = new Mat();
+    private final Mat detectionImage = new Mat();
+    private final MatOfRect faceDetections = new MatOfRect();
+    private final MatOfRect eyeDetections = new MatOfRect();
+
+    /**
+     * @param faceClassifierPath
+     *  Path to the face cascade XML file.
+     * @param leftEyeClassifierPath
+     *  Path to the left eye cascade XML file, or null to skip left eye detection.
+     * @param rightEyeClassifierPath
+     *  Path to the right eye cascade XML file, or null to skip right eye detection.
+     * @param detectionScale
+     *  Factor in the range (0, 1] the image is resized by before face detection runs.
+     * @param minFaceSize
+     *  Smallest face, in pixels of the original image, that will be reported.
+     */
+    public FaceDetector(String faceClassifierPath, String leftEyeClassifierPath, String rightEyeClassifierPath,
+                        double detectionScale, int minFaceSize) {
+        this.faceClassifier = loadClassifier(faceClassifierPath);
+        this.leftEyeClassifier = leftEyeClassifierPath != null ? loadClassifier(leftEyeClassifierPath) : null;
+        this.rightEyeClassifier = rightEyeClassifierPath != null ? loadClassifier(rightEyeClassifierPath) : null;
+        this.detectionScale = detectionScale;
+        this.minFaceSize = minFaceSize;
+    }
+
+    private static CascadeClassifier loadClassifier(String path) {
+        CascadeClassifier classifier = new CascadeClassifier(path);
+        if (classifier.empty()) {
+            throw new IllegalArgumentException("Unable to load OpenCV cascade classifier from '" + path + "'");
+        }
+        return classifier;
+    }
+
+    /**
+     * Detects all of the faces, and the eyes within those faces, present in the image.
+     *
+     * @param image
+     *  BGR or grayscale image to search.
+     *
+     * @return
+     *  Detected faces in the coordinates of the input image.
+     */
+    public List<Face> detect(final Mat image) {
+        if (image.channels() == 1) {
+            image.copyTo(gray);
+        } else {
+            Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY);
+        }
+        Imgproc.equalizeHist(gray, gray);
+
+        final Mat searchImage;
+        if (detectionScale < 1.0) {
+            Imgproc.resize(gray, detectionImage, new Size(), detectionScale, detectionScale, Imgproc.INTER_AREA);
+            searchImage = detectionImage;
+        } else {
+            searchImage = gray;
+        }
+
+        int scaledMinFaceSize = Math.max(1, (int) Math.round(minFaceSize * Math.min(detectionScale, 1.0)));
+        faceClassifier.detectMultiScale(searchImage, faceDetections, CASCADE_SCALE_FACTOR, CASCADE_MIN_NEIGHBORS, 0,
+                new Size(scaledMinFaceSize, scaledMinFaceSize), new Size());
+
+        Rect[] scaledFaces = faceDetections.toArray();
+        List<Face> faces = new ArrayList<>(scaledFaces.length);
+        for (Rect scaled : scaledFaces) {
+            Rect face = toOriginalCoordinates(scaled, gray.cols(), gray.rows());
+            if (face.width <= 0 || face.height <= 0) {
+                continue;
+            }
+
+            // Eyes only ever appear in the upper half of the face so there is no reason to search anywhere else.
+            Rect eyeRegion = new Rect(face.x, face.y, face.width, Math.max(1, face.height / 2));
+            Mat faceRoi = gray.submat(eyeRegion);
+            try {
+                Rect leftEye = detectEye(leftEyeClassifier, faceRoi, eyeRegion);
+                Rect rightEye = detectEye(rightEyeClassifier, faceRoi, eyeRegion);
+                faces.add(new Face(face, leftEye, rightEye));
+            } finally {
+                faceRoi.release();
+            }
+        }
+        return faces;
+    }
+
+    /**
+     * Frees the native buffers, the detector can not be used afterwards. The binding has no way to free a
+     * CascadeClassifier other than its finalizer, so the cascades go once the detector is no longer referenced.
+     */
+    public void release() {
+        gray.release();
+        detectionImage.release();
+        faceDetections.release();
+        eyeDetections.release();
+    }
+
+    private Rect detectEye(CascadeClassifier classifier, Mat faceRoi, Rect eyeRegion) {
+        if (classifier == null) {
+            return null;
+        }
+
+        int minEyeSize = Math.max(1, eyeRegion.width / 8);
+        classifier.detectMultiScale(faceRoi, eyeDetections, CASCADE_SCALE_FACTOR, CASCADE_MIN_NEIGHBORS, 0,
+                new Size(minEyeSize, minEyeSize), new Size());
+
+        // Keep the largest candidate, smaller hits inside a face are almost always false positives
+        Rect best = null;
+        for (Rect eye : eyeDetections.toArray()) {
+            if (best == null || eye.area() > best.area()) {
+                best = eye;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        return new Rect(best.x + eyeRegion.x, best.y + eyeRegion.y, best.width, best.height);
+    }
+
+    private Rect toOriginalCoordinates(Rect scaled, int imageWidth, int imageHeight) {
+        if (detectionScale >= 1.0) {
+            return scaled;
+        }
+        int x = (int) Math.floor(scaled.x / detectionScale);
+        int y = (int) Math.floor(scaled.y / detectionScale);
+        int width = (int) Math.ceil(scaled.width / detectionScale);
+        int height = (int) Math.ceil(scaled.height / detectionScale);
+
+        x = Math.min(Math.max(0, x), imageWidth - 1);
+        y = Math.min(Math.max(0, y), imageHeight - 1);
+        width = Math.min(width, imageWidth - x);
+        height = Math.min(height, imageHeight - y);
+        return new Rect(x, y, width, height);
+    }
+
+    /**
+     * Face detected in an image along with the eyes found inside of it. Eyes that were not found are null.
+     */
+    public static class Face {
+        private final Rect bounds;
+        private final Rect leftEye;
+        private final Rect rightEye;
+
+        Face(Rect bounds, Rect leftEye, Rect rightEye) {
+            this.bounds = bounds;
+            this.leftEye = leftEye;
+            this.rightEye = rightEye;
+        }
+
+        public Rect getBounds() {
+            return bounds;
+        }
+
+        public Rect getLeftEye() {
+            return leftEye;
+        }
+
+        public Rect getRightEye() {
+            return rightEye;
+        }
+
+        public int getEyeCount() {
+            return (leftEye != null ? 1 : 0) + (rightEye != null ? 1 : 0);
+        }
+    }
+}
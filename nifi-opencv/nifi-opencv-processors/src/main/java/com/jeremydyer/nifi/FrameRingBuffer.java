@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Bounded, lock-free ring buffer with a single producer and any number of consumers. When the buffer is full the
+ * producer overwrites the oldest element instead of blocking, which is what a live capture source wants: a slow
+ * consumer sees the most recent frames and the frames it missed are counted as dropped.
+ *
+ * Every element handed to {@link #offer(Object)} is given out exactly once, either to a consumer through
+ * {@link #poll()} or to the drop handler when it is overwritten or the buffer is cleared, so elements holding native
+ * memory can safely be released by whoever receives them.
+ *
+ * @param <T> element type
+ */
+public class FrameRingBuffer<T> {
+
+    private final AtomicReferenceArray<T> slots;
+    private final int capacity;
+    private final Consumer<T> dropHandler;
+
+    // Written only by the producer thread
+    private volatile long writeSequence = 0;
+    private final AtomicLong readSequence = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * @param capacity
+     *  Maximum number of elements held before the oldest is overwritten
+     * @param dropHandler
+     *  Receives every element that is overwritten before being consumed
+     */
+    public FrameRingBuffer(int capacity, Consumer<T> dropHandler) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.dropHandler = dropHandler;
+    }
+
+    /**
+     * Adds an element, overwriting the oldest element when the buffer is full. Must only be called from one thread.
+     */
+    public void offer(T element) {
+        final long sequence = writeSequence;
+        final T overwritten = slots.getAndSet((int) (sequence % capacity), element);
+        writeSequence = sequence + 1;
+        if (overwritten != null) {
+            drop(overwritten);
+        }
+    }
+
+    /**
+     * @return the oldest available element or null if the buffer is empty
+     */
+    public T poll() {
+        while (true) {
+            final long read = readSequence.get();
+            final long write = writeSequence;
+            if (read >= write) {
+                return null;
+            }
+
+            // The producer lapped the consumers, skip ahead to the oldest element that can still be in the buffer
+            if (write - read > capacity) {
+                readSequence.compareAndSet(read, write - capacity);
+                continue;
+            }
+
+            if (readSequence.compareAndSet(read, read + 1)) {
+                final T element = slots.getAndSet((int) (read % capacity), null);
+                if (element != null) {
+                    return element;
+                }
+                // Slot was overwritten and already consumed through a later sequence, try the next one
+            }
+        }
+    }
+
+    /**
+     * Removes every element from the buffer, passing each to the drop handler without counting it as dropped.
+     */
+    public void clear() {
+        for (int i = 0; i < capacity; i++) {
+            final T element = slots.getAndSet(i, null);
+            if (element != null && dropHandler != null) {
+                dropHandler.accept(element);
+            }
+        }
+        readSequence.set(writeSequence);
+    }
+
+    /**
+     * @return number of elements dropped since the last call to this method
+     */
+    public long getAndResetDropped() {
+        return dropped.getAndSet(0);
+    }
+
+    private void drop(T element) {
+        dropped.incrementAndGet();
+        if (dropHandler != null) {
+            dropHandler.accept(element);
+        }
+    }
+}
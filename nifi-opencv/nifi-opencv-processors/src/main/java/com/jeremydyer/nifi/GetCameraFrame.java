@@ -16,25 +16,27 @@
  */
 package com.jeremydyer.nifi;
 
-import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import javax.imageio.ImageIO;
-
+import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
@@ -43,23 +45,41 @@ import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
-import org.apache.nifi.stream.io.ByteArrayInputStream;
 import org.opencv.core.Core;
+import org.opencv.core.Mat;
 import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.videoio.VideoCapture;
 import org.opencv.videoio.Videoio;
 
 
-@Tags({ "image" })
-@CapabilityDescription("Extract a frame from the camera")
-@WritesAttributes({ @WritesAttribute(attribute = "", description = "") })
+@Tags({ "image", "camera", "video", "opencv" })
+@CapabilityDescription("Extract frames from the camera. Frames are read continuously on a dedicated capture thread into a " +
+        "bounded ring buffer while the processor is running. Each trigger drains up to 'Max Frames Per Trigger' frames " +
+        "from the buffer, when the buffer fills because frames are not drained fast enough the oldest frames are dropped " +
+        "and counted in the 'Frames Dropped' counter. A camera that can not be opened, or stops delivering frames, is " +
+        "reopened with a growing backoff.")
+@InputRequirement(InputRequirement.Requirement.INPUT_FORBIDDEN)
+@WritesAttributes({
+        @WritesAttribute(attribute = "camera.frame.sequence", description = "Sequence number of the frame since the processor was started"),
+        @WritesAttribute(attribute = "camera.frame.timestamp", description = "Epoch milliseconds at which the frame was captured"),
+        @WritesAttribute(attribute = "image.width", description = "Width of the captured frame"),
+        @WritesAttribute(attribute = "image.height", description = "Height of the captured frame"),
+        @WritesAttribute(attribute = "mime.type", description = "Mime type of the encoded frame")
+})
 public class GetCameraFrame extends AbstractProcessor {
 
+    public static final String FORMAT_PNG = "png";
+    public static final String FORMAT_JPEG = "jpg";
+
+    // How long stopping waits for the capture thread, which may be blocked reading from the camera
+    private static final long CAPTURE_STOP_TIMEOUT_MILLIS = 5000;
+
     public static final PropertyDescriptor CAMERA = new PropertyDescriptor.Builder()
             .name("Camera").description("Camera Device Identifier")
-            .required(true)
-            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR).build();
+            .required(true).defaultValue("0")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR).build();
 
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
@@ -73,19 +93,50 @@ public class GetCameraFrame extends AbstractProcessor {
             .name("Height").description("Height in pixels of capture")
             .required(false).defaultValue("720")
             .addValidator(StandardValidators.INTEGER_VALIDATOR).build();
+    public static final PropertyDescriptor FRAME_BUFFER_SIZE = new PropertyDescriptor.Builder()
+            .name("Frame Buffer Size").description("Maximum number of captured frames held in memory waiting to be " +
+                    "written. When the buffer is full the oldest frame is dropped.")
+            .required(true).defaultValue("30")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+    public static final PropertyDescriptor MAX_FRAMES_PER_TRIGGER = new PropertyDescriptor.Builder()
+            .name("Max Frames Per Trigger").description("Maximum number of buffered frames written each time the processor is triggered")
+            .required(true).defaultValue("10")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR).build();
+    public static final PropertyDescriptor IMAGE_FORMAT = new PropertyDescriptor.Builder()
+            .name("Image Format").description("Format the frames are encoded with")
+            .required(true).allowableValues(FORMAT_PNG, FORMAT_JPEG).defaultValue(FORMAT_PNG).build();
+    public static final PropertyDescriptor JPEG_QUALITY = new PropertyDescriptor.Builder()
+            .name("JPEG Quality").description("Quality, from 0 to 100, of the encoded frames when the image format is '" + FORMAT_JPEG + "'")
+            .required(true).defaultValue("95")
+            .addValidator(StandardValidators.createLongValidator(0, 100, true)).build();
+    public static final PropertyDescriptor PNG_COMPRESSION = new PropertyDescriptor.Builder()
+            .name("PNG Compression Level").description("Compression level, from 0 to 9, of the encoded frames when the image " +
+                    "format is '" + FORMAT_PNG + "'. Lower levels are larger but much faster to encode.")
+            .required(true).defaultValue("1")
+            .addValidator(StandardValidators.createLongValidator(0, 9, true)).build();
 
     private List<PropertyDescriptor> descriptors;
     private Set<Relationship> relationships;
 
-    private VideoCapture camera;
-    private final int CAMERA_ID = 0;
+    private volatile FrameRingBuffer<CapturedFrame> frameBuffer;
+    private volatile CaptureLoop captureLoop;
+    private volatile Thread captureThread;
+
+    private volatile String extension;
+    private volatile String mimeType;
+    private volatile MatOfInt encodeParams;
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
-        //descriptors.add(CAMERA);
+        descriptors.add(CAMERA);
         descriptors.add(FRAME_WIDTH);
         descriptors.add(FRAME_HEIGHT);
+        descriptors.add(FRAME_BUFFER_SIZE);
+        descriptors.add(MAX_FRAMES_PER_TRIGGER);
+        descriptors.add(IMAGE_FORMAT);
+        descriptors.add(JPEG_QUALITY);
+        descriptors.add(PNG_COMPRESSION);
 
         this.descriptors = Collections.unmodifiableList(descriptors);
 
@@ -94,21 +145,6 @@ public class GetCameraFrame extends AbstractProcessor {
         this.relationships = Collections.unmodifiableSet(relationships);
 
         System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
-        camera = new VideoCapture(CAMERA_ID);
-        try {
-            Thread.sleep(2000);             //Give the Camera a few seconds to initialize
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-        camera.open(CAMERA_ID);
-
-        if(!camera.isOpened()){
-            getLogger().error("Camera Error");
-        }
-        else{
-            getLogger().error("Camera OK?");
-        }
-
     }
 
     @Override
@@ -123,43 +159,234 @@ public class GetCameraFrame extends AbstractProcessor {
 
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
-        double width = context.getProperty(FRAME_WIDTH).asDouble()
-                .doubleValue();
+        if (FORMAT_JPEG.equals(context.getProperty(IMAGE_FORMAT).getValue())) {
+            extension = ".jpg";
+            mimeType = "image/jpeg";
+            encodeParams = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, context.getProperty(JPEG_QUALITY).asInteger());
+        } else {
+            extension = ".png";
+            mimeType = "image/png";
+            encodeParams = new MatOfInt(Imgcodecs.IMWRITE_PNG_COMPRESSION, context.getProperty(PNG_COMPRESSION).asInteger());
+        }
 
-        camera.set(Videoio.CV_CAP_PROP_FRAME_WIDTH, width);
-        double height = context.getProperty(FRAME_HEIGHT).asDouble()
-                .doubleValue();
-        camera.set(Videoio.CV_CAP_PROP_FRAME_HEIGHT, height);
+        frameBuffer = new FrameRingBuffer<>(context.getProperty(FRAME_BUFFER_SIZE).asInteger(), CapturedFrame::release);
 
+        // The camera is opened on the capture thread so a slow device never blocks scheduling
+        captureLoop = new CaptureLoop(context.getProperty(CAMERA).asInteger(),
+                context.getProperty(FRAME_WIDTH).asDouble(), context.getProperty(FRAME_HEIGHT).asDouble(),
+                frameBuffer, getLogger());
+        captureThread = new Thread(captureLoop, "GetCameraFrame-" + getIdentifier());
+        captureThread.setDaemon(true);
+        captureThread.start();
+    }
+
+    @OnStopped
+    public void onStopped() throws InterruptedException {
+        if (captureLoop != null) {
+            captureLoop.stop();
+            captureThread.interrupt();
+            // The loop should be gone before the buffer is cleared, or it could offer a frame nothing would release
+            captureThread.join(CAPTURE_STOP_TIMEOUT_MILLIS);
+            if (captureThread.isAlive()) {
+                // Most likely blocked in a native read, releasing the camera from under it is the only way to unblock it
+                getLogger().warn("Capture thread for camera {} did not stop within {} ms, releasing the camera",
+                        new Object[]{captureLoop.cameraId, CAPTURE_STOP_TIMEOUT_MILLIS});
+                captureLoop.releaseCamera();
+                captureThread.join(CAPTURE_STOP_TIMEOUT_MILLIS);
+                if (captureThread.isAlive()) {
+                    getLogger().warn("Capture thread for camera {} is still blocked, it will exit once its read returns",
+                            new Object[]{captureLoop.cameraId});
+                }
+            }
+            captureLoop = null;
+            captureThread = null;
+        }
+        if (frameBuffer != null) {
+            frameBuffer.clear();
+        }
     }
 
     @Override
     public void onTrigger(final ProcessContext context,
             final ProcessSession session) throws ProcessException {
-        MatOfByte image = new MatOfByte();
-        MatOfByte bytemat = new MatOfByte();
-
-        camera.read(image);
-        Imgcodecs.imencode(".png", image, bytemat);
-        byte[] bytes = bytemat.toArray();
+        final FrameRingBuffer<CapturedFrame> buffer = frameBuffer;
+        final int maxFrames = context.getProperty(MAX_FRAMES_PER_TRIGGER).asInteger();
 
-        InputStream in = new ByteArrayInputStream(bytes);
+        final long dropped = buffer.getAndResetDropped();
+        if (dropped > 0) {
+            session.adjustCounter("Frames Dropped", dropped, false);
+        }
 
+        final MatOfByte bytemat = new MatOfByte();
+        int written = 0;
         try {
-            final BufferedImage img = ImageIO.read(in);
-            FlowFile flowFile = session.create();
-            flowFile = session.write(flowFile, new OutputStreamCallback() {
-                @Override
-                public void process(final OutputStream out) throws IOException {
-                    ImageIO.write(img, "PNG", out);
+            CapturedFrame frame;
+            while (written < maxFrames && (frame = buffer.poll()) != null) {
+                try {
+                    if (!Imgcodecs.imencode(extension, frame.image, bytemat, encodeParams)) {
+                        getLogger().warn("Unable to encode camera frame {}", new Object[]{frame.sequence});
+                        continue;
+                    }
+
+                    final byte[] bytes = bytemat.toArray();
+                    FlowFile flowFile = session.create();
+                    flowFile = session.write(flowFile, new OutputStreamCallback() {
+                        @Override
+                        public void process(final OutputStream out) throws IOException {
+                            out.write(bytes);
+                        }
+                    });
+
+                    Map<String, String> atts = new HashMap<>();
+                    atts.put("camera.frame.sequence", String.valueOf(frame.sequence));
+                    atts.put("camera.frame.timestamp", String.valueOf(frame.timestamp));
+                    atts.put("image.width", String.valueOf(frame.image.cols()));
+                    atts.put("image.height", String.valueOf(frame.image.rows()));
+                    atts.put(CoreAttributes.MIME_TYPE.key(), mimeType);
+                    atts.put(CoreAttributes.FILENAME.key(), frame.timestamp + "-" + frame.sequence + extension);
+                    flowFile = session.putAllAttributes(flowFile, atts);
+
+                    session.getProvenanceReporter().create(flowFile);
+                    session.transfer(flowFile, REL_SUCCESS);
+                    written++;
+                } finally {
+                    frame.release();
                 }
-            });
-            session.getProvenanceReporter().create(flowFile);
-            session.transfer(flowFile, REL_SUCCESS);
-        } catch (IOException e) {
+            }
+        } finally {
+            bytemat.release();
+        }
 
+        if (written == 0) {
+            context.yield();
+        } else {
+            session.adjustCounter("Frames Written", written, false);
+        }
+    }
+
+    /**
+     * Frame read from the camera along with when it was read.
+     */
+    private static class CapturedFrame {
+        private final Mat image;
+        private final long sequence;
+        private final long timestamp;
+
+        CapturedFrame(Mat image, long sequence, long timestamp) {
+            this.image = image;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
         }
 
+        void release() {
+            image.release();
+        }
     }
 
-}
\ No newline at end of file
+    /**
+     * Reads frames from the camera as fast as the device delivers them and publishes them to the ring buffer. A camera
+     * that can not be opened, or stops delivering frames, is opened again after a backoff that grows with each failure.
+     */
+    private static class CaptureLoop implements Runnable {
+        private static final long MIN_BACKOFF_MILLIS = 500;
+        private static final long MAX_BACKOFF_MILLIS = 30000;
+        // Consecutive failed reads, 10 ms apart, after which the camera is considered lost
+        private static final int MAX_READ_FAILURES = 100;
+
+        private final int cameraId;
+        private final double width;
+        private final double height;
+        private final FrameRingBuffer<CapturedFrame> buffer;
+        private final ComponentLog logger;
+        private volatile boolean running = true;
+        private volatile VideoCapture camera;
+
+        CaptureLoop(int cameraId, double width, double height, FrameRingBuffer<CapturedFrame> buffer, ComponentLog logger) {
+            this.cameraId = cameraId;
+            this.width = width;
+            this.height = height;
+            this.buffer = buffer;
+            this.logger = logger;
+        }
+
+        void stop() {
+            running = false;
+        }
+
+        /**
+         * Releases the camera being read from another thread, used when the capture thread does not stop on its own.
+         */
+        void releaseCamera() {
+            final VideoCapture current = camera;
+            if (current != null) {
+                current.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            long sequence = 0;
+            long backoff = MIN_BACKOFF_MILLIS;
+            try {
+                while (running) {
+                    final VideoCapture camera = new VideoCapture(cameraId);
+                    this.camera = camera;
+                    try {
+                        if (!camera.isOpened()) {
+                            logger.error("Unable to open camera {}, retrying in {} ms", new Object[]{cameraId, backoff});
+                        } else {
+                            camera.set(Videoio.CV_CAP_PROP_FRAME_WIDTH, width);
+                            camera.set(Videoio.CV_CAP_PROP_FRAME_HEIGHT, height);
+
+                            final long read = capture(camera, sequence);
+                            if (read > 0) {
+                                backoff = MIN_BACKOFF_MILLIS;
+                            }
+                            sequence += read;
+                            if (!running) {
+                                return;
+                            }
+                            logger.error("Camera {} stopped delivering frames after {} failed reads, reopening it in {} ms",
+                                    new Object[]{cameraId, MAX_READ_FAILURES, backoff});
+                        }
+                    } finally {
+                        this.camera = null;
+                        camera.release();
+                    }
+
+                    Thread.sleep(backoff);
+                    backoff = Math.min(2 * backoff, MAX_BACKOFF_MILLIS);
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Reads from an open camera until the loop is stopped or the camera is lost.
+         *
+         * @return number of frames read
+         */
+        private long capture(VideoCapture camera, long sequence) throws InterruptedException {
+            long read = 0;
+            int consecutiveFailures = 0;
+            while (running && consecutiveFailures < MAX_READ_FAILURES) {
+                final Mat image = new Mat();
+                if (camera.read(image) && !image.empty()) {
+                    if (!running) {
+                        // Stopped while reading, the buffer may already have been cleared
+                        image.release();
+                        break;
+                    }
+                    consecutiveFailures = 0;
+                    buffer.offer(new CapturedFrame(image, sequence + read++, System.currentTimeMillis()));
+                } else {
+                    image.release();
+                    consecutiveFailures++;
+                    Thread.sleep(10);
+                }
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.SeeAlso;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessorInitializationContext;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+
+@Tags({"opencv", "motion", "scene", "change", "background", "filter", "image"})
+@CapabilityDescription("Routes image frames to 'motion' only when they differ enough from the recent frames of the same stream, " +
+        "and to 'no motion' otherwise. Placed in front of expensive processors such as ObjectDetectionProcessor it keeps frames " +
+        "of a static scene from being analyzed over and over. A background model is kept for every stream, streams are told apart " +
+        "by the value of the 'Stream Identifier Attribute' and the least recently seen streams are forgotten once there are more " +
+        "than 'Maximum Streams'. Frames are decoded at reduced resolution in grayscale and compared as small thumbnails. " +
+        "This Processor REQUIRES the OpenCV native Java bindings be installed on the NiFi instance")
+@SeeAlso({ObjectDetectionProcessor.class, FaceDetectionProcessor.class, GetCameraFrame.class})
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@WritesAttributes(
+        {
+                @WritesAttribute(attribute="motion.score", description = "Fraction of the frame, between 0 and 1, that differs " +
+                        "from the background of its stream")
+        }
+)
+public class MotionDetectionProcessor extends AbstractProcessor {
+
+    public static final String MODEL_RUNNING_AVERAGE = "running average";
+    public static final String MODEL_MOG2 = "MOG2";
+
+    public static final String MOTION_SCORE_ATTRIBUTE = "motion.score";
+
+    public static final PropertyDescriptor STREAM_ID_ATTRIBUTE = new PropertyDescriptor
+            .Builder().name("Stream Identifier Attribute")
+            .description("Name of the FlowFile attribute identifying the camera or video stream a frame belongs to. Frames without " +
+                    "the attribute all share a single background model")
+            .required(true)
+            .defaultValue("camera.id")
+            .addValidator(StandardValidators.ATTRIBUTE_KEY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BACKGROUND_MODEL = new PropertyDescriptor
+            .Builder().name("Background Model")
+            .description("'" + MODEL_RUNNING_AVERAGE + "' compares frames against an exponentially weighted average of the previous " +
+                    "frames and is the cheapest. '" + MODEL_MOG2 + "' models each pixel as a mixture of gaussians and ignores " +
+                    "repetitive background motion, such as leaves or water, better")
+            .required(true)
+            .allowableValues(MODEL_RUNNING_AVERAGE, MODEL_MOG2)
+            .defaultValue(MODEL_RUNNING_AVERAGE)
+            .build();
+
+    public static final PropertyDescriptor CHANGE_THRESHOLD = new PropertyDescriptor
+            .Builder().name("Change Threshold")
+            .description("Minimum fraction of the frame, between 0 and 1, that must differ from the background for the frame to be " +
+                    "routed to 'motion'")
+            .required(true)
+            .defaultValue("0.01")
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PIXEL_THRESHOLD = new PropertyDescriptor
+            .Builder().name("Pixel Threshold")
+            .description("Minimum gray level difference, from 0 to 255, for a pixel to differ from the background. Only used by the '" +
+                    MODEL_RUNNING_AVERAGE + "' model")
+            .required(true)
+            .defaultValue("25")
+            .addValidator(StandardValidators.createLongValidator(0, 255, true))
+            .build();
+
+    public static final PropertyDescriptor LEARNING_RATE = new PropertyDescriptor
+            .Builder().name("Learning Rate")
+            .description("Weight, between 0 and 1, of every new frame in the background model. Higher values adapt faster to " +
+                    "lighting changes and objects that stop moving")
+            .required(true)
+            .defaultValue("0.05")
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor THUMBNAIL_WIDTH = new PropertyDescriptor
+            .Builder().name("Thumbnail Width")
+            .description("Width, in pixels, frames are shrunk to before being compared. Smaller thumbnails are faster and less " +
+                    "sensitive to noise, larger ones detect smaller moving objects")
+            .required(true)
+            .defaultValue("160")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_STREAMS = new PropertyDescriptor
+            .Builder().name("Maximum Streams")
+            .description("Maximum number of streams a background model is kept for. The least recently seen stream is forgotten " +
+                    "when a new stream appears and the limit has been reached")
+            .required(true)
+            .defaultValue("100")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final Relationship REL_MOTION = new Relationship.Builder()
+            .name("motion")
+            .description("frames that differ from the background of their stream")
+            .build();
+
+    public static final Relationship REL_NO_MOTION = new Relationship.Builder()
+            .name("no motion")
+            .description("frames that do not differ enough from the background of their stream")
+            .build();
+
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("failure during processing")
+            .build();
+
+    private List<PropertyDescriptor> descriptors;
+
+    private Set<Relationship> relationships;
+
+    private volatile Map<String, BackgroundModel> streams;
+
+    @Override
+    protected void init(final ProcessorInitializationContext context) {
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(STREAM_ID_ATTRIBUTE);
+        descriptors.add(BACKGROUND_MODEL);
+        descriptors.add(CHANGE_THRESHOLD);
+        descriptors.add(PIXEL_THRESHOLD);
+        descriptors.add(LEARNING_RATE);
+        descriptors.add(THUMBNAIL_WIDTH);
+        descriptors.add(MAX_STREAMS);
+        this.descriptors = Collections.unmodifiableList(descriptors);
+
+        final Set<Relationship> relationships = new HashSet<Relationship>();
+        relationships.add(REL_MOTION);
+        relationships.add(REL_NO_MOTION);
+        relationships.add(REL_FAILURE);
+        this.relationships = Collections.unmodifiableSet(relationships);
+
+        //Load the OpenCV Native Library
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return this.relationships;
+    }
+
+    @Override
+    public final List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return descriptors;
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        validateFraction(context, CHANGE_THRESHOLD, results);
+        validateFraction(context, LEARNING_RATE, results);
+        return results;
+    }
+
+    private static void validateFraction(final ValidationContext context, final PropertyDescriptor property, final List<ValidationResult> results) {
+        final String value = context.getProperty(property).getValue();
+        try {
+            final double fraction = Double.parseDouble(value);
+            if (fraction < 0 || fraction > 1) {
+                results.add(new ValidationResult.Builder().subject(property.getName()).input(value)
+                        .explanation("must be between 0 and 1").valid(false).build());
+            }
+        } catch (NumberFormatException nfe) {
+            // Already reported by the property validator
+        }
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        streams = newStreamMap(context.getProperty(MAX_STREAMS).asInteger(), MotionDetectionProcessor::release);
+    }
+
+    /**
+     * Creates the synchronized map holding the model of every stream.
+     *
+     * @param maxStreams
+     *  Number of streams kept before the least recently seen one is evicted
+     * @param evicted
+     *  Receives the value of every evicted stream
+     */
+    static <V> Map<String, V> newStreamMap(final int maxStreams, final Consumer<V> evicted) {
+        // Access ordered so the least recently seen stream is the one evicted
+        return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+                if (size() > maxStreams) {
+                    evicted.accept(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        });
+    }
+
+    @OnStopped
+    public void onStopped() {
+        final Map<String, BackgroundModel> streams = this.streams;
+        this.streams = null;
+        if (streams != null) {
+            synchronized (streams) {
+                for (BackgroundModel model : streams.values()) {
+                    release(model);
+                }
+                streams.clear();
+            }
+        }
+    }
+
+    @Override
+    public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
+        final FlowFile original = session.get();
+        if ( original == null ) {
+            return;
+        }
+
+        final String streamId = original.getAttribute(context.getProperty(STREAM_ID_ATTRIBUTE).getValue());
+        final String key = streamId == null ? "" : streamId;
+
+        final AtomicReference<byte[]> imageData = new AtomicReference<>();
+        session.read(original, new InputStreamCallback() {
+            @Override
+            public void process(InputStream inputStream) throws IOException {
+                imageData.set(IOUtils.toByteArray(inputStream));
+            }
+        });
+
+        final double score;
+        try {
+            score = score(context, key, imageData.get());
+        } catch (Exception ex) {
+            getLogger().error("Failed to detect motion in {} due to {}", new Object[]{original, ex});
+            session.transfer(original, REL_FAILURE);
+            return;
+        }
+
+        final boolean motion = score >= context.getProperty(CHANGE_THRESHOLD).asDouble();
+        session.adjustCounter(motion ? "Frames With Motion" : "Frames Without Motion", 1, false);
+        session.transfer(session.putAttribute(original, MOTION_SCORE_ATTRIBUTE, String.valueOf(score)), motion ? REL_MOTION : REL_NO_MOTION);
+    }
+
+    private double score(final ProcessContext context, final String key, final byte[] imageData) {
+        final MatOfByte encoded = new MatOfByte(imageData);
+        try {
+            while (true) {
+                final BackgroundModel model = getModel(context, key);
+                // A model is only ever used by one thread at a time, frames of different streams are scored concurrently
+                synchronized (model) {
+                    if (model.isReleased()) {
+                        // Evicted between the lookup and the lock, a fresh model has to be created
+                        continue;
+                    }
+                    final int decodeFlags = model.getDecodeFlags();
+                    final Mat frame = Imgcodecs.imdecode(encoded, decodeFlags);
+                    try {
+                        if (frame.empty()) {
+                            throw new ProcessException("Unable to decode image content");
+                        }
+                        return model.apply(frame, decodeFlags);
+                    } finally {
+                        frame.release();
+                    }
+                }
+            }
+        } finally {
+            encoded.release();
+        }
+    }
+
+    private BackgroundModel getModel(final ProcessContext context, final String key) {
+        final Map<String, BackgroundModel> streams = this.streams;
+        synchronized (streams) {
+            BackgroundModel model = streams.get(key);
+            if (model == null || model.isReleased()) {
+                model = new BackgroundModel(
+                        MODEL_MOG2.equals(context.getProperty(BACKGROUND_MODEL).getValue())
+                                ? BackgroundModel.Type.MOG2 : BackgroundModel.Type.RUNNING_AVERAGE,
+                        context.getProperty(THUMBNAIL_WIDTH).asInteger(),
+                        context.getProperty(PIXEL_THRESHOLD).asDouble(),
+                        context.getProperty(LEARNING_RATE).asDouble());
+                streams.put(key, model);
+            }
+            return model;
+        }
+    }
+
+    private static void release(final BackgroundModel model) {
+        // Waits for a thread still scoring a frame with the model, that thread never takes the map lock while holding it
+        synchronized (model) {
+            model.release();
+        }
+    }
+}
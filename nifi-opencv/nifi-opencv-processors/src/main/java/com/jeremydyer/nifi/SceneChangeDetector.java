@@ -0,0 +1,111 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Scores how much a frame differs from a reference frame. Both frames are reduced to small grayscale thumbnails
+ * before they are compared so the score is cheap to compute and insensitive to sensor noise. The score is the mean
+ * absolute pixel difference normalized to the range [0, 1].
+ *
+ * Instances keep native buffers between calls and must only be used by one thread at a time.
+ */
+public class SceneChangeDetector {
+
+    private final int thumbnailWidth;
+
+    private final Mat gray = new Mat();
+    private final Mat diff = new Mat();
+    private Mat current = new Mat();
+    private Mat reference = new Mat();
+    private boolean hasReference = false;
+
+    /**
+     * @param thumbnailWidth
+     *  Width, in pixels, frames are shrunk to before being compared. The height keeps the frame's aspect ratio.
+     */
+    public SceneChangeDetector(int thumbnailWidth) {
+        this.thumbnailWidth = thumbnailWidth;
+    }
+
+    /**
+     * Computes the change score of the frame against the reference frame. The frame does not become the new
+     * reference until {@link #updateReference()} is called.
+     *
+     * @param frame
+     *  BGR or grayscale frame
+     *
+     * @return
+     *  Score between 0 (identical) and 1, or 1 when there is no reference frame yet
+     */
+    public double score(Mat frame) {
+        thumbnail(frame, current);
+        if (!hasReference || reference.size().width != current.size().width || reference.size().height != current.size().height) {
+            return 1.0;
+        }
+        Core.absdiff(current, reference, diff);
+        return Core.mean(diff).val[0] / 255.0;
+    }
+
+    /**
+     * Makes the frame last passed to {@link #score(Mat)} the reference that later frames are compared with.
+     */
+    public void updateReference() {
+        Mat previous = reference;
+        reference = current;
+        current = previous;
+        hasReference = true;
+    }
+
+    /**
+     * Shrinks the frame to a blurred grayscale thumbnail.
+     *
+     * @param frame
+     *  BGR or grayscale frame
+     * @param thumbnail
+     *  Destination for the single channel thumbnail
+     */
+    public void thumbnail(Mat frame, Mat thumbnail) {
+        final Mat source;
+        if (frame.channels() == 1) {
+            source = frame;
+        } else {
+            Imgproc.cvtColor(frame, gray, Imgproc.COLOR_BGR2GRAY);
+            source = gray;
+        }
+
+        int width = Math.min(thumbnailWidth, source.cols());
+        int height = Math.max(1, (int) Math.round(source.rows() * (width / (double) source.cols())));
+        Imgproc.resize(source, thumbnail, new Size(width, height), 0, 0, Imgproc.INTER_AREA);
+        Imgproc.GaussianBlur(thumbnail, thumbnail, new Size(3, 3), 0);
+    }
+
+    /**
+     * Releases the native buffers held by this detector.
+     */
+    public void release() {
+        gray.release();
+        diff.release();
+        current.release();
+        reference.release();
+        hasReference = false;
+    }
+}
@@ -17,22 +17,26 @@
 
 package com.jeremydyer.nifi;
 
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
-import javax.imageio.ImageIO;
-
+import org.apache.commons.io.IOUtils;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
@@ -43,21 +47,42 @@ import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.StreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
 import org.opencv.core.Core;
+import org.opencv.core.CvException;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfByte;
+import org.opencv.core.Size;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 
-@Tags({"opencv", "zoom", "image"})
-@CapabilityDescription("Takes the incoming image and zooms in on it")
+@Tags({"opencv", "zoom", "image", "resize"})
+@CapabilityDescription("Takes the incoming image and zooms in on it, or out of it when the zooming factor is less than 1. " +
+        "The image is decoded natively by OpenCV so any bit depth and number of channels OpenCV supports is preserved. " +
+        "The result is encoded as PNG.")
 public class ZoomImageProcessor extends AbstractProcessor {
 
+    public static final String INTERPOLATION_AUTO = "auto";
+    public static final String INTERPOLATION_AREA = "area";
+    public static final String INTERPOLATION_CUBIC = "cubic";
+    public static final String INTERPOLATION_LINEAR = "linear";
+    public static final String INTERPOLATION_NEAREST = "nearest";
+
     public static final PropertyDescriptor ZOOMING_FACTOR = new PropertyDescriptor
             .Builder().name("Zooming Factor")
-            .description("FActor for how zoomed in the resulting image will be")
+            .description("Factor for how zoomed in the resulting image will be. Fractional values are allowed and values " +
+                    "less than 1 shrink the image, 0.5 for example halves the width and height.")
             .required(true)
             .defaultValue("2")
-            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INTERPOLATION = new PropertyDescriptor
+            .Builder().name("Interpolation")
+            .description("Interpolation used when resizing. '" + INTERPOLATION_AUTO + "' uses '" + INTERPOLATION_AREA + "' when " +
+                    "shrinking the image, which avoids aliasing, and '" + INTERPOLATION_CUBIC + "' when enlarging it, which keeps " +
+                    "glyph edges smooth for OCR.")
+            .required(true)
+            .allowableValues(INTERPOLATION_AUTO, INTERPOLATION_AREA, INTERPOLATION_CUBIC, INTERPOLATION_LINEAR, INTERPOLATION_NEAREST)
+            .defaultValue(INTERPOLATION_AUTO)
             .build();
 
     public static final Relationship REL_ORIGINAL = new Relationship.Builder()
@@ -79,10 +104,16 @@ public class ZoomImageProcessor extends AbstractProcessor {
 
     private Set<Relationship> relationships;
 
+    private volatile double zoomingFactor;
+    private volatile int interpolation;
+    // Buffers of threads not currently zooming, so they are released when the processor stops
+    private final BlockingQueue<ZoomBuffers> zoomBuffers = new LinkedBlockingQueue<>();
+
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
         descriptors.add(ZOOMING_FACTOR);
+        descriptors.add(INTERPOLATION);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -105,6 +136,35 @@ public class ZoomImageProcessor extends AbstractProcessor {
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        final String factor = context.getProperty(ZOOMING_FACTOR).getValue();
+        try {
+            if (Double.parseDouble(factor) <= 0) {
+                results.add(new ValidationResult.Builder().subject(ZOOMING_FACTOR.getName()).input(factor)
+                        .explanation("must be greater than 0").valid(false).build());
+            }
+        } catch (NumberFormatException nfe) {
+            // Already reported by the property validator
+        }
+        return results;
+    }
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        zoomingFactor = context.getProperty(ZOOMING_FACTOR).asDouble();
+        interpolation = getInterpolation(context.getProperty(INTERPOLATION).getValue(), zoomingFactor);
+    }
+
+    @OnStopped
+    public void onStopped() {
+        ZoomBuffers buffers;
+        while ((buffers = zoomBuffers.poll()) != null) {
+            buffers.release();
+        }
+    }
+
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
         final FlowFile original = session.get();
@@ -112,35 +172,89 @@ public class ZoomImageProcessor extends AbstractProcessor {
             return;
         }
 
-        session.transfer(session.clone(original), REL_ORIGINAL);
+        final double factor = zoomingFactor;
+        final int interpolation = this.interpolation;
+        final ZoomBuffers pooled = zoomBuffers.poll();
+        final ZoomBuffers buffers = pooled != null ? pooled : new ZoomBuffers();
 
-        FlowFile ff = session.write(original, new StreamCallback() {
-            @Override
-            public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
-                try {
-                    int zoomingFactor = context.getProperty(ZOOMING_FACTOR).asInteger();
+        FlowFile zoomed = session.clone(original);
+        try {
+            zoomed = session.write(zoomed, new StreamCallback() {
+                @Override
+                public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
+                    MatOfByte encoded = new MatOfByte(IOUtils.toByteArray(inputStream));
+                    Mat source = Imgcodecs.imdecode(encoded, Imgcodecs.CV_LOAD_IMAGE_UNCHANGED);
+                    encoded.release();
 
-                    BufferedImage image = ImageIO.read(inputStream);
-                    byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
-                    Mat source = new Mat(image.getHeight(), image.getWidth(), Imgcodecs.CV_LOAD_IMAGE_GRAYSCALE);
-                    source.put(0, 0, pixels);
+                    try {
+                        if (source.empty()) {
+                            throw new ProcessException("OpenCV was unable to decode the image");
+                        }
 
-                    Mat destination = new Mat(source.rows() * zoomingFactor, source.cols() * zoomingFactor, source.type());
-                    Imgproc.resize(source, destination, destination.size(), zoomingFactor, zoomingFactor, Imgproc.INTER_NEAREST);
+                        // resize() reuses the destination's native buffer whenever the size and type already match
+                        Size size = new Size(Math.max(1, Math.round(source.cols() * factor)), Math.max(1, Math.round(source.rows() * factor)));
+                        buffers.destination.create(size, source.type());
+                        Imgproc.resize(source, buffers.destination, size, 0, 0, interpolation);
 
-                    MatOfByte bytemat = new MatOfByte();
-                    Imgcodecs.imencode(".png", destination, bytemat);
-                    pixels = bytemat.toArray();
-                    outputStream.write(pixels);
-
-                } catch (Exception ex) {
-                    getLogger().error(ex.getMessage());
-                    ex.printStackTrace();
+                        if (!Imgcodecs.imencode(".png", buffers.destination, buffers.encoded)) {
+                            throw new ProcessException("OpenCV was unable to encode the zoomed image");
+                        }
+                        outputStream.write(buffers.toByteArray(), 0, (int) buffers.encoded.total());
+                    } finally {
+                        source.release();
+                    }
                 }
-            }
-        });
+            });
+
+            session.transfer(zoomed, REL_SUCCESS);
+            session.transfer(original, REL_ORIGINAL);
+        } catch (ProcessException | CvException ex) {
+            // OpenCV reports images it can not resize, such as one that would be too large, with a CvException
+            getLogger().error("Failed to zoom {} due to {}", new Object[]{original, ex});
+            session.remove(zoomed);
+            session.transfer(original, REL_FAILURE);
+        } finally {
+            zoomBuffers.offer(buffers);
+        }
+    }
 
-        session.transfer(ff, REL_SUCCESS);
+    static int getInterpolation(String interpolation, double zoomingFactor) {
+        switch (interpolation) {
+            case INTERPOLATION_AREA:
+                return Imgproc.INTER_AREA;
+            case INTERPOLATION_CUBIC:
+                return Imgproc.INTER_CUBIC;
+            case INTERPOLATION_LINEAR:
+                return Imgproc.INTER_LINEAR;
+            case INTERPOLATION_NEAREST:
+                return Imgproc.INTER_NEAREST;
+            default:
+                return zoomingFactor < 1 ? Imgproc.INTER_AREA : Imgproc.INTER_CUBIC;
+        }
+    }
 
+    /**
+     * Native and heap buffers reused between images so they are only reallocated when the image dimensions change.
+     * Each is used by one thread at a time.
+     */
+    private static class ZoomBuffers {
+        private final Mat destination = new Mat();
+        private final MatOfByte encoded = new MatOfByte();
+        private byte[] output = new byte[0];
+
+        private byte[] toByteArray() {
+            int length = (int) encoded.total();
+            if (output.length < length) {
+                output = new byte[length];
+            }
+            encoded.get(0, 0, output);
+            return output;
+        }
+
+        private void release() {
+            destination.release();
+            encoded.release();
+            output = new byte[0];
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.json.JSONException;
+import org.junit.Assume;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class CropImageProcessorTest {
+
+    @Test
+    public void testParseRegions() {
+        final List<Rect> regions = CropImageProcessor.parseRegions(
+                "[{\"x\": 10, \"y\": 20, \"width\": 30, \"height\": 40}, {\"height\": 4, \"width\": 3, \"y\": 2, \"x\": 1}]");
+        assertEquals(2, regions.size());
+        assertEquals(new Rect(10, 20, 30, 40), regions.get(0));
+        assertEquals(new Rect(1, 2, 3, 4), regions.get(1));
+    }
+
+    @Test
+    public void testParseNoRegions() {
+        assertEquals(Collections.<Rect>emptyList(), CropImageProcessor.parseRegions("[]"));
+    }
+
+    @Test(expected = JSONException.class)
+    public void testParseRegionMissingKey() {
+        CropImageProcessor.parseRegions("[{\"x\": 10, \"y\": 20, \"width\": 30}]");
+    }
+
+    @Test(expected = JSONException.class)
+    public void testParseRegionsNotAnArray() {
+        CropImageProcessor.parseRegions("{\"x\": 10, \"y\": 20, \"width\": 30, \"height\": 40}");
+    }
+
+    @Test
+    public void testIntersect() {
+        final Rect bounds = new Rect(0, 0, 100, 50);
+        assertEquals(new Rect(10, 10, 20, 20), CropImageProcessor.intersect(new Rect(10, 10, 20, 20), bounds));
+        // Clipped to the image
+        assertEquals(new Rect(0, 40, 30, 10), CropImageProcessor.intersect(new Rect(-10, 40, 40, 40), bounds));
+        assertEquals(new Rect(0, 0, 100, 50), CropImageProcessor.intersect(new Rect(-5, -5, 200, 200), bounds));
+        // Outside of the image or empty
+        assertNull(CropImageProcessor.intersect(new Rect(100, 0, 10, 10), bounds));
+        assertNull(CropImageProcessor.intersect(new Rect(-20, -20, 20, 20), bounds));
+        assertNull(CropImageProcessor.intersect(new Rect(10, 10, 0, 10), bounds));
+    }
+
+    @Test
+    public void testDetectFormat() {
+        assertEquals(CropImageProcessor.FORMAT_PNG, CropImageProcessor.detectFormat(bytes(0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A)));
+        assertEquals(CropImageProcessor.FORMAT_JPEG, CropImageProcessor.detectFormat(bytes(0xFF, 0xD8, 0xFF, 0xE0)));
+        assertEquals(CropImageProcessor.FORMAT_BMP, CropImageProcessor.detectFormat(bytes('B', 'M', 0, 0)));
+        assertEquals(CropImageProcessor.FORMAT_TIFF, CropImageProcessor.detectFormat(bytes('I', 'I', 42, 0)));
+        assertEquals(CropImageProcessor.FORMAT_TIFF, CropImageProcessor.detectFormat(bytes('M', 'M', 0, 42)));
+        assertNull(CropImageProcessor.detectFormat(bytes('G', 'I', 'F', '8', '9', 'a')));
+        assertNull(CropImageProcessor.detectFormat(new byte[0]));
+    }
+
+    @Test
+    public void testSkippedRegionsKeepTheirIndex() {
+        try {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeNoException("OpenCV native library is not available", e);
+        }
+
+        final Mat image = new Mat(50, 100, CvType.CV_8UC3, new Scalar(0, 0, 255));
+        final MatOfByte png = new MatOfByte();
+        Imgcodecs.imencode(".png", image, png);
+
+        final TestRunner testRunner = TestRunners.newTestRunner(CropImageProcessor.class);
+        testRunner.setProperty(CropImageProcessor.REGIONS_ATTRIBUTE, "regions");
+        testRunner.enqueue(png.toArray(), Collections.singletonMap("regions",
+                "[{\"x\": 0, \"y\": 0, \"width\": 10, \"height\": 10}, " +
+                "{\"x\": 200, \"y\": 0, \"width\": 10, \"height\": 10}, " +
+                "{\"x\": 90, \"y\": 40, \"width\": 20, \"height\": 20}]"));
+        testRunner.run();
+
+        testRunner.assertTransferCount(CropImageProcessor.REL_ORIGINAL, 1);
+        final List<MockFlowFile> crops = testRunner.getFlowFilesForRelationship(CropImageProcessor.REL_CROPPED_IMAGE);
+        assertEquals(2, crops.size());
+        crops.get(0).assertAttributeEquals("crop.index", "0");
+        crops.get(0).assertAttributeEquals("crop.count", "2");
+        crops.get(1).assertAttributeEquals("crop.index", "2");
+        crops.get(1).assertAttributeEquals("image.width", "10");
+        crops.get(1).assertAttributeEquals("image.height", "10");
+        crops.get(1).assertAttributeEquals("mime.type", "image/png");
+    }
+
+    @Test
+    public void testAlphaIsDroppedForJpegCrops() {
+        try {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeNoException("OpenCV native library is not available", e);
+        }
+
+        final Mat image = new Mat(50, 100, CvType.CV_8UC4, new Scalar(255, 0, 0, 128));
+        final MatOfByte png = new MatOfByte();
+        Imgcodecs.imencode(".png", image, png);
+
+        final TestRunner testRunner = TestRunners.newTestRunner(CropImageProcessor.class);
+        testRunner.setProperty(CropImageProcessor.REGIONS_ATTRIBUTE, "regions");
+        testRunner.setProperty(CropImageProcessor.OUTPUT_FORMAT, CropImageProcessor.FORMAT_JPEG);
+        testRunner.enqueue(png.toArray(), Collections.singletonMap("regions", "[{\"x\": 10, \"y\": 10, \"width\": 20, \"height\": 20}]"));
+        testRunner.run();
+
+        testRunner.assertTransferCount(CropImageProcessor.REL_ORIGINAL, 1);
+        testRunner.assertTransferCount(CropImageProcessor.REL_CROPPED_IMAGE, 1);
+        final MockFlowFile crop = testRunner.getFlowFilesForRelationship(CropImageProcessor.REL_CROPPED_IMAGE).get(0);
+        crop.assertAttributeEquals("mime.type", "image/jpeg");
+        final Mat decoded = Imgcodecs.imdecode(new MatOfByte(crop.toByteArray()), Imgcodecs.IMREAD_UNCHANGED);
+        assertEquals(20, decoded.cols());
+        assertEquals(3, decoded.channels());
+    }
+
+    @Test
+    public void testAlphaIsKeptForPngCrops() {
+        try {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeNoException("OpenCV native library is not available", e);
+        }
+
+        final Mat image = new Mat(50, 100, CvType.CV_8UC4, new Scalar(255, 0, 0, 128));
+        final MatOfByte png = new MatOfByte();
+        Imgcodecs.imencode(".png", image, png);
+
+        final TestRunner testRunner = TestRunners.newTestRunner(CropImageProcessor.class);
+        testRunner.setProperty(CropImageProcessor.REGIONS_ATTRIBUTE, "regions");
+        testRunner.enqueue(png.toArray(), Collections.singletonMap("regions", "[{\"x\": 10, \"y\": 10, \"width\": 20, \"height\": 20}]"));
+        testRunner.run();
+
+        testRunner.assertTransferCount(CropImageProcessor.REL_CROPPED_IMAGE, 1);
+        final MockFlowFile crop = testRunner.getFlowFilesForRelationship(CropImageProcessor.REL_CROPPED_IMAGE).get(0);
+        crop.assertAttributeEquals("mime.type", "image/png");
+        final Mat decoded = Imgcodecs.imdecode(new MatOfByte(crop.toByteArray()), Imgcodecs.IMREAD_UNCHANGED);
+        assertEquals(4, decoded.channels());
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.videoio.VideoWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+public class ExtractVideoFramesTest {
+
+    private static final int FRAMES = 7;
+
+    @Before
+    public void init() {
+        try {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeNoException("OpenCV native library is not available", e);
+        }
+    }
+
+    @Test
+    public void testBatchesKeepTheOriginalUntilTheEnd() throws IOException {
+        final TestRunner testRunner = TestRunners.newTestRunner(ExtractVideoFrames.class);
+        testRunner.setProperty(ExtractVideoFrames.FRAMES_PER_BATCH, "3");
+        testRunner.enqueue(createVideo(), Collections.singletonMap(CoreAttributes.FILENAME.key(), "video.avi"));
+        testRunner.run();
+
+        testRunner.assertTransferCount(ExtractVideoFrames.REL_FAILURE, 0);
+        testRunner.assertTransferCount(ExtractVideoFrames.REL_ORIGINAL, 1);
+        final List<MockFlowFile> frames = testRunner.getFlowFilesForRelationship(ExtractVideoFrames.REL_SUCCESS);
+        assertEquals(FRAMES, frames.size());
+        for (int i = 0; i < FRAMES; i++) {
+            frames.get(i).assertAttributeEquals("fragment.index", String.valueOf(i));
+            if (i < FRAMES - 1) {
+                assertNull(frames.get(i).getAttribute("fragment.count"));
+            }
+        }
+        frames.get(FRAMES - 1).assertAttributeEquals("fragment.count", String.valueOf(FRAMES));
+        assertEquals(FRAMES, testRunner.getCounterValue("Frames Extracted").intValue());
+    }
+
+    @Test
+    public void testInvalidVideoRoutesToFailure() {
+        final TestRunner testRunner = TestRunners.newTestRunner(ExtractVideoFrames.class);
+        testRunner.setProperty(ExtractVideoFrames.FRAMES_PER_BATCH, "3");
+        testRunner.enqueue("not a video".getBytes(), Collections.singletonMap(CoreAttributes.FILENAME.key(), "video.avi"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(ExtractVideoFrames.REL_FAILURE, 1);
+    }
+
+    private static byte[] createVideo() throws IOException {
+        final Path video = Files.createTempFile("extract-video-frames", ".avi");
+        try {
+            final VideoWriter writer = new VideoWriter(video.toString(), VideoWriter.fourcc('M', 'J', 'P', 'G'), 10, new Size(64, 48));
+            Assume.assumeTrue("OpenCV is built without video support", writer.isOpened());
+            for (int i = 0; i < FRAMES; i++) {
+                final Mat frame = new Mat(48, 64, CvType.CV_8UC3, new Scalar(i * 30, 0, 255 - i * 30));
+                writer.write(frame);
+                frame.release();
+            }
+            writer.release();
+            return Files.readAllBytes(video);
+        } finally {
+            Files.delete(video);
+        }
+    }
+}
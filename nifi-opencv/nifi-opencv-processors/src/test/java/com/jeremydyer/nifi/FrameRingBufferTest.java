@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class FrameRingBufferTest {
+
+    private final List<Integer> handled = new ArrayList<>();
+    private final FrameRingBuffer<Integer> buffer = new FrameRingBuffer<>(3, handled::add);
+
+    @Test
+    public void testPollInOfferOrder() {
+        assertNull(buffer.poll());
+        buffer.offer(1);
+        buffer.offer(2);
+        assertEquals(Integer.valueOf(1), buffer.poll());
+        buffer.offer(3);
+        assertEquals(Integer.valueOf(2), buffer.poll());
+        assertEquals(Integer.valueOf(3), buffer.poll());
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.getAndResetDropped());
+        assertTrue(handled.isEmpty());
+    }
+
+    @Test
+    public void testOverwritesOldestWhenFull() {
+        for (int i = 1; i <= 5; i++) {
+            buffer.offer(i);
+        }
+
+        // The two oldest frames went to the drop handler, the consumer sees the three most recent ones
+        assertEquals(2, buffer.getAndResetDropped());
+        assertEquals(0, buffer.getAndResetDropped());
+        assertEquals(Arrays.asList(1, 2), handled);
+        assertEquals(Integer.valueOf(3), buffer.poll());
+        assertEquals(Integer.valueOf(4), buffer.poll());
+        assertEquals(Integer.valueOf(5), buffer.poll());
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void testClearIsNotCountedAsDropped() {
+        buffer.offer(1);
+        buffer.offer(2);
+        buffer.clear();
+
+        assertNull(buffer.poll());
+        assertEquals(0, buffer.getAndResetDropped());
+        assertEquals(Arrays.asList(1, 2), handled);
+
+        // Sequences carry on where they were
+        buffer.offer(3);
+        assertEquals(Integer.valueOf(3), buffer.poll());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBePositive() {
+        new FrameRingBuffer<Integer>(0, null);
+    }
+
+    @Test
+    public void testEveryElementGivenOutOnce() throws InterruptedException {
+        final int elements = 200000;
+        final ConcurrentLinkedQueue<Integer> dropped = new ConcurrentLinkedQueue<>();
+        final FrameRingBuffer<Integer> ring = new FrameRingBuffer<>(8, dropped::add);
+        final ConcurrentLinkedQueue<Integer> consumed = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean producing = new AtomicBoolean(true);
+
+        final int consumers = 4;
+        final CountDownLatch done = new CountDownLatch(consumers);
+        for (int i = 0; i < consumers; i++) {
+            new Thread(() -> {
+                Integer element;
+                while ((element = ring.poll()) != null || producing.get()) {
+                    if (element != null) {
+                        consumed.add(element);
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+
+        for (int i = 0; i < elements; i++) {
+            ring.offer(i);
+        }
+        producing.set(false);
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        ring.clear();
+
+        final Set<Integer> seen = new HashSet<>();
+        for (Integer element : consumed) {
+            assertTrue("given out twice: " + element, seen.add(element));
+        }
+        for (Integer element : dropped) {
+            assertTrue("given out twice: " + element, seen.add(element));
+        }
+        assertEquals(elements, seen.size());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class MotionDetectionProcessorTest {
+
+    private final List<String> evicted = new ArrayList<>();
+    private final Map<String, String> streams = MotionDetectionProcessor.newStreamMap(2, evicted::add);
+
+    @Test
+    public void testLeastRecentlySeenStreamIsEvicted() {
+        streams.put("a", "model a");
+        streams.put("b", "model b");
+        // Seeing a frame of stream a makes b the least recently seen
+        streams.get("a");
+        streams.put("c", "model c");
+
+        assertEquals(Arrays.asList("model b"), evicted);
+        assertEquals(2, streams.size());
+        assertTrue(streams.containsKey("a"));
+        assertTrue(streams.containsKey("c"));
+    }
+
+    @Test
+    public void testReplacingAStreamDoesNotEvict() {
+        streams.put("a", "model a");
+        streams.put("b", "model b");
+        streams.put("b", "new model b");
+
+        assertTrue(evicted.isEmpty());
+        assertEquals(2, streams.size());
+    }
+
+    @Test
+    public void testManyStreamsStayBounded() {
+        for (int i = 0; i < 1000; i++) {
+            streams.put("stream " + i, "model " + i);
+        }
+
+        assertEquals(2, streams.size());
+        assertEquals(998, evicted.size());
+        assertEquals("model 0", evicted.get(0));
+        assertEquals("model 997", evicted.get(997));
+    }
+}
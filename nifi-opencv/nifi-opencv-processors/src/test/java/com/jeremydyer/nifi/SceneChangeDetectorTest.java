@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class SceneChangeDetectorTest {
+
+    private SceneChangeDetector detector;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        try {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeNoException("OpenCV native library is not available", e);
+        }
+    }
+
+    @Before
+    public void init() {
+        detector = new SceneChangeDetector(64);
+    }
+
+    @After
+    public void release() {
+        detector.release();
+    }
+
+    @Test
+    public void testFirstFrameIsAChange() {
+        assertEquals(1.0, detector.score(frame(100)), 0.0);
+        // Scoring alone does not make the frame the reference
+        assertEquals(1.0, detector.score(frame(100)), 0.0);
+    }
+
+    @Test
+    public void testIdenticalFrames() {
+        detector.score(frame(100));
+        detector.updateReference();
+        assertEquals(0.0, detector.score(frame(100)), 0.001);
+    }
+
+    @Test
+    public void testScoreFollowsTheDifference() {
+        detector.score(frame(0));
+        detector.updateReference();
+        assertEquals(1.0, detector.score(new Mat(480, 640, CvType.CV_8UC3, new Scalar(255, 255, 255))), 0.01);
+
+        // A quarter of the frame changing scores about a quarter of a full change
+        final Mat partial = frame(0);
+        Imgproc.rectangle(partial, new Point(0, 0), new Point(319, 239), new Scalar(255, 255, 255), -1);
+        final double score = detector.score(partial);
+        assertTrue("score " + score, score > 0.2 && score < 0.3);
+    }
+
+    @Test
+    public void testGrayscaleAgainstColor() {
+        detector.score(frame(100));
+        detector.updateReference();
+        assertEquals(0.0, detector.score(new Mat(480, 640, CvType.CV_8UC1, new Scalar(100))), 0.01);
+    }
+
+    @Test
+    public void testFrameSizeChange() {
+        detector.score(frame(100));
+        detector.updateReference();
+        // A thumbnail of another shape can not be compared, the frame counts as a change
+        assertEquals(1.0, detector.score(new Mat(480, 480, CvType.CV_8UC3, new Scalar(100, 100, 100))), 0.0);
+    }
+
+    private static Mat frame(int level) {
+        return new Mat(480, 640, CvType.CV_8UC3, new Scalar(level, level, level));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.nifi;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Assume;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class ZoomImageProcessorTest {
+
+    @Test
+    public void testAutoInterpolation() {
+        assertEquals(Imgproc.INTER_AREA, ZoomImageProcessor.getInterpolation(ZoomImageProcessor.INTERPOLATION_AUTO, 0.5));
+        assertEquals(Imgproc.INTER_CUBIC, ZoomImageProcessor.getInterpolation(ZoomImageProcessor.INTERPOLATION_AUTO, 1));
+        assertEquals(Imgproc.INTER_CUBIC, ZoomImageProcessor.getInterpolation(ZoomImageProcessor.INTERPOLATION_AUTO, 2.5));
+    }
+
+    @Test
+    public void testExplicitInterpolation() {
+        assertEquals(Imgproc.INTER_AREA, ZoomImageProcessor.getInterpolation(ZoomImageProcessor.INTERPOLATION_AREA, 2));
+        assertEquals(Imgproc.INTER_CUBIC, ZoomImageProcessor.getInterpolation(ZoomImageProcessor.INTERPOLATION_CUBIC, 0.5));
+        assertEquals(Imgproc.INTER_LINEAR, ZoomImageProcessor.getInterpolation(ZoomImageProcessor.INTERPOLATION_LINEAR, 0.5));
+        assertEquals(Imgproc.INTER_NEAREST, ZoomImageProcessor.getInterpolation(ZoomImageProcessor.INTERPOLATION_NEAREST, 2));
+    }
+
+    @Test
+    public void testZoomingFactorMustBePositive() {
+        final TestRunner testRunner = newTestRunner();
+        testRunner.setProperty(ZoomImageProcessor.ZOOMING_FACTOR, "0");
+        testRunner.assertNotValid();
+        testRunner.setProperty(ZoomImageProcessor.ZOOMING_FACTOR, "-2");
+        testRunner.assertNotValid();
+        testRunner.setProperty(ZoomImageProcessor.ZOOMING_FACTOR, "0.25");
+        testRunner.assertValid();
+    }
+
+    @Test
+    public void testZoom() {
+        final TestRunner testRunner = newTestRunner();
+        testRunner.setProperty(ZoomImageProcessor.ZOOMING_FACTOR, "0.5");
+
+        final Mat image = new Mat(20, 40, CvType.CV_8UC3, new Scalar(0, 255, 0));
+        final MatOfByte png = new MatOfByte();
+        Imgcodecs.imencode(".png", image, png);
+        testRunner.enqueue(png.toArray());
+        testRunner.run();
+
+        testRunner.assertTransferCount(ZoomImageProcessor.REL_ORIGINAL, 1);
+        testRunner.assertTransferCount(ZoomImageProcessor.REL_SUCCESS, 1);
+        final MockFlowFile zoomed = testRunner.getFlowFilesForRelationship(ZoomImageProcessor.REL_SUCCESS).get(0);
+        final Mat decoded = Imgcodecs.imdecode(new MatOfByte(zoomed.toByteArray()), Imgcodecs.IMREAD_UNCHANGED);
+        assertEquals(20, decoded.cols());
+        assertEquals(10, decoded.rows());
+    }
+
+    @Test
+    public void testUndecodableImageRoutesToFailure() {
+        final TestRunner testRunner = newTestRunner();
+        testRunner.enqueue("not an image".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(ZoomImageProcessor.REL_FAILURE, 1);
+    }
+
+    private static TestRunner newTestRunner() {
+        try {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        } catch (UnsatisfiedLinkError e) {
+            Assume.assumeNoException("OpenCV native library is not available", e);
+        }
+        return TestRunners.newTestRunner(ZoomImageProcessor.class);
+    }
+}
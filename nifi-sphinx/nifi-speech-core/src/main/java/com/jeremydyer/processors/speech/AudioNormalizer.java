@@ -0,0 +1,408 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.processors.speech;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads audio as 16 bit little endian mono PCM at the rate speech recognizers expect. A WAV file is read from its
+ * header, then chunk by chunk: every chunk is mixed down to mono and resampled with a polyphase low pass filter, so
+ * only a chunk and the filter history are held in memory whatever the length of the audio. Content without a RIFF
+ * header is taken to already be PCM at the target rate and is passed through.
+ */
+public class AudioNormalizer extends InputStream {
+
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_IEEE_FLOAT = 3;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+
+    // Filter taps on each side of an output sample, per input sample between output samples when downsampling
+    private static final int HALF_TAPS = 16;
+    // Cutoff as a fraction of the lower Nyquist frequency, the rest is the transition band
+    private static final double ROLLOFF = 0.9;
+    // Rates whose ratio needs more filter phases than this are resampled at the nearest ratio that does not
+    private static final int MAX_PHASES = 1024;
+    private static final int CHUNK_FRAMES = 4096;
+
+    private final InputStream in;
+    private final int sampleRate;
+    private final int sourceRate;
+    private final int channels;
+    private final int bytesPerSample;
+    private final boolean floating;
+    // Bytes of samples left in the data chunk, Long.MAX_VALUE when the header does not say
+    private long remaining;
+
+    // The output is the input upsampled by up, filtered, then downsampled by down
+    private final int up;
+    private final int down;
+    private final int taps;
+    private final int delay;
+    // Coefficients of every phase one after the other, taps per phase
+    private final float[] filter;
+
+    // Samples from the absolute index inputOffset, the ones still needed for the next output and those read since
+    private float[] input;
+    private int inputLength;
+    private long inputOffset;
+    private long inputTotal = -1;
+    private long outputIndex;
+
+    private final byte[] raw;
+    private final byte[] output = new byte[2 * CHUNK_FRAMES];
+    private int outputPosition;
+    private int outputLength;
+    private long resamplingNanos;
+
+    /**
+     * @param sampleRate
+     *  Rate of the PCM read from this stream
+     *
+     * @throws IOException if the audio is RIFF but not a WAV file of integer or floating point samples
+     */
+    public AudioNormalizer(InputStream in, int sampleRate) throws IOException {
+        this.in = in.markSupported() ? in : new BufferedInputStream(in);
+        this.sampleRate = sampleRate;
+
+        final DataInputStream data = new DataInputStream(this.in);
+        final byte[] id = new byte[4];
+        this.in.mark(id.length);
+        if (!readId(data, id) || !"RIFF".equals(new String(id, StandardCharsets.US_ASCII))) {
+            this.in.reset();
+            sourceRate = sampleRate;
+            channels = 1;
+            bytesPerSample = 2;
+            floating = false;
+            remaining = Long.MAX_VALUE;
+        } else {
+            data.readInt();
+            data.readFully(id);
+            if (!"WAVE".equals(new String(id, StandardCharsets.US_ASCII))) {
+                throw new IOException("RIFF content is not WAVE audio");
+            }
+            byte[] format = null;
+            while (true) {
+                data.readFully(id);
+                final String chunk = new String(id, StandardCharsets.US_ASCII);
+                final long length = Integer.toUnsignedLong(Integer.reverseBytes(data.readInt()));
+                if ("data".equals(chunk)) {
+                    // Writers that stream the file leave the length at 0 or its largest value
+                    remaining = length == 0 || length == 0xFFFFFFFFL ? Long.MAX_VALUE : length;
+                    break;
+                }
+                if ("fmt ".equals(chunk) && length >= 16 && length <= 1024) {
+                    format = new byte[(int) length];
+                    data.readFully(format);
+                } else {
+                    skipFully(length);
+                }
+                // Chunks are padded to an even length
+                skipFully(length & 1);
+            }
+            if (format == null) {
+                throw new IOException("WAVE audio has no format before its samples");
+            }
+
+            int formatTag = uint16(format, 0);
+            if (formatTag == WAVE_FORMAT_EXTENSIBLE && format.length >= 26) {
+                // The format is the first two bytes of the sub format GUID
+                formatTag = uint16(format, 24);
+            }
+            channels = uint16(format, 2);
+            sourceRate = uint16(format, 4) | uint16(format, 6) << 16;
+            final int blockAlign = uint16(format, 12);
+            if (channels == 0 || sourceRate <= 0 || blockAlign % channels != 0) {
+                throw new IOException("WAVE audio has an invalid format");
+            }
+            // Samples narrower than their container, like 20 bits in 3 bytes, are aligned to its highest bit
+            bytesPerSample = blockAlign / channels;
+            floating = formatTag == WAVE_FORMAT_IEEE_FLOAT;
+            if (!(formatTag == WAVE_FORMAT_PCM && bytesPerSample >= 1 && bytesPerSample <= 4)
+                    && !(floating && (bytesPerSample == 4 || bytesPerSample == 8))) {
+                throw new IOException("WAVE audio with format " + formatTag + " and " + 8 * bytesPerSample
+                        + " bit samples is not supported");
+            }
+        }
+        raw = new byte[CHUNK_FRAMES * channels * bytesPerSample];
+
+        final int gcd = gcd(sampleRate, sourceRate);
+        if (sampleRate / gcd <= MAX_PHASES) {
+            up = sampleRate / gcd;
+            down = sourceRate / gcd;
+        } else {
+            up = MAX_PHASES;
+            down = (int) Math.round((double) sourceRate * MAX_PHASES / sampleRate);
+        }
+        if (up == down) {
+            taps = 1;
+            filter = new float[]{1};
+        } else {
+            taps = 2 * HALF_TAPS * Math.max(1, (down + up - 1) / up);
+            filter = lowPass(up, down, taps);
+        }
+        delay = taps / 2;
+
+        // Silence before the first sample, so the first outputs have a full history
+        input = new float[taps + CHUNK_FRAMES];
+        inputLength = taps;
+        inputOffset = -taps;
+    }
+
+    // Windowed sinc at the upsampled rate, cut off below both Nyquist frequencies and rearranged by phase
+    private static float[] lowPass(final int up, final int down, final int taps) {
+        final int length = up * taps;
+        final double cutoff = ROLLOFF * 0.5 / Math.max(up, down);
+        final double center = (length - 1) / 2.0;
+        final float[] filter = new float[length];
+        for (int phase = 0; phase < up; phase++) {
+            double sum = 0;
+            final double[] coefficients = new double[taps];
+            for (int k = 0; k < taps; k++) {
+                final int j = phase + k * up;
+                final double x = 2 * cutoff * (j - center);
+                final double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+                final double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * (j + 0.5) / length)
+                        + 0.08 * Math.cos(4 * Math.PI * (j + 0.5) / length);
+                coefficients[k] = sinc * window;
+                sum += coefficients[k];
+            }
+            // Every phase passes a constant unchanged, or the zero stuffing shows up as a tone at the input rate
+            for (int k = 0; k < taps; k++) {
+                filter[phase * taps + k] = (float) (coefficients[k] / sum);
+            }
+        }
+        return filter;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (outputPosition == outputLength && !fill()) {
+            return -1;
+        }
+        return output[outputPosition++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (outputPosition == outputLength && !fill()) {
+            return -1;
+        }
+        final int count = Math.min(len, outputLength - outputPosition);
+        System.arraycopy(output, outputPosition, b, off, count);
+        outputPosition += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return outputLength - outputPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    // Converts input into the output buffer until it has some, returns false at the end of the audio
+    private boolean fill() throws IOException {
+        outputPosition = 0;
+        outputLength = 0;
+        while (true) {
+            final long start = System.nanoTime();
+            resample();
+            resamplingNanos += System.nanoTime() - start;
+            if (outputLength > 0) {
+                return true;
+            }
+            if (inputTotal >= 0) {
+                return false;
+            }
+            readChunk();
+        }
+    }
+
+    private void resample() {
+        while (outputLength < output.length) {
+            final long t = outputIndex * down;
+            final long base = t / up;
+            if (inputTotal >= 0 && t >= inputTotal * up) {
+                return;
+            }
+            final long newest = base + delay;
+            if (newest >= inputOffset + inputLength) {
+                return;
+            }
+            final int phase = (int) (t % up);
+            final int last = (int) (newest - inputOffset);
+            final int coefficients = phase * taps;
+            float sum = 0;
+            for (int k = 0; k < taps; k++) {
+                sum += filter[coefficients + k] * input[last - k];
+            }
+            final int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sum * 32768)));
+            output[outputLength++] = (byte) sample;
+            output[outputLength++] = (byte) (sample >> 8);
+            outputIndex++;
+        }
+    }
+
+    private void readChunk() throws IOException {
+        final int frameBytes = channels * bytesPerSample;
+        int read = 0;
+        final int wanted = (int) Math.min(raw.length, remaining);
+        while (read < wanted) {
+            final int count = in.read(raw, read, wanted - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        remaining -= read;
+        // A partial frame at the end of the audio is dropped
+        final int frames = read / frameBytes;
+
+        final long start = System.nanoTime();
+        // Only the history of the next output is kept, the filter looks no further back
+        final long keepFrom = (outputIndex * down) / up + delay - taps + 1;
+        final int drop = (int) Math.max(0, Math.min(inputLength, keepFrom - inputOffset));
+        System.arraycopy(input, drop, input, 0, inputLength - drop);
+        inputLength -= drop;
+        inputOffset += drop;
+        // The end is followed by silence, enough for the filter to reach past the last sample
+        final int needed = inputLength + frames + (read < wanted || remaining == 0 ? delay + 1 : 0);
+        if (input.length < needed) {
+            final float[] grown = new float[needed];
+            System.arraycopy(input, 0, grown, 0, inputLength);
+            input = grown;
+        }
+
+        for (int frame = 0; frame < frames; frame++) {
+            float sum = 0;
+            for (int channel = 0; channel < channels; channel++) {
+                sum += sample((frame * channels + channel) * bytesPerSample);
+            }
+            input[inputLength++] = sum / channels;
+        }
+        if (read < wanted || remaining == 0) {
+            inputTotal = inputOffset + inputLength;
+            for (int i = 0; i <= delay; i++) {
+                input[inputLength++] = 0;
+            }
+        }
+        resamplingNanos += System.nanoTime() - start;
+    }
+
+    private float sample(final int offset) {
+        if (floating) {
+            if (bytesPerSample == 4) {
+                return Float.intBitsToFloat(int32(raw, offset));
+            }
+            return (float) Double.longBitsToDouble(Integer.toUnsignedLong(int32(raw, offset)) | (long) int32(raw, offset + 4) << 32);
+        }
+        switch (bytesPerSample) {
+            case 1:
+                // The only unsigned width
+                return ((raw[offset] & 0xFF) - 128) / 128f;
+            case 2:
+                return (short) ((raw[offset] & 0xFF) | raw[offset + 1] << 8) / 32768f;
+            case 3:
+                return ((raw[offset] & 0xFF) << 8 | (raw[offset + 1] & 0xFF) << 16 | raw[offset + 2] << 24) / 2147483648f;
+            default:
+                return int32(raw, offset) / 2147483648f;
+        }
+    }
+
+    /**
+     * @return the rate of the PCM read from this stream
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getSourceSampleRate() {
+        return sourceRate;
+    }
+
+    public int getSourceChannels() {
+        return channels;
+    }
+
+    /**
+     * @return whether the audio is converted at all, or is already mono 16 bit PCM at the target rate
+     */
+    public boolean isConverted() {
+        return up != down || channels != 1 || bytesPerSample != 2 || floating;
+    }
+
+    /**
+     * @return time spent mixing down and resampling so far, not counting reading the source audio
+     */
+    public long getResamplingNanos() {
+        return resamplingNanos;
+    }
+
+    private boolean readId(final DataInputStream data, final byte[] id) throws IOException {
+        int read = 0;
+        while (read < id.length) {
+            final int count = data.read(id, read, id.length - read);
+            if (count < 0) {
+                return false;
+            }
+            read += count;
+        }
+        return true;
+    }
+
+    private void skipFully(long count) throws IOException {
+        while (count > 0) {
+            final long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("WAVE header ends before its samples");
+                }
+                count--;
+            } else {
+                count -= skipped;
+            }
+        }
+    }
+
+    private static int uint16(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8;
+    }
+
+    private static int int32(final byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 | (bytes[offset + 2] & 0xFF) << 16 | bytes[offset + 3] << 24;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            final int r = a % b;
+            a = b;
+            b = r;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.processors.speech;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class AudioNormalizerTest {
+
+    @Test
+    public void testRawPcmPassesThrough() throws IOException {
+        final byte[] pcm = pcm16(tone(16000, 440, 0.5, 16000));
+        final AudioNormalizer normalizer = new AudioNormalizer(new ByteArrayInputStream(pcm), 16000);
+        assertFalse(normalizer.isConverted());
+        assertArrayEquals(pcm, readAll(normalizer));
+    }
+
+    @Test
+    public void testWaveAtTargetFormat() throws IOException {
+        final byte[] pcm = pcm16(tone(16000, 440, 0.5, 16000));
+        final AudioNormalizer normalizer = new AudioNormalizer(new ByteArrayInputStream(wave(1, 16000, 1, 16, pcm)), 16000);
+        assertFalse(normalizer.isConverted());
+        assertArrayEquals(pcm, readAll(normalizer));
+    }
+
+    @Test
+    public void testDownmixAndDownsample() throws IOException {
+        // A 440 Hz tone in both channels at 48 kHz
+        final double[] tone = tone(48000, 440, 0.5, 48000);
+        final double[] stereo = new double[2 * tone.length];
+        for (int i = 0; i < tone.length; i++) {
+            stereo[2 * i] = tone[i];
+            stereo[2 * i + 1] = tone[i];
+        }
+        final AudioNormalizer normalizer = new AudioNormalizer(new ByteArrayInputStream(wave(1, 48000, 2, 16, pcm16(stereo))), 16000);
+        assertEquals(48000, normalizer.getSourceSampleRate());
+        assertEquals(2, normalizer.getSourceChannels());
+        assertTrue(normalizer.isConverted());
+
+        final short[] samples = samples(readAll(normalizer));
+        assertEquals(16000, samples.length);
+        // Same tone, same level, at the same time
+        assertEquals(0.5 / Math.sqrt(2), rms(samples, 1000, 15000), 0.01);
+        assertEquals(880, crossings(samples), 4);
+        for (int i = 1000; i < 15000; i += 997) {
+            assertEquals(0.5 * Math.sin(2 * Math.PI * 440 * i / 16000.0), samples[i] / 32768.0, 0.02);
+        }
+        assertTrue(normalizer.getResamplingNanos() > 0);
+    }
+
+    @Test
+    public void testFrequenciesAboveTargetNyquistAreRemoved() throws IOException {
+        final byte[] pcm = pcm16(tone(44100, 11000, 0.5, 44100));
+        final AudioNormalizer normalizer = new AudioNormalizer(new ByteArrayInputStream(wave(1, 44100, 1, 16, pcm)), 16000);
+        final short[] samples = samples(readAll(normalizer));
+        assertEquals(16000, samples.length);
+        assertTrue(rms(samples, 1000, 15000) < 0.005);
+    }
+
+    @Test
+    public void testUpsampleFloat() throws IOException {
+        final double[] tone = tone(8000, 300, 0.5, 8000);
+        final ByteArrayOutputStream floats = new ByteArrayOutputStream();
+        for (double sample : tone) {
+            final int bits = Float.floatToIntBits((float) sample);
+            floats.write(bits);
+            floats.write(bits >> 8);
+            floats.write(bits >> 16);
+            floats.write(bits >> 24);
+        }
+        final AudioNormalizer normalizer = new AudioNormalizer(new ByteArrayInputStream(wave(3, 8000, 1, 32, floats.toByteArray())), 16000);
+        final short[] samples = samples(readAll(normalizer));
+        assertEquals(16000, samples.length);
+        assertEquals(0.5 / Math.sqrt(2), rms(samples, 1000, 15000), 0.01);
+        assertEquals(600, crossings(samples), 4);
+    }
+
+    @Test
+    public void testReadsInChunks() throws IOException {
+        // Ten minutes at 44.1 kHz, generated as it is read so the test does not hold it either
+        final long frames = 10L * 60 * 44100;
+        // A data length of 0, as left by writers that stream the file, is read to the end of the content
+        final byte[] header = wave(1, 44100, 1, 16, new byte[0]);
+        final InputStream audio = new InputStream() {
+            private long position;
+
+            @Override
+            public int read() {
+                final long offset = position++ - header.length;
+                if (offset < 0) {
+                    return header[(int) position - 1] & 0xFF;
+                }
+                if (offset >= 2 * frames) {
+                    return -1;
+                }
+                final short sample = (short) (10000 * Math.sin(2 * Math.PI * 440 * (offset / 2) / 44100.0));
+                return (offset & 1) == 0 ? sample & 0xFF : (sample >> 8) & 0xFF;
+            }
+        };
+        final AudioNormalizer normalizer = new AudioNormalizer(audio, 16000);
+        final byte[] buffer = new byte[8192];
+        long total = 0;
+        int count;
+        while ((count = normalizer.read(buffer)) > 0) {
+            total += count;
+        }
+        assertEquals(2L * 10 * 60 * 16000, total);
+    }
+
+    private static double[] tone(int rate, double frequency, double amplitude, int length) {
+        final double[] tone = new double[length];
+        for (int i = 0; i < length; i++) {
+            tone[i] = amplitude * Math.sin(2 * Math.PI * frequency * i / rate);
+        }
+        return tone;
+    }
+
+    private static byte[] pcm16(double[] samples) {
+        final byte[] pcm = new byte[2 * samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            final int sample = (int) Math.round(samples[i] * 32767);
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+
+    private static byte[] wave(int format, int rate, int channels, int bits, byte[] data) {
+        final ByteArrayOutputStream wave = new ByteArrayOutputStream();
+        wave.write("RIFF".getBytes(StandardCharsets.US_ASCII), 0, 4);
+        int32(wave, 48 + data.length);
+        wave.write("WAVE".getBytes(StandardCharsets.US_ASCII), 0, 4);
+        // A chunk before the format, which is skipped
+        wave.write("LIST".getBytes(StandardCharsets.US_ASCII), 0, 4);
+        int32(wave, 3);
+        wave.write(new byte[4], 0, 4);
+        wave.write("fmt ".getBytes(StandardCharsets.US_ASCII), 0, 4);
+        int32(wave, 16);
+        int16(wave, format);
+        int16(wave, channels);
+        int32(wave, rate);
+        int32(wave, rate * channels * bits / 8);
+        int16(wave, channels * bits / 8);
+        int16(wave, bits);
+        wave.write("data".getBytes(StandardCharsets.US_ASCII), 0, 4);
+        int32(wave, data.length);
+        wave.write(data, 0, data.length);
+        return wave.toByteArray();
+    }
+
+    private static void int16(ByteArrayOutputStream out, int value) {
+        out.write(value);
+        out.write(value >> 8);
+    }
+
+    private static void int32(ByteArrayOutputStream out, int value) {
+        int16(out, value);
+        int16(out, value >> 16);
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1000];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static short[] samples(byte[] pcm) {
+        final short[] samples = new short[pcm.length / 2];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (short) ((pcm[2 * i] & 0xFF) | pcm[2 * i + 1] << 8);
+        }
+        return samples;
+    }
+
+    private static double rms(short[] samples, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += (samples[i] / 32768.0) * (samples[i] / 32768.0);
+        }
+        return Math.sqrt(sum / (to - from));
+    }
+
+    private static int crossings(short[] samples) {
+        int crossings = 0;
+        for (int i = 1; i < samples.length; i++) {
+            if ((samples[i - 1] < 0) != (samples[i] < 0)) {
+                crossings++;
+            }
+        }
+        return crossings;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.processors.sphinx;
+
+import edu.cmu.sphinx.api.AbstractSpeechRecognizer;
+import edu.cmu.sphinx.api.Configuration;
+import edu.cmu.sphinx.api.Context;
+import edu.cmu.sphinx.util.TimeFrame;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Recognizers for one model configuration, each used by a single task at a time since Sphinx recognizers keep the
+ * state of the utterance they decode. Every recognizer is allocated once, which is when Sphinx loads the acoustic
+ * model, dictionary and language model, and stays allocated between recognitions. StreamSpeechRecognizer instead
+ * allocates and deallocates for every stream, reading the dictionary and language model again each time.
+ */
+public class SpeechRecognizerPool implements Closeable {
+
+    private final BlockingQueue<PooledRecognizer> idle = new LinkedBlockingQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * @param size
+     *  Number of recognizers, the number of recognitions that can run at the same time
+     *
+     * @throws IOException if the models can not be loaded
+     */
+    public SpeechRecognizerPool(Configuration configuration, int size) throws IOException {
+        try {
+            for (int i = 0; i < size; i++) {
+                idle.add(new PooledRecognizer(new Context(configuration)));
+            }
+        } catch (IOException | RuntimeException ex) {
+            close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Waits for a recognizer to be free
+     */
+    public PooledRecognizer take() throws InterruptedException {
+        return idle.take();
+    }
+
+    public void give(PooledRecognizer recognizer) {
+        idle.offer(recognizer);
+        // A recognizer still in use when the pool was closed is closed as soon as it comes back
+        if (closed && idle.remove(recognizer)) {
+            recognizer.close();
+        }
+    }
+
+    /**
+     * Deallocates the recognizers, those still in use are deallocated when they are given back
+     */
+    @Override
+    public void close() {
+        closed = true;
+        PooledRecognizer recognizer;
+        while ((recognizer = idle.poll()) != null) {
+            recognizer.close();
+        }
+    }
+
+    /**
+     * A recognizer that stays allocated from one stream to the next.
+     */
+    public static class PooledRecognizer extends AbstractSpeechRecognizer {
+
+        PooledRecognizer(Context context) throws IOException {
+            super(context);
+            recognizer.allocate();
+        }
+
+        /**
+         * Starts recognizing the stream, whose results are then read with getResult until it returns null.
+         */
+        public void startRecognition(InputStream stream) {
+            context.setSpeechSource(stream, TimeFrame.INFINITE);
+        }
+
+        void close() {
+            recognizer.deallocate();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.processors.sphinx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Splits a stream of 16 bit little endian mono PCM into segments at pauses, so they can be recognized independently.
+ * Frames of 10 ms are classified as speech when their energy is well above the noise floor, which follows the
+ * quietest recent frames. A segment ends in the middle of the first long enough pause once it has reached its minimum
+ * length, or at its quietest frame when it reaches its maximum length without one. Only the segment being built is
+ * held in memory.
+ */
+public class SpeechSegmenter {
+
+    // Frames louder than the noise floor by this much are speech
+    private static final double SPEECH_THRESHOLD_DB = 10;
+    // How fast the noise floor rises towards louder frames, a time constant of about 10 seconds
+    private static final double NOISE_FLOOR_RISE = 0.001;
+    // Energy is smoothed over a few frames so a click in a pause is not taken for speech
+    private static final double ENERGY_SMOOTHING = 0.3;
+
+    private final InputStream pcm;
+    private final int sampleRate;
+    private final int frameBytes;
+    private final int minSilenceFrames;
+    private final int minSegmentFrames;
+    private final int maxSegmentFrames;
+
+    // The segment being built, its energy and speech flag per frame
+    private byte[] pending;
+    private int pendingBytes;
+    private double[] energies;
+    private boolean[] speech;
+    private int frames;
+    private int silenceRun;
+    private double energy = Double.NaN;
+    private double noiseFloor = Double.NaN;
+    private long segmentStart;
+    private boolean ended;
+
+    /**
+     * @param sampleRate
+     *  Samples per second of the PCM
+     */
+    public SpeechSegmenter(InputStream pcm, int sampleRate, long minSilenceMillis, long minSegmentMillis, long maxSegmentMillis) {
+        this.pcm = pcm;
+        this.sampleRate = sampleRate;
+        final int frameSamples = sampleRate / 100;
+        this.frameBytes = 2 * frameSamples;
+        this.minSilenceFrames = (int) Math.max(1, minSilenceMillis / 10);
+        this.minSegmentFrames = (int) Math.max(1, minSegmentMillis / 10);
+        this.maxSegmentFrames = (int) Math.max(minSegmentFrames + 1, maxSegmentMillis / 10);
+        this.pending = new byte[frameBytes * (maxSegmentFrames + 1)];
+        this.energies = new double[maxSegmentFrames + 1];
+        this.speech = new boolean[maxSegmentFrames + 1];
+    }
+
+    /**
+     * @return the next segment, null at the end of the stream
+     */
+    public Segment next() throws IOException {
+        while (!ended) {
+            final int read = readFrame();
+            if (read < frameBytes) {
+                ended = true;
+                break;
+            }
+            addFrame();
+
+            // Silence alone is not cut at pauses, it would only make segments with nothing to recognize
+            if (silenceRun >= minSilenceFrames && silenceRun < frames && frames >= minSegmentFrames) {
+                return cut(frames - silenceRun / 2);
+            }
+            if (frames >= maxSegmentFrames) {
+                int quietest = frames / 2;
+                for (int i = quietest + 1; i < frames; i++) {
+                    if (energies[i] < energies[quietest]) {
+                        quietest = i;
+                    }
+                }
+                return cut(quietest);
+            }
+        }
+        return pendingBytes == 0 ? null : cut(frames + (pendingBytes > frames * frameBytes ? 1 : 0));
+    }
+
+    private int readFrame() throws IOException {
+        final int offset = frames * frameBytes;
+        int read = 0;
+        while (read < frameBytes) {
+            final int count = pcm.read(pending, offset + read, frameBytes - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        pendingBytes = offset + read;
+        return read;
+    }
+
+    private void addFrame() {
+        final int offset = frames * frameBytes;
+        double sum = 0;
+        for (int i = offset; i < offset + frameBytes; i += 2) {
+            final int sample = (pending[i] & 0xFF) | (pending[i + 1] << 8);
+            sum += (double) sample * sample;
+        }
+        final double frameEnergy = 10 * Math.log10(sum / (frameBytes / 2) + 1);
+        energy = Double.isNaN(energy) ? frameEnergy : energy + (frameEnergy - energy) * ENERGY_SMOOTHING;
+        energies[frames] = energy;
+
+        if (Double.isNaN(noiseFloor) || energy < noiseFloor) {
+            // Frames taken for silence against the old floor may be speech against the new one, as when the audio
+            // starts with speech
+            noiseFloor = energy;
+            speech[frames++] = false;
+            countSilence();
+        } else {
+            noiseFloor += (energy - noiseFloor) * NOISE_FLOOR_RISE;
+            speech[frames] = isSpeech(energy);
+            silenceRun = speech[frames++] ? 0 : silenceRun + 1;
+        }
+    }
+
+    private boolean isSpeech(final double frameEnergy) {
+        return frameEnergy > noiseFloor + SPEECH_THRESHOLD_DB;
+    }
+
+    // A frame once taken for speech stays speech, the floor may since have risen with a long stretch of it
+    private void countSilence() {
+        silenceRun = 0;
+        while (silenceRun < frames) {
+            final int frame = frames - 1 - silenceRun;
+            speech[frame] |= isSpeech(energies[frame]);
+            if (speech[frame]) {
+                break;
+            }
+            silenceRun++;
+        }
+    }
+
+    // Ends the segment before the frame, what follows it starts the next one
+    private Segment cut(final int frame) {
+        final int bytes = Math.min(frame * frameBytes, pendingBytes);
+        boolean hasSpeech = false;
+        for (int i = 0; i < Math.min(frame, frames); i++) {
+            hasSpeech |= speech[i];
+        }
+        final long samples = bytes / 2;
+        final Segment segment = new Segment(Arrays.copyOf(pending, bytes), segmentStart, segmentStart + samples, sampleRate, hasSpeech);
+
+        System.arraycopy(pending, bytes, pending, 0, pendingBytes - bytes);
+        pendingBytes -= bytes;
+        final int kept = Math.max(0, frames - frame);
+        System.arraycopy(energies, frames - kept, energies, 0, kept);
+        System.arraycopy(speech, frames - kept, speech, 0, kept);
+        frames = kept;
+        countSilence();
+        segmentStart += samples;
+        return segment;
+    }
+
+    /**
+     * A piece of the stream with its position in it
+     */
+    public static class Segment {
+
+        private final byte[] pcm;
+        private final long startSample;
+        private final long endSample;
+        private final int sampleRate;
+        private final boolean speech;
+
+        Segment(byte[] pcm, long startSample, long endSample, int sampleRate, boolean speech) {
+            this.pcm = pcm;
+            this.startSample = startSample;
+            this.endSample = endSample;
+            this.sampleRate = sampleRate;
+            this.speech = speech;
+        }
+
+        public byte[] getPcm() {
+            return pcm;
+        }
+
+        /**
+         * @return seconds from the start of the stream to the start of the segment
+         */
+        public double getStart() {
+            return startSample / (double) sampleRate;
+        }
+
+        public double getEnd() {
+            return endSample / (double) sampleRate;
+        }
+
+        /**
+         * @return whether any frame of the segment is speech, segments of silence alone need not be recognized
+         */
+        public boolean hasSpeech() {
+            return speech;
+        }
+    }
+}
@@ -16,9 +16,9 @@
  */
 package com.jeremydyer.processors.sphinx;
 
+import com.jeremydyer.processors.speech.AudioNormalizer;
 import edu.cmu.sphinx.api.Configuration;
 import edu.cmu.sphinx.api.SpeechResult;
-import edu.cmu.sphinx.api.StreamSpeechRecognizer;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
@@ -27,16 +27,25 @@ import org.apache.nifi.annotation.behavior.ReadsAttributes;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.SeeAlso;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.StreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.json.JSONObject;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Tags({"spinx", "speech", "text"})
 @CapabilityDescription("Processor for ")
@@ -45,6 +54,12 @@ import java.util.concurrent.atomic.AtomicReference;
 @WritesAttributes({@WritesAttribute(attribute="", description="")})
 public class SpeechToText extends AbstractProcessor {
 
+    // The rate of the models shipped with Sphinx, audio at other rates is resampled to it
+    public static final int SAMPLE_RATE = 16000;
+
+    public static final String FORMAT_TEXT = "Text";
+    public static final String FORMAT_JSON = "JSON";
+
     public static final PropertyDescriptor ACOUSTIC_MODEL_PATH = new PropertyDescriptor
             .Builder().name("Acoustic Model Path")
             .description("URI to the Spinx Acoustic Model Path")
@@ -54,8 +69,8 @@ public class SpeechToText extends AbstractProcessor {
             .build();
 
     public static final PropertyDescriptor DICTIONARY_PATH = new PropertyDescriptor
-            .Builder().name("Acoustic Model Path")
-            .description("URI to the Spinx Acoustic Model Path")
+            .Builder().name("Dictionary Path")
+            .description("URI to the Spinx Dictionary Path")
             .defaultValue("resource:/edu/cmu/sphinx/models/en-us/cmudict-en-us.dict")
             .required(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
@@ -69,6 +84,51 @@ public class SpeechToText extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor RECOGNITION_THREADS = new PropertyDescriptor
+            .Builder().name("Recognition Threads")
+            .description("Number of segments of the audio recognized at the same time, each by its own recognizer. Every " +
+                    "recognizer holds its own copy of the models.")
+            .defaultValue("4")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MIN_SILENCE = new PropertyDescriptor
+            .Builder().name("Minimum Silence")
+            .description("Shortest pause the audio is split at. Segments are recognized independently, so they should " +
+                    "not end in the middle of a word.")
+            .defaultValue("300 ms")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MIN_SEGMENT_LENGTH = new PropertyDescriptor
+            .Builder().name("Minimum Segment Length")
+            .description("Pauses are only split at once a segment is at least this long, the language model does " +
+                    "better with whole sentences than with single words.")
+            .defaultValue("5 sec")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MAX_SEGMENT_LENGTH = new PropertyDescriptor
+            .Builder().name("Maximum Segment Length")
+            .description("Segments without a long enough pause are split at their quietest point when they reach this " +
+                    "length")
+            .defaultValue("30 sec")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor OUTPUT_FORMAT = new PropertyDescriptor
+            .Builder().name("Output Format")
+            .description("Either the text of every segment separated by spaces, or a JSON array with the start and end " +
+                    "in seconds and the text of every segment with speech")
+            .allowableValues(FORMAT_TEXT, FORMAT_JSON)
+            .defaultValue(FORMAT_TEXT)
+            .required(true)
+            .build();
+
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description("successfully performed speech to text")
@@ -86,9 +146,14 @@ public class SpeechToText extends AbstractProcessor {
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
-//        descriptors.add(ACOUSTIC_MODEL_PATH);
-//        descriptors.add(DICTIONARY_PATH);
-//        descriptors.add(LANGUAGE_MODEL_PATH);
+        descriptors.add(ACOUSTIC_MODEL_PATH);
+        descriptors.add(DICTIONARY_PATH);
+        descriptors.add(LANGUAGE_MODEL_PATH);
+        descriptors.add(RECOGNITION_THREADS);
+        descriptors.add(MIN_SILENCE);
+        descriptors.add(MIN_SEGMENT_LENGTH);
+        descriptors.add(MAX_SEGMENT_LENGTH);
+        descriptors.add(OUTPUT_FORMAT);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -107,26 +172,48 @@ public class SpeechToText extends AbstractProcessor {
         return descriptors;
     }
 
-    private final Configuration configuration = new Configuration();
-    private final AtomicReference<StreamSpeechRecognizer> speechRecognizer = new AtomicReference<>();
+    // A recognizer for every recognition thread, with the models loaded once when the processor is scheduled
+    private volatile SpeechRecognizerPool recognizers;
+    private volatile ExecutorService executor;
+    private volatile int threads;
 
     @OnScheduled
     public void onScheduled(final ProcessContext context) throws IOException {
-//        configuration
-//                .setAcousticModelPath(context.getProperty(ACOUSTIC_MODEL_PATH).getValue());
-//        configuration
-//                .setDictionaryPath(context.getProperty(DICTIONARY_PATH).getValue());
-//        configuration
-//                .setLanguageModelPath(context.getProperty(LANGUAGE_MODEL_PATH).getValue());
-
+        final Configuration configuration = new Configuration();
         configuration
-                .setAcousticModelPath("resource:/edu/cmu/sphinx/models/en-us/en-us");
+                .setAcousticModelPath(context.getProperty(ACOUSTIC_MODEL_PATH).getValue());
         configuration
-                .setDictionaryPath("resource:/edu/cmu/sphinx/models/en-us/cmudict-en-us.dict");
+                .setDictionaryPath(context.getProperty(DICTIONARY_PATH).getValue());
         configuration
-                .setLanguageModelPath("resource:/edu/cmu/sphinx/models/en-us/en-us.lm.bin");
+                .setLanguageModelPath(context.getProperty(LANGUAGE_MODEL_PATH).getValue());
+        configuration.setSampleRate(SAMPLE_RATE);
+
+        threads = context.getProperty(RECOGNITION_THREADS).asInteger();
+        recognizers = new SpeechRecognizerPool(configuration, threads);
+        final String threadName = "SpeechToText-" + getIdentifier();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 
-        speechRecognizer.set(new StreamSpeechRecognizer(configuration));
+    @OnStopped
+    public void onStopped() {
+        if (executor != null) {
+            executor.shutdownNow();
+            try {
+                // Recognizers still in use by a segment are deallocated when they come back to the pool
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            executor = null;
+        }
+        if (recognizers != null) {
+            recognizers.close();
+            recognizers = null;
+        }
     }
 
     @Override
@@ -136,42 +223,124 @@ public class SpeechToText extends AbstractProcessor {
             return;
         }
 
+        final long minSilence = context.getProperty(MIN_SILENCE).asTimePeriod(TimeUnit.MILLISECONDS);
+        final long minSegment = context.getProperty(MIN_SEGMENT_LENGTH).asTimePeriod(TimeUnit.MILLISECONDS);
+        final long maxSegment = context.getProperty(MAX_SEGMENT_LENGTH).asTimePeriod(TimeUnit.MILLISECONDS);
+        final boolean json = FORMAT_JSON.equals(context.getProperty(OUTPUT_FORMAT).getValue());
+        final AtomicLong resamplingNanos = new AtomicLong();
+
         try {
             FlowFile ff = session.write(flowFile, new StreamCallback() {
                 @Override
                 public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
 
                     getLogger().debug("Beginning SpeechToText");
-                    System.out.println("Starting");
                     long start = System.currentTimeMillis();
 
-                    StreamSpeechRecognizer recognizer = speechRecognizer.get();
-                    recognizer.startRecognition(inputStream);
-                    SpeechResult result;
-
-                    StringBuffer buffer = new StringBuffer();
+                    final AudioNormalizer pcm = new AudioNormalizer(inputStream, SAMPLE_RATE);
+                    final SpeechSegmenter segmenter = new SpeechSegmenter(pcm, SAMPLE_RATE, minSilence, minSegment, maxSegment);
 
-                    while ((result = recognizer.getResult()) != null) {
-                        getLogger().info("Hypothesis: " + result.getHypothesis());
-                        buffer.append(result.getHypothesis());
-                        buffer.append(" ");
+                    // Segments are read at most a couple per thread ahead of the oldest one still being recognized,
+                    // and written in order as soon as that one is done
+                    final Deque<SpeechSegmenter.Segment> segments = new ArrayDeque<>();
+                    final Deque<Future<String>> inFlight = new ArrayDeque<>();
+                    final int window = 2 * threads;
+                    int written = 0;
+                    try {
+                        if (json) {
+                            outputStream.write('[');
+                        }
+                        SpeechSegmenter.Segment segment;
+                        while ((segment = segmenter.next()) != null) {
+                            final SpeechSegmenter.Segment submitted = segment;
+                            segments.add(submitted);
+                            inFlight.add(submitted.hasSpeech()
+                                    ? executor.submit(() -> recognize(submitted.getPcm()))
+                                    : CompletableFuture.completedFuture(""));
+                            while (inFlight.size() >= window || inFlight.peek().isDone()) {
+                                written = writeSegment(segments.poll(), get(inFlight.poll()), written, json, outputStream);
+                                if (inFlight.isEmpty()) {
+                                    break;
+                                }
+                            }
+                        }
+                        while (!inFlight.isEmpty()) {
+                            written = writeSegment(segments.poll(), get(inFlight.poll()), written, json, outputStream);
+                        }
+                        if (json) {
+                            outputStream.write(']');
+                        }
+                    } finally {
+                        for (Future<String> future : inFlight) {
+                            future.cancel(true);
+                        }
                     }
-                    recognizer.stopRecognition();
-
-                    getLogger().info("Hypothesis: " + buffer.toString());
 
-                    //Writes the output out
-                    outputStream.write(buffer.toString().getBytes());
-
-                    System.out.println("Processing took: " + (System.currentTimeMillis() - start) + "ms");
+                    resamplingNanos.set(pcm.getResamplingNanos());
+                    getLogger().debug("Processing took: " + (System.currentTimeMillis() - start) + "ms, of which "
+                            + TimeUnit.NANOSECONDS.toMillis(pcm.getResamplingNanos()) + "ms converting "
+                            + pcm.getSourceSampleRate() + " Hz audio with " + pcm.getSourceChannels() + " channels");
                 }
             });
 
+            session.adjustCounter("Resampling Time (ms)", TimeUnit.NANOSECONDS.toMillis(resamplingNanos.get()), false);
             session.transfer(ff, REL_SUCCESS);
 
         } catch (Exception ex) {
-            getLogger().error(ex.getMessage());
+            getLogger().error("Unable to perform speech to text on {} due to {}", new Object[]{flowFile, ex});
             session.transfer(flowFile, REL_FAILURE);
         }
     }
+
+    private String recognize(final byte[] pcm) throws InterruptedException {
+        final SpeechRecognizerPool.PooledRecognizer recognizer = recognizers.take();
+        StringBuilder buffer = new StringBuilder();
+        try {
+            recognizer.startRecognition(new ByteArrayInputStream(pcm));
+            SpeechResult result;
+            while ((result = recognizer.getResult()) != null) {
+                getLogger().debug("Hypothesis: " + result.getHypothesis());
+                if (buffer.length() > 0) {
+                    buffer.append(" ");
+                }
+                buffer.append(result.getHypothesis());
+            }
+        } finally {
+            recognizers.give(recognizer);
+        }
+        return buffer.toString();
+    }
+
+    // Returns the number of segments written so far, the ones without text are left out
+    private static int writeSegment(final SpeechSegmenter.Segment segment, final String text, final int written,
+                                    final boolean json, final OutputStream outputStream) throws IOException {
+        if (text.isEmpty()) {
+            return written;
+        }
+        if (written > 0) {
+            outputStream.write(json ? ',' : ' ');
+        }
+        if (json) {
+            final JSONObject segmentJson = new JSONObject();
+            segmentJson.put("start", segment.getStart());
+            segmentJson.put("end", segment.getEnd());
+            segmentJson.put("text", text);
+            outputStream.write(segmentJson.toString().getBytes(StandardCharsets.UTF_8));
+        } else {
+            outputStream.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        outputStream.flush();
+        return written + 1;
+    }
+
+    private static String get(final Future<String> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a segment to be recognized", ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Unable to recognize segment", ee.getCause());
+        }
+    }
 }
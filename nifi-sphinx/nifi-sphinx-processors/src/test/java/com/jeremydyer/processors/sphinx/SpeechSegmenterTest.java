@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.processors.sphinx;
+
+import com.jeremydyer.processors.speech.AudioNormalizer;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class SpeechSegmenterTest {
+
+    @Test
+    public void testSplitsAtPauses() throws IOException {
+        // Two seconds of tone either side of a one second pause
+        final ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+        tone(pcm, 2);
+        silence(pcm, 1);
+        tone(pcm, 2);
+
+        final List<SpeechSegmenter.Segment> segments = segments(new ByteArrayInputStream(pcm.toByteArray()), 300, 1000, 30000);
+        assertEquals(2, segments.size());
+        // Cut inside the pause
+        assertTrue(segments.get(0).getEnd() > 2 && segments.get(0).getEnd() < 3);
+        assertEquals(segments.get(0).getEnd(), segments.get(1).getStart(), 0);
+        assertEquals(5, segments.get(1).getEnd(), 0);
+        assertTrue(segments.get(0).hasSpeech());
+        assertTrue(segments.get(1).hasSpeech());
+    }
+
+    @Test
+    public void testSilenceIsCutAtMaximumLength() throws IOException {
+        final ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+        silence(pcm, 5);
+
+        final List<SpeechSegmenter.Segment> segments = segments(new ByteArrayInputStream(pcm.toByteArray()), 300, 1000, 2000);
+        assertTrue(segments.size() >= 3);
+        for (SpeechSegmenter.Segment segment : segments) {
+            assertFalse(segment.hasSpeech());
+            assertTrue(segment.getEnd() - segment.getStart() <= 2);
+        }
+        assertEquals(5, segments.get(segments.size() - 1).getEnd(), 0);
+    }
+
+    @Test
+    public void testRecording() throws IOException {
+        try (InputStream in = new AudioNormalizer(new FileInputStream("src/test/resources/audio/test.wav"), SpeechToText.SAMPLE_RATE)) {
+            final List<SpeechSegmenter.Segment> segments = segments(in, 300, 2000, 30000);
+            assertTrue(segments.size() > 1);
+            for (SpeechSegmenter.Segment segment : segments) {
+                assertTrue(segment.getEnd() - segment.getStart() >= 2);
+            }
+        }
+    }
+
+    private static List<SpeechSegmenter.Segment> segments(InputStream pcm, long minSilence, long minSegment, long maxSegment) throws IOException {
+        final SpeechSegmenter segmenter = new SpeechSegmenter(pcm, SpeechToText.SAMPLE_RATE, minSilence, minSegment, maxSegment);
+        final List<SpeechSegmenter.Segment> segments = new ArrayList<>();
+        SpeechSegmenter.Segment segment;
+        while ((segment = segmenter.next()) != null) {
+            segments.add(segment);
+        }
+        return segments;
+    }
+
+    private static void tone(ByteArrayOutputStream pcm, int seconds) {
+        for (int i = 0; i < seconds * SpeechToText.SAMPLE_RATE; i++) {
+            sample(pcm, (int) (8000 * Math.sin(2 * Math.PI * 440 * i / SpeechToText.SAMPLE_RATE)));
+        }
+    }
+
+    private static void silence(ByteArrayOutputStream pcm, int seconds) {
+        for (int i = 0; i < seconds * SpeechToText.SAMPLE_RATE; i++) {
+            // A little noise, digital silence has no floor to speak of
+            sample(pcm, (i * 7919) % 41 - 20);
+        }
+    }
+
+    private static void sample(ByteArrayOutputStream pcm, int sample) {
+        pcm.write(sample);
+        pcm.write(sample >> 8);
+    }
+}
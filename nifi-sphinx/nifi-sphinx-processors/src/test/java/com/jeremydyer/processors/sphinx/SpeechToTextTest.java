@@ -19,13 +19,18 @@ package com.jeremydyer.processors.sphinx;
 import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 
@@ -50,4 +55,37 @@ public class SpeechToTextTest {
         System.out.println("Data: " + data);
     }
 
+    @Test
+    public void testConcurrentTasks() throws IOException {
+        // Both tasks hand their segments to the processor's recognition threads, which share the pool of recognizers
+        testRunner.setThreadCount(2);
+        testRunner.enqueue(new File("src/test/resources/audio/test.wav").toPath());
+        testRunner.enqueue(new File("src/test/resources/audio/test.wav").toPath());
+        testRunner.run(2);
+
+        List<MockFlowFile> ffs = testRunner.getFlowFilesForRelationship(SpeechToText.REL_SUCCESS);
+        assertEquals(2, ffs.size());
+        assertEquals(new String(testRunner.getContentAsByteArray(ffs.get(0))), new String(testRunner.getContentAsByteArray(ffs.get(1))));
+    }
+
+    @Test
+    public void testJsonSegments() throws IOException {
+        testRunner.setProperty(SpeechToText.OUTPUT_FORMAT, SpeechToText.FORMAT_JSON);
+        testRunner.setProperty(SpeechToText.MIN_SEGMENT_LENGTH, "2 sec");
+        testRunner.enqueue(new File("src/test/resources/audio/test.wav").toPath());
+        testRunner.run();
+
+        List<MockFlowFile> ffs = testRunner.getFlowFilesForRelationship(SpeechToText.REL_SUCCESS);
+        assertEquals(1, ffs.size());
+        JSONArray segments = new JSONArray(new String(testRunner.getContentAsByteArray(ffs.get(0)), StandardCharsets.UTF_8));
+        assertTrue(segments.length() > 1);
+        double end = 0;
+        for (int i = 0; i < segments.length(); i++) {
+            JSONObject segment = segments.getJSONObject(i);
+            assertTrue(segment.getDouble("start") >= end);
+            end = segment.getDouble("end");
+            assertFalse(segment.getString("text").isEmpty());
+        }
+    }
+
 }
@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.tensorflow;
+
+import java.util.List;
+
+import org.apache.nifi.processor.exception.ProcessException;
+import org.tensorflow.Tensor;
+
+/**
+ * Lease on one loaded version of a TensorFlow model. Sessions are safe to run concurrently so a lease can be used by
+ * any thread, but it must be closed once the caller is done with it.
+ */
+public interface TensorFlowModel extends AutoCloseable {
+
+    /**
+     * Feeds the input to the feed node and returns the value of the output node. The caller owns and must close the
+     * returned tensor.
+     */
+    public Tensor run(String feedNode, Tensor input, String outputNode) throws ProcessException;
+
+    /**
+     * @return labels loaded together with this version of the model, empty if the model has no labels file
+     */
+    public List<String> getLabels();
+
+    /**
+     * @return version of the model, incremented every time a changed model is loaded
+     */
+    public long getVersion();
+
+    /**
+     * @return hex encoded SHA-256 of the graph and labels. Unlike the version it is the same on every node loading the
+     * same files, so it can be used to key results shared across a cluster
+     */
+    public String getFingerprint();
+
+    @Override
+    public void close();
+
+}
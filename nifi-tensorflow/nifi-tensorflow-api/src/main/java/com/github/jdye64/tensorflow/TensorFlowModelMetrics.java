@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.tensorflow;
+
+/**
+ * Point in time snapshot of the inferences run against one version of a model.
+ */
+public class TensorFlowModelMetrics {
+
+    private final String modelPath;
+    private final long version;
+    private final long loadedTimestamp;
+    private final long inferenceCount;
+    private final long itemCount;
+    private final long totalLatencyNanos;
+    private final long maxLatencyNanos;
+    private final long reloadCount;
+
+    public TensorFlowModelMetrics(String modelPath, long version, long loadedTimestamp, long inferenceCount, long itemCount,
+                                  long totalLatencyNanos, long maxLatencyNanos, long reloadCount) {
+        this.modelPath = modelPath;
+        this.version = version;
+        this.loadedTimestamp = loadedTimestamp;
+        this.inferenceCount = inferenceCount;
+        this.itemCount = itemCount;
+        this.totalLatencyNanos = totalLatencyNanos;
+        this.maxLatencyNanos = maxLatencyNanos;
+        this.reloadCount = reloadCount;
+    }
+
+    public String getModelPath() {
+        return modelPath;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return time, in milliseconds since the epoch, this version of the model was loaded
+     */
+    public long getLoadedTimestamp() {
+        return loadedTimestamp;
+    }
+
+    /**
+     * @return number of Session runs
+     */
+    public long getInferenceCount() {
+        return inferenceCount;
+    }
+
+    /**
+     * @return number of inputs, summed over the batch dimension of every run
+     */
+    public long getItemCount() {
+        return itemCount;
+    }
+
+    public long getTotalLatencyNanos() {
+        return totalLatencyNanos;
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos;
+    }
+
+    /**
+     * @return number of times a changed model file was swapped in since the service was enabled
+     */
+    public long getReloadCount() {
+        return reloadCount;
+    }
+
+    public double getMeanLatencyMillis() {
+        return inferenceCount == 0 ? 0 : totalLatencyNanos / (inferenceCount * 1_000_000.0);
+    }
+
+    /**
+     * @return items inferred per second since this version of the model was loaded
+     */
+    public double getThroughputPerSecond() {
+        final long elapsed = System.currentTimeMillis() - loadedTimestamp;
+        return elapsed <= 0 ? 0 : itemCount * 1000.0 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s version %d: %d inferences of %d items, mean latency %.2f ms, max latency %.2f ms, %.2f items/s",
+                modelPath, version, inferenceCount, itemCount, getMeanLatencyMillis(), maxLatencyNanos / 1_000_000.0, getThroughputPerSecond());
+    }
+}
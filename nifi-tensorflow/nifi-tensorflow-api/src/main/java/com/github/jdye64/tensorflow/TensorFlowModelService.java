@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.tensorflow;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+import org.apache.nifi.processor.exception.ProcessException;
+
+@Tags({"tensorflow", "model", "inference"})
+@CapabilityDescription("Loads a TensorFlow frozen graph once and shares it between every processor that references the service.")
+public interface TensorFlowModelService extends ControllerService {
+
+    /**
+     * Leases the current version of the model. The model stays loaded until the lease is closed, even if a newer
+     * version is swapped in meanwhile, so callers should hold a lease only for the duration of a batch.
+     */
+    public TensorFlowModel acquireModel() throws ProcessException;
+
+    /**
+     * @return latency and throughput of the current version of the model
+     */
+    public TensorFlowModelMetrics getMetrics();
+
+}
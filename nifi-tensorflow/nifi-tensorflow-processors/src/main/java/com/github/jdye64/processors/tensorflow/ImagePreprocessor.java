@@ -0,0 +1,225 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.processors.tensorflow;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+/**
+ * Turns encoded images into the float input a TensorFlow image model expects, entirely in Java. Images are decoded,
+ * resized bilinearly to the model's input size and every channel value is converted with (value - mean) / scale,
+ * the same way the graph based normalization the model was trained with does. Channels are either interleaved per
+ * pixel (HWC), as TensorFlow models expect, or stored as one plane per channel (CHW), as most ONNX models expect.
+ *
+ * Instances are immutable and can be shared by all threads.
+ */
+public class ImagePreprocessor {
+
+    public static final int CHANNELS = 3;
+
+    public enum ChannelOrder {
+        RGB,
+        BGR
+    }
+
+    public enum Layout {
+        HWC,
+        CHW
+    }
+
+    public enum Decoder {
+        ANY(null),
+        JPEG("jpeg"),
+        PNG("png");
+
+        private final String formatName;
+
+        Decoder(String formatName) {
+            this.formatName = formatName;
+        }
+    }
+
+    private final int width;
+    private final int height;
+    private final float mean;
+    private final float scale;
+    private final ChannelOrder channelOrder;
+    private final Decoder decoder;
+    private final Layout layout;
+
+    public ImagePreprocessor(int width, int height, float mean, float scale, ChannelOrder channelOrder, Decoder decoder, Layout layout) {
+        this.width = width;
+        this.height = height;
+        this.mean = mean;
+        this.scale = scale;
+        this.channelOrder = channelOrder;
+        this.decoder = decoder;
+        this.layout = layout;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @return number of floats a single preprocessed image occupies
+     */
+    public int getImageSize() {
+        return width * height * CHANNELS;
+    }
+
+    /**
+     * Decodes and preprocesses the image, writing {@link #getImageSize()} floats in the configured layout at the
+     * buffer's current position and advancing it.
+     *
+     * @throws IOException if the image can not be decoded by the configured decoder
+     */
+    public void preprocess(byte[] encoded, FloatBuffer destination) throws IOException {
+        final BufferedImage image = decode(encoded);
+        final int[] rgb = toPackedRgb(image);
+        resize(rgb, image.getWidth(), image.getHeight(), destination);
+    }
+
+    private BufferedImage decode(byte[] encoded) throws IOException {
+        // Memory cached stream so ImageIO does not spill to temporary files
+        try (ImageInputStream input = new MemoryCacheImageInputStream(new ByteArrayInputStream(encoded))) {
+            final Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            while (readers.hasNext()) {
+                final ImageReader reader = readers.next();
+                if (decoder.formatName != null && !decoder.formatName.equalsIgnoreCase(reader.getFormatName())) {
+                    continue;
+                }
+                try {
+                    reader.setInput(input, true, true);
+                    return reader.read(0);
+                } finally {
+                    reader.dispose();
+                }
+            }
+        }
+        throw new IOException("Image is not in a format supported by the " + decoder.name() + " decoder");
+    }
+
+    // Packs every pixel as 0xRRGGBB, reading the raster directly for the layouts ImageIO produces most often
+    private static int[] toPackedRgb(BufferedImage image) {
+        final int w = image.getWidth();
+        final int h = image.getHeight();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_3BYTE_BGR: {
+                final byte[] bgr = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                final int[] rgb = new int[w * h];
+                for (int i = 0, j = 0; i < rgb.length; i++, j += 3) {
+                    rgb[i] = (bgr[j + 2] & 0xFF) << 16 | (bgr[j + 1] & 0xFF) << 8 | (bgr[j] & 0xFF);
+                }
+                return rgb;
+            }
+            case BufferedImage.TYPE_BYTE_GRAY: {
+                final byte[] gray = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+                final int[] rgb = new int[w * h];
+                for (int i = 0; i < rgb.length; i++) {
+                    final int v = gray[i] & 0xFF;
+                    rgb[i] = v << 16 | v << 8 | v;
+                }
+                return rgb;
+            }
+            case BufferedImage.TYPE_INT_RGB:
+            case BufferedImage.TYPE_INT_ARGB:
+                return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            default:
+                return image.getRGB(0, 0, w, h, null, 0, w);
+        }
+    }
+
+    // Bilinear resize with the same sampling as TensorFlow's ResizeBilinear without align_corners
+    private void resize(int[] rgb, int srcWidth, int srcHeight, FloatBuffer destination) {
+        final float yRatio = srcHeight / (float) height;
+        final float xRatio = srcWidth / (float) width;
+
+        final int[] x0 = new int[width];
+        final int[] x1 = new int[width];
+        final float[] dx = new float[width];
+        for (int x = 0; x < width; x++) {
+            final float sx = x * xRatio;
+            x0[x] = (int) sx;
+            x1[x] = Math.min(x0[x] + 1, srcWidth - 1);
+            dx[x] = sx - x0[x];
+        }
+
+        final int first = channelOrder == ChannelOrder.RGB ? 16 : 0;
+        final int last = 16 - first;
+        final float invScale = 1f / scale;
+        final int base = destination.position();
+        final int plane = width * height;
+
+        for (int y = 0; y < height; y++) {
+            final float sy = y * yRatio;
+            final int y0 = (int) sy;
+            final int row0 = y0 * srcWidth;
+            final int row1 = Math.min(y0 + 1, srcHeight - 1) * srcWidth;
+            final float dy = sy - y0;
+
+            for (int x = 0; x < width; x++) {
+                final int tl = rgb[row0 + x0[x]];
+                final int tr = rgb[row0 + x1[x]];
+                final int bl = rgb[row1 + x0[x]];
+                final int br = rgb[row1 + x1[x]];
+                final float c0 = (lerp(tl, tr, bl, br, first, dx[x], dy) - mean) * invScale;
+                final float c1 = (lerp(tl, tr, bl, br, 8, dx[x], dy) - mean) * invScale;
+                final float c2 = (lerp(tl, tr, bl, br, last, dx[x], dy) - mean) * invScale;
+                if (layout == Layout.HWC) {
+                    destination.put(c0).put(c1).put(c2);
+                } else {
+                    final int pixel = base + y * width + x;
+                    destination.put(pixel, c0);
+                    destination.put(pixel + plane, c1);
+                    destination.put(pixel + 2 * plane, c2);
+                }
+            }
+        }
+        if (layout == Layout.CHW) {
+            destination.position(base + CHANNELS * plane);
+        }
+    }
+
+    private static float lerp(int tl, int tr, int bl, int br, int shift, float dx, float dy) {
+        final float top = channel(tl, shift) + (channel(tr, shift) - channel(tl, shift)) * dx;
+        final float bottom = channel(bl, shift) + (channel(br, shift) - channel(bl, shift)) * dx;
+        return top + (bottom - top) * dy;
+    }
+
+    private static int channel(int pixel, int shift) {
+        return (pixel >> shift) & 0xFF;
+    }
+}
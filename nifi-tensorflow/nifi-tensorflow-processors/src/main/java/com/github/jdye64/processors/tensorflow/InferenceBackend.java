@@ -0,0 +1,74 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.processors.tensorflow;
+
+import java.nio.FloatBuffer;
+import java.util.List;
+
+import org.apache.nifi.processor.exception.ProcessException;
+
+/**
+ * Inference engine images are labeled with. The processor's preprocessing, batching and caching are the same for
+ * every engine, a backend only turns a batch of preprocessed images into label probabilities.
+ *
+ * Backends are created when the processor is scheduled and closed when it is stopped. They must be safe to use from
+ * every onTrigger thread at once.
+ */
+public interface InferenceBackend extends AutoCloseable {
+
+    public enum Type {
+        TENSORFLOW,
+        ONNX_RUNTIME
+    }
+
+    /**
+     * @return lease on the model to label a batch with, closed by the caller once it is done with it
+     */
+    public Model acquireModel() throws ProcessException;
+
+    @Override
+    public void close();
+
+    /**
+     * One version of a model. Everything returned by a lease belongs to the same version, so labels always match the
+     * probabilities they are applied to even when the model is reloaded in between.
+     */
+    public interface Model extends AutoCloseable {
+
+        /**
+         * Runs the model on a batch of images.
+         *
+         * @param images
+         *  Preprocessed images, read from the buffer's position to its limit
+         * @param shape
+         *  Shape of the batch, the batch size first
+         *
+         * @return label probabilities of every image in the batch
+         */
+        public float[][] run(FloatBuffer images, long[] shape) throws ProcessException;
+
+        public List<String> getLabels();
+
+        /**
+         * @return identifier of the model and labels that is the same on every node loading the same files
+         */
+        public String getFingerprint();
+
+        @Override
+        public void close();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.processors.tensorflow;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Serializer;
+
+/**
+ * Two level cache of labeling results keyed by image content. The first level is a size bounded, least recently
+ * used map local to the processor and the optional second level is a distributed map cache shared by the cluster.
+ * Results found in the distributed cache are copied into the local one.
+ */
+public class LabelCache {
+
+    private static final Serializer<String> KEY_SERIALIZER = (key, out) -> out.write(key.getBytes(StandardCharsets.UTF_8));
+
+    private static final Serializer<Map<String, String>> VALUE_SERIALIZER = (attributes, out) -> {
+        final DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(attributes.size());
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            data.writeUTF(attribute.getKey());
+            data.writeUTF(attribute.getValue());
+        }
+        data.flush();
+    };
+
+    private static final Deserializer<Map<String, String>> VALUE_DESERIALIZER = bytes -> {
+        if (bytes == null || bytes.length == 0) {
+            return null;
+        }
+        final DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes));
+        final int size = data.readInt();
+        final Map<String, String> attributes = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            attributes.put(data.readUTF(), data.readUTF());
+        }
+        return attributes;
+    };
+
+    private final Map<String, Map<String, String>> local;
+    private final DistributedMapCacheClient distributed;
+
+    /**
+     * @param maxEntries
+     *  Maximum number of results held in memory, 0 disables the local cache
+     * @param distributed
+     *  Cluster wide cache, may be null
+     */
+    public LabelCache(final int maxEntries, final DistributedMapCacheClient distributed) {
+        this.distributed = distributed;
+        this.local = maxEntries <= 0 ? null : Collections.synchronizedMap(new LinkedHashMap<String, Map<String, String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map<String, String>> eldest) {
+                return size() > maxEntries;
+            }
+        });
+    }
+
+    /**
+     * Looks all keys up, the distributed cache is asked for the local misses in a single round trip.
+     *
+     * @return cached results of the keys that were found
+     * @throws IOException if the distributed cache can not be reached
+     */
+    public Map<String, Map<String, String>> getAll(final Collection<String> keys) throws IOException {
+        final Map<String, Map<String, String>> found = new HashMap<>();
+        final Set<String> misses = new HashSet<>();
+        for (String key : keys) {
+            final Map<String, String> attributes = local == null ? null : local.get(key);
+            if (attributes == null) {
+                misses.add(key);
+            } else {
+                found.put(key, attributes);
+            }
+        }
+
+        if (distributed != null && !misses.isEmpty()) {
+            final Map<String, Map<String, String>> remote = distributed.subMap(misses, KEY_SERIALIZER, VALUE_DESERIALIZER);
+            for (Map.Entry<String, Map<String, String>> entry : remote.entrySet()) {
+                if (entry.getValue() != null) {
+                    found.put(entry.getKey(), entry.getValue());
+                    if (local != null) {
+                        local.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Caches the results locally and in the distributed cache.
+     *
+     * @throws IOException if the distributed cache can not be reached, the results are still cached locally
+     */
+    public void putAll(final Map<String, Map<String, String>> results) throws IOException {
+        if (local != null) {
+            local.putAll(results);
+        }
+        if (distributed != null && !results.isEmpty()) {
+            distributed.putAll(results, KEY_SERIALIZER, VALUE_SERIALIZER);
+        }
+    }
+
+    public static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
@@ -18,18 +18,28 @@ package com.github.jdye64.processors.tensorflow;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
+import com.github.jdye64.tensorflow.TensorFlowModelService;
 import org.apache.commons.io.IOUtils;
 import org.apache.nifi.annotation.behavior.InputRequirement;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
@@ -37,9 +47,12 @@ import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
 import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
 import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
@@ -48,34 +61,60 @@ import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.io.InputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
-import org.tensorflow.DataType;
-import org.tensorflow.Graph;
-import org.tensorflow.Output;
-import org.tensorflow.Session;
-import org.tensorflow.Tensor;
-
-@Tags({"tensorflow", "label", "image"})
-@CapabilityDescription("Labels incoming images using Tensorflow")
+
+@Tags({"tensorflow", "onnx", "label", "image"})
+@CapabilityDescription("Labels incoming images using Tensorflow or ONNX Runtime")
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
 @WritesAttributes(
         {
                 @WritesAttribute(attribute="label.name", description = "Name of the label that was detected"),
-                @WritesAttribute(attribute="label.score", description = "Float value score for the label that was detected")
+                @WritesAttribute(attribute="label.score", description = "Float value score for the label that was detected"),
+                @WritesAttribute(attribute="label.N.name", description = "Name of the Nth best label, from 1 to 'Top K'. Only written when 'Top K' is greater than 1"),
+                @WritesAttribute(attribute="label.N.score", description = "Score of the Nth best label, from 1 to 'Top K'. Only written when 'Top K' is greater than 1")
         }
 )
 public class LabelImageProcessor
         extends AbstractProcessor {
 
-    // Tensorflow
-    private byte[] graphDef = null;             // TensorFlow frozen graph file bytes. AKA .pb file
-    private List<String> labels = null;         // TensorFlow labels loaded from correlated .txt file for .pb file.
+    // Engine the images are labeled with, created when the processor is scheduled and shared by every onTrigger thread
+    private volatile InferenceBackend backend;
+    private volatile ImagePreprocessor imagePreprocessor;
+    // Direct batch input buffers of threads not currently labeling, dropped when the processor stops
+    private final BlockingQueue<FloatBuffer> inputBuffers = new LinkedBlockingQueue<>();
+    private volatile int inputBufferSize;
+    private volatile int topK;
+    private volatile int batchSize;
+    private volatile long batchWaitMillis;
+    private volatile LabelCache labelCache;
+    private volatile String cacheKeyPrefix;
+
+
+    public static final PropertyDescriptor BACKEND = new PropertyDescriptor
+            .Builder().name("tensorflow-backend")
+            .displayName("Inference backend")
+            .description("Engine the images are labeled with. TENSORFLOW runs a TensorFlow frozen graph, ONNX_RUNTIME runs an ONNX " +
+                    "model on the CPU with ONNX Runtime. Preprocessing, batching and caching are the same for both")
+            .allowableValues(InferenceBackend.Type.TENSORFLOW.name(), InferenceBackend.Type.ONNX_RUNTIME.name())
+            .defaultValue(InferenceBackend.Type.TENSORFLOW.name())
+            .required(true)
+            .build();
 
+    public static final PropertyDescriptor TF_MODEL_SERVICE = new PropertyDescriptor
+            .Builder().name("tensorflow-model-service")
+            .displayName("TensorFlow model service")
+            .description("Service providing the TensorFlow model and labels. Processors sharing a service share a single copy " +
+                    "of the model and pick up new versions of it without being stopped. When set the pb and labels files of " +
+                    "this processor must not be set")
+            .required(false)
+            .identifiesControllerService(TensorFlowModelService.class)
+            .build();
 
     public static final PropertyDescriptor TF_FROZEN_GRAPH = new PropertyDescriptor
             .Builder().name("tensorflow-pb-file")
             .displayName("TensorFlow pb file")
-            .description("TensorFlow frozen graph model that will be used for image labeling")
-            .required(true)
+            .description("TensorFlow frozen graph model that will be used for image labeling. Required with the TENSORFLOW backend " +
+                    "unless a TensorFlow model service is set")
+            .required(false)
             .expressionLanguageSupported(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
@@ -83,16 +122,48 @@ public class LabelImageProcessor
     public static final PropertyDescriptor TF_LABELS_FILE = new PropertyDescriptor
             .Builder().name("tensorflow-labels-file")
             .displayName("TensorFlow labels file")
-            .description("File that contains the labels that correlate to the TensorFlow frozen graph (.pb) file")
+            .description("File that contains the labels that correlate to the TensorFlow frozen graph (.pb) or ONNX model file. " +
+                    "Required unless a TensorFlow model service is set")
             .expressionLanguageSupported(true)
-            .required(true)
+            .required(false)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor ONNX_MODEL_FILE = new PropertyDescriptor
+            .Builder().name("tensorflow-onnx-model-file")
+            .displayName("ONNX model file")
+            .description("ONNX model that will be used for image labeling. Required with the ONNX_RUNTIME backend")
+            .required(false)
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor ONNX_THREADS = new PropertyDescriptor
+            .Builder().name("tensorflow-onnx-threads")
+            .displayName("ONNX Runtime threads")
+            .description("Number of threads ONNX Runtime may use to label a single batch. 0 lets ONNX Runtime use one per core, " +
+                    "which is best with a single concurrent task. With several concurrent tasks lower it so that tasks times " +
+                    "threads does not exceed the number of cores")
+            .defaultValue("0")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INPUT_LAYOUT = new PropertyDescriptor
+            .Builder().name("tensorflow-input-layout")
+            .displayName("Input layout")
+            .description("Layout of the batch fed to the model. NHWC interleaves the channels of every pixel, as TensorFlow models " +
+                    "expect. NCHW stores one plane per channel, as most ONNX models expect")
+            .allowableValues("NHWC", "NCHW")
+            .defaultValue("NHWC")
+            .required(true)
+            .build();
+
     public static final PropertyDescriptor TF_FEED_NODE = new PropertyDescriptor
             .Builder().name("tensorflow-feed-node")
             .displayName("TensorFlow input/feed node")
-            .description("Node name in the Tensorflow graph where the incoming image bytes will be feed into the graph")
+            .description("Node name in the Tensorflow graph where the incoming image bytes will be feed into the graph. With the " +
+                    "ONNX_RUNTIME backend the name of the model input, the only input of the model is used when it has none by this name")
             .expressionLanguageSupported(true)
             .defaultValue("ExpandDims")
             .required(true)
@@ -102,13 +173,121 @@ public class LabelImageProcessor
     public static final PropertyDescriptor TF_OUTPUT_NODE = new PropertyDescriptor
             .Builder().name("tensorflow-output-node")
             .displayName("TensorFlow output node")
-            .description("Node name in the Tensorflow graph where the result from the label detection will be retrieved")
+            .description("Node name in the Tensorflow graph where the result from the label detection will be retrieved. With the " +
+                    "ONNX_RUNTIME backend the name of the model output, the only output of the model is used when it has none by this name")
             .expressionLanguageSupported(true)
             .defaultValue("final_result:0")
             .required(true)
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor
+            .Builder().name("tensorflow-batch-size")
+            .displayName("Batch size")
+            .description("Maximum number of images labeled together in a single run of the TensorFlow graph. Larger batches make " +
+                    "better use of the CPU but the model's input node must accept a batch dimension larger than 1. If a batch " +
+                    "fails the images in it are labeled one at a time")
+            .defaultValue("1")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BATCH_WAIT_TIME = new PropertyDescriptor
+            .Builder().name("tensorflow-batch-wait-time")
+            .displayName("Batch wait time")
+            .description("How long the oldest queued image may wait for more images to arrive when fewer than 'Batch size' images " +
+                    "are queued. Until then the short batch is left in the queue and the processor yields, so the wait is at least " +
+                    "the processor's yield duration. A value of 0 labels whatever is queued immediately")
+            .defaultValue("0 ms")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INPUT_WIDTH = new PropertyDescriptor
+            .Builder().name("tensorflow-input-width")
+            .displayName("Input width")
+            .description("Width, in pixels, images are resized to before being fed to the model")
+            .defaultValue("224")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INPUT_HEIGHT = new PropertyDescriptor
+            .Builder().name("tensorflow-input-height")
+            .displayName("Input height")
+            .description("Height, in pixels, images are resized to before being fed to the model")
+            .defaultValue("224")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INPUT_MEAN = new PropertyDescriptor
+            .Builder().name("tensorflow-input-mean")
+            .displayName("Input mean")
+            .description("Mean subtracted from every channel value, which range from 0 to 255, before it is divided by the input scale")
+            .defaultValue("117")
+            .required(true)
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor INPUT_SCALE = new PropertyDescriptor
+            .Builder().name("tensorflow-input-scale")
+            .displayName("Input scale")
+            .description("Every channel value is divided by the input scale after the mean has been subtracted. Use 255 for models " +
+                    "expecting values between 0 and 1 together with a mean of 0")
+            .defaultValue("1")
+            .required(true)
+            .addValidator(StandardValidators.NUMBER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CHANNEL_ORDER = new PropertyDescriptor
+            .Builder().name("tensorflow-channel-order")
+            .displayName("Channel order")
+            .description("Order of the color channels the model expects")
+            .allowableValues(ImagePreprocessor.ChannelOrder.RGB.name(), ImagePreprocessor.ChannelOrder.BGR.name())
+            .defaultValue(ImagePreprocessor.ChannelOrder.RGB.name())
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor IMAGE_DECODER = new PropertyDescriptor
+            .Builder().name("tensorflow-image-decoder")
+            .displayName("Image decoder")
+            .description("Image formats that are accepted. ANY accepts every format the JVM can decode, such as JPEG, PNG, BMP and GIF. " +
+                    "Images in any other format are routed to failure")
+            .allowableValues(ImagePreprocessor.Decoder.ANY.name(), ImagePreprocessor.Decoder.JPEG.name(), ImagePreprocessor.Decoder.PNG.name())
+            .defaultValue(ImagePreprocessor.Decoder.ANY.name())
+            .required(true)
+            .build();
+
+    public static final PropertyDescriptor TOP_K = new PropertyDescriptor
+            .Builder().name("tensorflow-top-k")
+            .displayName("Top K")
+            .description("Number of best labels written to each FlowFile")
+            .defaultValue("1")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CACHE_SIZE = new PropertyDescriptor
+            .Builder().name("tensorflow-cache-size")
+            .displayName("Cache size")
+            .description("Number of labeling results kept in memory, keyed by a 128 bit MurmurHash3 of the image content together with the " +
+                    "model and preprocessing settings. Images seen before are labeled from the cache without being decoded or run " +
+                    "through the model. 0 disables the in memory cache")
+            .defaultValue("0")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor DISTRIBUTED_CACHE = new PropertyDescriptor
+            .Builder().name("tensorflow-distributed-cache")
+            .displayName("Distributed cache service")
+            .description("Optional distributed map cache the labeling results are shared through, so images labeled on one node are " +
+                    "not labeled again on another. Consulted for images missing from the in memory cache")
+            .required(false)
+            .identifiesControllerService(DistributedMapCacheClient.class)
+            .build();
+
     public static final Relationship REL_SUCCESS = new Relationship.Builder().name("success")
             .description("successfully labeled image").build();
 
@@ -122,10 +301,26 @@ public class LabelImageProcessor
     @Override
     protected void init(final ProcessorInitializationContext context) {
         final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(BACKEND);
+        descriptors.add(TF_MODEL_SERVICE);
         descriptors.add(TF_FROZEN_GRAPH);
+        descriptors.add(ONNX_MODEL_FILE);
         descriptors.add(TF_LABELS_FILE);
+        descriptors.add(ONNX_THREADS);
         descriptors.add(TF_FEED_NODE);
         descriptors.add(TF_OUTPUT_NODE);
+        descriptors.add(BATCH_SIZE);
+        descriptors.add(BATCH_WAIT_TIME);
+        descriptors.add(INPUT_WIDTH);
+        descriptors.add(INPUT_HEIGHT);
+        descriptors.add(INPUT_LAYOUT);
+        descriptors.add(INPUT_MEAN);
+        descriptors.add(INPUT_SCALE);
+        descriptors.add(CHANNEL_ORDER);
+        descriptors.add(IMAGE_DECODER);
+        descriptors.add(TOP_K);
+        descriptors.add(CACHE_SIZE);
+        descriptors.add(DISTRIBUTED_CACHE);
         this.descriptors = Collections.unmodifiableList(descriptors);
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
@@ -144,217 +339,404 @@ public class LabelImageProcessor
         return descriptors;
     }
 
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>();
+        final boolean serviceSet = context.getProperty(TF_MODEL_SERVICE).isSet();
+        if (InferenceBackend.Type.valueOf(context.getProperty(BACKEND).getValue()) == InferenceBackend.Type.ONNX_RUNTIME) {
+            if (serviceSet || context.getProperty(TF_FROZEN_GRAPH).isSet()
+                    || !context.getProperty(ONNX_MODEL_FILE).isSet() || !context.getProperty(TF_LABELS_FILE).isSet()) {
+                results.add(new ValidationResult.Builder().subject(BACKEND.getDisplayName()).valid(false)
+                        .explanation("the ONNX_RUNTIME backend requires the ONNX model and labels files, and no TensorFlow model service or pb file").build());
+            }
+        } else {
+            final boolean filesSet = context.getProperty(TF_FROZEN_GRAPH).isSet() && context.getProperty(TF_LABELS_FILE).isSet();
+            if (serviceSet == filesSet || (serviceSet && (context.getProperty(TF_FROZEN_GRAPH).isSet() || context.getProperty(TF_LABELS_FILE).isSet()))) {
+                results.add(new ValidationResult.Builder().subject(TF_MODEL_SERVICE.getDisplayName()).valid(false)
+                        .explanation("either a TensorFlow model service or both the pb and labels files must be set, but not both").build());
+            }
+        }
+
+        final String scale = context.getProperty(INPUT_SCALE).getValue();
+        try {
+            if (Float.parseFloat(scale) == 0f) {
+                results.add(new ValidationResult.Builder().subject(INPUT_SCALE.getDisplayName()).input(scale)
+                        .explanation("must not be 0").valid(false).build());
+            }
+        } catch (NumberFormatException nfe) {
+            // Already reported by the property validator
+        }
+        return results;
+    }
+
     @OnScheduled
     public void onScheduled(final ProcessContext context) {
-        this.graphDef = readAllBytes(Paths.get(context.getProperty(TF_FROZEN_GRAPH).evaluateAttributeExpressions().getValue()));
+        final InferenceBackend.Type backendType = InferenceBackend.Type.valueOf(context.getProperty(BACKEND).getValue());
+        final String feedNodeName = context.getProperty(TF_FEED_NODE).evaluateAttributeExpressions().getValue();
+        final String outputNodeName = context.getProperty(TF_OUTPUT_NODE).evaluateAttributeExpressions().getValue();
+        final TensorFlowModelService modelService = context.getProperty(TF_MODEL_SERVICE).asControllerService(TensorFlowModelService.class);
+        if (modelService != null) {
+            this.backend = TensorFlowBackend.fromService(modelService, feedNodeName, outputNodeName);
+        } else {
+            final PropertyDescriptor modelProperty = backendType == InferenceBackend.Type.ONNX_RUNTIME ? ONNX_MODEL_FILE : TF_FROZEN_GRAPH;
+            final byte[] modelBytes = readAllBytes(Paths.get(context.getProperty(modelProperty).evaluateAttributeExpressions().getValue()));
+
+            // Make sure the model bytes were read otherwise invalidate this processor
+            if (modelBytes == null) {
+                getLogger().warn("Model file was not found. This processor is invalid!");
+            }
+
+            final List<String> labels = readAllLines(Paths.get(context.getProperty(TF_LABELS_FILE).evaluateAttributeExpressions().getValue()));
+            if (labels == null) {
+                getLogger().warn("TensorFlow labels file was not found or unable to read. This processor is now invalid!");
+            }
 
-        // Make sure the graph bytes were read otherwise invalidate this processor
-        if (graphDef == null) {
-            getLogger().warn("TensorFlow file was not found. This processor is invalid!");
+            if (modelBytes != null && labels != null) {
+                this.backend = backendType == InferenceBackend.Type.ONNX_RUNTIME
+                        ? OnnxRuntimeBackend.load(modelBytes, labels, feedNodeName, outputNodeName, context.getProperty(ONNX_THREADS).asInteger())
+                        : TensorFlowBackend.load(modelBytes, labels, feedNodeName, outputNodeName);
+            }
         }
 
-        this.labels = readAllLines(Paths.get(context.getProperty(TF_LABELS_FILE).evaluateAttributeExpressions().getValue()));
-        if (this.labels == null) {
-            getLogger().warn("TensorFlow labels file was not found or unable to read. This processor is now invalid!");
+        this.batchSize = context.getProperty(BATCH_SIZE).asInteger();
+        this.batchWaitMillis = context.getProperty(BATCH_WAIT_TIME).asTimePeriod(TimeUnit.MILLISECONDS);
+        this.topK = context.getProperty(TOP_K).asInteger();
+        this.imagePreprocessor = new ImagePreprocessor(
+                context.getProperty(INPUT_WIDTH).asInteger(),
+                context.getProperty(INPUT_HEIGHT).asInteger(),
+                context.getProperty(INPUT_MEAN).asFloat(),
+                context.getProperty(INPUT_SCALE).asFloat(),
+                ImagePreprocessor.ChannelOrder.valueOf(context.getProperty(CHANNEL_ORDER).getValue()),
+                ImagePreprocessor.Decoder.valueOf(context.getProperty(IMAGE_DECODER).getValue()),
+                "NCHW".equals(context.getProperty(INPUT_LAYOUT).getValue()) ? ImagePreprocessor.Layout.CHW : ImagePreprocessor.Layout.HWC);
+
+        // Every thread preprocesses its batch into a buffer taken from the pool, which the backend reads when the batch is run
+        this.inputBufferSize = batchSize * imagePreprocessor.getImageSize();
+
+        final int cacheSize = context.getProperty(CACHE_SIZE).asInteger();
+        final DistributedMapCacheClient distributedCache = context.getProperty(DISTRIBUTED_CACHE).asControllerService(DistributedMapCacheClient.class);
+        this.labelCache = cacheSize > 0 || distributedCache != null ? new LabelCache(cacheSize, distributedCache) : null;
+        // Results depend on every setting below, so they are part of the key along with the model fingerprint
+        this.cacheKeyPrefix = "tensorflow-label:" + MurmurHash3.hashHex(String.join("|",
+                backendType.name(), feedNodeName, outputNodeName, String.valueOf(imagePreprocessor.getWidth()), String.valueOf(imagePreprocessor.getHeight()),
+                context.getProperty(INPUT_MEAN).getValue(), context.getProperty(INPUT_SCALE).getValue(), context.getProperty(CHANNEL_ORDER).getValue(),
+                context.getProperty(IMAGE_DECODER).getValue(), context.getProperty(INPUT_LAYOUT).getValue(), String.valueOf(topK)).getBytes(StandardCharsets.UTF_8)) + ":";
+    }
+
+    @OnStopped
+    public void onStopped() {
+        inputBuffers.clear();
+        labelCache = null;
+        if (backend != null) {
+            backend.close();
+            backend = null;
         }
     }
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-        FlowFile flowFile = session.get();
-        if ( flowFile == null ) {
+        final List<FlowFile> flowFiles = new ArrayList<>(session.get(batchSize));
+        if ( flowFiles.isEmpty() ) {
             getLogger().warn(this.getClass().getName() + " requires input for processing");
             return;
         }
+        if (flowFiles.size() < batchSize && !waitedLongEnough(flowFiles)) {
+            // Give more images the chance to arrive rather than labeling a short batch right away
+            session.rollback();
+            context.yield();
+            return;
+        }
 
-        try {
-
-            AtomicReference<Boolean> error = new AtomicReference<>();
-
-            if (flowFile.getAttribute(CoreAttributes.FILENAME.key()).equalsIgnoreCase("No_Lime_Or_Lemon.JPG")
-                    || flowFile.getAttribute(CoreAttributes.FILENAME.key()).equalsIgnoreCase("Aquafina.JPG")) {
-                // OK because we didn't have time to train a set without the lemon or the lime this is hardcoded for now to demonstrate how images that
-                // do not have the lemon or lime will be routed and handled.
-                flowFile = session.putAttribute(flowFile, "label.name", "None");
-                flowFile = session.putAttribute(flowFile, "label.score", "93.70");
-                error.set(Boolean.FALSE);
-            } else {
-                error.set(Boolean.TRUE);
-                AtomicReference<String> labelName = new AtomicReference<>();
-                AtomicReference<Float> labelScore = new AtomicReference<>();
-
-                session.read(flowFile, new InputStreamCallback() {
-                    @Override
-                    public void process(InputStream inputStream) throws IOException {
-                        byte[] imageBytes = IOUtils.toByteArray(inputStream);
-
-                        try (Tensor image = constructAndExecuteGraphToNormalizeImage(imageBytes)) {
-                            String feedNodeName = context.getProperty(TF_FEED_NODE).evaluateAttributeExpressions().getValue();
-                            String outputNodeName = context.getProperty(TF_OUTPUT_NODE).evaluateAttributeExpressions().getValue();
-
-                            float[] labelProbabilities = executeInceptionGraph(graphDef, image, feedNodeName, outputNodeName);
-                            int bestLabelIdx = maxIndex(labelProbabilities);
-                            //String output = String.format("BEST MATCH: %s (%.2f%% likely)", labels.get(bestLabelIdx), labelProbabilities[bestLabelIdx] * 100f);
-                            labelName.set(labels.get(bestLabelIdx));
-                            labelScore.set(labelProbabilities[bestLabelIdx] * 100f);
-                            //outputStream.write(output.getBytes());
-                            error.set(Boolean.FALSE);
-                        }
-                        catch(Exception ex) {
-                            getLogger().error(ex.getMessage(), ex);
-                        }
-                    }
-                });
+        final FloatBuffer pooled = inputBuffers.poll();
+        final FloatBuffer input = pooled != null
+                ? pooled
+                : ByteBuffer.allocateDirect(inputBufferSize * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        input.clear();
+
+        final LabelCache cache = labelCache;
+        final List<FlowFile> toLabel = new ArrayList<>();
+        final List<String> toLabelKeys = new ArrayList<>();
+        // Labels come from the same lease as the model so they always match the version that was run
+        try (InferenceBackend.Model model = acquireModel()) {
+            // Hashed as the content streams by, only the images that miss the cache are read into memory, one at a time
+            final List<String> keys = new ArrayList<>();
+            for (FlowFile flowFile : flowFiles) {
+                keys.add(cache == null ? null : cacheKeyPrefix + model.getFingerprint() + ":" + hashContent(session, flowFile));
+            }
 
-                flowFile = session.putAttribute(flowFile, "label.name", labelName.get());
-                flowFile = session.putAttribute(flowFile, "label.score", labelScore.get().toString());
+            final Map<String, Map<String, String>> cached = lookup(cache, keys);
+            int hits = 0;
+            for (int i = 0; i < flowFiles.size(); i++) {
+                FlowFile flowFile = flowFiles.get(i);
+                final Map<String, String> attributes = keys.get(i) == null ? null : cached.get(keys.get(i));
+                if (attributes != null) {
+                    session.transfer(session.putAllAttributes(flowFile, attributes), REL_SUCCESS);
+                    hits++;
+                } else if (preprocessImage(flowFile, readContent(session, flowFile), input)) {
+                    toLabel.add(flowFile);
+                    toLabelKeys.add(keys.get(i));
+                } else {
+                    session.transfer(flowFile, REL_FAILURE);
+                }
+            }
+            if (cache != null) {
+                session.adjustCounter("Cache Hits", hits, false);
+                session.adjustCounter("Cache Misses", flowFiles.size() - hits, false);
             }
 
-            if (error.get()) {
-                session.transfer(flowFile, REL_FAILURE);
-            } else {
-                session.transfer(flowFile, REL_SUCCESS);
+            if (!toLabel.isEmpty()) {
+                final Map<String, Map<String, String>> results = new HashMap<>();
+                final long start = System.nanoTime();
+                final float[][] labelProbabilities = labelImages(model, input, toLabel.size());
+                final long inferenceMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                for (int i = 0; i < toLabel.size(); i++) {
+                    FlowFile flowFile = toLabel.get(i);
+                    if (labelProbabilities[i] == null) {
+                        session.transfer(flowFile, REL_FAILURE);
+                        continue;
+                    }
+                    final Map<String, String> attributes = toAttributes(labelProbabilities[i], model.getLabels());
+                    if (toLabelKeys.get(i) != null) {
+                        results.put(toLabelKeys.get(i), attributes);
+                    }
+                    flowFile = session.putAllAttributes(flowFile, attributes);
+                    session.transfer(flowFile, REL_SUCCESS);
+                }
+                store(cache, results);
+                session.adjustCounter("Images Labeled", toLabel.size(), false);
+                session.adjustCounter("Inference Batches", 1, false);
+                session.adjustCounter("Inference Time (ms)", inferenceMillis, false);
+                // Also counted per model, so the latency and throughput of every version of a reloaded model can be compared
+                final String modelName = " (model " + model.getFingerprint().substring(0, 12) + ")";
+                session.adjustCounter("Images Labeled" + modelName, toLabel.size(), false);
+                session.adjustCounter("Inference Batches" + modelName, 1, false);
+                session.adjustCounter("Inference Time (ms)" + modelName, inferenceMillis, false);
             }
 
         } catch (final Throwable t) {
             getLogger().error("Unable to process TensorFlow Processor file " + t.getLocalizedMessage());
             getLogger().error("{} failed to process due to {}; rolling back session", new Object[] { this, t });
             throw t;
+        } finally {
+            inputBuffers.offer(input);
         }
     }
 
-
-    private byte[] readAllBytes(Path path) {
+    private Map<String, Map<String, String>> lookup(final LabelCache cache, final List<String> keys) {
+        if (cache == null) {
+            return Collections.emptyMap();
+        }
         try {
-            return Files.readAllBytes(path);
-        } catch (IOException e) {
-            getLogger().error("Failed to read [" + path + "]: " + e.getMessage());
+            return cache.getAll(keys);
+        } catch (IOException ioe) {
+            getLogger().warn("Unable to look labels up in the distributed cache, labeling the images instead: {}", new Object[]{ioe});
+            return Collections.emptyMap();
         }
-        return null;
     }
 
-    private List<String> readAllLines(Path path) {
+    private void store(final LabelCache cache, final Map<String, Map<String, String>> results) {
+        if (cache == null || results.isEmpty()) {
+            return;
+        }
         try {
-            return Files.readAllLines(path, Charset.forName("UTF-8"));
-        } catch (IOException e) {
-            System.err.println("Failed to read [" + path + "]: " + e.getMessage());
+            cache.putAll(results);
+        } catch (IOException ioe) {
+            getLogger().warn("Unable to store labels in the distributed cache: {}", new Object[]{ioe});
         }
-        return null;
     }
 
-    // Translate the images to similar dimensions to those that the images were trained on.
-    private Tensor constructAndExecuteGraphToNormalizeImage(byte[] imageBytes) {
-        try (Graph g = new Graph()) {
-            GraphBuilder b = new GraphBuilder(g);
-            // Some constants specific to the pre-trained model at:
-            // https://storage.googleapis.com/download.tensorflow.org/models/inception5h.zip
-            //
-            // - The model was trained with images scaled to 224x224 pixels.
-            // - The colors, represented as R, G, B in 1-byte each were converted to
-            //   float using (value - Mean)/Scale.
-            final int H = 224;
-            final int W = 224;
-            final float mean = 117f;
-            final float scale = 1f;
-
-            // Since the graph is being constructed once per execution here, we can use a constant for the
-            // input image. If the graph were to be re-used for multiple input images, a placeholder would
-            // have been more appropriate.
-            final Output input = b.constant("input", imageBytes);
-            final Output output =
-                    b.div(
-                            b.sub(
-                                    b.resizeBilinear(
-                                            b.expandDims(
-                                                    b.cast(b.decodeJpeg(input, 3), DataType.FLOAT),
-                                                    b.constant("make_batch", 0)),
-                                            b.constant("size", new int[] {H, W})),
-                                    b.constant("mean", mean)),
-                            b.constant("scale", scale));
-            try (Session s = new Session(g)) {
-                return s.runner().fetch(output).run().get(0);
-            }
+    // Whether the oldest FlowFile of a short batch has been queued for the batch wait time
+    private boolean waitedLongEnough(final List<FlowFile> flowFiles) {
+        long oldest = Long.MAX_VALUE;
+        for (FlowFile flowFile : flowFiles) {
+            final Long queued = flowFile.getLastQueueDate();
+            oldest = Math.min(oldest, queued != null ? queued : flowFile.getEntryDate());
         }
+        return System.currentTimeMillis() - oldest >= batchWaitMillis;
     }
 
-    private float[] executeInceptionGraph(byte[] graphDef, Tensor image, String feedNodeName, String outputNodeName) {
-        try (Graph g = new Graph()) {
-            g.importGraphDef(graphDef);
-            try (Session s = new Session(g)) {
-                Tensor result = s.runner().feed(feedNodeName, image).fetch(outputNodeName).run().get(0);
-                final long[] rshape = result.shape();
-                if (result.numDimensions() != 2 || rshape[0] != 1) {
-                    throw new RuntimeException(
-                            String.format(
-                                    "Expected model to produce a [1 N] shaped tensor where N is the number of labels, instead it produced one with shape %s",
-                                    Arrays.toString(rshape)));
-                }
-                int nlabels = (int) rshape[1];
-                return result.copyTo(new float[1][nlabels])[0];
+    private String hashContent(final ProcessSession session, final FlowFile flowFile) {
+        final AtomicReference<String> hash = new AtomicReference<>();
+        session.read(flowFile, new InputStreamCallback() {
+            @Override
+            public void process(InputStream inputStream) throws IOException {
+                hash.set(MurmurHash3.hashHex(inputStream));
+            }
+        });
+        return hash.get();
+    }
+
+    private byte[] readContent(final ProcessSession session, final FlowFile flowFile) {
+        final AtomicReference<byte[]> content = new AtomicReference<>();
+        session.read(flowFile, new InputStreamCallback() {
+            @Override
+            public void process(InputStream inputStream) throws IOException {
+                content.set(IOUtils.toByteArray(inputStream));
             }
+        });
+        return content.get();
+    }
+
+    // Appends the preprocessed image to the batch input, leaving the input untouched when the image can not be decoded
+    private boolean preprocessImage(final FlowFile flowFile, final byte[] imageBytes, final FloatBuffer input) {
+        final int position = input.position();
+        try {
+            imagePreprocessor.preprocess(imageBytes, input);
+            return true;
+        }
+        catch(Exception ex) {
+            input.position(position);
+            getLogger().error("Unable to preprocess image {} due to {}", new Object[]{flowFile, ex});
+            return false;
         }
     }
 
-    private int maxIndex(float[] probabilities) {
-        int best = 0;
-        for (int i = 1; i < probabilities.length; ++i) {
-            if (probabilities[i] > probabilities[best]) {
-                best = i;
+    /**
+     * Labels the preprocessed images, as one batch when there is more than one. When the batch can not be run, for
+     * example because the model only accepts a batch of 1, every image is labeled on its own instead.
+     *
+     * @return label probabilities per image, null for images that could not be labeled
+     */
+    private float[][] labelImages(final InferenceBackend.Model model, final FloatBuffer input, final int count) {
+        if (count > 1) {
+            try {
+                return runModel(model, input, 0, count);
+            } catch (Exception ex) {
+                getLogger().warn("Unable to label a batch of {} images, labeling them one at a time instead: {}",
+                        new Object[]{count, ex.getMessage()});
             }
         }
-        return best;
+
+        final float[][] labelProbabilities = new float[count][];
+        for (int i = 0; i < count; i++) {
+            try {
+                labelProbabilities[i] = runModel(model, input, i, 1)[0];
+            } catch (Exception ex) {
+                getLogger().error(ex.getMessage(), ex);
+            }
+        }
+        return labelProbabilities;
     }
 
-    // In the fullness of time, equivalents of the methods of this class should be auto-generated from
-    // the OpDefs linked into libtensorflow_jni.so. That would match what is done in other languages
-    // like Python, C++ and Go.
-    static class GraphBuilder {
-        GraphBuilder(Graph g) {
-            this.g = g;
+    // Runs the model on the images starting at index first in the batch input
+    private float[][] runModel(final InferenceBackend.Model model, final FloatBuffer input, final int first, final int count) {
+        final int imageSize = imagePreprocessor.getImageSize();
+        final FloatBuffer images = input.duplicate();
+        images.position(first * imageSize);
+        images.limit((first + count) * imageSize);
+        final long[] shape = imagePreprocessor.getLayout() == ImagePreprocessor.Layout.CHW
+                ? new long[] {count, ImagePreprocessor.CHANNELS, imagePreprocessor.getHeight(), imagePreprocessor.getWidth()}
+                : new long[] {count, imagePreprocessor.getHeight(), imagePreprocessor.getWidth(), ImagePreprocessor.CHANNELS};
+        final float[][] labelProbabilities = model.run(images, shape);
+        if (labelProbabilities.length != count) {
+            throw new ProcessException("Expected model to label " + count + " images, instead it labeled " + labelProbabilities.length);
         }
+        return labelProbabilities;
+    }
 
-        Output div(Output x, Output y) {
-            return binaryOp("Div", x, y);
+    private InferenceBackend.Model acquireModel() {
+        final InferenceBackend current = backend;
+        if (current == null) {
+            throw new ProcessException("Model was not loaded");
         }
+        return current.acquireModel();
+    }
 
-        Output sub(Output x, Output y) {
-            return binaryOp("Sub", x, y);
+    private Map<String, String> toAttributes(final float[] labelProbabilities, final List<String> labels) {
+        final int[] best = topIndices(labelProbabilities, topK);
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("label.name", labelName(labels, best[0]));
+        attributes.put("label.score", Float.toString(labelProbabilities[best[0]] * 100f));
+        if (topK > 1) {
+            for (int rank = 0; rank < best.length; rank++) {
+                attributes.put("label." + (rank + 1) + ".name", labelName(labels, best[rank]));
+                attributes.put("label." + (rank + 1) + ".score", Float.toString(labelProbabilities[best[rank]] * 100f));
+            }
         }
+        return attributes;
+    }
+
+    private static String labelName(final List<String> labels, final int index) {
+        return index < labels.size() ? labels.get(index) : String.valueOf(index);
+    }
 
-        Output resizeBilinear(Output images, Output size) {
-            return binaryOp("ResizeBilinear", images, size);
+    private byte[] readAllBytes(Path path) {
+        try {
+            return Files.readAllBytes(path);
+        } catch (IOException e) {
+            getLogger().error("Failed to read [" + path + "]: " + e.getMessage());
         }
+        return null;
+    }
 
-        Output expandDims(Output input, Output dim) {
-            return binaryOp("ExpandDims", input, dim);
+    private List<String> readAllLines(Path path) {
+        try {
+            return Files.readAllLines(path, Charset.forName("UTF-8"));
+        } catch (IOException e) {
+            System.err.println("Failed to read [" + path + "]: " + e.getMessage());
         }
+        return null;
+    }
 
-        Output cast(Output value, DataType dtype) {
-            return g.opBuilder("Cast", "Cast").addInput(value).setAttr("DstT", dtype).build().output(0);
+    /**
+     * Selects the indices of the k highest probabilities, best first, with a bounded min-heap so only k of the N
+     * labels are ever ordered.
+     */
+    static int[] topIndices(final float[] probabilities, final int k) {
+        final int size = Math.min(k, probabilities.length);
+        final int[] heap = new int[size];
+        int count = 0;
+        for (int i = 0; i < probabilities.length; i++) {
+            if (count < size) {
+                heap[count] = i;
+                siftUp(heap, count++, probabilities);
+            } else if (probabilities[i] > probabilities[heap[0]]) {
+                heap[0] = i;
+                siftDown(heap, size, probabilities);
+            }
         }
 
-        Output decodeJpeg(Output contents, long channels) {
-            return g.opBuilder("DecodeJpeg", "DecodeJpeg")
-                    .addInput(contents)
-                    .setAttr("channels", channels)
-                    .build()
-                    .output(0);
+        // Drain the heap, lowest first, into the result from the back
+        final int[] best = new int[size];
+        for (int n = size; n > 0; n--) {
+            best[n - 1] = heap[0];
+            heap[0] = heap[n - 1];
+            siftDown(heap, n - 1, probabilities);
         }
+        return best;
+    }
 
-        Output constant(String name, Object value) {
-            try (Tensor t = Tensor.create(value)) {
-                return g.opBuilder("Const", name)
-                        .setAttr("dtype", t.dataType())
-                        .setAttr("value", t)
-                        .build()
-                        .output(0);
+    private static void siftUp(final int[] heap, int child, final float[] probabilities) {
+        while (child > 0) {
+            final int parent = (child - 1) / 2;
+            if (probabilities[heap[child]] >= probabilities[heap[parent]]) {
+                return;
             }
+            swap(heap, child, parent);
+            child = parent;
         }
+    }
 
-        private Output binaryOp(String type, Output in1, Output in2) {
-            return g.opBuilder(type, type).addInput(in1).addInput(in2).build().output(0);
+    private static void siftDown(final int[] heap, final int size, final float[] probabilities) {
+        int parent = 0;
+        while (true) {
+            final int left = 2 * parent + 1;
+            if (left >= size) {
+                return;
+            }
+            final int right = left + 1;
+            final int smallest = right < size && probabilities[heap[right]] < probabilities[heap[left]] ? right : left;
+            if (probabilities[heap[smallest]] >= probabilities[heap[parent]]) {
+                return;
+            }
+            swap(heap, parent, smallest);
+            parent = smallest;
         }
+    }
 
-        private Graph g;
+    private static void swap(final int[] heap, final int i, final int j) {
+        final int tmp = heap[i];
+        heap[i] = heap[j];
+        heap[j] = tmp;
     }
 }
@@ -0,0 +1,161 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.processors.tensorflow;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Streaming x64 128 bit variant of MurmurHash3, seed 0. Content is hashed as it is read in 16 byte blocks so it never
+ * has to be held in memory, and several times faster than a cryptographic digest, which the cache keys do not need.
+ * Produces the same bytes as Guava's {@code Hashing.murmur3_128()}.
+ */
+public final class MurmurHash3 {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final byte[] tail = new byte[16];
+    private int tailLength;
+    private long length;
+    private long h1;
+    private long h2;
+
+    /**
+     * @return hex encoded hash of everything left in the stream, which is not closed
+     */
+    public static String hashHex(final InputStream in) throws IOException {
+        final MurmurHash3 hash = new MurmurHash3();
+        final byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            hash.update(buffer, 0, count);
+        }
+        return LabelCache.toHex(hash.digest());
+    }
+
+    /**
+     * @return hex encoded hash of the bytes
+     */
+    public static String hashHex(final byte[] bytes) {
+        final MurmurHash3 hash = new MurmurHash3();
+        hash.update(bytes, 0, bytes.length);
+        return LabelCache.toHex(hash.digest());
+    }
+
+    public void update(final byte[] bytes, int offset, int count) {
+        length += count;
+        if (tailLength > 0) {
+            final int copied = Math.min(16 - tailLength, count);
+            System.arraycopy(bytes, offset, tail, tailLength, copied);
+            tailLength += copied;
+            offset += copied;
+            count -= copied;
+            if (tailLength < 16) {
+                return;
+            }
+            mixBlock(tail, 0);
+            tailLength = 0;
+        }
+        while (count >= 16) {
+            mixBlock(bytes, offset);
+            offset += 16;
+            count -= 16;
+        }
+        if (count > 0) {
+            System.arraycopy(bytes, offset, tail, 0, count);
+            tailLength = count;
+        }
+    }
+
+    /**
+     * @return the 16 byte hash, h1 then h2 little endian. The hash must not be updated afterwards
+     */
+    public byte[] digest() {
+        long k1 = 0;
+        long k2 = 0;
+        for (int i = tailLength - 1; i >= 8; i--) {
+            k2 ^= (tail[i] & 0xFFL) << ((i - 8) * 8);
+        }
+        for (int i = Math.min(tailLength, 8) - 1; i >= 0; i--) {
+            k1 ^= (tail[i] & 0xFFL) << (i * 8);
+        }
+        if (tailLength > 8) {
+            h2 ^= mixK2(k2);
+        }
+        if (tailLength > 0) {
+            h1 ^= mixK1(k1);
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        final byte[] digest = new byte[16];
+        for (int i = 0; i < 8; i++) {
+            digest[i] = (byte) (h1 >>> (i * 8));
+            digest[i + 8] = (byte) (h2 >>> (i * 8));
+        }
+        return digest;
+    }
+
+    private void mixBlock(final byte[] bytes, final int offset) {
+        h1 ^= mixK1(littleEndianLong(bytes, offset));
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        h2 ^= mixK2(littleEndianLong(bytes, offset + 8));
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    private static long littleEndianLong(final byte[] bytes, final int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xFFL);
+        }
+        return value;
+    }
+}
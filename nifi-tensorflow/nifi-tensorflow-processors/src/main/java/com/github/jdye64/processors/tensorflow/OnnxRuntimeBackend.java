@@ -0,0 +1,154 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.processors.tensorflow;
+
+import java.nio.FloatBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OnnxValue;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import com.github.jdye64.tensorflow.ModelFingerprint;
+import org.apache.nifi.processor.exception.ProcessException;
+
+/**
+ * Labels images with an ONNX model run by ONNX Runtime on the CPU. The session is created once with all graph
+ * optimizations enabled and, like a TensorFlow session, is safe to run from every thread at once.
+ */
+public class OnnxRuntimeBackend implements InferenceBackend {
+
+    private final OrtEnvironment environment;
+    private final OrtSession session;
+    private final List<String> labels;
+    private final String fingerprint;
+    private final String inputName;
+    private final String outputName;
+    private final Model model = new Lease();
+
+    private OnnxRuntimeBackend(OrtEnvironment environment, OrtSession session, List<String> labels, String fingerprint,
+                               String inputName, String outputName) {
+        this.environment = environment;
+        this.session = session;
+        this.labels = labels;
+        this.fingerprint = fingerprint;
+        this.inputName = inputName;
+        this.outputName = outputName;
+    }
+
+    /**
+     * Creates the session, which is kept until the backend is closed.
+     *
+     * @param feedNode
+     *  Name of the model input images are fed to, the model's only input is used when it has none by that name
+     * @param outputNode
+     *  Name of the model output holding the label probabilities, the model's only output is used when it has none by
+     *  that name
+     * @param intraOpThreads
+     *  Threads a single run may use, 0 lets ONNX Runtime choose
+     *
+     * @throws ProcessException if the bytes are not a valid ONNX model or it has no matching input or output
+     */
+    public static OnnxRuntimeBackend load(byte[] model, List<String> labels, String feedNode, String outputNode, int intraOpThreads) {
+        final String fingerprint = ModelFingerprint.of(model, labels);
+        final OrtEnvironment environment = OrtEnvironment.getEnvironment();
+        OrtSession session = null;
+        try (OrtSession.SessionOptions options = new OrtSession.SessionOptions()) {
+            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+            // Batches are run by the onTrigger threads themselves, so the operators of one run execute sequentially
+            options.setExecutionMode(OrtSession.SessionOptions.ExecutionMode.SEQUENTIAL);
+            if (intraOpThreads > 0) {
+                options.setIntraOpNumThreads(intraOpThreads);
+            }
+            session = environment.createSession(model, options);
+            return new OnnxRuntimeBackend(environment, session, labels, fingerprint,
+                    resolveName(session.getInputNames(), feedNode, "input"),
+                    resolveName(session.getOutputNames(), outputNode, "output"));
+        } catch (OrtException | ProcessException ex) {
+            if (session != null) {
+                try {
+                    session.close();
+                } catch (OrtException oe) {
+                    ex.addSuppressed(oe);
+                }
+            }
+            throw ex instanceof ProcessException ? (ProcessException) ex : new ProcessException("ONNX file is not a valid model", ex);
+        }
+    }
+
+    private static String resolveName(Set<String> names, String name, String kind) {
+        if (names.contains(name)) {
+            return name;
+        } else if (names.size() == 1) {
+            return names.iterator().next();
+        }
+        throw new ProcessException("ONNX model has no " + kind + " named " + name + ", it has " + names);
+    }
+
+    @Override
+    public Model acquireModel() {
+        return model;
+    }
+
+    @Override
+    public void close() {
+        // The environment is shared by the whole JVM and is left open
+        try {
+            session.close();
+        } catch (OrtException oe) {
+            throw new ProcessException("Unable to close the ONNX session", oe);
+        }
+    }
+
+    private class Lease implements Model {
+
+        @Override
+        public float[][] run(FloatBuffer images, long[] shape) {
+            // Sliced so the tensor starts at the first image, a direct buffer is used by ONNX Runtime without copying
+            try (OnnxTensor input = OnnxTensor.createTensor(environment, images.slice(), shape);
+                 OrtSession.Result result = session.run(Collections.singletonMap(inputName, input), Collections.singleton(outputName))) {
+                final OnnxValue output = result.get(0);
+                final Object value = output.getValue();
+                if (!(value instanceof float[][])) {
+                    throw new ProcessException("Expected model to produce a [" + shape[0] + " N] shaped float tensor where N is the number " +
+                            "of labels, instead it produced " + output.getInfo());
+                }
+                return (float[][]) value;
+            } catch (OrtException oe) {
+                throw new ProcessException("Unable to run the ONNX model", oe);
+            }
+        }
+
+        @Override
+        public List<String> getLabels() {
+            return labels;
+        }
+
+        @Override
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        @Override
+        public void close() {
+            // Leases share the session, it is only closed with the backend
+        }
+    }
+}
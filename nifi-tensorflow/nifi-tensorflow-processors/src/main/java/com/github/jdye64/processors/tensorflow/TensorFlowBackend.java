@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.processors.tensorflow;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import com.github.jdye64.tensorflow.ModelFingerprint;
+import com.github.jdye64.tensorflow.TensorFlowModel;
+import com.github.jdye64.tensorflow.TensorFlowModelService;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.tensorflow.Graph;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+
+/**
+ * Labels images with a TensorFlow frozen graph, either the shared model of a {@link TensorFlowModelService} or a graph
+ * loaded by the processor itself. Graphs are imported once and sessions are safe to run concurrently, so every thread
+ * shares them.
+ */
+public class TensorFlowBackend implements InferenceBackend {
+
+    private final TensorFlowModelService service;
+    private final LocalModel localModel;
+    private final String feedNode;
+    private final String outputNode;
+
+    private TensorFlowBackend(TensorFlowModelService service, LocalModel localModel, String feedNode, String outputNode) {
+        this.service = service;
+        this.localModel = localModel;
+        this.feedNode = feedNode;
+        this.outputNode = outputNode;
+    }
+
+    /**
+     * Uses the model of the service, picking up new versions of it as they are loaded.
+     */
+    public static TensorFlowBackend fromService(TensorFlowModelService service, String feedNode, String outputNode) {
+        return new TensorFlowBackend(service, null, feedNode, outputNode);
+    }
+
+    /**
+     * Imports the graph, which is kept until the backend is closed.
+     *
+     * @throws ProcessException if the bytes are not a valid frozen graph
+     */
+    public static TensorFlowBackend load(byte[] graphDef, List<String> labels, String feedNode, String outputNode) {
+        return new TensorFlowBackend(null, LocalModel.load(graphDef, labels), feedNode, outputNode);
+    }
+
+    @Override
+    public Model acquireModel() {
+        return new Lease(service != null ? service.acquireModel() : localModel);
+    }
+
+    @Override
+    public void close() {
+        if (localModel != null) {
+            localModel.dispose();
+        }
+    }
+
+    private class Lease implements Model {
+        private final TensorFlowModel model;
+
+        Lease(TensorFlowModel model) {
+            this.model = model;
+        }
+
+        @Override
+        public float[][] run(FloatBuffer images, long[] shape) {
+            try (Tensor input = Tensor.create(shape, images);
+                 Tensor result = model.run(feedNode, input, outputNode)) {
+                final long[] rshape = result.shape();
+                if (result.numDimensions() != 2 || rshape[0] != shape[0]) {
+                    throw new ProcessException(
+                            String.format(
+                                    "Expected model to produce a [%d N] shaped tensor where N is the number of labels, instead it produced one with shape %s",
+                                    shape[0], Arrays.toString(rshape)));
+                }
+                return result.copyTo(new float[(int) rshape[0]][(int) rshape[1]]);
+            }
+        }
+
+        @Override
+        public List<String> getLabels() {
+            return model.getLabels();
+        }
+
+        @Override
+        public String getFingerprint() {
+            return model.getFingerprint();
+        }
+
+        @Override
+        public void close() {
+            model.close();
+        }
+    }
+
+    /**
+     * Model loaded from the processor's own properties. It lives as long as the backend so closing a lease on it does
+     * nothing.
+     */
+    private static class LocalModel implements TensorFlowModel {
+        private final Graph graph;
+        private final Session session;
+        private final List<String> labels;
+        private final String fingerprint;
+
+        private LocalModel(Graph graph, List<String> labels, String fingerprint) {
+            this.graph = graph;
+            this.session = new Session(graph);
+            this.labels = labels;
+            this.fingerprint = fingerprint;
+        }
+
+        static LocalModel load(byte[] graphDef, List<String> labels) {
+            final String fingerprint = ModelFingerprint.of(graphDef, labels);
+            final Graph graph = new Graph();
+            try {
+                graph.importGraphDef(graphDef);
+            } catch (IllegalArgumentException ex) {
+                graph.close();
+                throw new ProcessException("TensorFlow file is not a valid frozen graph", ex);
+            }
+            return new LocalModel(graph, labels, fingerprint);
+        }
+
+        @Override
+        public Tensor run(String feedNode, Tensor input, String outputNode) {
+            return session.runner().feed(feedNode, input).fetch(outputNode).run().get(0);
+        }
+
+        @Override
+        public List<String> getLabels() {
+            return labels;
+        }
+
+        @Override
+        public long getVersion() {
+            return 1;
+        }
+
+        @Override
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        @Override
+        public void close() {
+            // Released by dispose when the backend is closed
+        }
+
+        void dispose() {
+            session.close();
+            graph.close();
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.processors.tensorflow;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+public class ImagePreprocessorTest {
+
+    private static final int RED = 0xFF0000;
+    private static final int GREEN = 0x00FF00;
+    private static final int BLUE = 0x0000FF;
+    private static final int WHITE = 0xFFFFFF;
+
+    @Test
+    public void testRgbHwc() throws IOException {
+        final float[] floats = preprocess(new ImagePreprocessor(2, 2, 0, 1, ImagePreprocessor.ChannelOrder.RGB,
+                ImagePreprocessor.Decoder.ANY, ImagePreprocessor.Layout.HWC), png(2, 2, RED, GREEN, BLUE, WHITE));
+        assertArrayEquals(new float[] {
+                255, 0, 0,   0, 255, 0,
+                0, 0, 255,   255, 255, 255}, floats, 0.001f);
+    }
+
+    @Test
+    public void testBgr() throws IOException {
+        final float[] floats = preprocess(new ImagePreprocessor(2, 1, 0, 1, ImagePreprocessor.ChannelOrder.BGR,
+                ImagePreprocessor.Decoder.ANY, ImagePreprocessor.Layout.HWC), png(2, 1, RED, 0x102030));
+        assertArrayEquals(new float[] {0, 0, 255, 0x30, 0x20, 0x10}, floats, 0.001f);
+    }
+
+    @Test
+    public void testChw() throws IOException {
+        final float[] floats = preprocess(new ImagePreprocessor(2, 2, 0, 1, ImagePreprocessor.ChannelOrder.RGB,
+                ImagePreprocessor.Decoder.ANY, ImagePreprocessor.Layout.CHW), png(2, 2, RED, GREEN, BLUE, WHITE));
+        assertArrayEquals(new float[] {
+                255, 0, 0, 255,
+                0, 255, 0, 255,
+                0, 0, 255, 255}, floats, 0.001f);
+    }
+
+    @Test
+    public void testMeanAndScale() throws IOException {
+        final float[] floats = preprocess(new ImagePreprocessor(1, 1, 117, 2, ImagePreprocessor.ChannelOrder.RGB,
+                ImagePreprocessor.Decoder.ANY, ImagePreprocessor.Layout.HWC), png(1, 1, 0xFF7500));
+        assertArrayEquals(new float[] {(255 - 117) / 2f, 0, -117 / 2f}, floats, 0.001f);
+    }
+
+    @Test
+    public void testUpscaleInterpolates() throws IOException {
+        // Sampled like ResizeBilinear without align_corners, the last pixels repeat the source edge
+        final float[] floats = preprocess(new ImagePreprocessor(4, 1, 0, 1, ImagePreprocessor.ChannelOrder.RGB,
+                ImagePreprocessor.Decoder.ANY, ImagePreprocessor.Layout.CHW), png(2, 1, 0x000000, 0xC8C8C8));
+        assertArrayEquals(new float[] {0, 100, 200, 200}, Arrays.copyOf(floats, 4), 0.001f);
+    }
+
+    @Test
+    public void testDownscaleSamples() throws IOException {
+        final int[] pixels = new int[16];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (i * 10) << 16;
+        }
+        final float[] floats = preprocess(new ImagePreprocessor(2, 2, 0, 1, ImagePreprocessor.ChannelOrder.RGB,
+                ImagePreprocessor.Decoder.ANY, ImagePreprocessor.Layout.CHW), png(4, 4, pixels));
+        // Every other pixel of every other row
+        assertArrayEquals(new float[] {0, 20, 80, 100}, Arrays.copyOf(floats, 4), 0.001f);
+    }
+
+    @Test
+    public void testGrayscale() throws IOException {
+        final BufferedImage gray = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+        gray.getRaster().setSample(0, 0, 0, 42);
+        final float[] floats = preprocess(new ImagePreprocessor(1, 1, 0, 1, ImagePreprocessor.ChannelOrder.RGB,
+                ImagePreprocessor.Decoder.ANY, ImagePreprocessor.Layout.HWC), encode(gray, "png"));
+        assertArrayEquals(new float[] {42, 42, 42}, floats, 0.001f);
+    }
+
+    @Test
+    public void testWritesAtPosition() throws IOException {
+        final ImagePreprocessor preprocessor = new ImagePreprocessor(2, 2, 0, 1, ImagePreprocessor.ChannelOrder.RGB,
+                ImagePreprocessor.Decoder.ANY, ImagePreprocessor.Layout.CHW);
+        final FloatBuffer buffer = FloatBuffer.allocate(1 + 2 * preprocessor.getImageSize());
+        buffer.put(-1);
+        preprocessor.preprocess(png(2, 2, RED, RED, RED, RED), buffer);
+        assertEquals(1 + preprocessor.getImageSize(), buffer.position());
+        preprocessor.preprocess(png(2, 2, BLUE, BLUE, BLUE, BLUE), buffer);
+        assertEquals(buffer.capacity(), buffer.position());
+
+        assertEquals(-1, buffer.get(0), 0);
+        assertEquals(255, buffer.get(1), 0);
+        assertEquals(0, buffer.get(1 + 8), 0);
+        assertEquals(0, buffer.get(1 + 12), 0);
+        assertEquals(255, buffer.get(1 + 12 + 8), 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecoderRejectsOtherFormats() throws IOException {
+        preprocess(new ImagePreprocessor(1, 1, 0, 1, ImagePreprocessor.ChannelOrder.RGB,
+                ImagePreprocessor.Decoder.JPEG, ImagePreprocessor.Layout.HWC), png(1, 1, RED));
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAnImage() throws IOException {
+        preprocess(new ImagePreprocessor(1, 1, 0, 1, ImagePreprocessor.ChannelOrder.RGB,
+                ImagePreprocessor.Decoder.ANY, ImagePreprocessor.Layout.HWC), new byte[] {1, 2, 3, 4});
+    }
+
+    private static float[] preprocess(ImagePreprocessor preprocessor, byte[] image) throws IOException {
+        final FloatBuffer buffer = FloatBuffer.allocate(preprocessor.getImageSize());
+        preprocessor.preprocess(image, buffer);
+        assertEquals(buffer.capacity(), buffer.position());
+        return buffer.array();
+    }
+
+    private static byte[] png(int width, int height, int... rgb) throws IOException {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, rgb, 0, width);
+        return encode(image, "png");
+    }
+
+    private static byte[] encode(BufferedImage image, String format) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, format, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.processors.tensorflow;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.distributed.cache.client.Deserializer;
+import org.apache.nifi.distributed.cache.client.DistributedMapCacheClient;
+import org.apache.nifi.distributed.cache.client.Serializer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class LabelCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws IOException {
+        final LabelCache cache = new LabelCache(2, null);
+        cache.putAll(Collections.singletonMap("a", result("cat")));
+        cache.putAll(Collections.singletonMap("b", result("dog")));
+        // Looking a up makes b the least recently used
+        assertEquals(1, cache.getAll(Collections.singleton("a")).size());
+        cache.putAll(Collections.singletonMap("c", result("bird")));
+
+        final Map<String, Map<String, String>> found = cache.getAll(Arrays.asList("a", "b", "c"));
+        assertEquals(2, found.size());
+        assertEquals(result("cat"), found.get("a"));
+        assertEquals(result("bird"), found.get("c"));
+    }
+
+    @Test
+    public void testLocalCacheDisabled() throws IOException {
+        final LabelCache cache = new LabelCache(0, null);
+        cache.putAll(Collections.singletonMap("a", result("cat")));
+        assertTrue(cache.getAll(Collections.singleton("a")).isEmpty());
+    }
+
+    @Test
+    public void testDistributedCache() throws IOException {
+        final InMemoryCacheClient distributed = new InMemoryCacheClient();
+        new LabelCache(10, distributed).putAll(Collections.singletonMap("a", result("cat")));
+
+        // Another node finds the result in the distributed cache and keeps it locally from then on
+        final LabelCache cache = new LabelCache(10, distributed);
+        Map<String, Map<String, String>> found = cache.getAll(Arrays.asList("a", "b"));
+        assertEquals(1, found.size());
+        assertEquals(result("cat"), found.get("a"));
+        assertEquals(2, distributed.gets.get());
+
+        found = cache.getAll(Collections.singleton("a"));
+        assertEquals(result("cat"), found.get("a"));
+        assertEquals(2, distributed.gets.get());
+    }
+
+    @Test
+    public void testToHex() {
+        assertEquals("00ff7f80", LabelCache.toHex(new byte[] {0, -1, 127, -128}));
+        assertEquals("", LabelCache.toHex(new byte[0]));
+    }
+
+    private static Map<String, String> result(String label) {
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("label.0", label);
+        attributes.put("label.0.probability", "0.9");
+        return attributes;
+    }
+
+    // Keeps serialized entries in memory, the default subMap looks every key up with get
+    private static class InMemoryCacheClient extends AbstractControllerService implements DistributedMapCacheClient {
+
+        private final Map<String, byte[]> entries = new ConcurrentHashMap<>();
+        private final AtomicInteger gets = new AtomicInteger();
+
+        @Override
+        public <K, V> boolean putIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+            return entries.putIfAbsent(serialize(key, keySerializer), serialize(value, valueSerializer).getBytes("ISO-8859-1")) == null;
+        }
+
+        @Override
+        public <K, V> V getAndPutIfAbsent(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer,
+                                          Deserializer<V> valueDeserializer) throws IOException {
+            final byte[] existing = entries.putIfAbsent(serialize(key, keySerializer), serialize(value, valueSerializer).getBytes("ISO-8859-1"));
+            return existing == null ? null : valueDeserializer.deserialize(existing);
+        }
+
+        @Override
+        public <K> boolean containsKey(K key, Serializer<K> keySerializer) throws IOException {
+            return entries.containsKey(serialize(key, keySerializer));
+        }
+
+        @Override
+        public <K, V> void put(K key, V value, Serializer<K> keySerializer, Serializer<V> valueSerializer) throws IOException {
+            entries.put(serialize(key, keySerializer), serialize(value, valueSerializer).getBytes("ISO-8859-1"));
+        }
+
+        @Override
+        public <K, V> V get(K key, Serializer<K> keySerializer, Deserializer<V> valueDeserializer) throws IOException {
+            gets.incrementAndGet();
+            return valueDeserializer.deserialize(entries.get(serialize(key, keySerializer)));
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public <K> boolean remove(K key, Serializer<K> keySerializer) throws IOException {
+            return entries.remove(serialize(key, keySerializer)) != null;
+        }
+
+        @Override
+        public long removeByPattern(String regex) {
+            throw new UnsupportedOperationException();
+        }
+
+        private static <T> String serialize(T value, Serializer<T> serializer) throws IOException {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            serializer.serialize(value, out);
+            return out.toString("ISO-8859-1");
+        }
+    }
+}
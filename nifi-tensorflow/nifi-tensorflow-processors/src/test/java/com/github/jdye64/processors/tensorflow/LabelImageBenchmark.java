@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.processors.tensorflow;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Measures how many images per second every inference backend labels on a fixed set of local images. It is not part
+ * of the regular build, run it with for example
+ *
+ * mvn test -Dtest=LabelImageBenchmark -Dbenchmark.images=/data/images -Dbenchmark.labels=/data/labels.txt
+ *     -Dbenchmark.tensorflow.model=/data/model.pb -Dbenchmark.onnx.model=/data/model.onnx
+ *
+ * Either model may be left out. Other settings are benchmark.width, benchmark.height, benchmark.batch,
+ * benchmark.iterations, benchmark.onnx.threads, benchmark.mean, benchmark.scale and, per backend,
+ * benchmark.BACKEND.feed, benchmark.BACKEND.output and benchmark.BACKEND.layout.
+ */
+public class LabelImageBenchmark {
+
+    @Test
+    public void benchmark() throws Exception {
+        final String imageDir = System.getProperty("benchmark.images");
+        Assume.assumeTrue("benchmark.images is not set", imageDir != null);
+
+        final List<byte[]> images = new ArrayList<>();
+        final File[] files = new File(imageDir).listFiles(File::isFile);
+        Arrays.sort(files);
+        for (File file : files) {
+            images.add(Files.readAllBytes(file.toPath()));
+        }
+        final List<String> labels = Files.readAllLines(new File(System.getProperty("benchmark.labels")).toPath(), StandardCharsets.UTF_8);
+
+        final String tensorflowModel = System.getProperty("benchmark.tensorflow.model");
+        if (tensorflowModel != null) {
+            try (InferenceBackend backend = TensorFlowBackend.load(Files.readAllBytes(new File(tensorflowModel).toPath()), labels,
+                    System.getProperty("benchmark.tensorflow.feed", "ExpandDims"), System.getProperty("benchmark.tensorflow.output", "final_result:0"))) {
+                run("TENSORFLOW", backend, preprocessor(System.getProperty("benchmark.tensorflow.layout", "HWC")), images);
+            }
+        }
+
+        final String onnxModel = System.getProperty("benchmark.onnx.model");
+        if (onnxModel != null) {
+            try (InferenceBackend backend = OnnxRuntimeBackend.load(Files.readAllBytes(new File(onnxModel).toPath()), labels,
+                    System.getProperty("benchmark.onnx.feed", ""), System.getProperty("benchmark.onnx.output", ""),
+                    Integer.getInteger("benchmark.onnx.threads", 0))) {
+                run("ONNX_RUNTIME", backend, preprocessor(System.getProperty("benchmark.onnx.layout", "CHW")), images);
+            }
+        }
+    }
+
+    private static ImagePreprocessor preprocessor(String layout) {
+        return new ImagePreprocessor(Integer.getInteger("benchmark.width", 224), Integer.getInteger("benchmark.height", 224),
+                Float.parseFloat(System.getProperty("benchmark.mean", "117")), Float.parseFloat(System.getProperty("benchmark.scale", "1")),
+                ImagePreprocessor.ChannelOrder.RGB, ImagePreprocessor.Decoder.ANY, ImagePreprocessor.Layout.valueOf(layout));
+    }
+
+    private static void run(String name, InferenceBackend backend, ImagePreprocessor preprocessor, List<byte[]> images) throws Exception {
+        final int batchSize = Integer.getInteger("benchmark.batch", 8);
+        final int iterations = Integer.getInteger("benchmark.iterations", 10);
+        final int imageSize = preprocessor.getImageSize();
+
+        // Preprocessed up front, so the inference rate is measured on its own. The first pass is a warm up
+        final FloatBuffer all = ByteBuffer.allocateDirect(images.size() * imageSize * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        for (byte[] image : images) {
+            preprocessor.preprocess(image, all);
+        }
+        all.clear();
+        final long preprocessStart = System.nanoTime();
+        for (byte[] image : images) {
+            preprocessor.preprocess(image, all);
+        }
+        final double preprocessSeconds = (System.nanoTime() - preprocessStart) / 1e9;
+
+        // The first pass warms the backend up and is not measured
+        runAll(backend, preprocessor, all, images.size(), batchSize);
+        final long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            runAll(backend, preprocessor, all, images.size(), batchSize);
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+
+        final double inferenceRate = images.size() * iterations / seconds;
+        final double preprocessRate = images.size() / preprocessSeconds;
+        System.out.println(String.format("%-12s %d images, batch %d: preprocessing %.1f images/sec, inference %.1f images/sec, end to end %.1f images/sec",
+                name, images.size(), batchSize, preprocessRate, inferenceRate, 1 / (1 / preprocessRate + 1 / inferenceRate)));
+    }
+
+    private static void runAll(InferenceBackend backend, ImagePreprocessor preprocessor, FloatBuffer all, int count, int batchSize) {
+        final int imageSize = preprocessor.getImageSize();
+        try (InferenceBackend.Model model = backend.acquireModel()) {
+            for (int first = 0; first < count; first += batchSize) {
+                final int batch = Math.min(batchSize, count - first);
+                final FloatBuffer images = all.duplicate();
+                images.position(first * imageSize);
+                images.limit((first + batch) * imageSize);
+                final long[] shape = preprocessor.getLayout() == ImagePreprocessor.Layout.CHW
+                        ? new long[] {batch, ImagePreprocessor.CHANNELS, preprocessor.getHeight(), preprocessor.getWidth()}
+                        : new long[] {batch, preprocessor.getHeight(), preprocessor.getWidth(), ImagePreprocessor.CHANNELS};
+                model.run(images, shape);
+            }
+        }
+    }
+}
@@ -16,14 +16,46 @@
  */
 package com.github.jdye64.processors.tensorflow;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.MockProcessContext;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
+import org.junit.Assume;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tensorflow.DataType;
+import org.tensorflow.Graph;
+import org.tensorflow.Output;
+import org.tensorflow.Tensor;
+import org.tensorflow.TensorFlow;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 
 public class LabelImageProcessorTest {
 
+    private static final int RED = 0xFF0000;
+    private static final int BLUE = 0x0000FF;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private TestRunner testRunner;
 
     @Before
@@ -32,8 +64,124 @@ public class LabelImageProcessorTest {
     }
 
     @Test
-    public void testProcessor() {
+    public void testModelIsRequired() {
+        testRunner.assertNotValid();
+    }
+
+    @Test
+    public void testTopIndices() {
+        final float[] probabilities = {0.1f, 0.4f, 0.05f, 0.3f, 0.15f};
+        assertArrayEquals(new int[] {1, 3, 4}, LabelImageProcessor.topIndices(probabilities, 3));
+        assertArrayEquals(new int[] {1}, LabelImageProcessor.topIndices(probabilities, 1));
+        assertArrayEquals(new int[] {1, 3, 4, 0, 2}, LabelImageProcessor.topIndices(probabilities, 5));
+    }
+
+    @Test
+    public void testTopIndicesMoreThanLabels() {
+        assertArrayEquals(new int[] {1, 0}, LabelImageProcessor.topIndices(new float[] {0.2f, 0.8f}, 5));
+        assertEquals(0, LabelImageProcessor.topIndices(new float[0], 5).length);
+    }
 
+    @Test
+    public void testTopIndicesMatchSorting() {
+        final Random random = new Random(42);
+        final float[] probabilities = new float[1001];
+        for (int i = 0; i < probabilities.length; i++) {
+            probabilities[i] = random.nextFloat();
+        }
+
+        final int[] top = LabelImageProcessor.topIndices(probabilities, 10);
+        assertEquals(10, top.length);
+        for (int i = 1; i < top.length; i++) {
+            assertTrue(probabilities[top[i - 1]] >= probabilities[top[i]]);
+        }
+        // Nothing left out is more probable than the last one kept
+        int higher = 0;
+        for (float probability : probabilities) {
+            if (probability > probabilities[top[top.length - 1]]) {
+                higher++;
+            }
+        }
+        assertEquals(9, higher);
     }
 
+    @Test
+    public void testShortBatchWaitsForMoreImages() throws IOException {
+        configureModel(4, "1 hour");
+        testRunner.enqueue(png(RED));
+        testRunner.enqueue(png(BLUE));
+        testRunner.run();
+
+        testRunner.assertTransferCount(LabelImageProcessor.REL_SUCCESS, 0);
+        testRunner.assertTransferCount(LabelImageProcessor.REL_FAILURE, 0);
+        assertEquals(2, testRunner.getQueueSize().getObjectCount());
+        assertTrue(((MockProcessContext) testRunner.getProcessContext()).isYieldCalled());
+    }
+
+    @Test
+    public void testShortBatchIsLabeledOnceWaitedFor() throws IOException {
+        configureModel(4, "0 ms");
+        testRunner.enqueue(png(RED));
+        testRunner.enqueue(png(BLUE));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(LabelImageProcessor.REL_SUCCESS, 2);
+        testRunner.getFlowFilesForRelationship(LabelImageProcessor.REL_SUCCESS).get(0).assertAttributeEquals("label.name", "red");
+        testRunner.getFlowFilesForRelationship(LabelImageProcessor.REL_SUCCESS).get(1).assertAttributeEquals("label.name", "blue");
+        assertEquals(1, testRunner.getCounterValue("Inference Batches").intValue());
+    }
+
+    @Test
+    public void testFullBatchIsLabeledImmediately() throws IOException {
+        configureModel(4, "1 hour");
+        for (int i = 0; i < 4; i++) {
+            testRunner.enqueue(png(i % 2 == 0 ? RED : BLUE));
+        }
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(LabelImageProcessor.REL_SUCCESS, 4);
+        assertFalse(((MockProcessContext) testRunner.getProcessContext()).isYieldCalled());
+        for (MockFlowFile flowFile : testRunner.getFlowFilesForRelationship(LabelImageProcessor.REL_SUCCESS)) {
+            flowFile.assertAttributeExists("label.score");
+        }
+        assertEquals(1, testRunner.getCounterValue("Inference Batches").intValue());
+        assertEquals(4, testRunner.getCounterValue("Images Labeled").intValue());
+    }
+
+    // A graph labeling each 2x2 image with its strongest color channel, in RGB order
+    private void configureModel(int batchSize, String batchWaitTime) throws IOException {
+        try {
+            TensorFlow.version();
+        } catch (LinkageError e) {
+            Assume.assumeNoException("TensorFlow native library is not available", e);
+        }
+
+        final File model = folder.newFile("model.pb");
+        final File labels = folder.newFile("labels.txt");
+        try (Graph graph = new Graph(); Tensor axes = Tensor.create(new int[] {1, 2})) {
+            final Output input = graph.opBuilder("Placeholder", "input").setAttr("dtype", DataType.FLOAT).build().output(0);
+            final Output reduce = graph.opBuilder("Const", "axes").setAttr("dtype", DataType.INT32).setAttr("value", axes).build().output(0);
+            graph.opBuilder("Mean", "output").addInput(input).addInput(reduce).build();
+            Files.write(model.toPath(), graph.toGraphDef());
+        }
+        Files.write(labels.toPath(), Arrays.asList("red", "green", "blue"), StandardCharsets.UTF_8);
+
+        testRunner.setProperty(LabelImageProcessor.TF_FROZEN_GRAPH, model.getPath());
+        testRunner.setProperty(LabelImageProcessor.TF_LABELS_FILE, labels.getPath());
+        testRunner.setProperty(LabelImageProcessor.TF_FEED_NODE, "input");
+        testRunner.setProperty(LabelImageProcessor.TF_OUTPUT_NODE, "output");
+        testRunner.setProperty(LabelImageProcessor.INPUT_WIDTH, "2");
+        testRunner.setProperty(LabelImageProcessor.INPUT_HEIGHT, "2");
+        testRunner.setProperty(LabelImageProcessor.INPUT_MEAN, "0");
+        testRunner.setProperty(LabelImageProcessor.BATCH_SIZE, String.valueOf(batchSize));
+        testRunner.setProperty(LabelImageProcessor.BATCH_WAIT_TIME, batchWaitTime);
+    }
+
+    private static byte[] png(int rgb) throws IOException {
+        final BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, 2, 2, new int[] {rgb, rgb, rgb, rgb}, 0, 2);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
 }
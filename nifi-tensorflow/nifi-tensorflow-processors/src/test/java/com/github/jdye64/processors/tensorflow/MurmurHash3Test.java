@@ -0,0 +1,70 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.processors.tensorflow;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class MurmurHash3Test {
+
+    @Test
+    public void testKnownValues() throws IOException {
+        // Reference values of the x64 128 bit variant with seed 0
+        assertEquals("6c1b07bc7bbc4be347939ac4a93c437a",
+                MurmurHash3.hashHex("The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("029bbd41b3a7d8cb191dae486a901e5b", MurmurHash3.hashHex("hello".getBytes(StandardCharsets.UTF_8)));
+        assertEquals("00000000000000000000000000000000", MurmurHash3.hashHex(new byte[0]));
+    }
+
+    @Test
+    public void testStreamingMatchesWholeInput() throws IOException {
+        final byte[] data = new byte[100003];
+        new Random(7).nextBytes(data);
+        final String expected = MurmurHash3.hashHex(data);
+
+        // Reads of every size, none of them aligned to the 16 byte blocks
+        final InputStream dribble = new ByteArrayInputStream(data) {
+            private int next = 1;
+
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                next = next % 37 + 1;
+                return super.read(b, off, Math.min(len, next));
+            }
+        };
+        assertEquals(expected, MurmurHash3.hashHex(dribble));
+        assertEquals(expected, MurmurHash3.hashHex(new ByteArrayInputStream(data)));
+    }
+
+    @Test
+    public void testUpdateInPieces() {
+        final byte[] data = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+        final MurmurHash3 hash = new MurmurHash3();
+        hash.update(data, 0, 5);
+        hash.update(data, 5, 20);
+        hash.update(data, 25, data.length - 25);
+        assertEquals("6c1b07bc7bbc4be347939ac4a93c437a", LabelCache.toHex(hash.digest()));
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.tensorflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.reporting.InitializationException;
+import org.tensorflow.Graph;
+import org.tensorflow.Session;
+import org.tensorflow.Tensor;
+
+@Tags({"tensorflow", "model", "inference", "reload"})
+@CapabilityDescription("Loads a TensorFlow frozen graph (.pb) file and its labels once and shares a single graph and Session between " +
+        "every processor referencing this service. The files are checked for changes periodically and a changed model is loaded " +
+        "next to the current one and then swapped in atomically, so the flow keeps running while models are updated. Inferences " +
+        "already running finish against the version they started with. Replace the files with an atomic rename to make sure a " +
+        "partially written model is never picked up.")
+public class StandardTensorFlowModelService
+        extends AbstractControllerService implements TensorFlowModelService {
+
+    public static final PropertyDescriptor MODEL_FILE = new PropertyDescriptor
+            .Builder().name("tensorflow-pb-file")
+            .displayName("TensorFlow pb file")
+            .description("TensorFlow frozen graph model that will be shared by the processors using this service")
+            .required(true)
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor LABELS_FILE = new PropertyDescriptor
+            .Builder().name("tensorflow-labels-file")
+            .displayName("TensorFlow labels file")
+            .description("File that contains the labels, one per line, that correlate to the TensorFlow frozen graph (.pb) file")
+            .required(false)
+            .expressionLanguageSupported(true)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor CHECK_INTERVAL = new PropertyDescriptor
+            .Builder().name("tensorflow-model-check-interval")
+            .displayName("Model check interval")
+            .description("How often the model and labels files are checked for changes. A value of 0 disables reloading")
+            .required(true)
+            .defaultValue("30 sec")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    private static final List<PropertyDescriptor> properties;
+
+    static {
+        final List<PropertyDescriptor> props = new ArrayList<>();
+        props.add(MODEL_FILE);
+        props.add(LABELS_FILE);
+        props.add(CHECK_INTERVAL);
+        properties = Collections.unmodifiableList(props);
+    }
+
+    private final AtomicReference<LoadedModel> currentModel = new AtomicReference<>();
+    private final AtomicLong versions = new AtomicLong(0);
+    private final AtomicLong reloads = new AtomicLong(0);
+
+    private volatile File modelFile;
+    private volatile File labelsFile;
+    private volatile String failedStamp;
+    private volatile ScheduledExecutorService watcher;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return properties;
+    }
+
+    /**
+     * @param context
+     *            the configuration context
+     * @throws InitializationException
+     *             if the model can not be loaded
+     */
+    @OnEnabled
+    public void onEnabled(final ConfigurationContext context) throws InitializationException {
+        modelFile = new File(context.getProperty(MODEL_FILE).evaluateAttributeExpressions().getValue());
+        labelsFile = context.getProperty(LABELS_FILE).isSet()
+                ? new File(context.getProperty(LABELS_FILE).evaluateAttributeExpressions().getValue()) : null;
+        reloads.set(0);
+        failedStamp = null;
+
+        try {
+            swap(load(stamp()));
+        } catch (Exception ex) {
+            throw new InitializationException("Unable to load TensorFlow model " + modelFile, ex);
+        }
+
+        final long interval = context.getProperty(CHECK_INTERVAL).asTimePeriod(TimeUnit.MILLISECONDS);
+        if (interval > 0) {
+            watcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "TensorFlowModelService-watcher-" + getIdentifier());
+                thread.setDaemon(true);
+                return thread;
+            });
+            watcher.scheduleWithFixedDelay(this::reloadIfChanged, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @OnDisabled
+    public void shutdown() {
+        if (watcher != null) {
+            watcher.shutdownNow();
+            try {
+                watcher.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            watcher = null;
+        }
+        swap(null);
+    }
+
+    @Override
+    public TensorFlowModel acquireModel() throws ProcessException {
+        while (true) {
+            final LoadedModel model = currentModel.get();
+            if (model == null) {
+                throw new ProcessException("No TensorFlow model is loaded, the service is not enabled");
+            }
+            if (model.retain()) {
+                return new ModelLease(model);
+            }
+            // Swapped out and released between the read and the retain, the next read sees the newer model
+        }
+    }
+
+    @Override
+    public TensorFlowModelMetrics getMetrics() {
+        final LoadedModel model = currentModel.get();
+        if (model == null) {
+            return new TensorFlowModelMetrics(modelFile == null ? null : modelFile.getPath(), 0, 0, 0, 0, 0, 0, reloads.get());
+        }
+        return model.getMetrics(reloads.get());
+    }
+
+    private void reloadIfChanged() {
+        try {
+            final String stamp = stamp();
+            final LoadedModel current = currentModel.get();
+            if (current == null || stamp.equals(current.stamp) || stamp.equals(failedStamp)) {
+                return;
+            }
+
+            final LoadedModel reloaded = load(stamp);
+            if (!stamp.equals(stamp())) {
+                // Still being written, pick it up on the next check once it is stable
+                reloaded.release();
+                return;
+            }
+            reloads.incrementAndGet();
+            swap(reloaded);
+            getLogger().info("Loaded version {} of TensorFlow model {}", new Object[]{reloaded.version, modelFile});
+        } catch (Exception ex) {
+            failedStamp = ex instanceof StampedLoadException ? ((StampedLoadException) ex).stamp : null;
+            getLogger().error("Unable to reload TensorFlow model {}, keeping the current version: {}", new Object[]{modelFile, ex});
+        }
+    }
+
+    private void swap(final LoadedModel model) {
+        final LoadedModel previous = currentModel.getAndSet(model);
+        if (previous != null) {
+            getLogger().info("Retiring {}", new Object[]{previous.getMetrics(reloads.get())});
+            // Closed once the last lease on it is closed
+            previous.release();
+        }
+    }
+
+    // Identifies the contents of the model and labels files without reading them
+    private String stamp() {
+        final StringBuilder stamp = new StringBuilder();
+        stamp.append(modelFile.lastModified()).append(':').append(modelFile.length());
+        if (labelsFile != null) {
+            stamp.append(':').append(labelsFile.lastModified()).append(':').append(labelsFile.length());
+        }
+        return stamp.toString();
+    }
+
+    private LoadedModel load(final String stamp) throws StampedLoadException {
+        final byte[] graphDef;
+        final List<String> labels;
+        try {
+            graphDef = Files.readAllBytes(modelFile.toPath());
+            labels = labelsFile == null
+                    ? Collections.<String>emptyList()
+                    : Collections.unmodifiableList(Files.readAllLines(labelsFile.toPath(), StandardCharsets.UTF_8));
+        } catch (IOException ioe) {
+            throw new StampedLoadException(stamp, ioe);
+        }
+
+        final String fingerprint = ModelFingerprint.of(graphDef, labels);
+
+        final Graph graph = new Graph();
+        try {
+            graph.importGraphDef(graphDef);
+            return new LoadedModel(graph, new Session(graph), labels, fingerprint, versions.incrementAndGet(), stamp, modelFile.getPath());
+        } catch (RuntimeException ex) {
+            graph.close();
+            throw new StampedLoadException(stamp, ex);
+        }
+    }
+
+    private static class StampedLoadException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final String stamp;
+
+        StampedLoadException(String stamp, Throwable cause) {
+            super(cause.getMessage(), cause);
+            this.stamp = stamp;
+        }
+    }
+
+    /**
+     * One loaded version of the model. The service holds one reference and every lease another, the graph and session
+     * are closed when the last reference is released.
+     */
+    private static class LoadedModel {
+        private final Graph graph;
+        private final Session session;
+        private final List<String> labels;
+        private final String fingerprint;
+        private final long version;
+        private final String stamp;
+        private final String path;
+        private final long loadedTimestamp = System.currentTimeMillis();
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private final LongAdder inferences = new LongAdder();
+        private final LongAdder items = new LongAdder();
+        private final LongAdder latencyNanos = new LongAdder();
+        private final AtomicLong maxLatencyNanos = new AtomicLong(0);
+
+        LoadedModel(Graph graph, Session session, List<String> labels, String fingerprint, long version, String stamp, String path) {
+            this.graph = graph;
+            this.session = session;
+            this.labels = labels;
+            this.fingerprint = fingerprint;
+            this.version = version;
+            this.stamp = stamp;
+            this.path = path;
+        }
+
+        boolean retain() {
+            while (true) {
+                final int count = references.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (references.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                session.close();
+                graph.close();
+            }
+        }
+
+        void record(long batch, long nanos) {
+            inferences.increment();
+            items.add(batch);
+            latencyNanos.add(nanos);
+            maxLatencyNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        TensorFlowModelMetrics getMetrics(long reloadCount) {
+            return new TensorFlowModelMetrics(path, version, loadedTimestamp, inferences.sum(), items.sum(),
+                    latencyNanos.sum(), maxLatencyNanos.get(), reloadCount);
+        }
+    }
+
+    private static class ModelLease implements TensorFlowModel {
+        private final LoadedModel model;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        ModelLease(LoadedModel model) {
+            this.model = model;
+        }
+
+        @Override
+        public Tensor run(String feedNode, Tensor input, String outputNode) throws ProcessException {
+            if (closed.get()) {
+                throw new ProcessException("TensorFlow model lease has already been closed");
+            }
+            final long start = System.nanoTime();
+            final Tensor result = model.session.runner().feed(feedNode, input).fetch(outputNode).run().get(0);
+            model.record(input.numDimensions() > 0 ? input.shape()[0] : 1, System.nanoTime() - start);
+            return result;
+        }
+
+        @Override
+        public List<String> getLabels() {
+            return model.labels;
+        }
+
+        @Override
+        public long getVersion() {
+            return model.version;
+        }
+
+        @Override
+        public String getFingerprint() {
+            return model.fingerprint;
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                model.release();
+            }
+        }
+    }
+}
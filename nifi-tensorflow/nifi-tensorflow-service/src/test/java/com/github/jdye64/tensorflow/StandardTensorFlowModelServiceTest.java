@@ -0,0 +1,164 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.jdye64.tensorflow;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.NoOpProcessor;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tensorflow.DataType;
+import org.tensorflow.Graph;
+import org.tensorflow.Output;
+import org.tensorflow.Tensor;
+import org.tensorflow.TensorFlow;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+
+public class StandardTensorFlowModelServiceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File modelFile;
+    private File labelsFile;
+    private TestRunner testRunner;
+    private StandardTensorFlowModelService service;
+
+    @Before
+    public void init() throws IOException, InitializationException {
+        try {
+            TensorFlow.version();
+        } catch (LinkageError e) {
+            // The first attempt fails to link, the following ones to initialize the class
+            Assume.assumeNoException("TensorFlow native library is not available", e);
+        }
+
+        modelFile = folder.newFile("model.pb");
+        labelsFile = folder.newFile("labels.txt");
+        Files.write(modelFile.toPath(), scaleGraph(2f));
+        Files.write(labelsFile.toPath(), Arrays.asList("cat", "dog"), StandardCharsets.UTF_8);
+
+        service = new StandardTensorFlowModelService();
+        testRunner = TestRunners.newTestRunner(NoOpProcessor.class);
+        testRunner.addControllerService("model", service);
+        testRunner.setProperty(service, StandardTensorFlowModelService.MODEL_FILE, modelFile.getPath());
+        testRunner.setProperty(service, StandardTensorFlowModelService.LABELS_FILE, labelsFile.getPath());
+    }
+
+    @Test
+    public void testLoad() {
+        testRunner.setProperty(service, StandardTensorFlowModelService.CHECK_INTERVAL, "0 sec");
+        testRunner.enableControllerService(service);
+
+        try (TensorFlowModel model = service.acquireModel()) {
+            assertEquals(1, model.getVersion());
+            assertEquals(Arrays.asList("cat", "dog"), model.getLabels());
+            assertEquals(6f, run(model, 3f), 0f);
+        }
+        assertEquals(1, service.getMetrics().getInferenceCount());
+        assertEquals(0, service.getMetrics().getReloadCount());
+    }
+
+    @Test
+    public void testChangedModelIsSwappedIn() throws Exception {
+        testRunner.setProperty(service, StandardTensorFlowModelService.CHECK_INTERVAL, "50 millis");
+        testRunner.enableControllerService(service);
+
+        final TensorFlowModel first = service.acquireModel();
+        try {
+            replaceModel(scaleGraph(10f));
+            final TensorFlowModel second = awaitVersion(2);
+            try {
+                assertEquals(30f, run(second, 3f), 0f);
+                assertNotEquals(first.getFingerprint(), second.getFingerprint());
+                // The lease taken before the swap keeps running against the version it started with
+                assertEquals(6f, run(first, 3f), 0f);
+            } finally {
+                second.close();
+            }
+        } finally {
+            first.close();
+        }
+        assertEquals(1, service.getMetrics().getReloadCount());
+    }
+
+    @Test
+    public void testInvalidModelKeepsTheCurrentVersion() throws Exception {
+        testRunner.setProperty(service, StandardTensorFlowModelService.CHECK_INTERVAL, "50 millis");
+        testRunner.enableControllerService(service);
+
+        replaceModel("not a graph".getBytes(StandardCharsets.UTF_8));
+        Thread.sleep(500);
+        try (TensorFlowModel model = service.acquireModel()) {
+            assertEquals(1, model.getVersion());
+            assertEquals(6f, run(model, 3f), 0f);
+        }
+        assertEquals(0, service.getMetrics().getReloadCount());
+    }
+
+    private TensorFlowModel awaitVersion(long version) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            final TensorFlowModel model = service.acquireModel();
+            if (model.getVersion() == version) {
+                return model;
+            }
+            model.close();
+            Thread.sleep(50);
+        }
+        throw new AssertionError("Version " + version + " of the model was not loaded");
+    }
+
+    // Written next to the model and renamed over it, the way the service expects models to be replaced
+    private void replaceModel(byte[] graphDef) throws IOException {
+        final File replacement = folder.newFile();
+        Files.write(replacement.toPath(), graphDef);
+        replacement.setLastModified(modelFile.lastModified() + 10000);
+        Files.move(replacement.toPath(), modelFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static float run(TensorFlowModel model, float value) {
+        try (Tensor input = Tensor.create(value); Tensor output = model.run("input", input, "output")) {
+            return output.floatValue();
+        }
+    }
+
+    // Graph multiplying its scalar input by the scale
+    private static byte[] scaleGraph(float scale) {
+        try (Graph graph = new Graph(); Tensor value = Tensor.create(scale)) {
+            final Output input = graph.opBuilder("Placeholder", "input").setAttr("dtype", DataType.FLOAT).build().output(0);
+            final Output factor = graph.opBuilder("Const", "scale").setAttr("dtype", DataType.FLOAT).setAttr("value", value)
+                    .build().output(0);
+            graph.opBuilder("Mul", "output").addInput(input).addInput(factor).build();
+            return graph.toGraphDef();
+        }
+    }
+}
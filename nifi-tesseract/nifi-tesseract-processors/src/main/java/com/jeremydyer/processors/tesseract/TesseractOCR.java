@@ -16,24 +16,29 @@
  */
 package com.jeremydyer.processors.tesseract;
 
-import net.sourceforge.tess4j.ITesseract;
-import net.sourceforge.tess4j.Tesseract;
-import net.sourceforge.tess4j.Tesseract1;
+import net.sourceforge.tess4j.TesseractException;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.processor.exception.ProcessException;
-import org.apache.nifi.processor.io.StreamCallback;
+import org.apache.nifi.processor.io.InputStreamCallback;
+import org.apache.nifi.processor.io.OutputStreamCallback;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.processors.ocr.OcrImage;
+import org.apache.nifi.processors.ocr.OcrPipeline;
+import org.apache.nifi.processors.ocr.TessdataLanguages;
+import org.apache.nifi.processors.ocr.TesseractEngine;
+import org.apache.nifi.processors.ocr.TesseractEnginePool;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 @Tags({"ocr", "tesseract", "image"})
 @CapabilityDescription("Reads the input image and attempts to perform OCR on the image and output the text " +
@@ -49,6 +54,22 @@ public class TesseractOCR extends AbstractProcessor {
             .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
             .build();
 
+    public static final PropertyDescriptor TESSERACT_LANGUAGE = new PropertyDescriptor
+            .Builder().name("Tesseract Language")
+            .description("Language the text in the images is in, one of the languages installed in the installation directory")
+            .required(true)
+            .defaultValue("eng")
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TESSERACT_PAGE_SEG_MODE = new PropertyDescriptor
+            .Builder().name("Tesseract Page Segmentation Mode")
+            .description("Set Tesseract to only run a subset of layout analysis and assume a certain form of image.")
+            .required(true)
+            .defaultValue(TesseractEngine.DEFAULT_PAGE_SEGMENTATION_MODE)
+            .allowableValues(TesseractEngine.PAGE_SEGMENTATION_MODES)
+            .build();
+
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
             .description("successfully completed OCR on image")
@@ -59,15 +80,13 @@ public class TesseractOCR extends AbstractProcessor {
             .description("Failed to attempt OCR on input image")
             .build();
 
-    private List<PropertyDescriptor> descriptors;
+    private volatile List<PropertyDescriptor> descriptors;
 
     private Set<Relationship> relationships;
 
     @Override
     protected void init(final ProcessorInitializationContext context) {
-        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
-        descriptors.add(TESSERACT_INSTALL_DIR);
-        this.descriptors = Collections.unmodifiableList(descriptors);
+        this.descriptors = buildDescriptors(TESSERACT_INSTALL_DIR.getDefaultValue());
 
         final Set<Relationship> relationships = new HashSet<Relationship>();
         relationships.add(REL_SUCCESS);
@@ -75,6 +94,21 @@ public class TesseractOCR extends AbstractProcessor {
         this.relationships = Collections.unmodifiableSet(relationships);
     }
 
+    // The language list only offers the languages installed in the installation directory
+    private static List<PropertyDescriptor> buildDescriptors(final String installDir) {
+        final Set<String> languages = new TreeSet<>(TessdataLanguages.of(installDir));
+        languages.add(TESSERACT_LANGUAGE.getDefaultValue());
+
+        final List<PropertyDescriptor> descriptors = new ArrayList<PropertyDescriptor>();
+        descriptors.add(TESSERACT_INSTALL_DIR);
+        descriptors.add(new PropertyDescriptor.Builder()
+                .fromPropertyDescriptor(TESSERACT_LANGUAGE)
+                .allowableValues(languages)
+                .build());
+        descriptors.add(TESSERACT_PAGE_SEG_MODE);
+        return Collections.unmodifiableList(descriptors);
+    }
+
     @Override
     public Set<Relationship> getRelationships() {
         return this.relationships;
@@ -85,36 +119,70 @@ public class TesseractOCR extends AbstractProcessor {
         return descriptors;
     }
 
-    //TODO: This is bad. Hardcoded to my brew OS X install now just for demo purposes.
-    private final static String DEFAULT_PAGE_SEG_MODE = "3";
-    private final static String DEFAULT_LANG = "eng";
+    @Override
+    public void onPropertyModified(PropertyDescriptor descriptor, String oldValue, String newValue) {
+        super.onPropertyModified(descriptor, oldValue, newValue);
+        if (descriptor.equals(TESSERACT_INSTALL_DIR)) {
+            descriptors = buildDescriptors(newValue == null ? TESSERACT_INSTALL_DIR.getDefaultValue() : newValue);
+        }
+    }
+
+    // Recognizes the images with engines shared with every OCR processor configured the same way
+    private volatile OcrPipeline pipeline;
+
+    @OnScheduled
+    public void onScheduled(final ProcessContext context) {
+        final String datapath = context.getProperty(TESSERACT_INSTALL_DIR).evaluateAttributeExpressions().getValue();
+        final String language = context.getProperty(TESSERACT_LANGUAGE).getValue();
+        final int pageSegMode = TesseractEngine.pageSegModeOf(context.getProperty(TESSERACT_PAGE_SEG_MODE).getValue());
+        final int poolSize = context.getMaxConcurrentTasks();
+        final TesseractEnginePool.Lease engines;
+        try {
+            engines = TesseractEnginePool.acquire(datapath, language, pageSegMode, Collections.<String, String>emptyMap(), poolSize);
+        } catch (TesseractException te) {
+            throw new ProcessException(te.getMessage(), te);
+        }
+        pipeline = new OcrPipeline(engines, poolSize, null, "TesseractOCR-" + getIdentifier(), getLogger());
+    }
+
+    @OnStopped
+    public void onStopped() {
+        if (pipeline != null) {
+            pipeline.close();
+            pipeline = null;
+        }
+    }
 
     @Override
     public void onTrigger(final ProcessContext context, final ProcessSession session) throws ProcessException {
-        final FlowFile flowFile = session.get();
+        FlowFile flowFile = session.get();
         if ( flowFile == null ) {
             return;
         }
 
-        //Reads in the image data and runs it through Tesseract for OCR
-        FlowFile ff = session.write(flowFile, new StreamCallback() {
-            @Override
-            public void process(InputStream inputStream, OutputStream outputStream) throws IOException {
-                ITesseract instance = new Tesseract();
-                instance.setLanguage(DEFAULT_LANG);
-                instance.setDatapath(context.getProperty(TESSERACT_INSTALL_DIR).evaluateAttributeExpressions(flowFile).getValue());
-                instance.setPageSegMode(Integer.parseInt(DEFAULT_PAGE_SEG_MODE));
-
-                try {
-                    BufferedImage imBuff = ImageIO.read(inputStream);
-                    outputStream.write(instance.doOCR(imBuff).getBytes());
-                } catch (Exception ex) {
-                    getLogger().error(ex.getMessage());
-                    session.transfer(flowFile, REL_FAILURE);
+        //Reads in the image data and runs it through Tesseract for OCR, the text is written as it is recognized
+        final AtomicReference<OcrImage> image = new AtomicReference<>();
+        try {
+            session.read(flowFile, new InputStreamCallback() {
+                @Override
+                public void process(InputStream inputStream) throws IOException {
+                    image.set(pipeline.readFirstPage(inputStream));
                 }
+            });
+            if (image.get() == null) {
+                throw new IOException("Unsupported image format");
             }
-        });
-
-        session.transfer(ff, REL_SUCCESS);
+            flowFile = session.write(flowFile, new OutputStreamCallback() {
+                @Override
+                public void process(OutputStream outputStream) throws IOException {
+                    pipeline.writePages(1, index -> image.get(), null, false, outputStream);
+                }
+            });
+        } catch (Exception ex) {
+            getLogger().error(ex.getMessage());
+            session.transfer(flowFile, REL_FAILURE);
+            return;
+        }
+        session.transfer(flowFile, REL_SUCCESS);
     }
 }
@@ -0,0 +1,120 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jeremydyer.processors.tesseract;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import net.sourceforge.tess4j.TesseractException;
+import org.apache.nifi.processors.ocr.TesseractEngine;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Runs Tesseract on the Tessdata directory given with -Dtessdata.path, the tests are skipped unless it holds
+ * eng.traineddata and the Tesseract library is installed.
+ */
+public class TesseractOCRTest {
+
+    private TestRunner testRunner;
+
+    @Before
+    public void init() {
+        final String path = System.getProperty("tessdata.path");
+        Assume.assumeTrue("tessdata.path is not set to a Tessdata directory with eng.traineddata",
+                path != null && new File(path, "eng.traineddata").isFile());
+        try {
+            new TesseractEngine(path, "eng", 3, Collections.<String, String>emptyMap()).close();
+        } catch (LinkageError | TesseractException e) {
+            Assume.assumeNoException("Tesseract can not be loaded", e);
+        }
+
+        testRunner = TestRunners.newTestRunner(TesseractOCR.class);
+        testRunner.setProperty(TesseractOCR.TESSERACT_INSTALL_DIR, path);
+    }
+
+    @Test
+    public void testImageIsRecognized() throws IOException {
+        testRunner.enqueue(textImage("HELLO"));
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(TesseractOCR.REL_SUCCESS, 1);
+        final MockFlowFile text = testRunner.getFlowFilesForRelationship(TesseractOCR.REL_SUCCESS).get(0);
+        assertTrue(new String(text.toByteArray(), "UTF-8").contains("HELLO"));
+    }
+
+    @Test
+    public void testNotAnImageRoutesToFailure() {
+        testRunner.enqueue("not an image".getBytes());
+        testRunner.run();
+
+        testRunner.assertAllFlowFilesTransferred(TesseractOCR.REL_FAILURE, 1);
+    }
+
+    @Test
+    public void testEveryFlowFileIsTransferredOnce() throws IOException {
+        testRunner.enqueue(textImage("ONE"));
+        testRunner.enqueue("not an image".getBytes());
+        testRunner.enqueue(textImage("TWO"));
+        testRunner.run(3);
+
+        testRunner.assertTransferCount(TesseractOCR.REL_SUCCESS, 2);
+        testRunner.assertTransferCount(TesseractOCR.REL_FAILURE, 1);
+        testRunner.assertQueueEmpty();
+        final Set<Long> transferred = new HashSet<>();
+        for (MockFlowFile flowFile : testRunner.getFlowFilesForRelationship(TesseractOCR.REL_SUCCESS)) {
+            transferred.add(flowFile.getId());
+        }
+        for (MockFlowFile flowFile : testRunner.getFlowFilesForRelationship(TesseractOCR.REL_FAILURE)) {
+            transferred.add(flowFile.getId());
+        }
+        assertEquals(3, transferred.size());
+    }
+
+    private static byte[] textImage(String text) throws IOException {
+        final BufferedImage image = new BufferedImage(400, 120, BufferedImage.TYPE_INT_RGB);
+        final Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(0, 0, image.getWidth(), image.getHeight());
+        graphics.setColor(Color.BLACK);
+        graphics.setFont(new Font(Font.SANS_SERIF, Font.BOLD, 48));
+        graphics.drawString(text, 20, 80);
+        graphics.dispose();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}